@@ -45,33 +45,37 @@ import de.codesourcery.asm.util.Disassembler;
 public abstract class AbstractBlock implements IBlock
 {
     protected String id;
+    protected int index = -1;
     
-    protected final Set<Integer> instructions = new HashSet<>();  
-    protected final Set<Edge> edges = new HashSet<>();
+    protected Set<Integer> instructions = new HashSet<>();  
+    protected Set<Edge> edges = new HashSet<>();
+    
+    // set by freeze()
+    private boolean frozen;
+    private MethodNode frozenMethod;
+    private int byteCodeInstructionCount;
 
-    protected final Map<String, Object> properties = new HashMap<>();
+    protected Map<String, Object> properties; // allocated on first use , see BlockAttribute for per-graph attributes
     
     @Override
     public String disassemble(MethodNode method,boolean includeVirtual,boolean printInsnIndices) {
         
         final StringBuilder builder = new StringBuilder();
         
-        @SuppressWarnings("unchecked")
-		final ListIterator<AbstractInsnNode> iterator = method.instructions.iterator();
-        for ( int index = 0; iterator.hasNext() ; index++ ) 
+        final List<Integer> sorted = new ArrayList<>(instructions);
+        Collections.sort( sorted );
+        for ( int index : sorted ) 
         {
-            final AbstractInsnNode instruction = iterator.next();
-            
-            if ( containsInstructionNum( index ) ) 
+            if ( index >= method.instructions.size() ) {
+                continue;
+            }
+            String line = Disassembler.disassemble( method.instructions.get( index ) , method , includeVirtual , printInsnIndices );
+            if ( line != null ) 
             {
-                String line = Disassembler.disassemble( instruction , method , includeVirtual , printInsnIndices );
-                if ( line != null ) 
-                {
-                    if ( builder.length() > 0 ) {
-                        builder.append("\n");
-                    }
-                    builder.append( line );
+                if ( builder.length() > 0 ) {
+                    builder.append("\n");
                 }
+                builder.append( line );
             }
         }
         return builder.toString();
@@ -155,16 +159,18 @@ public abstract class AbstractBlock implements IBlock
     @Override
     public int getByteCodeInstructionCount(MethodNode method) {
         
-        final InsnList instructions = method.instructions;
-        @SuppressWarnings("unchecked")
-		final ListIterator<AbstractInsnNode> iterator = instructions.iterator();
+        if ( method == frozenMethod ) {
+            return byteCodeInstructionCount;
+        }
         
+        // only look at this block's instructions , InsnList#get() is O(1) after the first invocation
+        final InsnList insns = method.instructions;
         int count = 0;
-        for ( int index = 0 ; iterator.hasNext() ; index++ ) 
+        for ( int index : instructions ) 
         {
-            final AbstractInsnNode node = iterator.next();
-            if ( containsInstructionNum( index ) ) {
-                final int opCode = node.getOpcode();
+            if ( index < insns.size() ) 
+            {
+                final int opCode = insns.get( index ).getOpcode();
                 if ( opCode >= 0 && opCode < Printer.OPCODES.length ) { 
                     count++;
                 }
@@ -286,6 +292,7 @@ public abstract class AbstractBlock implements IBlock
     @Override
     public void setId(String id)
     {
+        checkNotFrozen();
         if (id == null) {
             throw new IllegalArgumentException("id must not be NULL.");
         }
@@ -298,6 +305,17 @@ public abstract class AbstractBlock implements IBlock
         return id;
     }
     
+    @Override
+    public int getIndex() {
+        return index;
+    }
+    
+    @Override
+    public void setIndex(int index) {
+        checkNotFrozen();
+        this.index = index;
+    }
+    
     @Override
     public Set<IBlock> getRegularSuccessors()
     {
@@ -351,11 +369,42 @@ public abstract class AbstractBlock implements IBlock
 
     @Override
     public Object storeProperty(String key, Object property) {
+        checkNotFrozen();
+        if ( properties == null ) {
+            properties = new HashMap<>();
+        }
         return properties.put(key, property);
     }
 
     @Override
     public Object getProperty(String key) {
-        return properties.get(key);
+        return properties != null ? properties.get(key) : null;
+    }
+    
+    /**
+     * Makes this block immutable.
+     * 
+     * <p>Instructions and edges can no longer be modified and the number of byte-code instructions gets cached.</p>
+     * 
+     * @param method the method this block was generated from
+     * @see ControlFlowGraph#freeze()
+     */
+    final void freeze(MethodNode method) 
+    {
+        byteCodeInstructionCount = getByteCodeInstructionCount( method );
+        frozenMethod = method;
+        instructions = Collections.unmodifiableSet( instructions );
+        edges = Collections.unmodifiableSet( edges );
+        if ( properties != null ) {
+            properties = Collections.unmodifiableMap( properties );
+        }
+        frozen = true;
+    }
+    
+    protected final void checkNotFrozen() 
+    {
+        if ( frozen ) {
+            throw new IllegalStateException("Block "+toSimpleString()+" is frozen");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.Arrays;
+
+/**
+ * Reusable work space for {@link ControlFlowAnalyzer}.
+ * 
+ * <p>While analyzing a method , the analyzer creates one block per instruction and merges adjacent blocks afterwards. 
+ * These intermediate blocks and their edges are kept in primitive arrays owned by this context instead of 
+ * {@link Block} and {@link Edge} objects. The arrays grow as needed and are reused by the next analysis , so 
+ * once a context has seen a method of similar size , analyzing a method only allocates the resulting {@link ControlFlowGraph}.</p>
+ * 
+ * <p>Instances are not thread-safe , {@link ControlFlowAnalyzer#analyze(String, org.objectweb.asm.tree.MethodNode)} uses 
+ * one context per thread.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class AnalysisContext
+{
+    private static final int[] EMPTY = new int[0];
+    
+    // edges by ID
+    int[] edgeSrc = new int[ 256 ];
+    int[] edgeDst = new int[ 256 ];
+    byte[] edgeType = new byte[ 256 ];
+    Object[] edgeMeta = new Object[ 256 ];
+    int edgeCount;
+    
+    // IDs of the edges known to a block , blocks are identified by their first instruction index
+    int[][] blockEdges = new int[0][];
+    int[] blockEdgeCount = EMPTY;
+    // last instruction index by block
+    int[] blockEnd = EMPTY;
+    // surviving blocks , in instruction order
+    int[] stack = EMPTY;
+    // block objects created for the resulting graph , by block
+    AbstractBlock[] blocks = new AbstractBlock[0];
+    int blockCount;
+    
+    // scratch space for iterating over a block's edges while modifying them
+    int[] mergeScratch = new int[ 16 ];
+    int[] replaceScratch = new int[ 16 ];
+    
+    /**
+     * Prepares this context for analyzing a method.
+     * 
+     * @param blockCount number of blocks (instructions + method exit)
+     */
+    void reset(int blockCount) 
+    {
+        if ( blockCount > blockEdges.length ) 
+        {
+            final int newSize = Math.max( blockCount , blockEdges.length * 2 );
+            blockEdges = Arrays.copyOf( blockEdges , newSize );
+            blockEdgeCount = new int[ newSize ];
+            blockEnd = new int[ newSize ];
+            stack = new int[ newSize ];
+            blocks = new AbstractBlock[ newSize ];
+        } else {
+            Arrays.fill( blockEdgeCount , 0 , blockCount , 0 );
+        }
+        for ( int i = 0 ; i < blockCount ; i++ ) {
+            blockEnd[i] = i;
+        }
+        this.blockCount = blockCount;
+        edgeCount = 0;
+    }
+    
+    /**
+     * Drops references to objects of the last analyzed method.
+     */
+    void clear() 
+    {
+        Arrays.fill( edgeMeta , 0 , edgeCount , null );
+        Arrays.fill( blocks , 0 , blockCount , null );
+    }
+    
+    /**
+     * Adds an edge to a block , unless the block already knows an edge with the same source , destination , type and meta-data.
+     */
+    void addEdge(int block,int src,int dst,int type,Object metaData) 
+    {
+        final int[] list = blockEdges[ block ];
+        final int count = blockEdgeCount[ block ];
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final int e = list[i];
+            if ( edgeSrc[e] == src && edgeDst[e] == dst && edgeType[e] == type && equals( edgeMeta[e] , metaData ) ) {
+                return;
+            }
+        }
+        
+        if ( edgeCount == edgeSrc.length ) 
+        {
+            final int newSize = edgeCount * 2;
+            edgeSrc = Arrays.copyOf( edgeSrc , newSize );
+            edgeDst = Arrays.copyOf( edgeDst , newSize );
+            edgeType = Arrays.copyOf( edgeType , newSize );
+            edgeMeta = Arrays.copyOf( edgeMeta , newSize );
+        }
+        final int e = edgeCount++;
+        edgeSrc[e] = src;
+        edgeDst[e] = dst;
+        edgeType[e] = (byte) type;
+        edgeMeta[e] = metaData;
+        
+        if ( list == null || count == list.length ) {
+            blockEdges[ block ] = list == null ? new int[ 4 ] : Arrays.copyOf( list , count * 2 );
+        }
+        blockEdges[ block ][ count ] = e;
+        blockEdgeCount[ block ] = count + 1;
+    }
+    
+    void removeEdge(int block,int edge) 
+    {
+        final int[] list = blockEdges[ block ];
+        final int count = blockEdgeCount[ block ];
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            if ( list[i] == edge ) 
+            {
+                System.arraycopy( list , i+1 , list , i , count - i - 1 );
+                blockEdgeCount[ block ] = count - 1;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Copies the IDs of a block's edges.
+     * 
+     * @return target array or a larger copy of it
+     */
+    int[] copyEdges(int block,int[] target) 
+    {
+        final int count = blockEdgeCount[ block ];
+        final int[] result = target.length >= count ? target : new int[ Math.max( count , target.length * 2 ) ];
+        if ( count > 0 ) {
+            System.arraycopy( blockEdges[ block ] , 0 , result , 0 , count );
+        }
+        return result;
+    }
+    
+    private static boolean equals(Object o1,Object o2) {
+        return o1 == null ? o2 == null : o1.equals( o2 );
+    }
+}
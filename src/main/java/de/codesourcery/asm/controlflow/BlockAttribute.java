@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed key for values attached to the blocks of a {@link ControlFlowGraph}.
+ * 
+ * <p>Unlike {@link IBlock#storeProperty(String, Object)} , values are not stored in the blocks but in one array per attribute 
+ * and graph , indexed by {@link IBlock#getIndex()} (see {@link BlockAttributes}). Attributes of type <code>Integer</code> , <code>Long</code> and 
+ * <code>Double</code> are backed by primitive arrays.</p>
+ * 
+ * <p>Attributes are compared by identity and are meant to be created once , as constants:</p>
+ * <pre>
+ * public static final BlockAttribute&lt;Integer&gt; LOOP_DEPTH = BlockAttribute.create( "loopDepth" , Integer.class );
+ * ...
+ * graph.getAttributes().setInt( LOOP_DEPTH , block , 2 );
+ * </pre>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @param <T> value type
+ */
+public final class BlockAttribute<T>
+{
+    private static final AtomicInteger NEXT_SLOT = new AtomicInteger();
+    
+    private final String name;
+    private final Class<T> type;
+    // index into BlockAttributes#columns
+    final int slot;
+    
+    private BlockAttribute(String name,Class<T> type) 
+    {
+        if ( name == null ) {
+            throw new IllegalArgumentException("name must not be NULL");
+        }
+        if ( type == null ) {
+            throw new IllegalArgumentException("type must not be NULL");
+        }
+        this.name = name;
+        this.type = type;
+        this.slot = NEXT_SLOT.getAndIncrement();
+    }
+    
+    /**
+     * Creates a new attribute.
+     * 
+     * @param name name , only used for debugging output
+     * @param type value type
+     * @return
+     */
+    public static <T> BlockAttribute<T> create(String name,Class<T> type) {
+        return new BlockAttribute<>( name , type );
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public Class<T> getType() {
+        return type;
+    }
+    
+    @Override
+    public String toString() {
+        return "BlockAttribute[ "+name+" ("+type.getSimpleName()+") ]";
+    }
+}
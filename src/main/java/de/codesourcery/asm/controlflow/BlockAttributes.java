@@ -0,0 +1,236 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.Arrays;
+
+/**
+ * Values of {@link BlockAttribute}s for the blocks of one {@link ControlFlowGraph}.
+ * 
+ * <p>Each attribute is backed by a single array with one element per block , indexed by {@link IBlock#getIndex()}. 
+ * The array is allocated when a value of the attribute is stored for the first time , reading an attribute 
+ * that has never been set returns <code>null</code> (or 0 for <code>Integer</code> , <code>Long</code> and <code>Double</code> attributes).</p>
+ * 
+ * <p>Passing blocks that are not part of the graph yields undefined results.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGraph#getAttributes()
+ */
+public final class BlockAttributes
+{
+    private final int blockCount;
+    
+    // backing arrays by BlockAttribute#slot
+    private Object[] columns = new Object[0];
+    
+    BlockAttributes(int blockCount) {
+        this.blockCount = blockCount;
+    }
+    
+    /**
+     * Returns whether a value has been stored for an attribute.
+     * 
+     * @param attribute
+     * @return
+     */
+    public boolean isSet(BlockAttribute<?> attribute) {
+        return getColumn( attribute ) != null;
+    }
+    
+    /**
+     * Discards all values of an attribute.
+     * 
+     * @param attribute
+     */
+    public void clear(BlockAttribute<?> attribute) 
+    {
+        if ( attribute.slot < columns.length ) {
+            columns[ attribute.slot ] = null;
+        }
+    }
+    
+    /**
+     * Returns an attribute value , boxing primitive values.
+     * 
+     * @param attribute
+     * @param block
+     * @return
+     */
+    public <T> T get(BlockAttribute<T> attribute,IBlock block) 
+    {
+        final Object column = getColumn( attribute );
+        final Object result;
+        if ( column == null ) {
+            result = isPrimitive( attribute ) ? getDefaultValue( attribute ) : null;
+        } 
+        else if ( column instanceof int[] ) {
+            result = ( (int[]) column )[ block.getIndex() ];
+        } 
+        else if ( column instanceof long[] ) {
+            result = ( (long[]) column )[ block.getIndex() ];
+        } 
+        else if ( column instanceof double[] ) {
+            result = ( (double[]) column )[ block.getIndex() ];
+        } else {
+            result = ( (Object[]) column )[ block.getIndex() ];
+        }
+        return attribute.getType().cast( result );
+    }
+    
+    /**
+     * Stores an attribute value.
+     * 
+     * @param attribute
+     * @param block
+     * @param value value , must not be <code>null</code> for <code>Integer</code> , <code>Long</code> and <code>Double</code> attributes
+     */
+    public <T> void set(BlockAttribute<T> attribute,IBlock block,T value) 
+    {
+        if ( isPrimitive( attribute ) ) 
+        {
+            if ( value == null ) {
+                throw new IllegalArgumentException("Attribute "+attribute+" does not support NULL values");
+            }
+            if ( value instanceof Integer ) {
+                getInts( attribute )[ block.getIndex() ] = (Integer) value;
+            } else if ( value instanceof Long ) {
+                getLongs( attribute )[ block.getIndex() ] = (Long) value;
+            } else {
+                getDoubles( attribute )[ block.getIndex() ] = (Double) value;
+            }
+            return;
+        }
+        Object[] column = (Object[]) getColumn( attribute );
+        if ( column == null ) {
+            column = (Object[]) allocate( attribute );
+        }
+        column[ block.getIndex() ] = attribute.getType().cast( value );
+    }
+    
+    public int getInt(BlockAttribute<Integer> attribute,IBlock block) 
+    {
+        final int[] column = (int[]) getColumn( attribute );
+        return column != null ? column[ block.getIndex() ] : 0;
+    }
+    
+    public void setInt(BlockAttribute<Integer> attribute,IBlock block,int value) {
+        getInts( attribute )[ block.getIndex() ] = value;
+    }
+    
+    public long getLong(BlockAttribute<Long> attribute,IBlock block) 
+    {
+        final long[] column = (long[]) getColumn( attribute );
+        return column != null ? column[ block.getIndex() ] : 0;
+    }
+    
+    public void setLong(BlockAttribute<Long> attribute,IBlock block,long value) {
+        getLongs( attribute )[ block.getIndex() ] = value;
+    }
+    
+    public double getDouble(BlockAttribute<Double> attribute,IBlock block) 
+    {
+        final double[] column = (double[]) getColumn( attribute );
+        return column != null ? column[ block.getIndex() ] : 0;
+    }
+    
+    public void setDouble(BlockAttribute<Double> attribute,IBlock block,double value) {
+        getDoubles( attribute )[ block.getIndex() ] = value;
+    }
+    
+    /**
+     * Returns the array backing an <code>Integer</code> attribute , for bulk updates.
+     * 
+     * @param attribute
+     * @return array indexed by {@link IBlock#getIndex()} , allocated if necessary
+     */
+    public int[] getInts(BlockAttribute<?> attribute) 
+    {
+        checkType( attribute , Integer.class );
+        final Object column = getColumn( attribute );
+        return (int[]) ( column != null ? column : allocate( attribute ) );
+    }
+    
+    /**
+     * Returns the array backing a <code>Long</code> attribute , for bulk updates.
+     * 
+     * @param attribute
+     * @return array indexed by {@link IBlock#getIndex()} , allocated if necessary
+     */
+    public long[] getLongs(BlockAttribute<?> attribute) 
+    {
+        checkType( attribute , Long.class );
+        final Object column = getColumn( attribute );
+        return (long[]) ( column != null ? column : allocate( attribute ) );
+    }
+    
+    /**
+     * Returns the array backing a <code>Double</code> attribute , for bulk updates.
+     * 
+     * @param attribute
+     * @return array indexed by {@link IBlock#getIndex()} , allocated if necessary
+     */
+    public double[] getDoubles(BlockAttribute<?> attribute) 
+    {
+        checkType( attribute , Double.class );
+        final Object column = getColumn( attribute );
+        return (double[]) ( column != null ? column : allocate( attribute ) );
+    }
+    
+    private static void checkType(BlockAttribute<?> attribute,Class<?> expected) 
+    {
+        if ( attribute.getType() != expected ) {
+            throw new IllegalArgumentException( attribute+" is not of type "+expected.getSimpleName() );
+        }
+    }
+    
+    private Object getColumn(BlockAttribute<?> attribute) {
+        return attribute.slot < columns.length ? columns[ attribute.slot ] : null;
+    }
+    
+    private Object allocate(BlockAttribute<?> attribute) 
+    {
+        if ( attribute.slot >= columns.length ) {
+            columns = Arrays.copyOf( columns , attribute.slot + 1 );
+        }
+        final Object column;
+        if ( attribute.getType() == Integer.class ) {
+            column = new int[ blockCount ];
+        } else if ( attribute.getType() == Long.class ) {
+            column = new long[ blockCount ];
+        } else if ( attribute.getType() == Double.class ) {
+            column = new double[ blockCount ];
+        } else {
+            column = new Object[ blockCount ];
+        }
+        columns[ attribute.slot ] = column;
+        return column;
+    }
+    
+    private static boolean isPrimitive(BlockAttribute<?> attribute) 
+    {
+        final Class<?> type = attribute.getType();
+        return type == Integer.class || type == Long.class || type == Double.class;
+    }
+    
+    private static Object getDefaultValue(BlockAttribute<?> attribute) 
+    {
+        final Class<?> type = attribute.getType();
+        if ( type == Integer.class ) {
+            return Integer.valueOf( 0 );
+        }
+        return type == Long.class ? (Object) Long.valueOf( 0 ) : (Object) Double.valueOf( 0 );
+    }
+}
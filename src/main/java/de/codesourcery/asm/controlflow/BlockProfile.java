@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+
+/**
+ * Execution counts of the basic blocks of a single method.
+ * 
+ * <p>Blocks are identified by the index of their first byte-code instruction (see {@link IBlock#getFirstByteCodeInstructionNum(MethodNode)}),
+ * so a profile recorded by the profiling agent can be applied to a control-flow graph that was created from the
+ * original class file later on.</p>
+ * 
+ * <p>Profiles usually do not contain counts for all blocks (for example , blocks of loops that are accounted for on loop exit). Missing
+ * block counts and all edge counts are inferred using flow conservation (the number of times a block is entered equals the number of times
+ * it is left), see {@link #getBlockCounts(ControlFlowGraph)} and {@link #getEdgeCounts(ControlFlowGraph)}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see HeatmapDOTRenderer
+ */
+public class BlockProfile
+{
+    // index of first instruction -> number of executions
+    private final Map<Integer,Long> counts = new HashMap<>();
+    
+    public BlockProfile() {
+    }
+    
+    /**
+     * Returns the key of a method , as used when loading profiles of several methods at once.
+     * 
+     * @param owner internal name of the class
+     * @param name
+     * @param desc
+     * @return
+     */
+    public static String getKey(String owner,String name,String desc) {
+        return owner.replace('/','.')+"#"+name+desc;
+    }
+    
+    /**
+     * Adds to the execution count of a block.
+     * 
+     * @param firstInstructionNum index of the block's first byte-code instruction
+     * @param count
+     */
+    public void addCount(int firstInstructionNum,long count) 
+    {
+        final Long existing = counts.get( firstInstructionNum );
+        counts.put( firstInstructionNum , existing == null ? count : existing + count );
+    }
+    
+    /**
+     * Returns the recorded execution count of a block.
+     * 
+     * @param firstInstructionNum index of the block's first byte-code instruction
+     * @return count or <code>null</code> if no count has been recorded for this block
+     */
+    public Long getCount(int firstInstructionNum) {
+        return counts.get( firstInstructionNum );
+    }
+    
+    public boolean isEmpty() {
+        return counts.isEmpty();
+    }
+    
+    /**
+     * Returns the execution counts of all blocks of a graph , including counts inferred from
+     * flow conservation.
+     * 
+     * <p>Blocks without predecessors (other than the method entry) are unreachable and count as never executed , unless
+     * the profile is empty.</p>
+     * 
+     * @param graph
+     * @return execution counts , blocks whose count could neither be looked up nor inferred are missing
+     */
+    public Map<IBlock,Long> getBlockCounts(ControlFlowGraph graph) 
+    {
+        final Map<IBlock,Long> blockCounts = new HashMap<>();
+        inferCounts( graph , blockCounts , new HashMap<Edge,Long>() );
+        return blockCounts;
+    }
+    
+    /**
+     * Returns the traversal counts of all edges of a graph , inferred from the 
+     * block counts using flow conservation.
+     * 
+     * <p>Exception edges are only inferred from the handler side , a block that may throw an exception does not need to
+     * be left through its exception edges.</p>
+     * 
+     * @param graph
+     * @return traversal counts , edges whose count could not be inferred are missing
+     */
+    public Map<Edge,Long> getEdgeCounts(ControlFlowGraph graph) 
+    {
+        final Map<Edge,Long> edgeCounts = new HashMap<>();
+        inferCounts( graph , new HashMap<IBlock,Long>() , edgeCounts );
+        return edgeCounts;
+    }
+    
+    private void inferCounts(ControlFlowGraph graph,Map<IBlock,Long> blockCounts,Map<Edge,Long> edgeCounts) 
+    {
+        if ( counts.isEmpty() ) {
+            return;
+        }
+        
+        final MethodNode method = graph.getMethod();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            if ( ! ( block instanceof MethodEntry ) && ! ( block instanceof MethodExit ) && ! block.isVirtual( method ) ) 
+            {
+                final Long count = counts.get( block.getFirstByteCodeInstructionNum( method ) );
+                if ( count != null ) {
+                    blockCounts.put( block , count );
+                }
+            }
+        }
+        
+        // predecessor and successor share the same edge but do not necessarily store equal Edge instances (meta-data may differ) ,
+        // so only the successor edges are used , like DOTRenderer does
+        final Map<IBlock,List<Edge>> in = new HashMap<>();
+        final Map<IBlock,List<Edge>> out = new HashMap<>();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            in.put( block , new ArrayList<Edge>() );
+            out.put( block , new ArrayList<Edge>() );
+        }
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            for ( Edge edge : block.getEdges() ) 
+            {
+                if ( edge.isSuccessor( block ) && in.containsKey( edge.dst ) ) 
+                {
+                    out.get( block ).add( edge );
+                    in.get( edge.dst ).add( edge );
+                }
+            }
+        }
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            // blocks without predecessors (like the virtual block ASM emits for a trailing label) never execute 
+            if ( ! ( block instanceof MethodEntry ) && in.get( block ).isEmpty() && ! blockCounts.containsKey( block ) ) {
+                blockCounts.put( block , 0L );
+            }
+        }
+        
+        boolean changed;
+        do 
+        {
+            changed = false;
+            for ( IBlock block : graph.getAllNodes() ) 
+            {
+                boolean throwing = false;
+                for ( Edge edge : out.get( block ) ) {
+                    throwing |= edge.hasType( EdgeType.CAUGHT_EXCEPTION );
+                }
+                changed |= balance( block , in.get( block ) , blockCounts , edgeCounts );
+                if ( ! throwing ) {
+                    changed |= balance( block , out.get( block ) , blockCounts , edgeCounts );
+                }
+            }
+        } while ( changed );
+    }
+    
+    // block count = sum of edge counts
+    private static boolean balance(IBlock block,List<Edge> edges,Map<IBlock,Long> blockCounts,Map<Edge,Long> edgeCounts) 
+    {
+        if ( edges.isEmpty() ) {
+            return false;
+        }
+        
+        long sum = 0;
+        Edge unknown = null;
+        int unknownCount = 0;
+        for ( Edge edge : edges ) 
+        {
+            final Long count = edgeCounts.get( edge );
+            if ( count == null ) {
+                unknown = edge;
+                unknownCount++;
+            } else {
+                sum += count;
+            }
+        }
+        
+        final Long blockCount = blockCounts.get( block );
+        if ( blockCount == null ) 
+        {
+            if ( unknownCount == 0 ) {
+                blockCounts.put( block , sum );
+                return true;
+            }
+            return false;
+        }
+        if ( unknownCount == 1 ) 
+        {
+            edgeCounts.put( unknown , Math.max( 0 , blockCount - sum ) );
+            return true;
+        }
+        return false;
+    }
+}
@@ -16,18 +16,11 @@
 package de.codesourcery.asm.controlflow;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
-import java.util.Set;
 
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LookupSwitchInsnNode;
@@ -41,6 +34,21 @@ import de.codesourcery.asm.util.ASMUtil;
 
 public class ControlFlowAnalyzer
 {
+    private static final EdgeType[] EDGE_TYPES = EdgeType.values();
+    
+    private static final int REGULAR = EdgeType.REGULAR.ordinal();
+    private static final int CAUGHT_EXCEPTION = EdgeType.CAUGHT_EXCEPTION.ordinal();
+    private static final int LOOKUP_SWITCH = EdgeType.LOOKUP_SWITCH.ordinal();
+    private static final int TABLE_SWITCH = EdgeType.TABLE_SWITCH.ordinal();
+    
+    private static final ThreadLocal<AnalysisContext> CONTEXT = new ThreadLocal<AnalysisContext>() {
+        
+        @Override
+        protected AnalysisContext initialValue() {
+            return new AnalysisContext();
+        }
+    };
+    
     private boolean debug = false;
 
     public void setDebug(boolean debug)
@@ -48,362 +56,377 @@ public class ControlFlowAnalyzer
         this.debug = debug;
     }
     
-    @SuppressWarnings("unchecked")
+    /**
+     * Analyzes a method , using a work space that is shared with all other analyses
+     * performed by the current thread.
+     * 
+     * @param owner
+     * @param mn
+     * @return
+     * @throws AnalyzerException
+     * @see #analyze(String, MethodNode, AnalysisContext)
+     */
     public ControlFlowGraph analyze(String owner,final MethodNode mn) throws AnalyzerException 
     {
-        // line numbers with associated block
-        // initially we'll create one block per line and merge adjacent ones later if control flow permits it  
-        final Map<Integer,IBlock> blocks = new HashMap<>(); 
-
-        final ListIterator<AbstractInsnNode> it = mn.instructions.iterator();
-
-        IBlock currentLine=null;   
-        Object previousMetadata = null;
-        IBlock previous = null;
-        final IBlock methodExit = new MethodExit();
-        for( int instrCounter = 0 ; it.hasNext() ; instrCounter++ ) 
+        return analyze( owner , mn , CONTEXT.get() );
+    }
+    
+    /**
+     * Analyzes a method.
+     * 
+     * @param owner
+     * @param mn
+     * @param context work space to use , must not be used by other threads at the same time
+     * @return
+     * @throws AnalyzerException
+     */
+    @SuppressWarnings("unchecked")
+    public ControlFlowGraph analyze(String owner,final MethodNode mn,AnalysisContext context) throws AnalyzerException 
+    {
+        if ( context == null ) {
+            throw new IllegalArgumentException("context must not be NULL.");
+        }
+        
+        // initially we'll create one block per instruction and merge adjacent ones later if control flow permits it ,
+        // blocks are identified by the index of their first instruction , the method exit by the number of instructions
+        final InsnList instructions = mn.instructions;
+        final int methodExit = instructions.size();
+        if ( methodExit == 0 ) {
+            throw new IllegalStateException("Method with no lines?");
+        }
+        
+        final AnalysisContext ctx = context;
+        ctx.reset( methodExit + 1 );
+        try 
         {
-            final AbstractInsnNode instruction = it.next();
-            currentLine = getBlockForInstruction(instrCounter,blocks);
-
-            if ( previous != null ) 
+            Object previousMetadata = null;
+            int previous = -1;
+            int current = 0;
+            for ( AbstractInsnNode instruction = instructions.getFirst() ; instruction != null ; instruction = instruction.getNext() , current++ ) 
             {
-                previous.addSuccessor( currentLine , EdgeType.REGULAR , previousMetadata );
-                currentLine.addRegularPredecessor( previous );
-                previousMetadata = null;
+                if ( previous != -1 ) 
+                {
+                    ctx.addEdge( previous , previous , current , REGULAR , previousMetadata );
+                    ctx.addEdge( current , previous , current , REGULAR , null );
+                    previousMetadata = null;
+                }
+                
+                int nextPrevious = current;
+                switch( instruction.getType() ) 
+                {
+                    case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                        final LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) instruction;
+                        
+                        // add edge for default handler
+                        if ( lookup.dflt != null ) {
+                            addEdge( ctx , current , instructions.indexOf( lookup.dflt ) , REGULAR , null );
+                        }
+                        
+                        final List<Integer> keys = lookup.keys;
+                        final List<LabelNode> labels = lookup.labels;
+                        for ( int i = 0 , len = labels.size() ; i < len ; i++ ) {
+                            addEdge( ctx , current , instructions.indexOf( labels.get( i ) ) , LOOKUP_SWITCH , keys.get( i ) );
+                        }
+                        nextPrevious = -1;
+                        break;                    
+                        
+                    case AbstractInsnNode.TABLESWITCH_INSN:
+                        final TableSwitchInsnNode tblSwitch = (TableSwitchInsnNode) instruction;
+                        
+                        // add edge for default handler
+                        if ( tblSwitch.dflt != null ) {
+                            addEdge( ctx , current , instructions.indexOf( tblSwitch.dflt ) , REGULAR , null );
+                        }
+                        
+                        final List<LabelNode> tblLabels = tblSwitch.labels;
+                        for ( int i = 0 , len = tblLabels.size() ; i < len ; i++ ) {
+                            addEdge( ctx , current , instructions.indexOf( tblLabels.get( i ) ) , TABLE_SWITCH , Integer.valueOf( tblSwitch.min + i ) );
+                        }
+                        nextPrevious = -1;
+                        break;
+                        
+                    case AbstractInsnNode.INSN:
+                        switch( instruction.getOpcode() ) 
+                        {
+                            case Opcodes.RETURN: /* method exit */
+                            case Opcodes.IRETURN:
+                            case Opcodes.FRETURN:
+                            case Opcodes.DRETURN:
+                            case Opcodes.LRETURN:
+                            case Opcodes.ARETURN:
+                                addEdge( ctx , current , methodExit , REGULAR , null );
+                                nextPrevious = -1;
+                                break;
+                            case Opcodes.ATHROW:
+                            case Opcodes.RET:
+                                nextPrevious = -1;
+                                break;
+                        }
+                        break;
+                        
+                    case AbstractInsnNode.JUMP_INSN: /* jump */
+                        final int target = instructions.indexOf( ( (JumpInsnNode) instruction ).label );
+                        final boolean isConditional = ASMUtil.isConditionalJump( instruction );
+                        
+                        if ( isConditional ) { // label edges of conditional jump instructions with "true" and "false
+                            previousMetadata = "false";
+                        }
+                        
+                        // create edge from current block to jump target 
+                        ctx.addEdge( target , current , target , REGULAR , null );
+                        ctx.addEdge( current , current , target , REGULAR , isConditional ? "true" : null );
+                        
+                        if ( instruction.getOpcode() == Opcodes.GOTO ) {
+                            nextPrevious = -1;
+                        }
+                        break;
+                }
+                
+                // link last instruction with method_exit block
+                if ( instruction.getNext() == null ) { 
+                    addEdge( ctx , current , methodExit , REGULAR , null );
+                }
+                previous = nextPrevious;
             }
-
-            IBlock nextPrevious = currentLine;
-            switch( instruction.getType() ) 
+            
+            // try/catch blocks need special treatment because
+            // they are not represented as opcodes
+            final List<TryCatchBlockNode> tryCatchBlocks = mn.tryCatchBlocks;
+            for ( int i = 0 , len = tryCatchBlocks.size() ; i < len ; i++ ) 
             {
-                case AbstractInsnNode.LOOKUPSWITCH_INSN:
-                    LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) instruction;
-
-                    // add edge for default handler
-                    if ( lookup.dflt != null ) 
-                    {
-                        final IBlock target = getBlockForInstruction( lookup.dflt , mn , blocks );
-                        target.addRegularPredecessor( currentLine );
-                        currentLine.addRegularSuccessor( target );
-                    }
-
-                    @SuppressWarnings("cast")
-                    final Iterator<Integer> keys = (Iterator<Integer> ) lookup.keys.iterator();
-
-                    for ( LabelNode ln : (List<LabelNode>) lookup.labels ) 
-                    {
-                        final IBlock target = getBlockForInstruction( ln , mn , blocks );
-                        final Integer key = keys.next();
-
-                        target.addPredecessor( currentLine , EdgeType.LOOKUP_SWITCH , key );
-                        currentLine.addSuccessor( target , EdgeType.LOOKUP_SWITCH , key );
-                    }
-                    nextPrevious = null;
-                    break;                    
-
-                case AbstractInsnNode.TABLESWITCH_INSN:
-
-                    TableSwitchInsnNode tblSwitch = (TableSwitchInsnNode) instruction;
-
-                    // add edge for default handler
-                    if ( tblSwitch.dflt != null ) 
-                    {
-                        final IBlock target = getBlockForInstruction( tblSwitch.dflt , mn , blocks );
-                        target.addRegularPredecessor( currentLine );
-                        currentLine.addRegularSuccessor( target );
-                    }
-                    int currentKey = tblSwitch.min;
-
-                    for ( LabelNode ln : (List<LabelNode>) tblSwitch.labels ) 
-                    {
-                        final IBlock target = getBlockForInstruction( ln , mn , blocks );
-
-                        target.addPredecessor( currentLine , EdgeType.TABLE_SWITCH , currentKey );
-                        currentLine.addSuccessor( target , EdgeType.TABLE_SWITCH , currentKey );
-
-                        currentKey++;
-                    }
-                    nextPrevious = null;
-                    break;
-
-                case AbstractInsnNode.INSN:
-
-                    if (instruction.getOpcode() == Opcodes.RETURN ||
-                        instruction.getOpcode() == Opcodes.IRETURN ||
-                        instruction.getOpcode() == Opcodes.FRETURN ||
-                        instruction.getOpcode() == Opcodes.DRETURN ||
-                        instruction.getOpcode() == Opcodes.LRETURN ||
-                        instruction.getOpcode() == Opcodes.ARETURN) /* method exit */
-                    {
-                        currentLine.addRegularSuccessor( methodExit );
-                        methodExit.addRegularPredecessor( currentLine );
-                        nextPrevious = null;
-                    } 
-                    else if ( instruction.getOpcode() == Opcodes.ATHROW || instruction.getOpcode() == Opcodes.RET ) 
-                    {
-                        nextPrevious = null;
-                    }
-                    break;
-
-                case AbstractInsnNode.JUMP_INSN: /* jump */
-
-                    final JumpInsnNode jmp = (JumpInsnNode) instruction;
-                    final LabelNode label = jmp.label;
-                    final int target = mn.instructions.indexOf( label );
-
-                    final boolean isConditional = ASMUtil.isConditionalJump( instruction );
-
-                    if ( isConditional ) { // label edges of conditional jump instructions with "true" and "false
-                        previousMetadata = "false";
-                    }
-                    
-                    final IBlock targetBlock = getBlockForInstruction(target,blocks);
-                    targetBlock.addRegularPredecessor( currentLine );
-
-                    // create edge from current block to jump target 
-                    currentLine.addSuccessor( targetBlock , EdgeType.REGULAR , isConditional ? "true" : null );
-
-                    if ( instruction.getOpcode() == Opcodes.GOTO) {
-                        nextPrevious = null;
+                final TryCatchBlockNode node = tryCatchBlocks.get( i );
+                final int startTarget = instructions.indexOf( node.start );
+                final int endTarget = instructions.indexOf( node.end );            
+                final int handlerTarget = instructions.indexOf( node.handler );
+                
+                for ( int j = startTarget ; j <= endTarget ; j++ ) 
+                {
+                    if ( j != handlerTarget ) {
+                        ctx.addEdge( j , j , handlerTarget , CAUGHT_EXCEPTION , node.type );
                     }
-                    break;
+                }
             }
-
-            // link last instruction with method_exit block
-            if ( ! it.hasNext() ) { 
-                currentLine.addRegularSuccessor( methodExit );
-                methodExit.addRegularPredecessor( currentLine );
+            
+            final int blockCount = mergeBlocks( ctx , methodExit );
+            return createGraph( ctx , mn , blockCount , methodExit );
+        } 
+        finally {
+            ctx.clear();
+        }
+    }    
+    
+    /**
+     * Adds a regular edge to both of its blocks.
+     */
+    private static void addEdge(AnalysisContext ctx,int src,int dst,int type,Object metaData) 
+    {
+        ctx.addEdge( src , src , dst , type , metaData );
+        ctx.addEdge( dst , src , dst , type , metaData );
+    }
+    
+    private static boolean isRegular(int type) {
+        return type == REGULAR || type == LOOKUP_SWITCH || type == TABLE_SWITCH;
+    }
+    
+    // merge adjacent blocks
+    private int mergeBlocks(AnalysisContext ctx, int methodExit)
+    {
+        // blocks that have not been merged into their predecessor so far , in instruction order. 
+        // Merging two blocks may only enable merging the block before them , so each block is 
+        // pushed once and merged with its predecessors as long as possible
+        final int[] stack = ctx.stack;
+        int size = 0;
+        for ( int block = 0 ; block < methodExit ; block++ ) 
+        {
+            stack[ size++ ] = block;
+            while ( size > 1 && canMerge( ctx , stack[ size - 2 ] , stack[ size - 1 ] , methodExit ) ) 
+            {
+                merge( ctx , stack[ size - 2 ] , stack[ size - 1 ] );
+                size--;
             }
-            previous = nextPrevious;
         }
-
-        // try/catch blocks need special treatment because
-        // they are not represented as opcodes
-        for ( TryCatchBlockNode node : (List<TryCatchBlockNode>) mn.tryCatchBlocks ) 
+        return size;
+    }
+    
+    /**
+     * Checks whether a block has exactly one successor (ignoring the method exit) , which is the 
+     * next block , and whether the next block has no regular predecessor besides it.
+     */
+    private boolean canMerge(AnalysisContext ctx,int current,int next,int methodExit) 
+    {
+        final int[] edgeSrc = ctx.edgeSrc;
+        final int[] edgeDst = ctx.edgeDst;
+        final byte[] edgeType = ctx.edgeType;
+        
+        int successor = -1;
+        final int[] currentEdges = ctx.blockEdges[ current ];
+        for ( int i = 0 , count = ctx.blockEdgeCount[ current ] ; i < count ; i++ ) 
         {
-            final LabelNode startLabel = node.start;
-            final int startTarget = mn.instructions.indexOf( startLabel );
-
-            final LabelNode endLabel = node.end;
-            final int endTarget = mn.instructions.indexOf( endLabel );            
-
-            final int handlerTarget = mn.instructions.indexOf( node.handler );
-            IBlock handler = getBlockForInstruction( node.handler , mn , blocks );
-
-            for ( int i = startTarget ; i <= endTarget ; i++ ) 
+            final int e = currentEdges[i];
+            if ( edgeSrc[e] == current && edgeDst[e] != methodExit ) 
             {
-                if ( i != handlerTarget ) {
-                    getBlockForInstruction( i , blocks ).addExceptionHandler( handler , node.type );
+                if ( successor != -1 ) {
+                    return notMerged( current , next , "successor/Predecessor count mismatch" );
                 }
+                successor = e;
             }
         }
-
-        // merge adjacent instructions
-        final Set<Integer> linesBeforeMerge = new HashSet<>();
-        for ( IBlock block : blocks.values() ) {
-        	linesBeforeMerge.addAll( block.getInstructionNums() );
+        if ( successor == -1 ) {
+            return notMerged( current , next , "successor/Predecessor count mismatch" );
         }
         
-        final List<IBlock> result = mergeBlocks(blocks,mn);
-
-    	  if ( debug ) {
-    	  	System.out.println("################ Control-blocks merged ################");
-    	  }
-        // sanity check
-        final Set<Integer> linesAfterMerge = new HashSet<>();
-        for ( IBlock block : result ) 
+        boolean hasPredecessor = false;
+        final int[] nextEdges = ctx.blockEdges[ next ];
+        for ( int i = 0 , count = ctx.blockEdgeCount[ next ] ; i < count ; i++ ) 
         {
-        	linesAfterMerge.addAll( block.getInstructionNums() );
-        	if ( debug ) {
-        		System.out.println("-----");
-        		System.out.println( block+" has "+block.getByteCodeInstructionCount( mn )+" instructions.");
-        		System.out.println( block.disassemble(mn , false , true ) );
-        	}
-            for ( Edge e : block.getEdges() ) {
-                if ( ! result.contains( e.src ) && e.src != methodExit ) {
-                    throw new RuntimeException( e+" has src that is not in result list?");
-                }
-                if ( ! result.contains( e.dst ) && e.dst != methodExit ) {
-                    throw new RuntimeException( e+" has destination that is not in result list?");
+            final int e = nextEdges[i];
+            if ( edgeDst[e] == next && isRegular( edgeType[e] ) ) 
+            {
+                if ( edgeSrc[e] != current ) {
+                    return notMerged( current , next , "successor/Predecessor count mismatch" );
                 }
+                hasPredecessor = true;
             }
         }
-        
-        if ( ! linesBeforeMerge.equals( linesAfterMerge ) ) {
-        	throw new RuntimeException("Internal error, line count mismatch before/after control block merge: \n\n"+linesBeforeMerge+"\n\n"+linesAfterMerge);
+        if ( ! hasPredecessor ) {
+            return notMerged( current , next , "successor/Predecessor count mismatch" );
         }
-
-        // add starting block and link it with block that contains the lowest instruction number
-        MethodEntry methodEntry = new MethodEntry();
-        int lowest = Integer.MAX_VALUE;
-        for ( Integer i : blocks.keySet() ) {
-            if ( i < lowest ) {
-                lowest = i;
-            }
+        if ( edgeDst[ successor ] != next || ! isRegular( edgeType[ successor ] ) ) {
+            return notMerged( current , next , "no direct edge" );
         }
-
-        final IBlock firstBlock = blocks.get( lowest );
-        if ( firstBlock.hasRegularPredecessor() ) {
-            throw new IllegalStateException( firstBlock+" that constrains first instruction has a predecessor?");
-        }        
-
-        methodEntry.addRegularSuccessor( firstBlock );
-        firstBlock.addRegularPredecessor( methodEntry );
-        result.add( 0 , methodEntry );
-
-        // add end block to results
-        result.add( methodExit );
-
-        return new ControlFlowGraph( mn , result );
-    }    
-
-    private IBlock getBlockForInstruction(LabelNode label , MethodNode mn, Map<Integer,IBlock> blocks) 
+        return true;
+    }
+    
+    private boolean notMerged(int current,int next,String reason) 
     {
-        final int target = mn.instructions.indexOf( label );
-        return getBlockForInstruction( target , blocks );
+        if ( debug ) {
+            System.err.println("Not merged - "+reason+": #"+current+" <-> #"+next);
+        }
+        return false;
     }
-
-    private int getSuccessorCountIgnoringEndBlock(IBlock block) {
-
-        int count = 0;
-        for (Edge e : block.getEdges()) {
-            if (block == e.src && ! (e.dst instanceof MethodExit)) {
-                count++;
+    
+    private void merge(AnalysisContext ctx,int current,int next) 
+    {
+        if ( debug ) {
+            System.out.println("*** MERGING #"+current+" and #"+next+" ***");
+        }
+        
+        ctx.blockEnd[ current ] = ctx.blockEnd[ next ];
+        
+        // remove regular edge to next block
+        final int[] currentEdges = ctx.blockEdges[ current ];
+        for ( int i = 0 , count = ctx.blockEdgeCount[ current ] ; i < count ; i++ ) 
+        {
+            final int e = currentEdges[i];
+            if ( ctx.edgeSrc[e] == current && ctx.edgeDst[e] == next && isRegular( ctx.edgeType[e] ) ) {
+                ctx.removeEdge( current , e );
+                break;
             }
         }
-        return count;
-    }
-
-    private IBlock getSuccessorIgnoringEndBlock(IBlock block) {
-
-        if ( block.getRegularSuccessorCount() >= 0 ) 
+        
+        final int count = ctx.blockEdgeCount[ next ];
+        final int[] nextEdges = ctx.mergeScratch = ctx.copyEdges( next , ctx.mergeScratch );
+        for ( int i = 0 ; i < count ; i++ ) 
         {
-            if ( block.getRegularSuccessorCount() > 2 ) {
-                return block.getRegularSuccessor();
-            }        
-
-            for ( IBlock b : block.getRegularSuccessors() ) {
-                if ( !( b instanceof MethodExit ) ) {
-                    return b;
-                }
+            final int e = nextEdges[i];
+            final int src = ctx.edgeSrc[e];
+            final int dst = ctx.edgeDst[e];
+            if ( src == next ) 
+            {
+                blockReplaced( ctx , dst , next , current );
+                ctx.addEdge( current , current , dst , ctx.edgeType[e] , ctx.edgeMeta[e] );
+            } 
+            else if ( dst == next && src != current ) 
+            {
+                blockReplaced( ctx , src , next , current );
             }
         }
-        return null;
-    }    
-
-    // merge adjacent blocks
-    private List<IBlock> mergeBlocks(Map<Integer, IBlock> blocks, final MethodNode mn)
+    }
+    
+    /**
+     * Updates all edges of a block that reference a block that got merged into another one.
+     */
+    private static void blockReplaced(AnalysisContext ctx,int block,int oldBlock,int newBlock) 
     {
-        final List<Integer> lines = new ArrayList<>(blocks.keySet());
-        if ( lines.isEmpty() ) {
-            throw new IllegalStateException("Method with no lines?");
-        }
-
-        Collections.sort( lines );
-
-        // make sure there are no 'holes' in the line number sequence
-        for ( int i = 0 ; i < lines.size() - 2 ; i++) {
-            if ( lines.get(i)+1 != lines.get(i+1 ) ) {
-                throw new IllegalStateException("Missing line "+(lines.get(i)+1 ) );                
+        final int count = ctx.blockEdgeCount[ block ];
+        final int[] edges = ctx.replaceScratch = ctx.copyEdges( block , ctx.replaceScratch );
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final int e = edges[i];
+            if ( ctx.edgeSrc[e] == oldBlock ) 
+            {
+                ctx.removeEdge( block , e );
+                ctx.addEdge( block , newBlock , ctx.edgeDst[e] , ctx.edgeType[e] , ctx.edgeMeta[e] );
+            } 
+            else if ( ctx.edgeDst[e] == oldBlock ) 
+            {
+                ctx.removeEdge( block , e );
+                ctx.addEdge( block , ctx.edgeSrc[e] , newBlock , ctx.edgeType[e] , ctx.edgeMeta[e] );
             }
         }
-
-        final IBlock[] sorted = new IBlock[lines.size()];
-
-        // initialize each block with their line number
-        for ( Map.Entry<Integer,IBlock> entry : blocks.entrySet() ) 
+    }
+    
+    private ControlFlowGraph createGraph(AnalysisContext ctx,MethodNode mn,int blockCount,int methodExit) 
+    {
+        final AbstractBlock[] blocks = ctx.blocks;
+        final int[] stack = ctx.stack;
+        final List<IBlock> result = new ArrayList<>( blockCount + 2 );
+        result.add( new MethodEntry() );
+        for ( int i = 0 ; i < blockCount ; i++ ) 
         {
-            final IBlock block = entry.getValue();
-            final Integer lineNo = entry.getKey();
-            sorted[ lineNo ] = block;
-            block.addInstructionNum( lineNo );
+            final int start = stack[i];
+            final Block block = new Block();
+            for ( int j = start , end = ctx.blockEnd[ start ] ; j <= end ; j++ ) {
+                block.instructions.add( j );
+            }
+            blocks[ start ] = block;
+            result.add( block );
         }
-
-        if ( debug) {
-            for ( Integer key : lines ) {
-                System.out.println("---- Block #"+key+": "+blocks.get(key)+" ----");
-                System.out.println( blocks.get(key).disassemble( mn , true , true ) );
-            }        
+        final MethodExit exit = new MethodExit();
+        blocks[ methodExit ] = exit;
+        
+        if ( debug ) {
+            System.out.println("################ Control-blocks merged ################");
         }
-
-        final List<IBlock> sortedList = new ArrayList<>( Arrays.asList( sorted ) );
-
-        boolean merged = false;
-        do 
+        
+        for ( int i = 0 ; i <= blockCount ; i++ ) 
         {
-            merged = false;
-            for ( int i = 0 ; ! merged && sortedList.size() > 1 && (i+1) < sortedList.size() ; i++ ) 
+            final int start = i < blockCount ? stack[i] : methodExit;
+            final AbstractBlock block = blocks[ start ];
+            final int[] edges = ctx.blockEdges[ start ];
+            for ( int j = 0 , count = ctx.blockEdgeCount[ start ] ; j < count ; j++ ) 
             {
-                final IBlock current = sortedList.get(i);
-                final IBlock next = sortedList.get(i+1);
-
-                if ( getSuccessorCountIgnoringEndBlock( current ) == 1 && next.getRegularPredecessorCount() == 1 ) 
-                {
-                    if ( getSuccessorIgnoringEndBlock( current ) == next && next.getRegularPredecessor() == current ) 
-                    {
-                        if ( debug ) {
-                            System.out.println("*** MERGING ***");
-                            System.out.println("---------- First: "+current+" ------------------");
-                            System.out.println( current.disassemble( mn , false , true ) );
-                            System.out.println("---------- Second: "+next+" ------------------");
-                            System.out.println( next.disassemble( mn , false , true ) );
-                            System.out.println("--------------------------");
-                        }
-
-                        merged = true;
-                        sortedList.remove( i+1 );
-                        i--;
-
-                        current.addInstructionNums( next );
-
-                        current.removeRegularSuccessor( next );
-
-                        for ( Edge edge : next.getEdges() ) 
-                        {
-                            if ( edge.isSuccessor( next ) ) 
-                            {
-                                final IBlock succ = edge.dst;
-                                succ.blockReplaced( next , current );
-                                current.addSuccessor( succ , edge.type , edge.metaData );
-                            } 
-                            else if ( edge.isPredecessor( next ) ) 
-                            {
-                                final IBlock pred = edge.src;
-                                if ( pred != current ) {
-                                    pred.blockReplaced( next , current );
-                                }
-                            }
-                        }
-                        if ( debug ) {
-                            // TODO: remove debug code
-                            System.out.println("*** AFTER MERGE ***");    
-                            System.out.println("---------- MERGED: "+current+" ------------------");                        
-                            System.out.println( current.disassemble( mn , false , true ) );
-                        }
-
-                    } else {
-                        if ( debug) {
-                            System.err.println("Not merged - no direct edge: "+current+" <-> "+next);
-                        }
-                    }
-                } else {
-                    if ( debug ) {
-                        System.err.println("Not merged - successor/Predecessor count mismatch: "+current+" <-> "+next);
-                    }
+                final int e = edges[j];
+                final IBlock src = blocks[ ctx.edgeSrc[e] ];
+                final IBlock dst = blocks[ ctx.edgeDst[e] ];
+                if ( src == null ) {
+                    throw new RuntimeException( "Edge from #"+ctx.edgeSrc[e]+" to #"+ctx.edgeDst[e]+" of "+block+" has src that is not in result list?");
                 }
+                if ( dst == null ) {
+                    throw new RuntimeException( "Edge from #"+ctx.edgeSrc[e]+" to #"+ctx.edgeDst[e]+" of "+block+" has destination that is not in result list?");
+                }
+                block.edges.add( new Edge( src , dst , EDGE_TYPES[ ctx.edgeType[e] ] , ctx.edgeMeta[e] ) );
+            }
+            
+            if ( debug && block != exit ) {
+                System.out.println("-----");
+                System.out.println( block+" has "+block.getByteCodeInstructionCount( mn )+" instructions.");
+                System.out.println( block.disassemble(mn , false , true ) );
             }
-        } while ( merged );
-
-        return sortedList;
-    }
-
-    private IBlock getBlockForInstruction(int index,Map<Integer,IBlock> blocks) {
-        IBlock result = blocks.get( index );
-        if ( result == null ) {
-            result = new Block();
-            result.addInstructionNum( index );
-            blocks.put( index , result );
         }
-        return result;
+        
+        // link starting block with block that contains the lowest instruction number
+        final IBlock methodEntry = result.get( 0 );
+        final IBlock firstBlock = result.get( 1 );
+        if ( firstBlock.hasRegularPredecessor() ) {
+            throw new IllegalStateException( firstBlock+" that constrains first instruction has a predecessor?");
+        }        
+        methodEntry.addRegularSuccessor( firstBlock );
+        firstBlock.addRegularPredecessor( methodEntry );
+        
+        // add end block to results
+        result.add( exit );
+        
+        return new ControlFlowGraph( mn , result );
     }
 }
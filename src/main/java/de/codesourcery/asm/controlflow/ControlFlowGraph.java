@@ -15,10 +15,16 @@
  */
 package de.codesourcery.asm.controlflow;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
@@ -34,18 +40,34 @@ public class ControlFlowGraph
     private final MethodNode method;
     
     private Set<IBlock> allNodes = null; // populated lazily
-    private MethodEntry start;
-    private MethodExit end;
+    private final MethodEntry start;
+    private final MethodExit end;
+    private final int blockCount;
+    // all blocks passed to the constructor in index order , including blocks that are not reachable from the method entry
+    private final List<IBlock> blocks;
+    private BlockAttributes attributes; // created lazily
+    
+    // precomputed views of frozen graphs , NULL for mutable graphs
+    private final Set<IBlock> frozenNodes;
+    private final Set<Edge> frozenBackEdges;
+    private final IBlock[] blocksByInstruction;
     
     /**
      * Creates the graph and automatically assigns unique IDs to all nodes witout an ID.
      * 
+     * <p>Block indices (see {@link IBlock#getIndex()}) are assigned in the order of the input list.</p>
+     * 
      * @param method
-     * @param blocks
+     * @param blocks all blocks of the graph
      * 
      * @see IBlock#getId()
      */
     public ControlFlowGraph(MethodNode method, List<IBlock> blocks) 
+    {
+        this( method , blocks , false );
+    }
+    
+    private ControlFlowGraph(MethodNode method, List<IBlock> blocks, boolean freeze) 
     {
         if ( method == null ) {
             throw new IllegalArgumentException("method must not be NULL.");
@@ -58,10 +80,16 @@ public class ControlFlowGraph
         }
         
         this.method = method;
+        this.blockCount = blocks.size();
+        this.blocks = new ArrayList<>( blocks );
         final Set<String> ids = new HashSet<>();
         
+        MethodEntry start = null;
+        MethodExit end = null;
+        int index = 0;
         for ( IBlock b : blocks ) 
         {
+            b.setIndex( index++ );
             if ( b instanceof MethodEntry ) 
             {
                 if ( start != null ) {
@@ -127,6 +155,150 @@ public class ControlFlowGraph
         if ( end == null ) {
             throw new IllegalArgumentException("Input contains no end block");
         }        
+        this.start = start;
+        this.end = end;
+        
+        if ( ! freeze ) 
+        {
+            frozenNodes = null;
+            frozenBackEdges = null;
+            blocksByInstruction = null;
+            return;
+        }
+        
+        // InsnList creates its index cache lazily , make sure this happens before the snapshot gets published
+        if ( method.instructions.size() > 0 ) {
+            method.instructions.get( 0 );
+        }
+        blocksByInstruction = new IBlock[ method.instructions.size() ];
+        for ( IBlock b : blocks ) 
+        {
+            for ( int num : b.getInstructionNums() ) 
+            {
+                if ( num >= 0 && num < blocksByInstruction.length ) {
+                    blocksByInstruction[num] = b;
+                }
+            }
+            ( (AbstractBlock) b ).freeze( method );
+        }
+        frozenNodes = Collections.unmodifiableSet( new LinkedHashSet<>( blocks ) );
+        frozenBackEdges = Collections.unmodifiableSet( getBackEdges( start ) );
+    }
+    
+    /**
+     * Returns an immutable copy of this graph.
+     * 
+     * <p>The copy has its own blocks and edges , all of them immutable (methods that would modify them throw an exception).
+     * Derived data (all nodes , back edges , blocks by instruction and the number of byte-code instructions per block) is computed 
+     * up-front , so a frozen graph can be handed to other threads without any synchronization and be analyzed by several 
+     * threads concurrently.</p>
+     * 
+     * <p>The copy contains all blocks this graph was created with , in the same order , so block indices and {@link #getBlockCount()} 
+     * stay the same. Unlike {@link #getAllNodes()} of a mutable graph , {@link #getAllNodes()} of the copy includes blocks that are 
+     * not reachable from the method entry (like the exit block of a method that always throws).</p>
+     * 
+     * <p>The snapshot shares the {@link MethodNode} with this graph , it must not be modified while the snapshot is in use. 
+     * Frozen graphs have no {@link #getAttributes() attribute storage} , use {@link #newAttributes()} instead.</p>
+     * 
+     * @return frozen copy or this graph if it is already frozen
+     */
+    public ControlFlowGraph freeze() 
+    {
+        if ( isFrozen() ) {
+            return this;
+        }
+        
+        // getAllNodes() only returns blocks reachable from the method entry , which misses the exit block of a method 
+        // that always throws , for example. Copy all blocks (so that indices stay the same) plus any blocks connected to them later on.
+        final Set<IBlock> connected = new LinkedHashSet<>();
+        for ( IBlock b : blocks ) {
+            getAllNodes( b , connected );
+        }
+        final Set<IBlock> nodes = new LinkedHashSet<>( blocks );
+        nodes.addAll( connected );
+        
+        final Map<IBlock,AbstractBlock> copies = new IdentityHashMap<>();
+        final List<IBlock> result = new ArrayList<>( nodes.size() );
+        for ( IBlock b : nodes ) 
+        {
+            final AbstractBlock copy;
+            if ( b instanceof MethodEntry ) {
+                copy = new MethodEntry();
+            } else if ( b instanceof MethodExit ) {
+                copy = new MethodExit();
+            } else {
+                copy = new Block();
+            }
+            copy.setId( b.getId() );
+            copy.instructions.addAll( b.getInstructionNums() );
+            copies.put( b , copy );
+            result.add( copy );
+        }
+        
+        // edges are shared by their source and destination block
+        final Map<Edge,Edge> edgeCopies = new IdentityHashMap<>();
+        for ( IBlock b : nodes ) 
+        {
+            for ( Edge e : b.getEdges() ) 
+            {
+                Edge copy = edgeCopies.get( e );
+                if ( copy == null ) 
+                {
+                    copy = new Edge( copies.get( e.src ) , copies.get( e.dst ) , e.type , e.metaData );
+                    edgeCopies.put( e , copy );
+                }
+                copies.get( b ).edges.add( copy );
+            }
+        }
+        return new ControlFlowGraph( method , result , true );
+    }
+    
+    /**
+     * Returns whether this graph is an immutable snapshot.
+     * 
+     * @return
+     * @see #freeze()
+     */
+    public boolean isFrozen() {
+        return frozenNodes != null;
+    }
+    
+    /**
+     * Returns the number of blocks in this graph.
+     * 
+     * @return
+     * @see IBlock#getIndex()
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * Returns the {@link BlockAttribute} values of this graph's blocks.
+     * 
+     * @return
+     */
+    public BlockAttributes getAttributes() 
+    {
+        if ( isFrozen() ) {
+            throw new IllegalStateException("Frozen graphs have no attribute storage, use newAttributes()");
+        }
+        if ( attributes == null ) {
+            attributes = new BlockAttributes( blockCount );
+        }
+        return attributes;
+    }
+    
+    /**
+     * Creates new attribute storage for this graph's blocks.
+     * 
+     * <p>Unlike {@link #getAttributes()} , the storage is not shared , so concurrent analyses of a {@link #freeze() frozen}
+     * graph can use separate attribute storage each.</p>
+     * 
+     * @return
+     */
+    public BlockAttributes newAttributes() {
+        return new BlockAttributes( blockCount );
     }
     
     /**
@@ -137,6 +309,9 @@ public class ControlFlowGraph
      */
     public IBlock getBlockForInstruction(int instructionNum) 
     {
+        if ( blocksByInstruction != null ) {
+            return instructionNum >= 0 && instructionNum < blocksByInstruction.length ? blocksByInstruction[ instructionNum ] : null;
+        }
         for ( IBlock block : getAllNodes() ) {
             if ( block.containsInstructionNum( instructionNum ) ) {
                 return block;
@@ -152,6 +327,9 @@ public class ControlFlowGraph
      */
     public Set<IBlock> getAllNodes() 
     {
+        if ( frozenNodes != null ) {
+            return frozenNodes;
+        }
         if ( allNodes == null ) {
             final Set<IBlock> result = new HashSet<>();
             getAllNodes( start , result );
@@ -173,6 +351,64 @@ public class ControlFlowGraph
         }
     }    
     
+    /**
+     * Returns all loop back edges of this graph.
+     * 
+     * <p>An edge is considered to be a back edge if it points to a node that is still
+     * on the stack while doing a depth-first traversal starting at the method-entry node.</p>
+     * 
+     * @return
+     */
+    public Set<Edge> getBackEdges() 
+    {
+        return frozenBackEdges != null ? frozenBackEdges : getBackEdges( start );
+    }
+    
+    private static Set<Edge> getBackEdges(MethodEntry start) 
+    {
+        final Set<Edge> result = new HashSet<>();
+        final Set<IBlock> visited = new HashSet<>();
+        final Set<IBlock> onStack = new HashSet<>();
+
+        // iterative traversal, methods may have thousands of blocks
+        final Deque<IBlock> blocks = new ArrayDeque<>();
+        final Deque<Iterator<Edge>> pending = new ArrayDeque<>();
+
+        visited.add( start );
+        onStack.add( start );
+        blocks.push( start );
+        pending.push( start.getEdges().iterator() );
+
+        while ( ! blocks.isEmpty() ) 
+        {
+            final IBlock current = blocks.peek();
+            final Iterator<Edge> it = pending.peek();
+            if ( ! it.hasNext() ) 
+            {
+                onStack.remove( current );
+                blocks.pop();
+                pending.pop();
+                continue;
+            }
+            
+            final Edge e = it.next();
+            if ( ! e.isSuccessor( current ) ) {
+                continue;
+            }
+            
+            if ( onStack.contains( e.dst ) ) {
+                result.add( e );
+            } 
+            else if ( visited.add( e.dst ) ) 
+            {
+                onStack.add( e.dst );
+                blocks.push( e.dst );
+                pending.push( e.dst.getEdges().iterator() );
+            }
+        }
+        return result;
+    }
+    
     /**
      * Returns the method node this graph was generated from. 
      * @return
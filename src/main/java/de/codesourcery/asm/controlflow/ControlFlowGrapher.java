@@ -16,16 +16,27 @@
 package de.codesourcery.asm.controlflow;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.ArrayUtils;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 
+import de.codesourcery.asm.profiling.LiveCounterReader;
 import de.codesourcery.asm.util.ASMUtil;
 import de.codesourcery.asm.util.ASMUtil.ILogger;
 
@@ -39,12 +50,38 @@ import de.codesourcery.asm.util.ASMUtil.ILogger;
  */
 public class ControlFlowGrapher
 {
+    /**
+     * Name of the table of contents file that maps each method (see {@link BlockProfile#getKey(String, String, String)})
+     * to the file holding its graph , separated by a tab.
+     */
+    public static final String TOC_FILE = "toc.txt";
+    
+    private static final int MAX_FILENAME_LENGTH = 200;
+    
     private File[] classPathEntries;
     private boolean verboseOutput = false;
     private Pattern methodNamePattern = null;
     private boolean includeConstructors = false;
     private File outputDir;
-    private String classToAnalyze;
+    private File archiveFile;
+    private boolean compressArchive = false;
+    private boolean renderSVG = false;
+    // max. number of nodes per graph , -1 = unlimited
+    private int nodeBudget = -1;
+    private IGraphSink sink;
+    private final List<String> classesToAnalyze = new ArrayList<>();
+    private boolean analyzeAllClasses = false;
+    private File profileFile;
+    private Map<String,BlockProfile> profiles = Collections.emptyMap();
+    // output file of the first method with a given body , NULL if deduplication is disabled
+    private MethodBodyIndex<String> bodyIndex;
+    // pairs of duplicate and original output file
+    private final List<String[]> duplicates = new ArrayList<>();
+    // table of contents , one line per method
+    private final StringBuilder toc = new StringBuilder();
+    // output files written so far
+    private final Set<String> outputFiles = new HashSet<>();
+    private boolean outputDirPerClass = false;
     
     private final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
 
@@ -63,14 +100,21 @@ public class ControlFlowGrapher
     }
 
     private static void printUsage() {
-        System.out.println("\n\nUsage: [-debug] [-v] [-constructors] [-search <classpath entries>] [-match <regex>] -dir <directory> <CLASS NAME>\n\n"+
+        System.out.println("\n\nUsage: [-debug] [-v] [-constructors] [-search <classpath entries>] [-match <regex>] [-profile <file>] [-dedup] [-svg] [-budget <n>] [-compress] -dir <directory> | -archive <file> [-all | <CLASS NAME> ...]\n\n"+
                 "[-debug] => enable debug output\n"+
                 "[-v] => enable verbose output\n"+
                 "[-search <classpath entries> => Substitute for JVM -classpath option since that one does not work with self-executable JARs\n"+
                 "-dir <directory> => outputs .dot files to this directory\n"+
+                "-archive <file> => outputs .dot files to this ZIP archive instead of a directory\n"+
+                "[-compress] => compress archive entries\n"+
+                "[-svg] => write SVG images (laid out without graphviz) instead of .dot files\n"+
+                "[-budget <n>] => collapse loops and regions of graphs with more than n nodes until at most n nodes remain\n"+
                 "[-constructors] => include constructors in flow analysis\n"+
                 "[-match <regex>] => only analyze methods whose name matches this regex\n"+
-                "<CLASS NAME> => name of class to analyze\n\n");
+                "[-profile <file>] => color blocks and edges by execution counts from a live counter file written by the profiling agent\n"+
+                "[-dedup] => analyze and render methods with identical byte-code only once, duplicates are listed in duplicates.txt\n"+
+                "-all => analyze all classes in the search classpath entries instead of the given classes\n"+
+                "<CLASS NAME> ... => name of class(es) to analyze, graphs are written to one sub-directory per class if more than one class is analyzed\n\n");
     }
 
     private static void applyArgs(ControlFlowGrapher main, String[] args) throws Exception
@@ -97,6 +141,7 @@ public class ControlFlowGrapher
                         for ( String path : pathEntries ) {
                             main.classPathEntries[j++] = new File(path);
                         }
+                        i++;
                         break;
                     case "-debug":
                         main.analyzer.setDebug( true );
@@ -108,8 +153,32 @@ public class ControlFlowGrapher
                         main.methodNamePattern = Pattern.compile( args[i+1] );
                         i++;
                         break;
+                    case "-archive":
+                        main.archiveFile = new File( args[i+1] );
+                        i++;
+                        break;
+                    case "-svg":
+                        main.renderSVG = true;
+                        break;
+                    case "-budget":
+                        main.nodeBudget = Integer.parseInt( args[i+1] );
+                        i++;
+                        break;
+                    case "-compress":
+                        main.compressArchive = true;
+                        break;
+                    case "-dedup":
+                        main.bodyIndex = new MethodBodyIndex<>();
+                        break;
+                    case "-all":
+                        main.analyzeAllClasses = true;
+                        break;
+                    case "-profile":
+                        main.profileFile = new File( args[i+1] );
+                        i++;
+                        break;
                     default:
-                        main.classToAnalyze = arg;
+                        main.classesToAnalyze.add( arg );
                 }
             } 
             catch(ArrayIndexOutOfBoundsException e) 
@@ -121,25 +190,120 @@ public class ControlFlowGrapher
 
     public void run() throws Exception 
     {
-        if ( StringUtils.isBlank( classToAnalyze ) ) {
+        if ( classesToAnalyze.isEmpty() && ! analyzeAllClasses ) {
             throw new IllegalStateException("Class name not set");
         }
+        if ( analyzeAllClasses && ArrayUtils.isEmpty( classPathEntries ) ) {
+            throw new IllegalStateException("-all requires -search");
+        }
 
-        if ( outputDir == null ) {
-            throw new IllegalStateException("No output directory set");
+        if ( outputDir == null && archiveFile == null ) {
+            throw new IllegalStateException("No output directory or archive set");
+        }        
+        if ( outputDir != null && archiveFile != null ) {
+            throw new IllegalStateException("-dir and -archive are mutually exclusive");
         }        
 
-        logVerbose("Output directory: "+outputDir.getAbsolutePath());
+        if ( renderSVG && profileFile != null ) {
+            throw new IllegalStateException("-svg cannot be combined with -profile");
+        }
+        if ( renderSVG && nodeBudget != -1 ) {
+            throw new IllegalStateException("-svg cannot be combined with -budget");
+        }
+        if ( nodeBudget != -1 && nodeBudget < 3 ) {
+            throw new IllegalStateException("-budget must be >= 3");
+        }
 
-        final ClassReader classReader = ASMUtil.createClassReader( classToAnalyze , classPathEntries , new ILogger() {
+        sink = archiveFile != null ? new ZipGraphSink( archiveFile , compressArchive ) : new DirectoryGraphSink( outputDir );
+        logVerbose("Output: "+sink);
+        
+        if ( profileFile != null ) 
+        {
+            logVerbose("Reading profile: "+profileFile.getAbsolutePath());
+            profiles = new LiveCounterReader( profileFile ).getBlockProfiles();
+        }
 
-            @Override
-            public void logVerbose(String msg)
+        outputDirPerClass = analyzeAllClasses || classesToAnalyze.size() > 1;
+        try 
+        {
+            if ( analyzeAllClasses ) 
             {
-                ControlFlowGrapher.this.logVerbose( msg );
-            }
-        });
+                for ( File entry : classPathEntries ) {
+                    analyzeAll( entry );
+                }
+            } 
+            else 
+            {
+                for ( String classToAnalyze : classesToAnalyze ) 
+                {
+                    visitClass( ASMUtil.createClassReader( classToAnalyze , classPathEntries , new ILogger() {
         
+                        @Override
+                        public void logVerbose(String msg)
+                        {
+                            ControlFlowGrapher.this.logVerbose( msg );
+                        }
+                    }) );
+                }
+            }
+            
+            if ( bodyIndex != null ) 
+            {
+                writeDuplicates();
+                logVerbose("Methods with identical byte-code: "+bodyIndex.getDuplicateCount()+" of "+bodyIndex.getLookupCount() );
+            }
+            logVerbose("Writing "+TOC_FILE);
+            sink.write( TOC_FILE , toc.toString() );
+        } 
+        finally {
+            sink.close();
+        }
+    }
+    
+    // analyzes all classes in a directory or archive
+    private void analyzeAll(File entry) throws IOException, AnalyzerException 
+    {
+        if ( entry.isDirectory() ) 
+        {
+            final File[] files = entry.listFiles();
+            if ( files != null ) 
+            {
+                for ( File file : files ) 
+                {
+                    if ( file.isDirectory() ) {
+                        analyzeAll( file );
+                    } else if ( file.getName().endsWith(".class" ) ) {
+                        try ( InputStream in = new FileInputStream( file ) ) {
+                            visitClass( new ClassReader( in ) );
+                        }
+                    }
+                }
+            }
+        } 
+        else if ( entry.isFile() ) 
+        {
+            try ( ZipFile archive = new ZipFile( entry ) ) 
+            {
+                for ( Enumeration<? extends ZipEntry> it = archive.entries() ; it.hasMoreElements() ; ) 
+                {
+                    final ZipEntry zipEntry = it.nextElement();
+                    if ( ! zipEntry.isDirectory() && zipEntry.getName().endsWith(".class") ) 
+                    {
+                        logVerbose("Loading "+zipEntry.getName()+" from "+entry.getAbsolutePath());
+                        try ( InputStream in = archive.getInputStream( zipEntry ) ) {
+                            visitClass( new ClassReader( in ) );
+                        }
+                    }
+                }
+            }
+        } 
+        else {
+            throw new IOException("Invalid entry on search classpath: '"+entry.getAbsolutePath()+"' is neither a directory nor JAR/ZIP archive");
+        }
+    }
+    
+    private void visitClass(ClassReader classReader) throws AnalyzerException, IOException 
+    {
         final ClassNode cn = new ClassNode();
         
         classReader.accept( cn , 0 );
@@ -147,14 +311,17 @@ public class ControlFlowGrapher
         for ( Object m : cn.methods ) 
         {
             final MethodNode mn= (MethodNode) m; 
+            if ( mn.instructions.size() == 0 ) { // abstract or native
+                continue;
+            }
             if ( isConstructor( mn ) ) 
             {
                 if ( includeConstructors ) {
-                    visitMethod( mn , classToAnalyze );
+                    tryVisitMethod( mn , cn.name );
                 }
             } else {
                 if ( matches( mn ) ) {
-                    visitMethod( mn  , classToAnalyze );
+                    tryVisitMethod( mn  , cn.name );
                 } else {
                     logVerbose("Ignored method: "+mn.name+"_"+mn.desc);
                 }
@@ -162,6 +329,21 @@ public class ControlFlowGrapher
         }        
     }
     
+    // when analyzing all classes , methods that cannot be analyzed are skipped
+    private void tryVisitMethod(MethodNode method,String owner) throws AnalyzerException, IOException 
+    {
+        try {
+            visitMethod( method , owner );
+        } 
+        catch(AnalyzerException | RuntimeException e) 
+        {
+            if ( ! analyzeAllClasses ) {
+                throw e;
+            }
+            System.err.println("Failed to analyze "+owner.replace('/','.')+"#"+method.name+method.desc+": "+e.getMessage());
+        }
+    }
+    
     private boolean isConstructor(MethodNode mn) {
         return mn.name.equals("<init>");
     }    
@@ -170,28 +352,68 @@ public class ControlFlowGrapher
         return methodNamePattern == null || methodNamePattern.matcher( mn.name ).matches();
     }
 
-    private void visitMethod(MethodNode method,String owner) throws AnalyzerException, FileNotFoundException 
+    private void visitMethod(MethodNode method,String owner) throws AnalyzerException, IOException 
     {
-        final ControlFlowGraph graph = analyzer.analyze(owner,  method );
-
-        final String dot = new DOTRenderer().render( graph );
+        final String outputFile = getOutputFile( owner , method );
+        
+        final String methodKey = BlockProfile.getKey( owner , method.name , method.desc );
+        final BlockProfile profile = profiles.get( methodKey );
+        
+        // profiles differ between copies , so methods with a profile are never deduplicated
+        final String bodyKey = bodyIndex != null && profile == null ? MethodBodyIndex.getKey( owner , method ) : null;
+        if ( bodyKey != null ) 
+        {
+            final String original = bodyIndex.get( bodyKey );
+            if ( original != null ) 
+            {
+                logVerbose("Duplicate of "+original+": "+outputFile );
+                duplicates.add( new String[] { outputFile , original } );
+                toc.append( methodKey ).append('\t').append( original ).append('\n');
+                return;
+            }
+            bodyIndex.put( bodyKey , outputFile );
+        }
+        
+        final ControlFlowGraph graph = analyzer.analyze( owner.replace('/','.') ,  method );
 
-        final File outputFile;
-        if ( outputDir != null ) {
-            outputFile = new File( outputDir  , toFilename( method )+".dot" );
+        final String dot;
+        if ( renderSVG ) {
+            dot = new SVGRenderer().render( graph );
         } else {
-            outputFile = new File( toFilename( method )+".dot" );
+            final DOTRenderer renderer = profile != null ? new HeatmapDOTRenderer( profile ) : new DOTRenderer();
+            if ( nodeBudget != -1 && graph.getAllNodes().size() > nodeBudget ) {
+                dot = new SummaryDOTRenderer( nodeBudget , renderer ).render( graph );
+            } else {
+                dot = renderer.render( graph );
+            }
         }
 
-        logVerbose("Writing "+outputFile.getAbsolutePath());
-        
-        if ( ! outputFile.getParentFile().exists() ) {
-        	outputFile.getParentFile().mkdirs();
+        logVerbose("Writing "+outputFile);
+        sink.write( outputFile , dot );
+        toc.append( methodKey ).append('\t').append( outputFile ).append('\n');
+    }
+    
+    // duplicate and original output file , separated by a tab
+    private void writeDuplicates() throws IOException 
+    {
+        logVerbose("Writing duplicates.txt");
+        final StringBuilder result = new StringBuilder();
+        for ( String[] pair : duplicates ) {
+            result.append( pair[0] ).append('\t').append( pair[1] ).append('\n');
         }
-        
-        final PrintWriter writer = new PrintWriter( outputFile);
-        writer.write( dot );
-        writer.close();
+        sink.write( "duplicates.txt" , result.toString() );
+    }
+    
+    // file names of constructors and methods named 'init' may clash
+    private String getOutputFile(String owner,MethodNode method) 
+    {
+        final String prefix = ( outputDirPerClass ? owner.replace('/','.')+"/" : "" ) + toFilename( method );
+        final String suffix = renderSVG ? ".svg" : ".dot";
+        String result = prefix+suffix;
+        for ( int i = 2 ; ! outputFiles.add( result ) ; i++ ) {
+            result = prefix+"_"+i+suffix;
+        }
+        return result;
     }
     
     private String toFilename(MethodNode method) {
@@ -202,8 +424,12 @@ public class ControlFlowGrapher
         result = result.replace(")","_");
         result = result.replace("/","_");
         result = result.replace(";","");
+        if ( result.length() > MAX_FILENAME_LENGTH ) {
+            // most file systems do not support names longer than 255 bytes
+            result = result.substring( 0 , MAX_FILENAME_LENGTH - 9 )+"_"+String.format("%08x" , result.hashCode() );
+        }
         return result;
-    }     
+    }
     
     private void logVerbose(String s) {
         if ( verboseOutput ) {
@@ -15,11 +15,19 @@
  */
 package de.codesourcery.asm.controlflow;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
 import de.codesourcery.asm.controlflow.Edge.EdgeType;
 
 /**
  * Crude DOT (graphviz) renderer to control-flow graphs.
  * 
+ * <p>Subclasses may add graphviz attributes to nodes and edges by overriding {@link #getNodeAttributes(ControlFlowGraph, IBlock, String)}
+ * and {@link #getEdgeAttributes(ControlFlowGraph, Edge)}.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * 
  * @see ControlFlowGraph
@@ -28,35 +36,27 @@ import de.codesourcery.asm.controlflow.Edge.EdgeType;
 public class DOTRenderer
 {
     public String render(ControlFlowGraph graph) 
+    {
+        beginRender( graph );
+        try {
+            return doRender( graph );
+        } 
+        finally {
+            endRender();
+        }
+    }
+    
+    private String doRender(ControlFlowGraph graph) 
     {
         final StringBuilder result = new StringBuilder( "digraph \""+mangleNodeName( graph.getMethod().name )+"()\" {\n" );
         
         // enumerate vertices
         for ( IBlock block : graph.getAllNodes() ) 
         {
-            String label;
-            String shape="ellipse";
-            if ( block instanceof MethodEntry ) {
-                label = "method_entry";
-            } else if ( block instanceof MethodExit ) {
-                label = "method_exit";
-            } 
-            else 
-            {
-                if ( block.isVirtual( graph.getMethod() ) ) {
-                    continue;
-                }
-                
-                label = block.disassemble( graph.getMethod() , false , true ).replace("\n" , "\\l").replace("\"" , "\\\"");
-                label += "\\l";
-                shape="box";
+            final String node = getNodeStatement( graph , block );
+            if ( node != null ) {
+                result.append( "    "+node+"\n" );
             }
-            shape = "shape="+shape;
-            label="label=\""+label+"\"";
-            if ( block.getId() == null ) {
-                throw new IllegalArgumentException("Block "+block+" has no ID?");
-            }
-            result.append( "    "+mangleNodeName( block.getId() )+" ["+shape+","+label+"]\n" );
         }
         
         // enumerate edges
@@ -66,33 +66,8 @@ public class DOTRenderer
             {
                 for ( Edge edge: block.getEdges() ) 
                 {
-                    if ( edge.isSuccessor( block ) ) 
-                    {
-                        final IBlock succ = edge.dst;
-                        String style = "";
-                        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) // exception
-                        {
-                            String type =(String) edge.metaData;
-                            if ( type == null ) {
-                                type = "ANY";
-                            } else {
-                                type = type.replace("/",".");
-                                if ( type.startsWith("java.lang." ) ) {
-                                    type = type.substring("java.lang.".length() );
-                                }
-                            }
-                            style="[style=dotted,label=\"ex: "+type+"\"]";
-                        } else if ( edge.hasType( EdgeType.TABLE_SWITCH) || edge.hasType( EdgeType.LOOKUP_SWITCH ) ) { // lookup/table switch
-                            Integer key =(Integer) edge.metaData;
-                            String color="";
-                            if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
-                                color ="color=red,";
-                            }
-                            style="[style=dashed,"+color+"label=\"case: "+key+"\"]";                            
-                        } else if ( edge.metaData != null ) {
-                            style="[label=\""+edge.metaData+"\"]";     
-                        }
-                        result.append( "    "+mangleNodeName( block.getId() )+" -> "+mangleNodeName( succ.getId() )+" "+style+"\n" );
+                    if ( edge.isSuccessor( block ) ) {
+                        result.append( "    "+getEdgeStatement( graph , edge , mangleNodeName( block.getId() ) , mangleNodeName( edge.dst.getId() ) )+"\n" );
                     }
                 }
             } 
@@ -101,7 +76,141 @@ public class DOTRenderer
         return result.toString();
     }
     
-    private static final String mangleNodeName(String id) {
+    /**
+     * Invoked before the nodes and edges of a graph get rendered.
+     * 
+     * @param graph
+     */
+    protected void beginRender(ControlFlowGraph graph) {
+    }
+    
+    /**
+     * Invoked after a graph has been rendered.
+     */
+    protected void endRender() {
+    }
+    
+    /**
+     * Returns the graphviz statement that declares a block.
+     * 
+     * @param graph
+     * @param block
+     * @return statement or <code>null</code> if the block is not rendered (virtual blocks)
+     */
+    String getNodeStatement(ControlFlowGraph graph,IBlock block) 
+    {
+        String label;
+        String shape="ellipse";
+        if ( block instanceof MethodEntry ) {
+            label = "method_entry";
+        } else if ( block instanceof MethodExit ) {
+            label = "method_exit";
+        } 
+        else 
+        {
+            if ( block.isVirtual( graph.getMethod() ) ) {
+                return null;
+            }
+            
+            label = block.disassemble( graph.getMethod() , false , true ).replace("\n" , "\\l").replace("\"" , "\\\"");
+            label += "\\l";
+            shape="box";
+        }
+        if ( block.getId() == null ) {
+            throw new IllegalArgumentException("Block "+block+" has no ID?");
+        }
+        final List<String> attributes = getNodeAttributes( graph , block , label );
+        attributes.add( 0 , "shape="+shape );
+        return mangleNodeName( block.getId() )+" ["+StringUtils.join( attributes , "," )+"]";
+    }
+    
+    /**
+     * Returns the graphviz statement for an edge.
+     * 
+     * @param graph
+     * @param edge
+     * @param src name of the node to draw the edge from
+     * @param dst name of the node to draw the edge to
+     * @return
+     */
+    String getEdgeStatement(ControlFlowGraph graph,Edge edge,String src,String dst) 
+    {
+        final List<String> attributes = getEdgeAttributes( graph , edge );
+        final String style = attributes.isEmpty() ? "" : "["+StringUtils.join( attributes , "," )+"]";
+        return src+" -> "+dst+" "+style;
+    }
+    
+    /**
+     * Returns the graphviz attributes of a node (except for the shape).
+     * 
+     * @param graph
+     * @param block
+     * @param label label text, already escaped
+     * @return mutable list of attributes (<code>name=value</code>)
+     */
+    protected List<String> getNodeAttributes(ControlFlowGraph graph,IBlock block,String label) 
+    {
+        final List<String> result = new ArrayList<>();
+        result.add( "label=\""+label+"\"" );
+        return result;
+    }
+    
+    /**
+     * Returns the graphviz attributes of an edge.
+     * 
+     * @param graph
+     * @param edge
+     * @return mutable list of attributes (<code>name=value</code>) , may be empty
+     */
+    protected List<String> getEdgeAttributes(ControlFlowGraph graph,Edge edge) 
+    {
+        final List<String> result = new ArrayList<>();
+        final String label = getEdgeLabel( edge );
+        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) // exception
+        {
+            result.add( "style=dotted" );
+        } 
+        else if ( edge.hasType( EdgeType.TABLE_SWITCH) || edge.hasType( EdgeType.LOOKUP_SWITCH ) ) // lookup/table switch
+        { 
+            result.add( "style=dashed" );
+            if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
+                result.add( "color=red" );
+            }
+        } 
+        if ( label != null ) {
+            result.add( "label=\""+label+"\"" );
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the label text of an edge.
+     * 
+     * @param edge
+     * @return label or <code>null</code>
+     */
+    static String getEdgeLabel(Edge edge) 
+    {
+        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) // exception
+        {
+            String type =(String) edge.metaData;
+            if ( type == null ) {
+                type = "ANY";
+            } else {
+                type = type.replace("/",".");
+                if ( type.startsWith("java.lang." ) ) {
+                    type = type.substring("java.lang.".length() );
+                }
+            }
+            return "ex: "+type;
+        } 
+        if ( edge.hasType( EdgeType.TABLE_SWITCH) || edge.hasType( EdgeType.LOOKUP_SWITCH ) ) { // lookup/table switch
+            return "case: "+edge.metaData;
+        } 
+        return edge.metaData != null ? edge.metaData.toString() : null;
+    }
+    
+    static final String mangleNodeName(String id) {
         return id.replace("<", "" ).replace(">", "");
     }
 }
\ No newline at end of file
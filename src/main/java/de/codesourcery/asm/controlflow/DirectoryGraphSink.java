@@ -0,0 +1,55 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Writes each file to its own file in a directory.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class DirectoryGraphSink implements IGraphSink
+{
+    private final File outputDir;
+    
+    public DirectoryGraphSink(File outputDir) {
+        this.outputDir = outputDir;
+    }
+    
+    @Override
+    public void write(String path, String content) throws IOException
+    {
+        final File outputFile = new File( outputDir , path );
+        if ( ! outputFile.getParentFile().exists() ) {
+            outputFile.getParentFile().mkdirs();
+        }
+        try ( PrintWriter writer = new PrintWriter( outputFile ) ) {
+            writer.write( content );
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+    
+    @Override
+    public String toString() {
+        return outputDir.getAbsolutePath();
+    }
+}
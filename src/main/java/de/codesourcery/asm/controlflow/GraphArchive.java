@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Random access to the graphs in an archive written by {@link ControlFlowGrapher} (see {@link ZipGraphSink}).
+ * 
+ * <p>Graphs are looked up through the archive's table of contents ({@link ControlFlowGrapher#TOC_FILE}) , which maps 
+ * each method to the entry holding its graph. Methods that were deduplicated map to the entry of the first method
+ * with the same byte-code.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class GraphArchive implements AutoCloseable
+{
+    private final ZipFile archive;
+    // method (see BlockProfile#getKey()) -> entry name
+    private final Map<String,String> toc = new LinkedHashMap<>();
+    
+    public GraphArchive(File file) throws IOException 
+    {
+        archive = new ZipFile( file );
+        final ZipEntry entry = archive.getEntry( ControlFlowGrapher.TOC_FILE );
+        if ( entry == null ) 
+        {
+            archive.close();
+            throw new IOException("Archive has no table of contents: "+file.getAbsolutePath());
+        }
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( archive.getInputStream( entry ) , StandardCharsets.UTF_8 ) ) ) 
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) 
+            {
+                final int idx = line.indexOf('\t');
+                if ( idx > 0 ) {
+                    toc.put( line.substring( 0 , idx ) , line.substring( idx+1 ) );
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns all methods in this archive.
+     * 
+     * @return methods in the order they were written , see {@link BlockProfile#getKey(String, String, String)} for the format
+     */
+    public Set<String> getMethods() {
+        return Collections.unmodifiableSet( toc.keySet() );
+    }
+    
+    /**
+     * Reads the graph of a method.
+     * 
+     * @param owner internal or fully-qualified name of the class that declares the method
+     * @param name
+     * @param desc
+     * @return graph in DOT format or <code>null</code> if the archive holds no graph for this method
+     * @throws IOException
+     */
+    public String getGraph(String owner,String name,String desc) throws IOException {
+        return getGraph( BlockProfile.getKey( owner , name , desc ) );
+    }
+    
+    /**
+     * Reads the graph of a method.
+     * 
+     * @param method method as returned by {@link #getMethods()}
+     * @return graph in DOT format or <code>null</code> if the archive holds no graph for this method
+     * @throws IOException
+     */
+    public String getGraph(String method) throws IOException 
+    {
+        final String path = toc.get( method );
+        final ZipEntry entry = path != null ? archive.getEntry( path ) : null;
+        if ( entry == null ) {
+            return null;
+        }
+        try ( InputStream in = archive.getInputStream( entry ) ) 
+        {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream( entry.getSize() > 0 ? (int) entry.getSize() : 1024 );
+            final byte[] buffer = new byte[ 8192 ];
+            int len;
+            while ( ( len = in.read( buffer ) ) > 0 ) {
+                result.write( buffer , 0 , len );
+            }
+            return new String( result.toByteArray() , StandardCharsets.UTF_8 );
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+}
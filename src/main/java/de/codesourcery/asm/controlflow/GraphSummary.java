@@ -0,0 +1,1147 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Hierarchical summary of a control-flow graph , used to render huge graphs with a bounded number of nodes.
+ * 
+ * <p>Blocks are grouped into a hierarchy of clusters:</p>
+ * <ul>
+ *   <li>{@link Kind#LOOP}: strongly connected components , nested loops are found by removing the edges into the loop header and 
+ *   searching the remaining component again</li>
+ *   <li>{@link Kind#REGION}: single-entry/single-exit regions , made up of the blocks dominated by a block <code>d</code> and 
+ *   post-dominated by its immediate post-dominator (like the branches of an if/else or a switch). Blocks that never return 
+ *   (like <code>throw</code> statements) are considered part of the region.</li>
+ *   <li>{@link Kind#SEQUENCE}: chains of blocks and clusters that are always executed one after another</li>
+ *   <li>{@link Kind#RANGE}: consecutive (by instruction index) blocks and clusters. Only created by {@link #collapse(int)} when a 
+ *   cluster (or the graph itself) has too many blocks and child clusters to be expanded within the budget.</li>
+ * </ul>
+ * 
+ * <p>Loops and regions that partially overlap other loops or regions are dropped , so clusters always nest properly. 
+ * Method entry and exit are never part of a cluster.</p>
+ * 
+ * <p>{@link #collapse(int)} collapses clusters so that at most a given number of nodes (blocks and collapsed clusters) remain visible , 
+ * collapsed clusters can be expanded again with {@link #expand(Cluster)}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see SummaryDOTRenderer
+ */
+public class GraphSummary
+{
+    public static enum Kind 
+    {
+        LOOP,
+        REGION,
+        SEQUENCE,
+        RANGE;
+    }
+    
+    /**
+     * A group of blocks.
+     */
+    public static final class Cluster 
+    {
+        private final Kind kind;
+        private final int id;
+        private final IBlock entry;
+        private Cluster parent;
+        private final List<Cluster> children = new ArrayList<>();
+        // blocks that are not part of a child cluster
+        private final List<IBlock> blocks = new ArrayList<>();
+        private int size;
+        private boolean collapsed;
+        
+        Cluster(Kind kind, int id, IBlock entry)
+        {
+            this.kind = kind;
+            this.id = id;
+            this.entry = entry;
+        }
+        
+        public Kind getKind() {
+            return kind;
+        }
+        
+        public int getId() {
+            return id;
+        }
+        
+        /**
+         * Returns the block where this cluster gets entered (loop header , region entry , first block of a sequence or range).
+         * 
+         * @return
+         */
+        public IBlock getEntry() {
+            return entry;
+        }
+        
+        public Cluster getParent() {
+            return parent;
+        }
+        
+        public List<Cluster> getChildren() {
+            return Collections.unmodifiableList( children );
+        }
+        
+        /**
+         * Returns the blocks that are part of this cluster but not of one of its children.
+         * 
+         * @return
+         */
+        public List<IBlock> getBlocks() {
+            return Collections.unmodifiableList( blocks );
+        }
+        
+        /**
+         * Returns the total number of blocks in this cluster and its children.
+         * 
+         * @return
+         */
+        public int getSize() {
+            return size;
+        }
+        
+        public boolean isCollapsed() {
+            return collapsed;
+        }
+        
+        // number of nodes that become visible when expanding this cluster
+        private int getItemCount() {
+            return children.size() + blocks.size();
+        }
+        
+        @Override
+        public String toString() {
+            return kind+" #"+id+" ("+size+" blocks)";
+        }
+    }
+    
+    private final ControlFlowGraph graph;
+    
+    // rendered blocks , method entry first and method exit last
+    private final List<IBlock> nodes = new ArrayList<>();
+    private final Map<IBlock,Integer> indices = new IdentityHashMap<>();
+    private int[][] succ;
+    private int[][] pred;
+    
+    // structural hierarchy , without RANGE clusters
+    private final List<Cluster> topClusters = new ArrayList<>();
+    private final List<IBlock> topBlocks = new ArrayList<>();
+    // innermost cluster by node index
+    private Cluster[] clusterOf;
+    private int nextId = 1;
+    
+    // top level as seen after the last call to collapse() , may include RANGE clusters 
+    private final List<Cluster> visibleClusters = new ArrayList<>();
+    private final List<IBlock> visibleBlocks = new ArrayList<>();
+    // clusters whose contents have been grouped into RANGE clusters by collapse() , in order of grouping
+    private final List<Cluster> splits = new ArrayList<>();
+    
+    // scratch space for Tarjan's algorithm
+    private int[] tarjanIndex;
+    private int[] tarjanLow;
+    private boolean[] onStack;
+    private boolean[] inSet;
+    
+    public GraphSummary(ControlFlowGraph graph) 
+    {
+        this.graph = graph;
+        createNodes();
+        
+        final List<int[]> loops = new ArrayList<>();
+        final int[] all = new int[ nodes.size() ];
+        for ( int i = 0 ; i < all.length ; i++ ) {
+            all[i] = i;
+        }
+        tarjanIndex = new int[ nodes.size() ];
+        tarjanLow = new int[ nodes.size() ];
+        onStack = new boolean[ nodes.size() ];
+        inSet = new boolean[ nodes.size() ];
+        findLoops( all , -1 , loops );
+        
+        final List<int[]> regions = findRegions();
+        
+        buildHierarchy( loops , regions );
+        visibleClusters.addAll( topClusters );
+        visibleBlocks.addAll( topBlocks );
+    }
+    
+    public ControlFlowGraph getGraph() {
+        return graph;
+    }
+    
+    private void createNodes() 
+    {
+        final MethodNode method = graph.getMethod();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            if ( ! ( block instanceof MethodEntry || block instanceof MethodExit ) && ! block.isVirtual( method ) ) {
+                nodes.add( block );
+            }
+        }
+        Collections.sort( nodes , new Comparator<IBlock>() {
+
+            @Override
+            public int compare(IBlock o1, IBlock o2)
+            {
+                return Integer.compare( o1.getFirstInstructionNum() , o2.getFirstInstructionNum() );
+            }
+        });
+        nodes.add( 0 , graph.getStart() );
+        nodes.add( graph.getEnd() );
+        for ( int i = 0 ; i < nodes.size() ; i++ ) {
+            indices.put( nodes.get( i ) , i );
+        }
+        
+        final List<Set<Integer>> successors = new ArrayList<>();
+        final List<Set<Integer>> predecessors = new ArrayList<>();
+        for ( int i = 0 ; i < nodes.size() ; i++ ) 
+        {
+            successors.add( new LinkedHashSet<Integer>() );
+            predecessors.add( new LinkedHashSet<Integer>() );
+        }
+        for ( int i = 0 ; i < nodes.size() ; i++ ) 
+        {
+            for ( Edge e : nodes.get( i ).getEdges() ) 
+            {
+                final Integer dst = indices.get( e.dst );
+                if ( e.isSuccessor( nodes.get( i ) ) && dst != null ) 
+                {
+                    successors.get( i ).add( dst );
+                    predecessors.get( dst ).add( i );
+                }
+            }
+        }
+        succ = toArrays( successors );
+        pred = toArrays( predecessors );
+    }
+    
+    private static int[][] toArrays(List<Set<Integer>> sets) 
+    {
+        final int[][] result = new int[ sets.size() ][];
+        for ( int i = 0 ; i < result.length ; i++ ) 
+        {
+            result[i] = new int[ sets.get(i).size() ];
+            int j = 0;
+            for ( int value : sets.get(i) ) {
+                result[i][j++] = value;
+            }
+            Arrays.sort( result[i] );
+        }
+        return result;
+    }
+    
+    // ======== loops ========
+    
+    /*
+     * Finds the strongly connected components of the subgraph made up of the given nodes , ignoring
+     * edges into 'header'. Each component is a loop , nested loops are found by searching each component again
+     * while ignoring edges into its header.
+     */
+    private void findLoops(int[] members,int header,List<int[]> result) 
+    {
+        for ( int m : members ) 
+        {
+            inSet[m] = true;
+            tarjanIndex[m] = -1;
+        }
+        
+        final List<int[]> components = new ArrayList<>();
+        final int[] stack = new int[ members.length ];
+        final int[] callStack = new int[ members.length ];
+        final int[] nextSucc = new int[ members.length ]; // by call stack depth
+        int sp = 0;
+        int index = 0;
+        for ( int root : members ) 
+        {
+            if ( tarjanIndex[root] != -1 ) {
+                continue;
+            }
+            int csp = 0;
+            callStack[csp] = root;
+            nextSucc[csp++] = 0;
+            tarjanIndex[root] = tarjanLow[root] = index++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            while ( csp > 0 ) 
+            {
+                final int v = callStack[csp-1];
+                if ( nextSucc[csp-1] < succ[v].length ) 
+                {
+                    final int w = succ[v][ nextSucc[csp-1]++ ];
+                    if ( ! inSet[w] || w == header ) {
+                        continue;
+                    }
+                    if ( tarjanIndex[w] == -1 ) 
+                    {
+                        tarjanIndex[w] = tarjanLow[w] = index++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callStack[csp] = w;
+                        nextSucc[csp++] = 0;
+                    } 
+                    else if ( onStack[w] ) {
+                        tarjanLow[v] = Math.min( tarjanLow[v] , tarjanIndex[w] );
+                    }
+                    continue;
+                }
+                
+                csp--;
+                if ( csp > 0 ) 
+                {
+                    final int parent = callStack[csp-1];
+                    tarjanLow[parent] = Math.min( tarjanLow[parent] , tarjanLow[v] );
+                }
+                if ( tarjanLow[v] == tarjanIndex[v] ) 
+                {
+                    int count = 0;
+                    while ( stack[sp-1-count] != v ) {
+                        count++;
+                    }
+                    count++;
+                    final int[] component = Arrays.copyOfRange( stack , sp-count , sp );
+                    sp -= count;
+                    for ( int node : component ) {
+                        onStack[node] = false;
+                    }
+                    if ( component.length > 1 ) {
+                        components.add( component );
+                    }
+                }
+            }
+        }
+        for ( int m : members ) {
+            inSet[m] = false;
+        }
+        
+        for ( int[] component : components ) 
+        {
+            Arrays.sort( component );
+            result.add( component );
+            findLoops( component , getLoopHeader( component ) , result );
+        }
+    }
+    
+    // the first block (by instruction index) that is entered from outside the loop 
+    private int getLoopHeader(int[] component) 
+    {
+        for ( int node : component ) 
+        {
+            for ( int p : pred[node] ) 
+            {
+                if ( Arrays.binarySearch( component , p ) < 0 ) {
+                    return node;
+                }
+            }
+        }
+        return component[0]; // unreachable loop
+    }
+    
+    // ======== single-entry/single-exit regions ========
+    
+    private List<int[]> findRegions() 
+    {
+        final int n = nodes.size();
+        final int entry = 0;
+        final int exit = n-1;
+        
+        final int[] idom = getDominators( entry , succ , pred );
+        
+        // blocks that never reach the exit have no post-dominator
+        final int[] ipdom = getDominators( exit , pred , succ );
+        
+        final int[][] domChildren = getChildren( idom , entry );
+        final int[][] pdomChildren = getChildren( ipdom , exit );
+        final int[] domPre = new int[n], domPost = new int[n];
+        final int[] pdomPre = new int[n], pdomPost = new int[n];
+        number( domChildren , entry , domPre , domPost );
+        number( pdomChildren , exit , pdomPre , pdomPost );
+        
+        // blocks that can reach the method exit , blocks that cannot (like the ATHROW in 'if ( x == null ) throw ...') 
+        // are added to the region that dominates them 
+        final boolean[] reachesExit = new boolean[ n ];
+        final int[] stack = new int[ n ];
+        int top = 0;
+        stack[top++] = exit;
+        reachesExit[exit] = true;
+        while ( top > 0 ) 
+        {
+            for ( int p : pred[ stack[--top] ] ) 
+            {
+                if ( ! reachesExit[p] ) {
+                    reachesExit[p] = true;
+                    stack[top++] = p;
+                }
+            }
+        }
+        
+        final List<int[]> result = new ArrayList<>();
+        final boolean[] member = new boolean[ n ];
+        for ( int d = 1 ; d < exit ; d++ ) 
+        {
+            final int p = ipdom[d];
+            if ( p < 0 || idom[d] < 0 || ! isAncestor( domPre , domPost , d , p ) ) {
+                continue;
+            }
+            
+            // blocks dominated by d and post-dominated by p (or not reaching the exit at all)
+            final List<Integer> region = new ArrayList<>();
+            int sp = 0;
+            stack[sp++] = d;
+            while ( sp > 0 ) 
+            {
+                final int b = stack[--sp];
+                if ( isAncestor( pdomPre , pdomPost , p , b ) || ! reachesExit[b] ) {
+                    region.add( b );
+                }
+                for ( int child : domChildren[b] ) 
+                {
+                    if ( child != p ) {
+                        stack[sp++] = child;
+                    }
+                }
+            }
+            if ( region.size() < 2 || region.size() >= n-2 ) {
+                continue;
+            }
+            
+            final int[] nodesInRegion = new int[ region.size() ];
+            for ( int i = 0 ; i < nodesInRegion.length ; i++ ) 
+            {
+                nodesInRegion[i] = region.get(i);
+                member[ nodesInRegion[i] ] = true;
+            }
+            if ( isSingleEntrySingleExit( nodesInRegion , d , member ) ) 
+            {
+                Arrays.sort( nodesInRegion );
+                result.add( nodesInRegion );
+            }
+            for ( int node : nodesInRegion ) {
+                member[node] = false;
+            }
+        }
+        return result;
+    }
+    
+    private boolean isSingleEntrySingleExit(int[] region,int entry,boolean[] member) 
+    {
+        int exit = -1;
+        for ( int node : region ) 
+        {
+            if ( node != entry ) 
+            {
+                for ( int p : pred[node] ) 
+                {
+                    if ( ! member[p] ) {
+                        return false;
+                    }
+                }
+            }
+            for ( int s : succ[node] ) 
+            {
+                if ( ! member[s] ) 
+                {
+                    if ( exit != -1 && exit != s ) {
+                        return false;
+                    }
+                    exit = s;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /*
+     * Immediate dominators , see Cooper/Harvey/Kennedy: "A Simple, Fast Dominance Algorithm".
+     * Nodes that are unreachable from the root have no dominator (-1).
+     */
+    private static int[] getDominators(int root,int[][] successors,int[][] predecessors) 
+    {
+        final int n = successors.length;
+        
+        // reverse post-order
+        final int[] order = new int[ n ];
+        final int[] rpoNumber = new int[ n ];
+        Arrays.fill( rpoNumber , -1 );
+        final boolean[] visited = new boolean[ n ];
+        final int[] stack = new int[ n ];
+        final int[] next = new int[ n ];
+        int count = 0;
+        int sp = 0;
+        stack[sp++] = root;
+        visited[root] = true;
+        while ( sp > 0 ) 
+        {
+            final int v = stack[sp-1];
+            if ( next[v] < successors[v].length ) 
+            {
+                final int w = successors[v][ next[v]++ ];
+                if ( ! visited[w] ) 
+                {
+                    visited[w] = true;
+                    stack[sp++] = w;
+                }
+                continue;
+            }
+            sp--;
+            order[count++] = v;
+        }
+        final int[] rpo = new int[ count ];
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            rpo[i] = order[count-1-i];
+            rpoNumber[ rpo[i] ] = i;
+        }
+        
+        final int[] idom = new int[ n ];
+        Arrays.fill( idom , -1 );
+        idom[root] = root;
+        boolean changed = true;
+        while ( changed ) 
+        {
+            changed = false;
+            for ( int i = 1 ; i < rpo.length ; i++ ) 
+            {
+                final int b = rpo[i];
+                int newIdom = -1;
+                for ( int p : predecessors[b] ) 
+                {
+                    if ( idom[p] == -1 ) {
+                        continue;
+                    }
+                    if ( newIdom == -1 ) {
+                        newIdom = p;
+                    } 
+                    else 
+                    {
+                        int f1 = p , f2 = newIdom;
+                        while ( f1 != f2 ) 
+                        {
+                            while ( rpoNumber[f1] > rpoNumber[f2] ) {
+                                f1 = idom[f1];
+                            }
+                            while ( rpoNumber[f2] > rpoNumber[f1] ) {
+                                f2 = idom[f2];
+                            }
+                        }
+                        newIdom = f1;
+                    }
+                }
+                if ( newIdom != -1 && idom[b] != newIdom ) 
+                {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        return idom;
+    }
+    
+    private static int[][] getChildren(int[] idom,int root) 
+    {
+        final int[] count = new int[ idom.length ];
+        for ( int i = 0 ; i < idom.length ; i++ ) 
+        {
+            if ( i != root && idom[i] >= 0 ) {
+                count[ idom[i] ]++;
+            }
+        }
+        final int[][] result = new int[ idom.length ][];
+        for ( int i = 0 ; i < idom.length ; i++ ) {
+            result[i] = new int[ count[i] ];
+        }
+        Arrays.fill( count , 0 );
+        for ( int i = 0 ; i < idom.length ; i++ ) 
+        {
+            if ( i != root && idom[i] >= 0 ) {
+                result[ idom[i] ][ count[ idom[i] ]++ ] = i;
+            }
+        }
+        return result;
+    }
+    
+    // pre-/post-order numbers for ancestor tests , nodes not in the tree keep -1
+    private static void number(int[][] children,int root,int[] pre,int[] post) 
+    {
+        Arrays.fill( pre , -1 );
+        Arrays.fill( post , -1 );
+        final int[] stack = new int[ children.length ];
+        final int[] next = new int[ children.length ];
+        int sp = 0;
+        int counter = 0;
+        stack[sp++] = root;
+        pre[root] = counter++;
+        while ( sp > 0 ) 
+        {
+            final int v = stack[sp-1];
+            if ( next[v] < children[v].length ) 
+            {
+                final int child = children[v][ next[v]++ ];
+                pre[child] = counter++;
+                stack[sp++] = child;
+            } 
+            else 
+            {
+                post[v] = counter++;
+                sp--;
+            }
+        }
+    }
+    
+    private static boolean isAncestor(int[] pre,int[] post,int ancestor,int node) {
+        return pre[ancestor] >= 0 && pre[node] >= 0 && pre[ancestor] <= pre[node] && post[node] <= post[ancestor];
+    }
+    
+    // ======== hierarchy ========
+    
+    private void buildHierarchy(List<int[]> loops,List<int[]> regions) 
+    {
+        final int n = nodes.size();
+        clusterOf = new Cluster[ n ];
+        
+        final List<int[]> candidates = new ArrayList<>( loops.size() + regions.size() );
+        final List<Kind> kinds = new ArrayList<>();
+        candidates.addAll( loops );
+        candidates.addAll( regions );
+        final Integer[] sorted = new Integer[ candidates.size() ];
+        for ( int i = 0 ; i < sorted.length ; i++ ) 
+        {
+            sorted[i] = i;
+            kinds.add( i < loops.size() ? Kind.LOOP : Kind.REGION );
+        }
+        // smallest first , loops before regions with the same blocks
+        Arrays.sort( sorted , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                int result = Integer.compare( candidates.get( o1 ).length , candidates.get( o2 ).length );
+                return result != 0 ? result : Integer.compare( o1 , o2 );
+            }
+        });
+        
+        // outermost cluster by node
+        final Cluster[] owner = new Cluster[ n ];
+        final Map<Cluster,Integer> covered = new IdentityHashMap<>();
+        for ( Integer i : sorted ) 
+        {
+            final int[] candidate = candidates.get( i );
+            
+            // the candidate must contain all or nothing of every cluster accepted so far
+            covered.clear();
+            for ( int node : candidate ) 
+            {
+                if ( owner[node] != null ) 
+                {
+                    final Integer count = covered.get( owner[node] );
+                    covered.put( owner[node] , count == null ? 1 : count+1 );
+                }
+            }
+            boolean nested = true;
+            for ( Map.Entry<Cluster,Integer> entry : covered.entrySet() ) 
+            {
+                if ( entry.getValue() != entry.getKey().size ) {
+                    nested = false;
+                    break;
+                }
+            }
+            if ( ! nested || ( covered.size() == 1 && covered.values().iterator().next() == candidate.length ) ) { // overlapping or duplicate
+                continue;
+            }
+            
+            final Kind kind = kinds.get( i );
+            final Cluster cluster = new Cluster( kind , nextId++ , nodes.get( kind == Kind.LOOP ? getLoopHeader( candidate ) : getRegionEntry( candidate ) ) );
+            cluster.size = candidate.length;
+            for ( int node : candidate ) 
+            {
+                if ( owner[node] == null ) 
+                {
+                    cluster.blocks.add( nodes.get( node ) );
+                    clusterOf[node] = cluster;
+                } 
+                else if ( owner[node].parent == null ) 
+                {
+                    owner[node].parent = cluster;
+                    cluster.children.add( owner[node] );
+                }
+                owner[node] = cluster;
+            }
+            // owner[] of nodes in nested clusters still points to the outermost cluster before this one
+            for ( Cluster child : cluster.children ) {
+                reassignOwner( child , cluster , owner );
+            }
+        }
+        
+        final Set<Cluster> top = new LinkedHashSet<>();
+        for ( int i = 0 ; i < n ; i++ ) 
+        {
+            if ( owner[i] == null ) {
+                topBlocks.add( nodes.get( i ) );
+            } else {
+                top.add( owner[i] );
+            }
+        }
+        topClusters.addAll( top );
+        
+        // chains
+        createSequences( null , topClusters , topBlocks );
+        final List<Cluster> pending = new ArrayList<>( topClusters );
+        while ( ! pending.isEmpty() ) 
+        {
+            final Cluster cluster = pending.remove( pending.size()-1 );
+            createSequences( cluster , cluster.children , cluster.blocks );
+            pending.addAll( cluster.children );
+        }
+        sortClusters( topClusters );
+    }
+    
+    private void reassignOwner(Cluster cluster,Cluster newOwner,Cluster[] owner) 
+    {
+        for ( IBlock block : cluster.blocks ) {
+            owner[ indices.get( block ) ] = newOwner;
+        }
+        for ( Cluster child : cluster.children ) {
+            reassignOwner( child , newOwner , owner );
+        }
+    }
+    
+    // the region's only block with predecessors outside the region
+    private int getRegionEntry(int[] region) 
+    {
+        for ( int node : region ) 
+        {
+            for ( int p : pred[node] ) 
+            {
+                if ( Arrays.binarySearch( region , p ) < 0 ) {
+                    return node;
+                }
+            }
+        }
+        return region[0];
+    }
+    
+    /*
+     * Groups chains of items (child clusters and blocks) of a level , where each item is the only successor of the
+     * previous one and the previous item is its only predecessor.
+     */
+    private void createSequences(Cluster level,List<Cluster> clusters,List<IBlock> blocks) 
+    {
+        final int itemCount = clusters.size() + blocks.size();
+        if ( itemCount < 3 ) {
+            return;
+        }
+        
+        // item by node index , -1 for nodes outside of this level
+        final Map<Integer,Integer> itemOf = new HashMap<>();
+        final List<Object> items = new ArrayList<>( itemCount );
+        for ( Cluster c : clusters ) 
+        {
+            for ( int node : getNodes( c ) ) {
+                itemOf.put( node , items.size() );
+            }
+            items.add( c );
+        }
+        for ( IBlock b : blocks ) 
+        {
+            itemOf.put( indices.get( b ) , items.size() );
+            items.add( b );
+        }
+        
+        // distinct successor/predecessor items , -2 = more than one , OUTSIDE = outside of this level
+        final int OUTSIDE = -1;
+        final int MANY = -2;
+        final int NONE = -3;
+        final int[] singleSucc = new int[ itemCount ];
+        final int[] singlePred = new int[ itemCount ];
+        Arrays.fill( singleSucc , NONE );
+        Arrays.fill( singlePred , NONE );
+        for ( Map.Entry<Integer,Integer> entry : itemOf.entrySet() ) 
+        {
+            final int node = entry.getKey();
+            final int item = entry.getValue();
+            for ( int s : succ[node] ) 
+            {
+                final Integer target = itemOf.get( s );
+                final int t = target == null ? OUTSIDE : target;
+                if ( t != item ) {
+                    singleSucc[item] = singleSucc[item] == NONE || singleSucc[item] == t ? t : MANY;
+                }
+            }
+            for ( int p : pred[node] ) 
+            {
+                final Integer source = itemOf.get( p );
+                final int s = source == null ? OUTSIDE : source;
+                if ( s != item ) {
+                    singlePred[item] = singlePred[item] == NONE || singlePred[item] == s ? s : MANY;
+                }
+            }
+        }
+        
+        final int[] next = new int[ itemCount ];
+        final boolean[] hasPrevious = new boolean[ itemCount ];
+        Arrays.fill( next , -1 );
+        for ( int i = 0 ; i < itemCount ; i++ ) 
+        {
+            final int s = singleSucc[i];
+            if ( s >= 0 && singlePred[s] == i && ! isEntryOrExit( items.get( i ) ) && ! isEntryOrExit( items.get( s ) ) ) 
+            {
+                next[i] = s;
+                hasPrevious[s] = true;
+            }
+        }
+        
+        final List<Cluster> newClusters = new ArrayList<>();
+        final Set<Object> grouped = Collections.newSetFromMap( new IdentityHashMap<Object,Boolean>() );
+        for ( int i = 0 ; i < itemCount ; i++ ) 
+        {
+            if ( hasPrevious[i] || next[i] == -1 ) {
+                continue;
+            }
+            final List<Integer> chain = new ArrayList<>();
+            for ( int current = i ; current != -1 && chain.size() <= itemCount ; current = next[current] ) {
+                chain.add( current );
+            }
+            if ( chain.size() < 2 || chain.size() == itemCount ) {
+                continue;
+            }
+            final Object first = items.get( chain.get(0) );
+            final Cluster sequence = new Cluster( Kind.SEQUENCE , nextId++ , first instanceof Cluster ? ( (Cluster) first ).entry : (IBlock) first );
+            sequence.parent = level;
+            for ( int item : chain ) 
+            {
+                final Object o = items.get( item );
+                grouped.add( o );
+                if ( o instanceof Cluster ) 
+                {
+                    final Cluster c = (Cluster) o;
+                    c.parent = sequence;
+                    sequence.children.add( c );
+                    sequence.size += c.size;
+                } 
+                else 
+                {
+                    final IBlock b = (IBlock) o;
+                    sequence.blocks.add( b );
+                    clusterOf[ indices.get( b ) ] = sequence;
+                    sequence.size++;
+                }
+            }
+            newClusters.add( sequence );
+        }
+        if ( newClusters.isEmpty() ) {
+            return;
+        }
+        for ( Iterator<Cluster> it = clusters.iterator() ; it.hasNext() ; ) 
+        {
+            if ( grouped.contains( it.next() ) ) {
+                it.remove();
+            }
+        }
+        for ( Iterator<IBlock> it = blocks.iterator() ; it.hasNext() ; ) 
+        {
+            if ( grouped.contains( it.next() ) ) {
+                it.remove();
+            }
+        }
+        clusters.addAll( newClusters );
+    }
+    
+    private boolean isEntryOrExit(Object item) {
+        return item instanceof MethodEntry || item instanceof MethodExit;
+    }
+    
+    private List<Integer> getNodes(Cluster cluster) 
+    {
+        final List<Integer> result = new ArrayList<>( cluster.size );
+        final List<Cluster> pending = new ArrayList<>();
+        pending.add( cluster );
+        while ( ! pending.isEmpty() ) 
+        {
+            final Cluster c = pending.remove( pending.size()-1 );
+            for ( IBlock b : c.blocks ) {
+                result.add( indices.get( b ) );
+            }
+            pending.addAll( c.children );
+        }
+        return result;
+    }
+    
+    private void sortClusters(List<Cluster> clusters) 
+    {
+        Collections.sort( clusters , new Comparator<Cluster>() {
+
+            @Override
+            public int compare(Cluster o1, Cluster o2)
+            {
+                return Integer.compare( indices.get( o1.entry ) , indices.get( o2.entry ) );
+            }
+        });
+    }
+    
+    // ======== collapsing ========
+    
+    /**
+     * Collapses clusters so that at most <code>nodeBudget</code> nodes remain visible.
+     * 
+     * <p>Clusters are expanded largest first , as long as the budget permits. The first cluster that is too large to be expanded 
+     * gets its blocks and child clusters grouped into {@link Kind#RANGE} clusters of consecutive blocks so it can be expanded using 
+     * the remaining budget. If the graph has more top-level blocks and clusters than the budget , these are grouped as well.</p>
+     * 
+     * @param nodeBudget max. number of visible nodes (blocks , including method entry and exit , and collapsed clusters) , must be at least 3
+     * @return number of visible nodes
+     */
+    public int collapse(int nodeBudget) 
+    {
+        if ( nodeBudget < 3 ) {
+            throw new IllegalArgumentException("Node budget must be >= 3");
+        }
+        
+        // undo previous grouping
+        for ( int i = splits.size()-1 ; i >= 0 ; i-- ) 
+        {
+            final Cluster cluster = splits.get( i );
+            ungroup( cluster.children , cluster.blocks , cluster );
+        }
+        splits.clear();
+        ungroup( visibleClusters , visibleBlocks , null );
+        visibleClusters.clear();
+        visibleBlocks.clear();
+        visibleClusters.addAll( topClusters );
+        visibleBlocks.addAll( topBlocks );
+        
+        int visible = visibleClusters.size() + visibleBlocks.size();
+        if ( visible > nodeBudget ) 
+        {
+            visibleBlocks.remove( graph.getStart() );
+            visibleBlocks.remove( graph.getEnd() );
+            group( visibleClusters , visibleBlocks , null , nodeBudget - 2 );
+            visibleBlocks.add( 0 , graph.getStart() );
+            visibleBlocks.add( graph.getEnd() );
+            visible = visibleClusters.size() + visibleBlocks.size();
+        }
+        
+        final PriorityQueue<Cluster> queue = new PriorityQueue<>( 11 , new Comparator<Cluster>() {
+
+            @Override
+            public int compare(Cluster o1, Cluster o2)
+            {
+                final int result = Integer.compare( o2.size , o1.size );
+                return result != 0 ? result : Integer.compare( o1.id , o2.id );
+            }
+        });
+        for ( Cluster c : visibleClusters ) {
+            collapseAll( c );
+        }
+        queue.addAll( visibleClusters );
+        while ( ! queue.isEmpty() && visible < nodeBudget ) 
+        {
+            final Cluster c = queue.poll();
+            if ( visible + c.getItemCount() - 1 > nodeBudget ) 
+            {
+                // expand as far as the budget permits
+                group( c.children , c.blocks , c , nodeBudget - visible + 1 );
+                splits.add( c );
+            }
+            c.collapsed = false;
+            visible += c.getItemCount() - 1;
+            queue.addAll( c.children );
+        }
+        return visible;
+    }
+    
+    private void collapseAll(Cluster cluster) 
+    {
+        cluster.collapsed = true;
+        for ( Cluster child : cluster.children ) {
+            collapseAll( child );
+        }
+    }
+    
+    /*
+     * Groups consecutive (by instruction index) clusters and blocks into at most 'groups' RANGE clusters. Clusters 
+     * and blocks that would end up in a group of their own are kept as they are.
+     */
+    private void group(List<Cluster> clusters,List<IBlock> blocks,Cluster parent,int groups) 
+    {
+        final List<Object> items = new ArrayList<>( clusters.size() + blocks.size() );
+        items.addAll( clusters );
+        items.addAll( blocks );
+        final Map<Object,Integer> firstNode = new IdentityHashMap<>();
+        for ( Object item : items ) {
+            firstNode.put( item , getFirstNode( item ) );
+        }
+        Collections.sort( items , new Comparator<Object>() {
+
+            @Override
+            public int compare(Object o1, Object o2)
+            {
+                return Integer.compare( firstNode.get( o1 ) , firstNode.get( o2 ) );
+            }
+        });
+        
+        final int groupSize = ( items.size() + groups - 1 ) / groups;
+        clusters.clear();
+        blocks.clear();
+        for ( int start = 0 ; start < items.size() ; start += groupSize ) 
+        {
+            final List<Object> group = items.subList( start , Math.min( items.size() , start+groupSize ) );
+            if ( group.size() == 1 ) 
+            {
+                if ( group.get(0) instanceof Cluster ) {
+                    clusters.add( (Cluster) group.get(0) );
+                } else {
+                    blocks.add( (IBlock) group.get(0) );
+                }
+                continue;
+            }
+            final Object first = group.get(0);
+            final Cluster range = new Cluster( Kind.RANGE , nextId++ , first instanceof Cluster ? ( (Cluster) first ).entry : (IBlock) first );
+            range.parent = parent;
+            range.collapsed = true;
+            for ( Object o : group ) 
+            {
+                if ( o instanceof Cluster ) 
+                {
+                    final Cluster c = (Cluster) o;
+                    c.parent = range;
+                    range.children.add( c );
+                    range.size += c.size;
+                } 
+                else 
+                {
+                    range.blocks.add( (IBlock) o );
+                    clusterOf[ indices.get( o ) ] = range;
+                    range.size++;
+                }
+            }
+            clusters.add( range );
+        }
+    }
+    
+    // replaces RANGE clusters with their contents
+    private void ungroup(List<Cluster> clusters,List<IBlock> blocks,Cluster parent) 
+    {
+        final List<Cluster> ranges = new ArrayList<>();
+        for ( Iterator<Cluster> it = clusters.iterator() ; it.hasNext() ; ) 
+        {
+            final Cluster c = it.next();
+            if ( c.kind == Kind.RANGE ) {
+                ranges.add( c );
+                it.remove();
+            }
+        }
+        for ( Cluster range : ranges ) 
+        {
+            for ( Cluster child : range.children ) {
+                child.parent = parent;
+            }
+            for ( IBlock b : range.blocks ) {
+                clusterOf[ indices.get( b ) ] = parent;
+            }
+            clusters.addAll( range.children );
+            blocks.addAll( range.blocks );
+        }
+    }
+    
+    private int getFirstNode(Object item) 
+    {
+        if ( item instanceof Cluster ) 
+        {
+            int result = Integer.MAX_VALUE;
+            for ( int node : getNodes( (Cluster) item ) ) {
+                result = Math.min( result , node );
+            }
+            return result;
+        }
+        return indices.get( item );
+    }
+    
+    /**
+     * Expands a collapsed cluster (and all collapsed clusters containing it) , making its blocks and child clusters visible.
+     * 
+     * @param cluster
+     */
+    public void expand(Cluster cluster) 
+    {
+        for ( Cluster c = cluster ; c != null ; c = c.parent ) {
+            c.collapsed = false;
+        }
+    }
+    
+    /**
+     * Returns the top-level clusters.
+     * 
+     * @return
+     */
+    public List<Cluster> getClusters() {
+        return Collections.unmodifiableList( visibleClusters );
+    }
+    
+    /**
+     * Returns the blocks that are not part of any cluster (including method entry and exit).
+     * 
+     * @return
+     */
+    public List<IBlock> getBlocks() {
+        return Collections.unmodifiableList( visibleBlocks );
+    }
+    
+    /**
+     * Returns all blocks that are part of the summary.
+     * 
+     * @return blocks ordered by instruction index , method entry first and method exit last
+     */
+    public List<IBlock> getAllBlocks() {
+        return Collections.unmodifiableList( nodes );
+    }
+    
+    /**
+     * Returns the outermost collapsed cluster that contains a block.
+     * 
+     * @param block
+     * @return cluster or <code>null</code> if the block is visible (or not part of the summary)
+     */
+    public Cluster getCollapsedCluster(IBlock block) 
+    {
+        final Integer index = indices.get( block );
+        Cluster result = null;
+        if ( index != null ) 
+        {
+            for ( Cluster c = clusterOf[index] ; c != null ; c = c.parent ) 
+            {
+                if ( c.collapsed ) {
+                    result = c;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DOT (graphviz) renderer that annotates a control-flow graph with an execution profile.
+ * 
+ * <p>Blocks are labeled with their execution count and filled with a color ranging from white (never executed) to 
+ * red (executed most often). Edge pen widths grow with the number of times an edge was traversed. Colors and pen widths use a logarithmic
+ * scale , so blocks that executed a few times still stand out against blocks that never executed.</p>
+ * 
+ * <p>Blocks and edges whose counts are neither part of the profile nor can be inferred (see {@link BlockProfile}) are drawn 
+ * like {@link DOTRenderer} does.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see BlockProfile
+ */
+public class HeatmapDOTRenderer extends DOTRenderer
+{
+    private static final double MAX_PEN_WIDTH = 8.0;
+    
+    private final BlockProfile profile;
+    
+    // counts of the graph that is currently being rendered
+    private Map<IBlock,Long> blockCounts = Collections.emptyMap();
+    private Map<Edge,Long> edgeCounts = Collections.emptyMap();
+    private long maxBlockCount;
+    private long maxEdgeCount;
+    
+    public HeatmapDOTRenderer(BlockProfile profile)
+    {
+        if ( profile == null ) {
+            throw new IllegalArgumentException("profile must not be NULL");
+        }
+        this.profile = profile;
+    }
+    
+    @Override
+    protected void beginRender(ControlFlowGraph graph)
+    {
+        blockCounts = profile.getBlockCounts( graph );
+        edgeCounts = profile.getEdgeCounts( graph );
+        maxBlockCount = max( blockCounts.values() );
+        maxEdgeCount = max( edgeCounts.values() );
+    }
+    
+    @Override
+    protected void endRender()
+    {
+        blockCounts = Collections.emptyMap();
+        edgeCounts = Collections.emptyMap();
+    }
+    
+    private static long max(Iterable<Long> values) 
+    {
+        long result = 0;
+        for ( long value : values ) {
+            result = Math.max( result , value );
+        }
+        return result;
+    }
+    
+    // log-scaled value between 0 and 1
+    private static double getHeat(long count,long max) 
+    {
+        if ( count <= 0 || max <= 0 ) {
+            return 0;
+        }
+        return Math.log( 1 + count ) / Math.log( 1 + max );
+    }
+    
+    @Override
+    protected List<String> getNodeAttributes(ControlFlowGraph graph, IBlock block, String label)
+    {
+        final Long count = blockCounts.get( block );
+        if ( count == null ) {
+            return super.getNodeAttributes( graph , block , label );
+        }
+        
+        final List<String> result;
+        if ( block instanceof MethodEntry || block instanceof MethodExit ) {
+            result = super.getNodeAttributes( graph , block , label+"\\n"+count+"x" );
+        } else {
+            result = super.getNodeAttributes( graph , block , "executed: "+count+"x\\l"+label );
+        }
+        result.add( "style=filled" );
+        // HSV , saturation of red increases with heat
+        result.add( String.format( Locale.ROOT , "fillcolor=\"0.000 %.3f 1.000\"" , getHeat( count , maxBlockCount ) ) );
+        return result;
+    }
+    
+    @Override
+    protected List<String> getEdgeAttributes(ControlFlowGraph graph, Edge edge)
+    {
+        final List<String> result = super.getEdgeAttributes( graph , edge );
+        final Long count = edgeCounts.get( edge );
+        if ( count == null ) {
+            return result;
+        }
+        
+        boolean hasLabel = false;
+        for ( int i = 0 ; i < result.size() ; i++ ) 
+        {
+            final String attribute = result.get( i );
+            if ( attribute.startsWith( "label=\"" ) ) 
+            {
+                // label="..." -> label="...\n<count>x"
+                result.set( i , attribute.substring( 0 , attribute.length() - 1 )+"\\n"+count+"x\"" );
+                hasLabel = true;
+            }
+        }
+        if ( ! hasLabel ) {
+            result.add( "label=\""+count+"x\"" );
+        }
+        result.add( String.format( Locale.ROOT , "penwidth=%.1f" , 1 + ( MAX_PEN_WIDTH - 1 ) * getHeat( count , maxEdgeCount ) ) );
+        return result;
+    }
+}
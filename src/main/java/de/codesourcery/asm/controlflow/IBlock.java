@@ -153,6 +153,16 @@ public interface IBlock
      */
     public String getId();
     
+    /**
+     * Returns the index of this block within its {@link ControlFlowGraph}.
+     * 
+     * <p>Indices are assigned by the graph and range from 0 to {@link ControlFlowGraph#getBlockCount()} - 1 , they are used
+     * to look up {@link BlockAttribute}s.</p>
+     * 
+     * @return index or -1 if the block is not yet part of a graph
+     */
+    public int getIndex();
+    
     /**
      * Returns the index of the INVOKESPECIAL instruction in this 
      * node that invokes the super-classes constructor.
@@ -259,6 +269,14 @@ public interface IBlock
      */
     public void setId(String id);
     
+    /**
+     * Sets the index of this block within its graph.
+     * 
+     * @param index
+     * @see #getIndex()
+     */
+    public void setIndex(int index);
+    
     /**
      * Returns a simple string representation of this block.
      * @return
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.IOException;
+
+/**
+ * Destination for the files generated by {@link ControlFlowGrapher}.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see DirectoryGraphSink
+ * @see ZipGraphSink
+ */
+public interface IGraphSink
+{
+    /**
+     * Writes a file.
+     * 
+     * @param path relative path of the file , using '/' as separator
+     * @param content
+     * @throws IOException
+     */
+    public void write(String path,String content) throws IOException;
+    
+    /**
+     * Flushes all pending output and releases resources.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,904 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Printer;
+
+import de.codesourcery.asm.util.Disassembler;
+
+/**
+ * Layered (Sugiyama-style) layout of control-flow graphs that does not depend on Graphviz.
+ * 
+ * <p>The layout is computed in four phases:</p>
+ * <ol>
+ *   <li>cycle breaking: loop back edges (edges to a block that is still on the stack during a depth-first traversal starting
+ *   at the method entry , see {@link ControlFlowGraph#getBackEdges()}) are reversed</li>
+ *   <li>layering: each block is assigned to the layer below its lowest predecessor (longest path) , the method exit goes to the 
+ *   bottom layer. Edges that span more than one layer are split by inserting dummy nodes.</li>
+ *   <li>crossing minimization: blocks are ordered within their layer by the barycenter of their neighbours in the adjacent layer , 
+ *   alternating downward and upward sweeps. The ordering with the fewest crossings is kept.</li>
+ *   <li>coordinate assignment: each node is pulled to the average position of its neighbours while keeping 
+ *   the order and minimum spacing of its layer (solved exactly per layer by pool-adjacent-violators). Dummy nodes are
+ *   pulled harder , so long edges get straight.</li>
+ * </ol>
+ * 
+ * <p>All phases run in (near) linear time per sweep , graphs with thousands of blocks take a few milliseconds.</p>
+ * 
+ * <p>Nodes and edges are the same as those rendered by {@link DOTRenderer}.</p>
+ *  
+ * @author tobias.gierke@code-sourcery.de
+ * @see SVGRenderer
+ */
+public class LayeredLayout
+{
+    private double charWidth = 7.2;
+    private double lineHeight = 15;
+    private double padding = 6;
+    private double nodeSpacing = 20;
+    private double layerSpacing = 40;
+    private double margin = 10;
+    private int crossingSweeps = 12;
+    private int placementSweeps = 8;
+    
+    // how much harder dummy nodes are pulled than real nodes
+    private static final double DUMMY_WEIGHT = 4;
+    
+    /**
+     * A block and its bounding box.
+     */
+    public static final class Node 
+    {
+        public final IBlock block;
+        // label , one array element per line
+        public final String[] lines;
+        // whether this node should be drawn as an ellipse (method entry/exit)
+        public final boolean ellipse;
+        public final double width;
+        public final double height;
+        // center
+        public double x;
+        public double y;
+        
+        Node(IBlock block, String[] lines, boolean ellipse, double width, double height)
+        {
+            this.block = block;
+            this.lines = lines;
+            this.ellipse = ellipse;
+            this.width = width;
+            this.height = height;
+        }
+    }
+    
+    /**
+     * The route of an edge.
+     */
+    public static final class Route 
+    {
+        public final Edge edge;
+        /**
+         * Polyline from the source to the destination node , alternating x and y coordinates. 
+         * For self-loops , the start and end point on the node's right side.
+         */
+        public final double[] points;
+        
+        Route(Edge edge, double[] points)
+        {
+            this.edge = edge;
+            this.points = points;
+        }
+        
+        public boolean isSelfLoop() {
+            return edge.src == edge.dst;
+        }
+    }
+    
+    /**
+     * Result of a layout.
+     */
+    public static final class Layout 
+    {
+        public final List<Node> nodes;
+        public final List<Route> routes;
+        public final double width;
+        public final double height;
+        private final Map<IBlock,Node> nodesByBlock = new IdentityHashMap<>();
+        
+        Layout(List<Node> nodes, List<Route> routes, double width, double height)
+        {
+            this.nodes = Collections.unmodifiableList( nodes );
+            this.routes = Collections.unmodifiableList( routes );
+            this.width = width;
+            this.height = height;
+            for ( Node n : nodes ) {
+                nodesByBlock.put( n.block , n );
+            }
+        }
+        
+        /**
+         * Returns the node of a block.
+         * 
+         * @param block
+         * @return node or <code>null</code> if the block is not part of the layout
+         */
+        public Node getNode(IBlock block) {
+            return nodesByBlock.get( block );
+        }
+    }
+
+    public void setCharWidth(double charWidth) {
+        this.charWidth = charWidth;
+    }
+    
+    public double getCharWidth() {
+        return charWidth;
+    }
+    
+    public void setLineHeight(double lineHeight) {
+        this.lineHeight = lineHeight;
+    }
+    
+    public double getLineHeight() {
+        return lineHeight;
+    }
+    
+    public void setPadding(double padding) {
+        this.padding = padding;
+    }
+    
+    public double getPadding() {
+        return padding;
+    }
+    
+    public void setNodeSpacing(double nodeSpacing) {
+        this.nodeSpacing = nodeSpacing;
+    }
+    
+    public void setLayerSpacing(double layerSpacing) {
+        this.layerSpacing = layerSpacing;
+    }
+    
+    /**
+     * Sets the number of barycenter sweeps used to minimize edge crossings.
+     * 
+     * @param crossingSweeps
+     */
+    public void setCrossingSweeps(int crossingSweeps) {
+        this.crossingSweeps = crossingSweeps;
+    }
+    
+    /**
+     * Sets the number of downward/upward sweeps used to straighten edges.
+     * 
+     * @param placementSweeps
+     */
+    public void setPlacementSweeps(int placementSweeps) {
+        this.placementSweeps = placementSweeps;
+    }
+    
+    /**
+     * Lays out a control-flow graph.
+     * 
+     * @param graph
+     * @return
+     */
+    public Layout layout(ControlFlowGraph graph) {
+        return new Run( graph ).layout();
+    }
+    
+    /**
+     * State of a single layout run. Nodes are numbered , real nodes first followed by dummy nodes. 
+     */
+    private final class Run 
+    {
+        private final ControlFlowGraph graph;
+        
+        private final List<Node> nodes = new ArrayList<>();
+        private final Map<IBlock,Integer> indices = new IdentityHashMap<>();
+        
+        // edges between distinct nodes , as node indices
+        private final List<Edge> edges = new ArrayList<>();
+        private int[] edgeSrc;
+        private int[] edgeDst;
+        private boolean[] reversed;
+        private final List<Edge> selfLoops = new ArrayList<>();
+        
+        // per node (real and dummy)
+        private int nodeCount;
+        private int[] layer;
+        private double[] width;
+        private double[] x;
+        private int[] pos;
+        // neighbours in the layer above/below , compressed row storage
+        private int[] upStart, up, downStart, down;
+        
+        // per edge: nodes from the upper to the lower end , including dummies
+        private int[][] chains;
+        
+        private int[][] order; // nodes by layer and position
+        private double[] layerTop;
+        private double[] layerHeight;
+        
+        public Run(ControlFlowGraph graph) {
+            this.graph = graph;
+        }
+        
+        public Layout layout() 
+        {
+            createNodes();
+            createEdges();
+            breakCycles();
+            assignLayers();
+            insertDummies();
+            minimizeCrossings();
+            assignCoordinates();
+            return createLayout();
+        }
+        
+        private void createNodes() 
+        {
+            final MethodNode method = graph.getMethod();
+            final List<IBlock> blocks = new ArrayList<>();
+            final Map<IBlock,String[]> labels = new IdentityHashMap<>();
+            for ( IBlock block : graph.getAllNodes() ) 
+            {
+                if ( ! ( block instanceof MethodEntry || block instanceof MethodExit ) ) 
+                {
+                    final String[] lines = disassemble( block , method );
+                    if ( lines != null ) 
+                    {
+                        labels.put( block , lines );
+                        blocks.add( block );
+                    }
+                }
+            }
+            // deterministic order that roughly follows the byte-code
+            Collections.sort( blocks , new Comparator<IBlock>() {
+
+                @Override
+                public int compare(IBlock o1, IBlock o2)
+                {
+                    return Integer.compare( o1.getFirstInstructionNum() , o2.getFirstInstructionNum() );
+                }
+            });
+            blocks.add( 0 , graph.getStart() );
+            blocks.add( graph.getEnd() );
+            
+            for ( IBlock block : blocks ) 
+            {
+                final String[] lines;
+                final boolean ellipse = block instanceof MethodEntry || block instanceof MethodExit;
+                if ( block instanceof MethodEntry ) {
+                    lines = new String[] { "method_entry" };
+                } else if ( block instanceof MethodExit ) {
+                    lines = new String[] { "method_exit" };
+                } else {
+                    lines = labels.get( block );
+                }
+                int maxLength = 0;
+                for ( String line : lines ) {
+                    maxLength = Math.max( maxLength , line.length() );
+                }
+                double w = maxLength * charWidth + 2*padding;
+                double h = lines.length * lineHeight + 2*padding;
+                if ( ellipse ) 
+                {
+                    w *= 1.4;
+                    h *= 1.4;
+                }
+                indices.put( block , nodes.size() );
+                nodes.add( new Node( block , lines , ellipse , w , h ) );
+            }
+        }
+        
+        /*
+         * Same text as IBlock#disassemble() , but in linear time (IBlock#disassemble() and IBlock#isVirtual() iterate over
+         * all instructions of the method).
+         * 
+         * Returns NULL for virtual blocks.
+         */
+        private String[] disassemble(IBlock block,MethodNode method) 
+        {
+            final List<Integer> nums = new ArrayList<>( block.getInstructionNums() );
+            Collections.sort( nums );
+            final List<String> result = new ArrayList<>( nums.size() );
+            boolean isVirtual = true;
+            for ( int num : nums ) 
+            {
+                final AbstractInsnNode insn = method.instructions.get( num );
+                if ( insn.getOpcode() >= 0 && insn.getOpcode() < Printer.OPCODES.length ) {
+                    isVirtual = false;
+                }
+                final String line = Disassembler.disassemble( insn , method , false , true );
+                if ( line != null ) {
+                    result.add( line );
+                }
+            }
+            return isVirtual ? null : result.toArray( new String[ result.size() ] );
+        }
+        
+        private void createEdges() 
+        {
+            for ( Node node : nodes ) 
+            {
+                for ( Edge edge : node.block.getEdges() ) 
+                {
+                    if ( edge.isSuccessor( node.block ) && indices.containsKey( edge.dst ) ) 
+                    {
+                        if ( edge.dst == edge.src ) {
+                            selfLoops.add( edge );
+                        } else {
+                            edges.add( edge );
+                        }
+                    }
+                }
+            }
+            // successor sets are hash-based , sort for a deterministic layout
+            Collections.sort( edges , new Comparator<Edge>() {
+
+                @Override
+                public int compare(Edge o1, Edge o2)
+                {
+                    int result = Integer.compare( indices.get( o1.src ) , indices.get( o2.src ) );
+                    if ( result == 0 ) {
+                        result = Integer.compare( indices.get( o1.dst ) , indices.get( o2.dst ) );
+                    }
+                    if ( result == 0 ) {
+                        result = String.valueOf( o1.metaData ).compareTo( String.valueOf( o2.metaData ) );
+                    }
+                    return result;
+                }
+            });
+            
+            edgeSrc = new int[ edges.size() ];
+            edgeDst = new int[ edges.size() ];
+            reversed = new boolean[ edges.size() ];
+            for ( int i = 0 ; i < edges.size() ; i++ ) 
+            {
+                edgeSrc[i] = indices.get( edges.get(i).src );
+                edgeDst[i] = indices.get( edges.get(i).dst );
+            }
+        }
+        
+        // outgoing edge indices per node , compressed row storage
+        private int[][] outgoingEdges(boolean useReversed) 
+        {
+            final int n = nodes.size();
+            final int[] start = new int[ n+1 ];
+            for ( int e = 0 ; e < edges.size() ; e++ ) {
+                start[ ( useReversed && reversed[e] ? edgeDst[e] : edgeSrc[e] ) + 1 ]++;
+            }
+            for ( int i = 0 ; i < n ; i++ ) {
+                start[i+1] += start[i];
+            }
+            final int[] fill = Arrays.copyOf( start , n );
+            final int[] result = new int[ edges.size() ];
+            for ( int e = 0 ; e < edges.size() ; e++ ) {
+                result[ fill[ useReversed && reversed[e] ? edgeDst[e] : edgeSrc[e] ]++ ] = e;
+            }
+            return new int[][] { start , result };
+        }
+        
+        private void breakCycles() 
+        {
+            final int n = nodes.size();
+            final int[][] out = outgoingEdges( false );
+            final int[] start = out[0];
+            final int[] outEdges = out[1];
+            
+            // 0 = not visited , 1 = on stack , 2 = done
+            final byte[] state = new byte[ n ];
+            final int[] stack = new int[ n ];
+            final int[] next = new int[ n ];
+            for ( int root = 0 ; root < n ; root++ ) // method entry first , unreachable blocks after that
+            {
+                if ( state[root] != 0 ) {
+                    continue;
+                }
+                int sp = 0;
+                stack[sp++] = root;
+                state[root] = 1;
+                next[root] = start[root];
+                while ( sp > 0 ) 
+                {
+                    final int current = stack[sp-1];
+                    if ( next[current] == start[current+1] ) 
+                    {
+                        state[current] = 2;
+                        sp--;
+                        continue;
+                    }
+                    final int e = outEdges[ next[current]++ ];
+                    final int dst = edgeDst[e];
+                    if ( state[dst] == 1 ) {
+                        reversed[e] = true;
+                    } 
+                    else if ( state[dst] == 0 ) 
+                    {
+                        state[dst] = 1;
+                        next[dst] = start[dst];
+                        stack[sp++] = dst;
+                    }
+                }
+            }
+        }
+        
+        private void assignLayers() 
+        {
+            final int n = nodes.size();
+            final int[][] out = outgoingEdges( true );
+            final int[] start = out[0];
+            final int[] outEdges = out[1];
+            
+            final int[] inDegree = new int[ n ];
+            for ( int e = 0 ; e < edges.size() ; e++ ) {
+                inDegree[ reversed[e] ? edgeSrc[e] : edgeDst[e] ]++;
+            }
+            
+            layer = new int[ n ];
+            final int[] queue = new int[ n ];
+            int head = 0 , tail = 0;
+            for ( int i = 0 ; i < n ; i++ ) 
+            {
+                if ( inDegree[i] == 0 ) {
+                    queue[tail++] = i;
+                }
+            }
+            while ( head < tail ) 
+            {
+                final int current = queue[head++];
+                for ( int i = start[current] ; i < start[current+1] ; i++ ) 
+                {
+                    final int e = outEdges[i];
+                    final int dst = reversed[e] ? edgeSrc[e] : edgeDst[e];
+                    layer[dst] = Math.max( layer[dst] , layer[current]+1 );
+                    if ( --inDegree[dst] == 0 ) {
+                        queue[tail++] = dst;
+                    }
+                }
+            }
+            if ( tail != n ) {
+                throw new IllegalStateException("Internal error, graph still has cycles after reversing back edges");
+            }
+            
+            int maxLayer = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                maxLayer = Math.max( maxLayer , layer[i] );
+            }
+            layer[ n-1 ] = maxLayer; // method exit
+        }
+        
+        private void insertDummies() 
+        {
+            final int n = nodes.size();
+            int dummies = 0;
+            for ( int e = 0 ; e < edges.size() ; e++ ) {
+                dummies += Math.abs( layer[ edgeDst[e] ] - layer[ edgeSrc[e] ] ) - 1;
+            }
+            nodeCount = n + dummies;
+            layer = Arrays.copyOf( layer , nodeCount );
+            width = new double[ nodeCount ];
+            for ( int i = 0 ; i < n ; i++ ) {
+                width[i] = nodes.get(i).width;
+            }
+            
+            chains = new int[ edges.size() ][];
+            final int[] segmentUpper = new int[ edges.size() + dummies ];
+            final int[] segmentLower = new int[ segmentUpper.length ];
+            int segments = 0;
+            int nextDummy = n;
+            for ( int e = 0 ; e < edges.size() ; e++ ) 
+            {
+                final int upper = reversed[e] ? edgeDst[e] : edgeSrc[e];
+                final int lower = reversed[e] ? edgeSrc[e] : edgeDst[e];
+                final int span = layer[lower] - layer[upper];
+                final int[] chain = new int[ span+1 ];
+                chain[0] = upper;
+                chain[span] = lower;
+                for ( int i = 1 ; i < span ; i++ ) 
+                {
+                    chain[i] = nextDummy++;
+                    layer[ chain[i] ] = layer[upper]+i;
+                }
+                for ( int i = 0 ; i < span ; i++ ) 
+                {
+                    segmentUpper[segments] = chain[i];
+                    segmentLower[segments] = chain[i+1];
+                    segments++;
+                }
+                chains[e] = chain;
+            }
+            
+            upStart = new int[ nodeCount+1 ];
+            downStart = new int[ nodeCount+1 ];
+            for ( int s = 0 ; s < segments ; s++ ) 
+            {
+                downStart[ segmentUpper[s]+1 ]++;
+                upStart[ segmentLower[s]+1 ]++;
+            }
+            for ( int i = 0 ; i < nodeCount ; i++ ) 
+            {
+                downStart[i+1] += downStart[i];
+                upStart[i+1] += upStart[i];
+            }
+            up = new int[ segments ];
+            down = new int[ segments ];
+            final int[] upFill = Arrays.copyOf( upStart , nodeCount );
+            final int[] downFill = Arrays.copyOf( downStart , nodeCount );
+            for ( int s = 0 ; s < segments ; s++ ) 
+            {
+                down[ downFill[ segmentUpper[s] ]++ ] = segmentLower[s];
+                up[ upFill[ segmentLower[s] ]++ ] = segmentUpper[s];
+            }
+        }
+        
+        private void minimizeCrossings() 
+        {
+            int layers = 0;
+            for ( int i = 0 ; i < nodeCount ; i++ ) {
+                layers = Math.max( layers , layer[i]+1 );
+            }
+            
+            // initial order: depth-first , so that blocks on the same path start out aligned
+            final int[] layerSize = new int[ layers ];
+            for ( int i = 0 ; i < nodeCount ; i++ ) {
+                layerSize[ layer[i] ]++;
+            }
+            order = new int[ layers ][];
+            for ( int l = 0 ; l < layers ; l++ ) {
+                order[l] = new int[ layerSize[l] ];
+            }
+            Arrays.fill( layerSize , 0 );
+            pos = new int[ nodeCount ];
+            final boolean[] visited = new boolean[ nodeCount ];
+            final int[] stack = new int[ nodeCount ];
+            for ( int root = 0 ; root < nodeCount ; root++ ) 
+            {
+                if ( visited[root] ) {
+                    continue;
+                }
+                int sp = 0;
+                stack[sp++] = root;
+                visited[root] = true;
+                while ( sp > 0 ) 
+                {
+                    final int current = stack[--sp];
+                    pos[current] = layerSize[ layer[current] ]++;
+                    order[ layer[current] ][ pos[current] ] = current;
+                    for ( int i = downStart[current+1]-1 ; i >= downStart[current] ; i-- ) 
+                    {
+                        if ( ! visited[ down[i] ] ) 
+                        {
+                            visited[ down[i] ] = true;
+                            stack[sp++] = down[i];
+                        }
+                    }
+                }
+            }
+            
+            long best = countCrossings();
+            int[][] bestOrder = copy( order );
+            final double[] keys = new double[ nodeCount ];
+            for ( int sweep = 0 ; sweep < crossingSweeps && best > 0 ; sweep++ ) 
+            {
+                if ( ( sweep & 1 ) == 0 ) 
+                {
+                    for ( int l = 1 ; l < layers ; l++ ) {
+                        reorder( order[l] , upStart , up , keys );
+                    }
+                } 
+                else 
+                {
+                    for ( int l = layers - 2 ; l >= 0 ; l-- ) {
+                        reorder( order[l] , downStart , down , keys );
+                    }
+                }
+                final long crossings = countCrossings();
+                if ( crossings < best ) 
+                {
+                    best = crossings;
+                    bestOrder = copy( order );
+                }
+            }
+            order = bestOrder;
+            for ( int[] nodesInLayer : order ) 
+            {
+                for ( int i = 0 ; i < nodesInLayer.length ; i++ ) {
+                    pos[ nodesInLayer[i] ] = i;
+                }
+            }
+        }
+        
+        private int[][] copy(int[][] array) 
+        {
+            final int[][] result = new int[ array.length ][];
+            for ( int i = 0 ; i < array.length ; i++ ) {
+                result[i] = array[i].clone();
+            }
+            return result;
+        }
+        
+        // sorts a layer by the barycenters of the nodes' neighbours in the adjacent layer
+        private void reorder(int[] nodesInLayer,int[] start,int[] neighbours,final double[] keys) 
+        {
+            final Integer[] sorted = new Integer[ nodesInLayer.length ];
+            for ( int i = 0 ; i < nodesInLayer.length ; i++ ) 
+            {
+                final int node = nodesInLayer[i];
+                sorted[i] = node;
+                final int count = start[node+1] - start[node];
+                if ( count == 0 ) {
+                    keys[node] = i; // nodes without neighbours keep their position
+                    continue;
+                }
+                double sum = 0;
+                for ( int j = start[node] ; j < start[node+1] ; j++ ) {
+                    sum += pos[ neighbours[j] ];
+                }
+                keys[node] = sum / count;
+            }
+            Arrays.sort( sorted , new Comparator<Integer>() {
+
+                @Override
+                public int compare(Integer o1, Integer o2)
+                {
+                    return Double.compare( keys[o1] , keys[o2] );
+                }
+            });
+            for ( int i = 0 ; i < sorted.length ; i++ ) 
+            {
+                nodesInLayer[i] = sorted[i];
+                pos[ sorted[i] ] = i;
+            }
+        }
+        
+        private long countCrossings() 
+        {
+            long result = 0;
+            for ( int l = 0 ; l+1 < order.length ; l++ ) 
+            {
+                // edges ordered by upper position , then lower position. Each pair of edges whose lower 
+                // positions are inverted crosses. Inversions are counted with a Fenwick tree.
+                final long[] tree = new long[ order[l+1].length+1 ];
+                long inserted = 0;
+                for ( int upper : order[l] ) 
+                {
+                    final int[] lower = new int[ downStart[upper+1] - downStart[upper] ];
+                    for ( int i = 0 ; i < lower.length ; i++ ) {
+                        lower[i] = pos[ down[ downStart[upper]+i ] ];
+                    }
+                    Arrays.sort( lower );
+                    for ( int p : lower ) 
+                    {
+                        // number of inserted edges with a lower position > p
+                        long notGreater = 0;
+                        for ( int i = p+1 ; i > 0 ; i -= i & -i ) {
+                            notGreater += tree[i];
+                        }
+                        result += inserted - notGreater;
+                    }
+                    for ( int p : lower ) 
+                    {
+                        for ( int i = p+1 ; i < tree.length ; i += i & -i ) {
+                            tree[i]++;
+                        }
+                        inserted++;
+                    }
+                }
+            }
+            return result;
+        }
+        
+        private void assignCoordinates() 
+        {
+            x = new double[ nodeCount ];
+            for ( int[] nodesInLayer : order ) 
+            {
+                double current = 0;
+                for ( int i = 0 ; i < nodesInLayer.length ; i++ ) 
+                {
+                    if ( i > 0 ) {
+                        current += getSeparation( nodesInLayer[i-1] , nodesInLayer[i] );
+                    }
+                    x[ nodesInLayer[i] ] = current;
+                }
+            }
+            
+            for ( int sweep = 0 ; sweep < placementSweeps ; sweep++ ) 
+            {
+                for ( int l = 1 ; l < order.length ; l++ ) {
+                    place( order[l] , upStart , up );
+                }
+                for ( int l = order.length - 2 ; l >= 0 ; l-- ) {
+                    place( order[l] , downStart , down );
+                }
+            }
+            
+            double minX = Double.MAX_VALUE;
+            for ( int i = 0 ; i < nodeCount ; i++ ) {
+                minX = Math.min( minX , x[i] - width[i]/2 );
+            }
+            for ( int i = 0 ; i < nodeCount ; i++ ) {
+                x[i] += margin - minX;
+            }
+            
+            layerTop = new double[ order.length ];
+            layerHeight = new double[ order.length ];
+            double y = margin;
+            for ( int l = 0 ; l < order.length ; l++ ) 
+            {
+                double height = lineHeight;
+                for ( int node : order[l] ) 
+                {
+                    if ( node < nodes.size() ) {
+                        height = Math.max( height , nodes.get( node ).height );
+                    }
+                }
+                layerTop[l] = y;
+                layerHeight[l] = height;
+                y += height + layerSpacing;
+            }
+        }
+        
+        private double getSeparation(int left,int right) 
+        {
+            final boolean dummies = left >= nodes.size() && right >= nodes.size();
+            return ( width[left] + width[right] ) / 2 + ( dummies ? nodeSpacing / 2 : nodeSpacing );
+        }
+        
+        /*
+         * Moves the nodes of a layer as close as possible to the average position of their neighbours 
+         * (minimizing the weighted sum of squared distances) without changing their order or violating the minimum separation.
+         * 
+         * Substituting x[i] = y[i] + offset[i] , with offset[i] being the sum of separations to the left of node i , turns this into
+         * a weighted isotonic regression on y , which pool-adjacent-violators solves in linear time.
+         */
+        private void place(int[] nodesInLayer,int[] start,int[] neighbours) 
+        {
+            final int count = nodesInLayer.length;
+            final double[] target = new double[ count ];
+            final double[] weight = new double[ count ];
+            double offset = 0;
+            for ( int i = 0 ; i < count ; i++ ) 
+            {
+                final int node = nodesInLayer[i];
+                if ( i > 0 ) {
+                    offset += getSeparation( nodesInLayer[i-1] , node );
+                }
+                final int neighbourCount = start[node+1] - start[node];
+                double desired = x[node];
+                if ( neighbourCount > 0 ) 
+                {
+                    double sum = 0;
+                    for ( int j = start[node] ; j < start[node+1] ; j++ ) {
+                        sum += x[ neighbours[j] ];
+                    }
+                    desired = sum / neighbourCount;
+                    weight[i] = node >= nodes.size() ? DUMMY_WEIGHT : neighbourCount;
+                } else {
+                    weight[i] = 0.01;
+                }
+                target[i] = desired - offset;
+            }
+            
+            // blocks of pooled nodes
+            final double[] blockWeight = new double[ count ];
+            final double[] blockValue = new double[ count ];
+            final int[] blockEnd = new int[ count ];
+            int blocks = 0;
+            for ( int i = 0 ; i < count ; i++ ) 
+            {
+                blockWeight[blocks] = weight[i];
+                blockValue[blocks] = target[i];
+                blockEnd[blocks] = i;
+                blocks++;
+                while ( blocks > 1 && blockValue[blocks-2] > blockValue[blocks-1] ) 
+                {
+                    final double w = blockWeight[blocks-2] + blockWeight[blocks-1];
+                    blockValue[blocks-2] = ( blockValue[blocks-2]*blockWeight[blocks-2] + blockValue[blocks-1]*blockWeight[blocks-1] ) / w;
+                    blockWeight[blocks-2] = w;
+                    blockEnd[blocks-2] = blockEnd[blocks-1];
+                    blocks--;
+                }
+            }
+            
+            offset = 0;
+            int i = 0;
+            for ( int b = 0 ; b < blocks ; b++ ) 
+            {
+                for ( ; i <= blockEnd[b] ; i++ ) 
+                {
+                    if ( i > 0 ) {
+                        offset += getSeparation( nodesInLayer[i-1] , nodesInLayer[i] );
+                    }
+                    x[ nodesInLayer[i] ] = blockValue[b] + offset;
+                }
+            }
+        }
+        
+        private Layout createLayout() 
+        {
+            double maxX = 0;
+            for ( int i = 0 ; i < nodeCount ; i++ ) {
+                maxX = Math.max( maxX , x[i] + width[i]/2 );
+            }
+            for ( int i = 0 ; i < nodes.size() ; i++ ) 
+            {
+                final Node node = nodes.get(i);
+                node.x = x[i];
+                node.y = layerTop[ layer[i] ] + layerHeight[ layer[i] ] / 2;
+            }
+            
+            final List<Route> routes = new ArrayList<>( edges.size() + selfLoops.size() );
+            for ( int e = 0 ; e < edges.size() ; e++ ) 
+            {
+                final int[] chain = chains[e];
+                final double[] points = new double[ 4*chain.length - 4 ];
+                int p = 0;
+                final Node upper = nodes.get( chain[0] );
+                points[p++] = upper.x;
+                points[p++] = upper.y + upper.height/2;
+                for ( int i = 1 ; i < chain.length-1 ; i++ ) 
+                {
+                    final int l = layer[ chain[i] ];
+                    points[p++] = x[ chain[i] ];
+                    points[p++] = layerTop[l];
+                    points[p++] = x[ chain[i] ];
+                    points[p++] = layerTop[l] + layerHeight[l];
+                }
+                final Node lower = nodes.get( chain[ chain.length-1 ] );
+                points[p++] = lower.x;
+                points[p++] = lower.y - lower.height/2;
+                if ( reversed[e] ) {
+                    reversePoints( points );
+                }
+                routes.add( new Route( edges.get(e) , points ) );
+            }
+            for ( Edge edge : selfLoops ) 
+            {
+                final Node node = nodes.get( indices.get( edge.src ) );
+                final double right = node.x + node.width/2;
+                routes.add( new Route( edge , new double[] { right , node.y - node.height/4 , right , node.y + node.height/4 } ) );
+                maxX = Math.max( maxX , right + nodeSpacing );
+            }
+            
+            final double height = layerTop.length == 0 ? 2*margin : layerTop[ layerTop.length-1 ] + layerHeight[ layerHeight.length-1 ] + margin;
+            return new Layout( nodes , routes , maxX + margin , height );
+        }
+        
+        private void reversePoints(double[] points) 
+        {
+            for ( int i = 0 , j = points.length-2 ; i < j ; i += 2 , j -= 2 ) 
+            {
+                double tmp = points[i];
+                points[i] = points[j];
+                points[j] = tmp;
+                tmp = points[i+1];
+                points[i+1] = points[j+1];
+                points[j+1] = tmp;
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Index of method bodies that detects duplicate methods (for example , shaded or repackaged copies of the same library) , so
+ * that their control-flow graphs need to be analyzed and rendered only once.
+ * 
+ * <p>Methods are keyed by a SHA-1 hash over a normalized form of their byte-code: instructions and their operands are hashed by value
+ * (so constant pool layout does not matter), jump targets by instruction index, debug information (line numbers, local variable names, frames)
+ * is ignored , the declaring class itself is replaced by a placeholder and names of classes in the declaring class' package (or its sub-packages)
+ * are made relative to that package. Methods of shaded copies (that only differ in the package prefix all classes of the copied library share) 
+ * are thus considered duplicates , while classes outside the declaring class' package keep their fully-qualified names (so that 
+ * <code>java/util/Date</code> and <code>java/sql/Date</code> do not collide).</p>
+ * 
+ * <p>This class is not thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGrapher
+ */
+public class MethodBodyIndex<T>
+{
+    private static final Pattern CLASS_IN_DESCRIPTOR = Pattern.compile("L([^;<]+)([;<])");
+    
+    private final Map<String,T> entries = new HashMap<>();
+    private int lookups;
+    private int duplicates;
+    
+    /**
+     * Looks up a method body.
+     * 
+     * @param key key as returned by {@link #getKey(String, MethodNode)}
+     * @return value stored for the first method with this key or <code>null</code>
+     */
+    public T get(String key) 
+    {
+        lookups++;
+        final T result = entries.get( key );
+        if ( result != null ) {
+            duplicates++;
+        }
+        return result;
+    }
+    
+    /**
+     * Stores a value for a method body.
+     * 
+     * @param key key as returned by {@link #getKey(String, MethodNode)}
+     * @param value value to return for all duplicates , usually the analysis result or rendered output
+     */
+    public void put(String key,T value) {
+        entries.put( key , value );
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Returns the number of successful lookups.
+     * 
+     * @return
+     */
+    public int getDuplicateCount() {
+        return duplicates;
+    }
+    
+    public int getLookupCount() {
+        return lookups;
+    }
+    
+    /**
+     * Returns the normalized hash of a method's body.
+     * 
+     * @param owner internal name of the class that declares the method
+     * @param method
+     * @return hex-encoded hash
+     */
+    public static String getKey(String owner,MethodNode method) 
+    {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException( e ); // every JRE is required to support SHA-1
+        }
+        
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            new Normalizer( owner , method , new DataOutputStream( buffer ) ).write();
+        } 
+        catch (IOException e) {
+            throw new RuntimeException( e ); // cannot happen with a ByteArrayOutputStream
+        }
+        final byte[] hash = digest.digest( buffer.toByteArray() );
+        
+        final StringBuilder result = new StringBuilder( hash.length*2 );
+        for ( byte b : hash ) {
+            result.append( Character.forDigit( ( b >> 4 ) & 0x0f , 16 ) ).append( Character.forDigit( b & 0x0f , 16 ) );
+        }
+        return result.toString();
+    }
+    
+    private static final class Normalizer 
+    {
+        private final String owner;
+        // package of the owner including the trailing slash , empty for the default package
+        private final String ownerPackage;
+        private final MethodNode method;
+        private final DataOutputStream out;
+        // label -> index of the next instruction
+        private final Map<LabelNode,Integer> labels = new HashMap<>();
+        
+        public Normalizer(String owner,MethodNode method,DataOutputStream out)
+        {
+            this.owner = owner;
+            this.ownerPackage = owner.substring( 0 , owner.lastIndexOf('/') + 1 );
+            this.method = method;
+            this.out = out;
+        }
+        
+        @SuppressWarnings("unchecked")
+        public void write() throws IOException 
+        {
+            int index = 0;
+            for ( Iterator<AbstractInsnNode> it = method.instructions.iterator() ; it.hasNext() ; ) 
+            {
+                final AbstractInsnNode insn = it.next();
+                if ( insn instanceof LabelNode ) {
+                    labels.put( (LabelNode) insn , index );
+                } else if ( insn.getOpcode() != -1 ) {
+                    index++;
+                }
+            }
+            
+            for ( Iterator<AbstractInsnNode> it = method.instructions.iterator() ; it.hasNext() ; ) 
+            {
+                final AbstractInsnNode insn = it.next();
+                if ( insn.getOpcode() != -1 ) { // skip labels, line numbers and frames
+                    writeInstruction( insn );
+                }
+            }
+            for ( TryCatchBlockNode block : (Iterable<TryCatchBlockNode>) method.tryCatchBlocks ) 
+            {
+                out.writeInt( labels.get( block.start ) );
+                out.writeInt( labels.get( block.end ) );
+                out.writeInt( labels.get( block.handler ) );
+                out.writeUTF( block.type == null ? "" : normalizeClassName( block.type ) );
+            }
+        }
+        
+        private void writeInstruction(AbstractInsnNode insn) throws IOException 
+        {
+            out.writeByte( insn.getOpcode() );
+            switch( insn.getType() ) 
+            {
+                case AbstractInsnNode.INT_INSN:
+                    out.writeInt( ( (IntInsnNode) insn ).operand );
+                    break;
+                case AbstractInsnNode.VAR_INSN:
+                    out.writeInt( ( (VarInsnNode) insn ).var );
+                    break;
+                case AbstractInsnNode.TYPE_INSN:
+                    out.writeUTF( normalizeClassName( ( (TypeInsnNode) insn ).desc ) );
+                    break;
+                case AbstractInsnNode.FIELD_INSN:
+                    final FieldInsnNode field = (FieldInsnNode) insn;
+                    out.writeUTF( normalizeClassName( field.owner ) );
+                    out.writeUTF( field.name );
+                    out.writeUTF( normalizeDescriptor( field.desc ) );
+                    break;
+                case AbstractInsnNode.METHOD_INSN:
+                    final MethodInsnNode invocation = (MethodInsnNode) insn;
+                    out.writeUTF( normalizeClassName( invocation.owner ) );
+                    out.writeUTF( invocation.name );
+                    out.writeUTF( normalizeDescriptor( invocation.desc ) );
+                    break;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                    final InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) insn;
+                    out.writeUTF( indy.name );
+                    out.writeUTF( normalizeDescriptor( indy.desc ) );
+                    writeConstant( indy.bsm );
+                    out.writeInt( indy.bsmArgs.length );
+                    for ( Object arg : indy.bsmArgs ) {
+                        writeConstant( arg );
+                    }
+                    break;
+                case AbstractInsnNode.JUMP_INSN:
+                    out.writeInt( labels.get( ( (JumpInsnNode) insn ).label ) );
+                    break;
+                case AbstractInsnNode.LDC_INSN:
+                    writeConstant( ( (LdcInsnNode) insn ).cst );
+                    break;
+                case AbstractInsnNode.IINC_INSN:
+                    final IincInsnNode iinc = (IincInsnNode) insn;
+                    out.writeInt( iinc.var );
+                    out.writeInt( iinc.incr );
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    final TableSwitchInsnNode table = (TableSwitchInsnNode) insn;
+                    out.writeInt( table.min );
+                    out.writeInt( table.max );
+                    out.writeInt( labels.get( table.dflt ) );
+                    for ( Object label : table.labels ) {
+                        out.writeInt( labels.get( label ) );
+                    }
+                    break;
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    final LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) insn;
+                    out.writeInt( labels.get( lookup.dflt ) );
+                    out.writeInt( lookup.keys.size() );
+                    for ( int i = 0 ; i < lookup.keys.size() ; i++ ) 
+                    {
+                        out.writeInt( (Integer) lookup.keys.get( i ) );
+                        out.writeInt( labels.get( lookup.labels.get( i ) ) );
+                    }
+                    break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    final MultiANewArrayInsnNode array = (MultiANewArrayInsnNode) insn;
+                    out.writeUTF( normalizeDescriptor( array.desc ) );
+                    out.writeInt( array.dims );
+                    break;
+                default:
+                    // no operands
+            }
+        }
+        
+        private void writeConstant(Object cst) throws IOException 
+        {
+            if ( cst instanceof Type ) 
+            {
+                out.writeUTF( "T" );
+                out.writeUTF( normalizeDescriptor( ( (Type) cst ).getDescriptor() ) );
+            } 
+            else if ( cst instanceof Handle ) 
+            {
+                final Handle handle = (Handle) cst;
+                out.writeUTF( "H" );
+                out.writeInt( handle.getTag() );
+                out.writeUTF( normalizeClassName( handle.getOwner() ) );
+                out.writeUTF( handle.getName() );
+                out.writeUTF( normalizeDescriptor( handle.getDesc() ) );
+            } 
+            else 
+            {
+                // String, Integer, Long, Float, Double
+                out.writeUTF( cst.getClass().getSimpleName() );
+                out.writeUTF( cst.toString() );
+            }
+        }
+        
+        // internal name or array descriptor
+        private String normalizeClassName(String name) 
+        {
+            if ( name.startsWith("[") ) {
+                return normalizeDescriptor( name );
+            }
+            if ( name.equals( owner ) ) {
+                return "<this>";
+            }
+            final boolean inOwnerPackage = ownerPackage.isEmpty() ? name.indexOf('/') == -1 : name.startsWith( ownerPackage );
+            return inOwnerPackage ? "<package>/"+name.substring( ownerPackage.length() ) : name;
+        }
+        
+        private String normalizeDescriptor(String desc) 
+        {
+            final Matcher m = CLASS_IN_DESCRIPTOR.matcher( desc );
+            final StringBuffer result = new StringBuffer();
+            while ( m.find() ) {
+                m.appendReplacement( result , Matcher.quoteReplacement( "L"+normalizeClassName( m.group(1) )+m.group(2) ) );
+            }
+            m.appendTail( result );
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.controlflow.LayeredLayout.Layout;
+import de.codesourcery.asm.controlflow.LayeredLayout.Node;
+import de.codesourcery.asm.controlflow.LayeredLayout.Route;
+
+/**
+ * Renders control-flow graphs as SVG , using {@link LayeredLayout} instead of Graphviz.
+ * 
+ * <p>Subclasses may add SVG attributes to nodes and edges by overriding {@link #getNodeAttributes(ControlFlowGraph, IBlock)}
+ * and {@link #getEdgeAttributes(ControlFlowGraph, Edge)}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see DOTRenderer
+ */
+public class SVGRenderer
+{
+    private final LayeredLayout layout;
+    
+    public SVGRenderer() {
+        this( new LayeredLayout() );
+    }
+    
+    public SVGRenderer(LayeredLayout layout) {
+        this.layout = layout;
+    }
+    
+    public String render(ControlFlowGraph graph) 
+    {
+        final Layout result = layout.layout( graph );
+        final double fontSize = layout.getLineHeight() * 0.8;
+        
+        final StringBuilder svg = new StringBuilder();
+        svg.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\""+format( result.width )+"\" height=\""+format( result.height )+
+                "\" viewBox=\"0 0 "+format( result.width )+" "+format( result.height )+"\" font-family=\"monospace\" font-size=\""+format( fontSize )+"\">\n");
+        svg.append("  <title>"+escape( graph.getMethod().name )+"()</title>\n");
+        svg.append("  <defs>\n");
+        svg.append("    <marker id=\"arrow\" viewBox=\"0 0 10 10\" refX=\"10\" refY=\"5\" markerWidth=\"8\" markerHeight=\"8\" orient=\"auto\">");
+        svg.append("<path d=\"M0,0 L10,5 L0,10 z\" fill=\"black\"/></marker>\n");
+        svg.append("  </defs>\n");
+        svg.append("  <rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+        
+        for ( Node node : result.nodes ) 
+        {
+            final List<String> attributes = getNodeAttributes( graph , node.block );
+            final String style = attributes.isEmpty() ? "" : " "+StringUtils.join( attributes , " " );
+            if ( node.ellipse ) {
+                svg.append("  <ellipse cx=\""+format( node.x )+"\" cy=\""+format( node.y )+"\" rx=\""+format( node.width/2 )+"\" ry=\""+format( node.height/2 )+"\""+style+"/>\n");
+            } else {
+                svg.append("  <rect x=\""+format( node.x - node.width/2 )+"\" y=\""+format( node.y - node.height/2 )+
+                        "\" width=\""+format( node.width )+"\" height=\""+format( node.height )+"\""+style+"/>\n");
+            }
+            
+            final double textX = node.ellipse ? node.x : node.x - node.width/2 + layout.getPadding();
+            double textY = node.y - ( node.lines.length * layout.getLineHeight() ) / 2 + fontSize;
+            svg.append("  <text"+( node.ellipse ? " text-anchor=\"middle\"" : "" )+" xml:space=\"preserve\">");
+            for ( String line : node.lines ) 
+            {
+                svg.append("<tspan x=\""+format( textX )+"\" y=\""+format( textY )+"\">"+escape( line )+"</tspan>");
+                textY += layout.getLineHeight();
+            }
+            svg.append("</text>\n");
+        }
+        
+        for ( Route route : result.routes ) 
+        {
+            final double[] p = route.points;
+            final StringBuilder path = new StringBuilder();
+            if ( route.isSelfLoop() ) 
+            {
+                final double bulge = 3 * layout.getPadding() + 10;
+                path.append("M"+format( p[0] )+","+format( p[1] )+" C"+format( p[0] + bulge )+","+format( p[1] - bulge/2 )+" "+
+                        format( p[2] + bulge )+","+format( p[3] + bulge/2 )+" "+format( p[2] )+","+format( p[3] ) );
+            } 
+            else 
+            {
+                for ( int i = 0 ; i < p.length ; i += 2 ) {
+                    path.append( i == 0 ? "M" : " L" ).append( format( p[i] ) ).append(',').append( format( p[i+1] ) );
+                }
+            }
+            final List<String> attributes = getEdgeAttributes( graph , route.edge );
+            svg.append("  <path d=\""+path+"\" fill=\"none\" marker-end=\"url(#arrow)\" "+StringUtils.join( attributes , " " )+"/>\n");
+            
+            final String label = DOTRenderer.getEdgeLabel( route.edge );
+            if ( label != null ) 
+            {
+                // next to the middle of the route
+                final int mid = ( p.length / 4 ) * 2;
+                final double labelX = route.isSelfLoop() ? p[0] + 3 * layout.getPadding() + 10 : ( p[mid-2] + p[mid] ) / 2;
+                final double labelY = route.isSelfLoop() ? ( p[1] + p[3] ) / 2 : ( p[mid-1] + p[mid+1] ) / 2;
+                svg.append("  <text x=\""+format( labelX + 4 )+"\" y=\""+format( labelY )+"\" font-size=\""+format( fontSize * 0.85 )+"\">"+escape( label )+"</text>\n");
+            }
+        }
+        svg.append("</svg>\n");
+        return svg.toString();
+    }
+    
+    /**
+     * Returns the SVG attributes of a node.
+     * 
+     * @param graph
+     * @param block
+     * @return mutable list of attributes (<code>name="value"</code>)
+     */
+    protected List<String> getNodeAttributes(ControlFlowGraph graph,IBlock block) 
+    {
+        final List<String> result = new ArrayList<>();
+        result.add( "fill=\"white\"" );
+        result.add( "stroke=\"black\"" );
+        return result;
+    }
+    
+    /**
+     * Returns the SVG attributes of an edge.
+     * 
+     * @param graph
+     * @param edge
+     * @return mutable list of attributes (<code>name="value"</code>)
+     */
+    protected List<String> getEdgeAttributes(ControlFlowGraph graph,Edge edge) 
+    {
+        final List<String> result = new ArrayList<>();
+        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+            result.add( "stroke-dasharray=\"2,3\"" );
+        } 
+        else if ( edge.hasType( EdgeType.TABLE_SWITCH) || edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
+            result.add( "stroke-dasharray=\"6,3\"" );
+        }
+        result.add( edge.hasType( EdgeType.LOOKUP_SWITCH ) ? "stroke=\"red\"" : "stroke=\"black\"" );
+        return result;
+    }
+    
+    // one decimal , String.format() is too slow for graphs with thousands of blocks
+    private static String format(double value) 
+    {
+        final long tenths = Math.round( value * 10 );
+        final long abs = Math.abs( tenths );
+        return ( tenths < 0 ? "-" : "" ) + ( abs / 10 ) + "." + ( abs % 10 );
+    }
+    
+    private static String escape(String s) 
+    {
+        final StringBuilder result = new StringBuilder( s.length() );
+        for ( int i = 0 ; i < s.length() ; i++ ) 
+        {
+            final char c = s.charAt( i );
+            switch( c ) 
+            {
+                case '&': result.append("&amp;"); break;
+                case '<': result.append("&lt;"); break;
+                case '>': result.append("&gt;"); break;
+                case '"': result.append("&quot;"); break;
+                default:
+                    if ( c < 0x20 || ( c >= 0xd800 && c <= 0xdfff ) || c >= 0xfffe ) { // not allowed in XML 1.0 , string constants may contain anything
+                        result.append( String.format( "\\u%04x" , (int) c ) );
+                    } else {
+                        result.append( c );
+                    }
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.controlflow.GraphSummary.Cluster;
+
+/**
+ * Renders a {@link GraphSummary} in graphviz DOT format.
+ * 
+ * <p>Visible blocks are rendered by a {@link DOTRenderer} , collapsed clusters are rendered as a single node 
+ * and expanded clusters as a graphviz subgraph. Edges between the same pair of nodes that start or end at a collapsed cluster 
+ * are merged into a single edge , edges inside a collapsed cluster are omitted.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see GraphSummary#collapse(int)
+ */
+public class SummaryDOTRenderer
+{
+    private final int nodeBudget;
+    private final DOTRenderer blockRenderer;
+    
+    /**
+     * Create instance.
+     * 
+     * @param nodeBudget max. number of nodes to render (see {@link GraphSummary#collapse(int)})
+     */
+    public SummaryDOTRenderer(int nodeBudget) 
+    {
+        this( nodeBudget , new DOTRenderer() );
+    }
+    
+    /**
+     * Create instance.
+     * 
+     * @param nodeBudget max. number of nodes to render (see {@link GraphSummary#collapse(int)})
+     * @param blockRenderer renderer used for visible blocks and edges between them
+     */
+    public SummaryDOTRenderer(int nodeBudget,DOTRenderer blockRenderer) 
+    {
+        if ( nodeBudget < 3 ) {
+            throw new IllegalArgumentException("Node budget must be >= 3");
+        }
+        if ( blockRenderer == null ) {
+            throw new IllegalArgumentException("blockRenderer must not be NULL");
+        }
+        this.nodeBudget = nodeBudget;
+        this.blockRenderer = blockRenderer;
+    }
+    
+    /**
+     * Summarizes and renders a graph.
+     * 
+     * @param graph
+     * @return
+     */
+    public String render(ControlFlowGraph graph) 
+    {
+        final GraphSummary summary = new GraphSummary( graph );
+        summary.collapse( nodeBudget );
+        return render( summary );
+    }
+    
+    /**
+     * Renders a summary as-is , without collapsing any clusters.
+     * 
+     * @param summary
+     * @return
+     */
+    public String render(GraphSummary summary) 
+    {
+        final ControlFlowGraph graph = summary.getGraph();
+        blockRenderer.beginRender( graph );
+        try {
+            return doRender( summary , graph );
+        } 
+        finally {
+            blockRenderer.endRender();
+        }
+    }
+    
+    private String doRender(GraphSummary summary,ControlFlowGraph graph) 
+    {
+        final StringBuilder result = new StringBuilder( "digraph \""+DOTRenderer.mangleNodeName( graph.getMethod().name )+"()\" {\n" );
+        
+        for ( IBlock block : summary.getBlocks() ) {
+            renderBlock( graph , block , "    " , result );
+        }
+        for ( Cluster cluster : summary.getClusters() ) {
+            renderCluster( graph , cluster , "    " , result );
+        }
+        
+        // edges touching a collapsed cluster , by source and destination node
+        final Map<String,int[]> merged = new LinkedHashMap<>();
+        for ( IBlock block : summary.getAllBlocks() ) 
+        {
+            final Cluster srcCluster = summary.getCollapsedCluster( block );
+            for ( Edge edge : block.getEdges() ) 
+            {
+                if ( ! edge.isSuccessor( block ) ) {
+                    continue;
+                }
+                final Cluster dstCluster = summary.getCollapsedCluster( edge.dst );
+                if ( srcCluster == null && dstCluster == null ) 
+                {
+                    result.append( "    "+blockRenderer.getEdgeStatement( graph , edge , getNodeName( block ) , getNodeName( edge.dst ) )+"\n" );
+                    continue;
+                }
+                if ( srcCluster == dstCluster ) {
+                    continue;
+                }
+                final String src = srcCluster != null ? getNodeName( srcCluster ) : getNodeName( block );
+                final String dst = dstCluster != null ? getNodeName( dstCluster ) : getNodeName( edge.dst );
+                final String key = src+" -> "+dst;
+                int[] counts = merged.get( key );
+                if ( counts == null ) {
+                    counts = new int[2];
+                    merged.put( key , counts );
+                }
+                counts[0]++;
+                if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                    counts[1]++;
+                }
+            }
+        }
+        for ( Map.Entry<String,int[]> entry : merged.entrySet() ) 
+        {
+            final int[] counts = entry.getValue();
+            final List<String> attributes = new ArrayList<>();
+            if ( counts[0] == counts[1] ) {
+                attributes.add( "style=dotted" );
+            }
+            if ( counts[0] > 1 ) {
+                attributes.add( "label=\"x"+counts[0]+"\"" );
+            }
+            final String style = attributes.isEmpty() ? "" : "["+StringUtils.join( attributes , "," )+"]";
+            result.append( "    "+entry.getKey()+" "+style+"\n" );
+        }
+        result.append("}");
+        return result.toString();
+    }
+    
+    private void renderBlock(ControlFlowGraph graph,IBlock block,String indent,StringBuilder result) 
+    {
+        final String node = blockRenderer.getNodeStatement( graph , block );
+        if ( node != null ) {
+            result.append( indent+node+"\n" );
+        }
+    }
+    
+    private void renderCluster(ControlFlowGraph graph,Cluster cluster,String indent,StringBuilder result) 
+    {
+        if ( cluster.isCollapsed() ) 
+        {
+            result.append( indent+getNodeName( cluster )+" [shape=box3d,style=filled,fillcolor=lightgrey,label=\""+getLabel( graph , cluster )+"\"]\n" );
+            return;
+        }
+        result.append( indent+"subgraph cluster_"+cluster.getId()+" {\n" );
+        result.append( indent+"    label=\""+getTitle( cluster )+"\";\n" );
+        result.append( indent+"    style=dashed;\n" );
+        for ( IBlock block : cluster.getBlocks() ) {
+            renderBlock( graph , block , indent+"    " , result );
+        }
+        for ( Cluster child : cluster.getChildren() ) {
+            renderCluster( graph , child , indent+"    " , result );
+        }
+        result.append( indent+"}\n" );
+    }
+    
+    private static String getTitle(Cluster cluster) {
+        return cluster.getKind().name().toLowerCase()+" #"+cluster.getId()+" ("+cluster.getSize()+" blocks)";
+    }
+    
+    private static String getLabel(ControlFlowGraph graph,Cluster cluster) 
+    {
+        final int[] range = { Integer.MAX_VALUE , Integer.MIN_VALUE };
+        getInstructionRange( cluster , range );
+        
+        final StringBuilder label = new StringBuilder( getTitle( cluster ) ).append( "\\l" );
+        label.append( "instructions "+range[0]+" - "+range[1]+"\\l" );
+        final String entry = cluster.getEntry().disassemble( graph.getMethod() , false , true );
+        final int end = entry.indexOf( '\n' );
+        label.append( "entry: "+( end != -1 ? entry.substring( 0 , end ) : entry ).replace("\"" , "\\\"")+"\\l" );
+        return label.toString();
+    }
+    
+    private static void getInstructionRange(Cluster cluster,int[] range) 
+    {
+        for ( IBlock block : cluster.getBlocks() ) 
+        {
+            for ( int num : block.getInstructionNums() ) 
+            {
+                range[0] = Math.min( range[0] , num );
+                range[1] = Math.max( range[1] , num );
+            }
+        }
+        for ( Cluster child : cluster.getChildren() ) {
+            getInstructionRange( child , range );
+        }
+    }
+    
+    private static String getNodeName(IBlock block) {
+        return DOTRenderer.mangleNodeName( block.getId() );
+    }
+    
+    private static String getNodeName(Cluster cluster) {
+        return "cluster"+cluster.getId();
+    }
+}
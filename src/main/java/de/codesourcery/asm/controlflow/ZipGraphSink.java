@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams all files into a single ZIP archive , avoiding the file system overhead of creating
+ * one small file per method.
+ * 
+ * <p>Files are handed over to a worker thread that compresses them (if enabled) and appends them to the archive
+ * through a single buffered stream , so analysis and rendering of the next method overlap with compression and I/O.
+ * The archive's central directory allows random access to individual entries (see {@link GraphArchive}).</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ZipGraphSink implements IGraphSink
+{
+    private static final int QUEUE_SIZE = 1024;
+    private static final int BUFFER_SIZE = 1024*1024;
+    
+    private static final Entry END = new Entry( null , null );
+    
+    private final File file;
+    private final boolean compress;
+    private final ZipOutputStream out;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>( QUEUE_SIZE );
+    private final Thread worker;
+    
+    private volatile IOException error;
+    private boolean closed;
+    
+    private static final class Entry 
+    {
+        public final String path;
+        public final byte[] data;
+        
+        public Entry(String path, byte[] data)
+        {
+            this.path = path;
+            this.data = data;
+        }
+    }
+    
+    /**
+     * Creates (or overwrites) an archive.
+     * 
+     * @param file
+     * @param compress whether to deflate entries , otherwise entries are stored uncompressed
+     * @throws IOException
+     */
+    public ZipGraphSink(File file,boolean compress) throws IOException 
+    {
+        this.file = file;
+        this.compress = compress;
+        if ( file.getAbsoluteFile().getParentFile() != null && ! file.getAbsoluteFile().getParentFile().exists() ) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        this.out = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( file ) , BUFFER_SIZE ) );
+        
+        worker = new Thread("graph-archive-writer") {
+            
+            @Override
+            public void run()
+            {
+                writeEntries();
+            }
+        };
+        worker.setDaemon( true );
+        worker.start();
+    }
+    
+    @Override
+    public void write(String path, String content) throws IOException
+    {
+        if ( closed ) {
+            throw new IllegalStateException("Archive already closed: "+file.getAbsolutePath());
+        }
+        checkError();
+        put( new Entry( path , content.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+    
+    private void put(Entry entry) throws InterruptedIOException 
+    {
+        try {
+            queue.put( entry );
+        } 
+        catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to "+file.getAbsolutePath());
+        }
+    }
+    
+    private void checkError() throws IOException 
+    {
+        if ( error != null ) {
+            throw new IOException("Failed to write "+file.getAbsolutePath(), error );
+        }
+    }
+    
+    // runs on the worker thread , the only thread that touches the ZipOutputStream
+    private void writeEntries() 
+    {
+        final CRC32 crc = new CRC32();
+        try 
+        {
+            while ( true ) 
+            {
+                final Entry entry = queue.take();
+                if ( entry == END ) {
+                    break;
+                }
+                if ( error != null ) { // keep draining the queue so writers never block
+                    continue;
+                }
+                try 
+                {
+                    final ZipEntry zipEntry = new ZipEntry( entry.path );
+                    if ( ! compress ) 
+                    {
+                        crc.reset();
+                        crc.update( entry.data );
+                        zipEntry.setMethod( ZipEntry.STORED );
+                        zipEntry.setSize( entry.data.length );
+                        zipEntry.setCompressedSize( entry.data.length );
+                        zipEntry.setCrc( crc.getValue() );
+                    }
+                    out.putNextEntry( zipEntry );
+                    out.write( entry.data );
+                    out.closeEntry();
+                } 
+                catch(IOException e) {
+                    error = e;
+                }
+            }
+        } 
+        catch (InterruptedException e) {
+            error = new InterruptedIOException("Writer thread interrupted");
+        } 
+        finally 
+        {
+            try {
+                out.close();
+            } 
+            catch (IOException e) 
+            {
+                if ( error == null ) {
+                    error = e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        put( END );
+        try {
+            worker.join();
+        } 
+        catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing "+file.getAbsolutePath());
+        }
+        checkError();
+    }
+    
+    @Override
+    public String toString() {
+        return file.getAbsolutePath();
+    }
+}
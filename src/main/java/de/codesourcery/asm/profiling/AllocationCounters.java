@@ -0,0 +1,240 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Counts executed allocation sites (<code>NEW</code>, <code>NEWARRAY</code>, <code>ANEWARRAY</code> and <code>MULTIANEWARRAY</code>).
+ * 
+ * <p>{@link ProfilingRewriter} registers each basic block that contains allocation sites along with the sites it contains and
+ * inserts a single probe per block that increments the block's execution counter. The number of times a site got executed
+ * (and the estimated number of bytes it allocated) is derived from the execution count of its block when reporting, 
+ * so a site that is skipped because an exception got thrown earlier in the same block is still counted.</p>
+ * 
+ * <p>Like {@link LiveCounters} , counters are updated without synchronization and concurrent updates may get lost.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setAllocationCounting(boolean)
+ */
+public final class AllocationCounters
+{
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    // block execution counters , grown in chunks so that counters never move
+    private static volatile long[][] chunks = new long[0][];
+    
+    // guarded by AllocationCounters.class
+    private static final List<Block> blocks = new ArrayList<>();
+    
+    /**
+     * An allocation site.
+     */
+    public static final class Site 
+    {
+        public final String className;
+        public final String methodName;
+        public final String methodDesc;
+        public final int lineNumber;
+        /**
+         * Name of the allocated type (like <code>java.lang.String</code> or <code>int[]</code>).
+         */
+        public final String type;
+        /**
+         * Estimated number of bytes allocated per execution.
+         */
+        public final long size;
+        /**
+         * Whether {@link #size} is exact (modulo object layout details) or just a lower bound 
+         * (array with non-constant length or class file of the allocated type not available).
+         */
+        public final boolean sizeKnown;
+        
+        public Site(String className, String methodName, String methodDesc, int lineNumber, String type, long size, boolean sizeKnown)
+        {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.lineNumber = lineNumber;
+            this.type = type;
+            this.size = size;
+            this.sizeKnown = sizeKnown;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "new "+type+" in "+className.replace('/','.')+"#"+methodName+methodDesc+( lineNumber != -1 ? " (line "+lineNumber+")" : "" );
+        }
+    }
+    
+    private static final class Block 
+    {
+        public final int index;
+        public final String className;
+        public final String methodName;
+        public final String methodDesc;
+        public final int instructionNum;
+        public final List<Site> sites;
+        
+        public Block(int index,String className, String methodName, String methodDesc, int instructionNum, List<Site> sites)
+        {
+            this.index = index;
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.instructionNum = instructionNum;
+            this.sites = sites;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return className.replace('/','.')+"#"+methodName+methodDesc+" , block @ instruction "+instructionNum+" ("+sites.size()+" sites)";
+        }
+    }
+    
+    // execution count and estimated bytes of a site or block
+    private static final class Count<T> 
+    {
+        public final T item;
+        public final long count;
+        public final long bytes;
+        public final boolean sizeKnown;
+        
+        public Count(T item, long count, long bytes, boolean sizeKnown)
+        {
+            this.item = item;
+            this.count = count;
+            this.bytes = bytes;
+            this.sizeKnown = sizeKnown;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return ( sizeKnown ? "" : ">=" )+bytes+"\t"+count+"\t"+item;
+        }
+    }
+    
+    private AllocationCounters() {
+    }
+    
+    /**
+     * Registers a block.
+     * 
+     * @param className
+     * @param methodName
+     * @param methodDesc
+     * @param instructionNum index of the block's first instruction
+     * @param sites allocation sites in the block
+     * @return counter index to pass to {@link #add(int)}
+     */
+    public static synchronized int register(String className,String methodName,String methodDesc,int instructionNum,List<Site> sites)
+    {
+        final int index = blocks.size();
+        blocks.add( new Block( index , className , methodName , methodDesc , instructionNum , new ArrayList<>( sites ) ) );
+        
+        final long[][] current = chunks;
+        final int chunk = index >>> CHUNK_BITS;
+        if ( chunk >= current.length ) 
+        {
+            final long[][] grown = new long[ chunk + 1 ][];
+            System.arraycopy( current , 0 , grown , 0 , current.length );
+            grown[ chunk ] = new long[ CHUNK_SIZE ];
+            chunks = grown;
+        }
+        return index;
+    }
+    
+    /**
+     * Invoked by generated byte-code at the start of a block that contains allocation sites.
+     * 
+     * @param index counter index as returned by {@link #register(String, String, String, int, List)}
+     */
+    public static void add(int index) {
+        chunks[ index >>> CHUNK_BITS ][ index & ( CHUNK_SIZE - 1 ) ]++;
+    }
+    
+    private static long getCount(Block block) {
+        // scale by sampling interval in case methods got rewritten in sampling mode
+        return chunks[ block.index >>> CHUNK_BITS ][ block.index & ( CHUNK_SIZE - 1 ) ] * Sampler.getInterval();
+    }
+    
+    /**
+     * Prints the allocation sites and blocks that allocated the most bytes.
+     * 
+     * @param out
+     * @param top max. number of sites / blocks to print
+     */
+    public static void printReport(PrintStream out,int top)
+    {
+        final List<Block> registered;
+        synchronized( AllocationCounters.class ) {
+            registered = new ArrayList<>( blocks );
+        }
+        
+        final List<Count<Site>> sites = new ArrayList<>();
+        final List<Count<Block>> blockCounts = new ArrayList<>();
+        for ( Block block : registered ) 
+        {
+            final long count = getCount( block );
+            if ( count == 0 ) {
+                continue;
+            }
+            long bytes = 0;
+            boolean sizeKnown = true;
+            for ( Site site : block.sites ) 
+            {
+                sites.add( new Count<>( site , count , count * site.size , site.sizeKnown ) );
+                bytes += count * site.size;
+                sizeKnown &= site.sizeKnown;
+            }
+            blockCounts.add( new Count<>( block , count , bytes , sizeKnown ) );
+        }
+        
+        final Comparator<Count<?>> byBytes = new Comparator<Count<?>>() {
+
+            @Override
+            public int compare(Count<?> o1, Count<?> o2)
+            {
+                final int result = Long.compare( o2.bytes , o1.bytes );
+                return result != 0 ? result : Long.compare( o2.count , o1.count );
+            }
+        };
+        Collections.sort( sites , byBytes );
+        Collections.sort( blockCounts , byBytes );
+        
+        out.println("=== Top allocation sites ===");
+        out.println("bytes\tcount\tsite");
+        for ( Count<Site> site : sites.subList( 0 , Math.min( top , sites.size() ) ) ) {
+            out.println( site );
+        }
+        
+        out.println("=== Top allocating blocks ===");
+        out.println("bytes\tcount\tblock");
+        for ( Count<Block> block : blockCounts.subList( 0 , Math.min( top , blockCounts.size() ) ) ) {
+            out.println( block );
+        }
+    }
+}
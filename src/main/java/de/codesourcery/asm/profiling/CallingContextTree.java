@@ -0,0 +1,329 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Per-thread calling-context tree (CCT) that attributes executed instructions to call chains.
+ * 
+ * <p>Instrumented methods invoke {@link #enter(int)} in their prologue (storing the returned node in a local variable),
+ * {@link #exit(int)} right before returning and {@link #resume(int)} at the start of exception handlers (the latter
+ * re-synchronizes the tree's cursor after an exception unwound instrumented methods without them returning normally).
+ * {@link StatisticsManager#account()} charges instructions to the current node.</p>
+ * 
+ * <p>Each thread's tree is stored in parallel arrays (children are kept in singly-linked sibling lists) , so once a thread
+ * has visited all of its call chains , entering , leaving and charging nodes does not allocate any memory.</p>
+ * 
+ * <p>{@link #writeCollapsedStacks(PrintWriter)} writes the merged trees of all threads in the 'collapsed stack' format expected by 
+ * flame graph tools (<code>frame1;frame2;frame3 count</code>).</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setCallingContextProfiling(boolean)
+ */
+public final class CallingContextTree
+{
+    private static final int ROOT = 0;
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private static volatile boolean enabled = false;
+    
+    // guarded by CallingContextTree.class
+    private static final List<String> methodNames = new ArrayList<>();
+    private static final Map<String,Integer> methodIds = new HashMap<>();
+    private static final List<CallingContextTree> trees = new ArrayList<>();
+    
+    private static final ThreadLocal<CallingContextTree> currentTree = new ThreadLocal<CallingContextTree>() 
+    {
+        @Override
+        protected CallingContextTree initialValue()
+        {
+            final CallingContextTree result = new CallingContextTree( Thread.currentThread().getName() );
+            synchronized( CallingContextTree.class ) {
+                trees.add( result );
+            }
+            return result;
+        }
+    };
+    
+    private final String threadName;
+    
+    // node data , index 0 is the root node
+    private int[] method = new int[ INITIAL_CAPACITY ];
+    private int[] parent = new int[ INITIAL_CAPACITY ];
+    private int[] firstChild = new int[ INITIAL_CAPACITY ];
+    private int[] nextSibling = new int[ INITIAL_CAPACITY ];
+    private long[] instructions = new long[ INITIAL_CAPACITY ];
+    private int size = 1;
+    
+    private int current = ROOT;
+    
+    private CallingContextTree(String threadName) 
+    {
+        this.threadName = threadName;
+        method[ ROOT ] = -1;
+        firstChild[ ROOT ] = -1;
+        nextSibling[ ROOT ] = -1;
+    }
+    
+    public static void setEnabled(boolean enabled) {
+        CallingContextTree.enabled = enabled;
+    }
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Registers a method.
+     * 
+     * <p>Overloaded methods are distinguished by their parameter types , the method's frame 
+     * is named like <code>com.acme.Foo.bar(int,java.lang.String[])</code>.</p>
+     * 
+     * @param className
+     * @param methodName
+     * @param methodDesc method descriptor
+     * @return method ID to pass to {@link #enter(int)}
+     */
+    public static synchronized int registerMethod(String className,String methodName,String methodDesc) 
+    {
+        final String name = className.replace('/','.')+"."+methodName+getParameterList( methodDesc );
+        Integer id = methodIds.get( name );
+        if ( id == null ) 
+        {
+            id = methodNames.size();
+            methodNames.add( name );
+            methodIds.put( name , id );
+        }
+        return id;
+    }
+    
+    // converts a method descriptor into a Java-style parameter list , collapsed stacks use ';' as frame separator
+    private static String getParameterList(String methodDesc) 
+    {
+        final StringBuilder result = new StringBuilder("(");
+        int i = 1; // skip '('
+        while ( methodDesc.charAt( i ) != ')' ) 
+        {
+            int dimensions = 0;
+            while ( methodDesc.charAt( i ) == '[' ) {
+                dimensions++;
+                i++;
+            }
+            final String type;
+            switch( methodDesc.charAt( i ) ) 
+            {
+                case 'Z': type = "boolean"; break;
+                case 'B': type = "byte"; break;
+                case 'C': type = "char"; break;
+                case 'S': type = "short"; break;
+                case 'I': type = "int"; break;
+                case 'J': type = "long"; break;
+                case 'F': type = "float"; break;
+                case 'D': type = "double"; break;
+                case 'L':
+                    final int end = methodDesc.indexOf( ';' , i );
+                    type = methodDesc.substring( i + 1 , end ).replace('/','.');
+                    i = end;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid method descriptor: "+methodDesc);
+            }
+            i++;
+            if ( result.length() > 1 ) {
+                result.append(",");
+            }
+            result.append( type );
+            for ( int j = 0 ; j < dimensions ; j++ ) {
+                result.append("[]");
+            }
+        }
+        return result.append(")").toString();
+    }
+    
+    /**
+     * Invoked by generated byte-code in method prologues.
+     * 
+     * @param methodId
+     * @return the node that is now the current node
+     */
+    public static int enter(int methodId) 
+    {
+        final CallingContextTree tree = currentTree.get();
+        final int node = tree.getChild( tree.current , methodId );
+        tree.current = node;
+        return node;
+    }
+    
+    /**
+     * Invoked by generated byte-code right before returning from a method.
+     * 
+     * @param node node returned by {@link #enter(int)}
+     */
+    public static void exit(int node) 
+    {
+        final CallingContextTree tree = currentTree.get();
+        tree.current = tree.parent[ node ];
+    }
+    
+    /**
+     * Invoked by generated byte-code at the start of exception handlers.
+     * 
+     * @param node node returned by {@link #enter(int)}
+     */
+    public static void resume(int node) {
+        currentTree.get().current = node;
+    }
+    
+    /**
+     * Charges instructions to the current node of the current thread.
+     * 
+     * @param instructionCount
+     */
+    public static void account(long instructionCount) 
+    {
+        final CallingContextTree tree = currentTree.get();
+        tree.instructions[ tree.current ] += instructionCount;
+    }
+    
+    private int getChild(int node,int methodId) 
+    {
+        int previous = -1;
+        for ( int child = firstChild[ node ] ; child != -1 ; child = nextSibling[ child ] ) 
+        {
+            if ( method[ child ] == methodId ) 
+            {
+                if ( previous != -1 ) 
+                {
+                    // move to front , recently called methods are likely to be called again
+                    nextSibling[ previous ] = nextSibling[ child ];
+                    nextSibling[ child ] = firstChild[ node ];
+                    firstChild[ node ] = child;
+                }
+                return child;
+            }
+            previous = child;
+        }
+        return addChild( node , methodId );
+    }
+    
+    private int addChild(int node,int methodId) 
+    {
+        if ( size == method.length ) 
+        {
+            final int newCapacity = 2 * size;
+            method = Arrays.copyOf( method , newCapacity );
+            parent = Arrays.copyOf( parent , newCapacity );
+            firstChild = Arrays.copyOf( firstChild , newCapacity );
+            nextSibling = Arrays.copyOf( nextSibling , newCapacity );
+            instructions = Arrays.copyOf( instructions , newCapacity );
+        }
+        final int child = size++;
+        method[ child ] = methodId;
+        parent[ child ] = node;
+        firstChild[ child ] = -1;
+        nextSibling[ child ] = firstChild[ node ];
+        firstChild[ node ] = child;
+        return child;
+    }
+    
+    /**
+     * Writes the collapsed stacks of all threads to a file.
+     * 
+     * @param file
+     * @param perThread whether to use the thread name as the root frame instead of merging all threads
+     * @throws IOException
+     */
+    public static void writeCollapsedStacks(File file,boolean perThread) throws IOException 
+    {
+        try ( PrintWriter writer = new PrintWriter( file , "UTF-8" ) ) 
+        {
+            writeCollapsedStacks( writer , perThread );
+            if ( writer.checkError() ) {
+                throw new IOException("Failed to write "+file.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Writes the collapsed stacks of all threads.
+     * 
+     * <p>Trees of running threads are read without synchronization , so counts may be slightly off.</p>
+     * 
+     * @param writer
+     * @param perThread whether to use the thread name as the root frame instead of merging all threads
+     */
+    public static void writeCollapsedStacks(PrintWriter writer,boolean perThread) 
+    {
+        final List<CallingContextTree> snapshot;
+        final String[] names;
+        synchronized( CallingContextTree.class ) 
+        {
+            snapshot = new ArrayList<>( trees );
+            names = methodNames.toArray( new String[ methodNames.size() ] );
+        }
+        
+        final Map<String,Long> stacks = new TreeMap<>();
+        for ( CallingContextTree tree : snapshot ) {
+            tree.collectStacks( names , perThread ? tree.threadName.replace(';',':') : null , stacks );
+        }
+        for ( Map.Entry<String,Long> entry : stacks.entrySet() ) {
+            writer.println( entry.getKey()+" "+entry.getValue() );
+        }
+        writer.flush();
+    }
+    
+    // root frame is NULL when merging all threads
+    private void collectStacks(String[] names,String rootFrame,Map<String,Long> stacks) 
+    {
+        // read arrays before size, arrays only grow
+        final int[] method = this.method;
+        final int[] parent = this.parent;
+        final long[] instructions = this.instructions;
+        final int size = Math.min( this.size , Math.min( method.length , instructions.length ) );
+        
+        final String[] paths = new String[ size ];
+        paths[ ROOT ] = rootFrame;
+        for ( int node = 1 ; node < size ; node++ ) // parents always have a lower index than their children
+        {
+            final int methodId = method[ node ];
+            final String name = methodId < names.length ? names[ methodId ] : "<unknown>";
+            final String parentPath = paths[ parent[ node ] ];
+            paths[ node ] = parentPath == null ? name : parentPath+";"+name;
+        }
+        for ( int node = 0 ; node < size ; node++ ) 
+        {
+            final long count = instructions[ node ];
+            if ( count > 0 ) 
+            {
+                // instructions charged to the root node were executed outside of any instrumented method (in a constructor before the super constructor call , for example)
+                final String path = paths[ node ] == null ? "<root>" : paths[ node ];
+                final Long existing = stacks.get( path );
+                stacks.put( path , existing == null ? count : existing + count );
+            }
+        }
+    }
+}
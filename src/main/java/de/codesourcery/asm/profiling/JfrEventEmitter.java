@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import de.codesourcery.asm.profiling.LiveCounterReader.MethodCounter;
+
+/**
+ * Background thread that periodically turns instruction counts into JDK Flight Recorder events.
+ * 
+ * <p>Per-thread deltas are taken from {@link StatisticsManager}, per-method deltas from the block table and 
+ * counters of a {@link LiveCounters} file (only if live counters are enabled). Probes in instrumented code are not changed at all, 
+ * all work happens on the emitter thread and is skipped while no JFR recording has the events enabled.</p>
+ * 
+ * <p>This class (and the event classes) must only be loaded on JVMs that ship with JFR.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ThreadInstructionsEvent
+ * @see MethodInstructionsEvent
+ */
+public class JfrEventEmitter extends Thread
+{
+    private final long intervalMillis;
+    private final LiveCounterReader counterReader;
+    
+    private final Map<Thread,Long> previousCounts = new WeakHashMap<>();
+    
+    /**
+     * Create instance.
+     * 
+     * @param intervalMillis
+     * @param liveCounterFile live counter file to read per-method counts from or <code>null</code> to only emit per-thread events
+     * @throws IOException
+     */
+    public JfrEventEmitter(long intervalMillis,File liveCounterFile) throws IOException
+    {
+        super("jfr-instruction-counts");
+        if ( intervalMillis <= 0 ) {
+            throw new IllegalArgumentException("Interval must be > 0");
+        }
+        this.intervalMillis = intervalMillis;
+        this.counterReader = liveCounterFile != null ? new LiveCounterReader( liveCounterFile ) : null;
+        setDaemon( true );
+    }
+    
+    @Override
+    public void run()
+    {
+        while ( true ) 
+        {
+            try {
+                Thread.sleep( intervalMillis );
+            } 
+            catch (InterruptedException e) {
+                return;
+            }
+            emitThreadEvents();
+            emitMethodEvents();
+        }
+    }
+    
+    private void emitThreadEvents() 
+    {
+        // always update the previous counts , so a recording that gets started later does not see one huge delta
+        final boolean enabled = new ThreadInstructionsEvent().isEnabled();
+        for ( Map.Entry<Thread,Long> entry : StatisticsManager.getExecutionCounts().entrySet() ) 
+        {
+            final long total = entry.getValue().longValue();
+            final Long previous = previousCounts.put( entry.getKey() , entry.getValue() );
+            final long delta = previous == null ? total : total - previous.longValue();
+            if ( enabled && delta > 0 ) 
+            {
+                final ThreadInstructionsEvent event = new ThreadInstructionsEvent();
+                event.thread = entry.getKey();
+                event.instructions = delta;
+                event.totalInstructions = total;
+                event.commit();
+            }
+        }
+    }
+    
+    private void emitMethodEvents() 
+    {
+        if ( counterReader == null ) {
+            return;
+        }
+        final boolean enabled = new MethodInstructionsEvent().isEnabled();
+        for ( MethodCounter method : counterReader.sample() ) 
+        {
+            if ( ! enabled || method.delta <= 0 ) {
+                break; // sorted descending by delta
+            }
+            final MethodInstructionsEvent event = new MethodInstructionsEvent();
+            event.className = method.className.replace('/','.');
+            event.methodName = method.methodName;
+            event.methodDescriptor = method.methodDesc;
+            event.instructions = method.delta;
+            event.totalInstructions = method.instructions;
+            event.commit();
+        }
+    }
+}
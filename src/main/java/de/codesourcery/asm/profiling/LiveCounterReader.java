@@ -0,0 +1,259 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.controlflow.BlockProfile;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Command-line tool that periodically samples a counter file written by {@link LiveCounters}
+ * and prints the methods that executed the most instructions since the last sample.
+ *
+ * <p>The counter file is mapped read-only. The profiled JVM is not involved at all.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class LiveCounterReader
+{
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int tableStart;
+
+    private int blocksRead = 0;
+    private int tableOffset = 0;
+
+    // counter index -> method
+    private final List<MethodCounter> methodByIndex = new ArrayList<>();
+    // counter index -> first instruction index / instruction count of the block
+    private final List<int[]> blockByIndex = new ArrayList<>();
+    private final Map<String,MethodCounter> methods = new HashMap<>();
+
+    /**
+     * Instructions executed by a method.
+     */
+    public static final class MethodCounter
+    {
+        public final String className;
+        public final String methodName;
+        public final String methodDesc;
+        public long instructions;
+        public long delta;
+
+        public MethodCounter(String className, String methodName, String methodDesc)
+        {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+        }
+
+        @Override
+        public String toString()
+        {
+            return className.replace('/','.')+"#"+methodName+methodDesc;
+        }
+    }
+
+    public LiveCounterReader(File file) throws IOException
+    {
+        try ( RandomAccessFile raf = new RandomAccessFile( file , "r" ) ; FileChannel channel = raf.getChannel() ) {
+            buffer = channel.map( MapMode.READ_ONLY , 0 , raf.length() );
+        }
+        if ( buffer.capacity() < LiveCounters.HEADER_SIZE || buffer.getInt( LiveCounters.OFFSET_MAGIC ) != LiveCounters.MAGIC ) {
+            throw new IOException("Not a counter file: "+file.getAbsolutePath());
+        }
+        if ( buffer.getInt( LiveCounters.OFFSET_VERSION ) != LiveCounters.VERSION ) {
+            throw new IOException("Unsupported counter file version "+buffer.getInt( LiveCounters.OFFSET_VERSION ) );
+        }
+        capacity = buffer.getInt( LiveCounters.OFFSET_CAPACITY );
+        tableStart = LiveCounters.HEADER_SIZE + 8*capacity;
+    }
+
+    /**
+     * Reads newly registered blocks and the current counter values.
+     *
+     * @return all methods , sorted descending by instructions executed since the last invocation of this method
+     */
+    public List<MethodCounter> sample()
+    {
+        final int blockCount = buffer.getInt( LiveCounters.OFFSET_BLOCK_COUNT );
+        for ( ; blocksRead < blockCount ; blocksRead++ ) {
+            readBlock();
+        }
+
+        for ( MethodCounter m : methods.values() ) {
+            m.delta = -m.instructions;
+            m.instructions = 0;
+        }
+        for ( int i = 0 ; i < blocksRead ; i++ ) {
+            methodByIndex.get( i ).instructions += buffer.getLong( LiveCounters.HEADER_SIZE + 8*i );
+        }
+
+        final List<MethodCounter> result = new ArrayList<>( methods.values() );
+        for ( MethodCounter m : result ) {
+            m.delta += m.instructions;
+        }
+        Collections.sort( result , new Comparator<MethodCounter>() {
+
+            @Override
+            public int compare(MethodCounter o1, MethodCounter o2)
+            {
+                return Long.compare( o2.delta , o1.delta );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads newly registered blocks and returns the number of times each block has been executed
+     * so far.
+     * 
+     * <p>Execution counts are derived by dividing each block's counter by the number of instructions the block's
+     * probe accounts for.</p>
+     * 
+     * <p>The header of a loop that is counted at loop exit has two counters , one for the completed iterations and one for 
+     * the final header execution that terminates the loop (see {@link ProfilingRewriter#setLoopHoisting(boolean)}). Both 
+     * get added to the header's count , the loop's other blocks have no counters and are inferred by {@link BlockProfile}.</p>
+     * 
+     * @return block profiles by method (see {@link BlockProfile#getKey(String, String, String)})
+     */
+    public Map<String,BlockProfile> getBlockProfiles()
+    {
+        final int blockCount = buffer.getInt( LiveCounters.OFFSET_BLOCK_COUNT );
+        for ( ; blocksRead < blockCount ; blocksRead++ ) {
+            readBlock();
+        }
+        
+        final Map<String,BlockProfile> result = new HashMap<>();
+        for ( int i = 0 ; i < blocksRead ; i++ )
+        {
+            final MethodCounter method = methodByIndex.get( i );
+            final int[] block = blockByIndex.get( i );
+            final String key = BlockProfile.getKey( method.className , method.methodName , method.methodDesc );
+            BlockProfile profile = result.get( key );
+            if ( profile == null ) {
+                profile = new BlockProfile();
+                result.put( key , profile );
+            }
+            final long instructions = buffer.getLong( LiveCounters.HEADER_SIZE + 8*i );
+            profile.addCount( block[0] , block[1] > 0 ? instructions / block[1] : 0 );
+        }
+        return result;
+    }
+    
+    private void readBlock()
+    {
+        final int entry = tableStart + tableOffset;
+        blockByIndex.add( new int[] { buffer.getInt( entry + 4 ) , buffer.getInt( entry + 8 ) } );
+        int offset = entry + 12; // skip counter index, instruction index and instruction count
+        final String className = readUTF( offset );
+        offset += 2 + ( buffer.getShort( offset ) & 0xffff );
+        final String methodName = readUTF( offset );
+        offset += 2 + ( buffer.getShort( offset ) & 0xffff );
+        final String methodDesc = readUTF( offset );
+        offset += 2 + ( buffer.getShort( offset ) & 0xffff );
+        tableOffset = offset - tableStart;
+
+        final String key = className+"#"+methodName+methodDesc;
+        MethodCounter method = methods.get( key );
+        if ( method == null ) {
+            method = new MethodCounter( className , methodName , methodDesc );
+            methods.put( key , method );
+        }
+        methodByIndex.add( method );
+    }
+
+    private String readUTF(int offset)
+    {
+        final byte[] data = new byte[ buffer.getShort( offset ) & 0xffff ];
+        for ( int i = 0 ; i < data.length ; i++ ) {
+            data[i] = buffer.get( offset + 2 + i );
+        }
+        try {
+            return new String( data , "UTF-8" );
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File file = null;
+        long interval = 1000;
+        int top = 20;
+        int samples = -1;
+        try
+        {
+            for ( int i = 0 ; i < args.length ; i++ )
+            {
+                switch( args[i] )
+                {
+                    case "-interval":
+                        interval = Long.parseLong( args[++i] );
+                        break;
+                    case "-top":
+                        top = Integer.parseInt( args[++i] );
+                        break;
+                    case "-samples":
+                        samples = Integer.parseInt( args[++i] );
+                        break;
+                    default:
+                        file = new File( args[i] );
+                }
+            }
+            if ( file == null ) {
+                throw new IllegalArgumentException("No counter file given");
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            System.out.println("\n\nUsage: [-interval <milliseconds>] [-top <n>] [-samples <n>] <COUNTER FILE>\n\n"+
+                    "[-interval <milliseconds>] => sampling interval (default: 1000)\n"+
+                    "[-top <n>] => number of methods to print per sample (default: 20)\n"+
+                    "[-samples <n>] => exit after this many samples (default: run until killed)\n"+
+                    "<COUNTER FILE> => file written by the profiling agent (see agent option 'liveCounters')\n\n");
+            return;
+        }
+
+        final LiveCounterReader reader = new LiveCounterReader( file );
+        for ( int sample = 0 ; samples < 0 || sample < samples ; sample++ )
+        {
+            Thread.sleep( interval );
+            final List<MethodCounter> result = reader.sample();
+            System.out.println("=== "+System.currentTimeMillis() );
+            for ( MethodCounter m : result.subList( 0 , Math.min( top , result.size() ) ) )
+            {
+                if ( m.delta > 0 ) {
+                    System.out.println( m.delta+"\t"+m.instructions+"\t"+m );
+                }
+            }
+        }
+    }
+}
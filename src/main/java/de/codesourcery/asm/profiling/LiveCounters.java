@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Per-block instruction counters that live in a memory-mapped file , so they can be
+ * read by other processes while the profiled application is running (see {@link LiveCounterReader}).
+ *
+ * <p>File layout (all values big-endian):</p>
+ * <pre>
+ * header:
+ *   int magic (0x43464C43 , 'CFLC')
+ *   int version
+ *   int capacity (max. number of counters)
+ *   int number of registered blocks
+ *   int block table size in bytes
+ *   int block table bytes in use
+ *   long reserved
+ * counters:
+ *   long[capacity] executed instructions per block
+ * block table:
+ *   one entry per registered block , in order of registration:
+ *   int counter index
+ *   int first instruction index of the block
+ *   int number of instructions in the block
+ *   UTF class name , UTF method name , UTF method descriptor (each: unsigned short length + UTF-8 bytes)
+ * </pre>
+ *
+ * <p>Blocks are registered by {@link ProfilingRewriter} while instrumenting a class. The entry is written
+ * before the number of registered blocks gets updated , so readers never see incomplete entries.</p>
+ *
+ * <p>Like the counters in <code>hsperfdata</code> files, counters are updated without any synchronization. Concurrent updates of the
+ * same counter by several threads may get lost.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see LiveCounterReader
+ */
+public final class LiveCounters
+{
+    public static final int MAGIC = 0x43464C43;
+    public static final int VERSION = 1;
+
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VERSION = 4;
+    public static final int OFFSET_CAPACITY = 8;
+    public static final int OFFSET_BLOCK_COUNT = 12;
+    public static final int OFFSET_TABLE_SIZE = 16;
+    public static final int OFFSET_TABLE_USED = 20;
+    public static final int HEADER_SIZE = 32;
+
+    private static volatile MappedByteBuffer buffer;
+
+    private static int capacity;
+    private static int tableStart;
+    private static int tableSize;
+    private static int tableUsed;
+    private static int blockCount;
+
+    private LiveCounters() {
+    }
+
+    /**
+     * Creates (or truncates) the counter file and maps it into memory.
+     *
+     * @param file
+     * @param capacity max. number of blocks
+     * @param tableSize size of the block table in bytes
+     * @throws IOException
+     */
+    public static synchronized void open(File file,int capacity,int tableSize) throws IOException
+    {
+        if ( capacity <= 0 || tableSize <= 0 ) {
+            throw new IllegalArgumentException("Capacity and table size must be > 0");
+        }
+        final long fileSize = HEADER_SIZE + 8L*capacity + tableSize;
+        if ( fileSize > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException("Counter file would be too large ("+fileSize+" bytes)");
+        }
+
+        final MappedByteBuffer mapped;
+        try ( RandomAccessFile raf = new RandomAccessFile( file , "rw" ) )
+        {
+            raf.setLength( 0 );
+            raf.setLength( fileSize );
+            try ( FileChannel channel = raf.getChannel() ) {
+                mapped = channel.map( MapMode.READ_WRITE , 0 , fileSize );
+            }
+        }
+
+        LiveCounters.capacity = capacity;
+        LiveCounters.tableStart = HEADER_SIZE + 8*capacity;
+        LiveCounters.tableSize = tableSize;
+        LiveCounters.tableUsed = 0;
+        LiveCounters.blockCount = 0;
+
+        mapped.putInt( OFFSET_VERSION , VERSION );
+        mapped.putInt( OFFSET_CAPACITY , capacity );
+        mapped.putInt( OFFSET_BLOCK_COUNT , 0 );
+        mapped.putInt( OFFSET_TABLE_SIZE , tableSize );
+        mapped.putInt( OFFSET_TABLE_USED , 0 );
+        // written last so readers do not pick up a partially initialized file
+        mapped.putInt( OFFSET_MAGIC , MAGIC );
+        buffer = mapped;
+    }
+
+    public static boolean isOpen() {
+        return buffer != null;
+    }
+
+    /**
+     * Registers a block.
+     *
+     * @param className internal class name
+     * @param methodName
+     * @param methodDesc
+     * @param instructionNum index of the block's first instruction
+     * @param instructionCount number of byte-code instructions in the block
+     * @return counter index or -1 if no counter file is open or the file is full
+     */
+    public static synchronized int register(String className,String methodName,String methodDesc,int instructionNum,int instructionCount)
+    {
+        final MappedByteBuffer b = buffer;
+        if ( b == null || blockCount >= capacity ) {
+            return -1;
+        }
+
+        final byte[] clazz = toUTF( className );
+        final byte[] method = toUTF( methodName );
+        final byte[] desc = toUTF( methodDesc );
+        final int entrySize = 12 + 6 + clazz.length + method.length + desc.length;
+        if ( tableUsed + entrySize > tableSize ) {
+            return -1;
+        }
+
+        final int index = blockCount;
+        int offset = tableStart + tableUsed;
+        b.putInt( offset , index );
+        b.putInt( offset+4 , instructionNum );
+        b.putInt( offset+8 , instructionCount );
+        offset += 12;
+        offset = putUTF( b , offset , clazz );
+        offset = putUTF( b , offset , method );
+        putUTF( b , offset , desc );
+
+        tableUsed += entrySize;
+        blockCount++;
+        b.putInt( OFFSET_TABLE_USED , tableUsed );
+        b.putInt( OFFSET_BLOCK_COUNT , blockCount );
+        return index;
+    }
+
+    private static byte[] toUTF(String s)
+    {
+        try {
+            final byte[] data = s.getBytes("UTF-8");
+            if ( data.length > 0xffff ) {
+                throw new IllegalArgumentException("String too long: "+s);
+            }
+            return data;
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int putUTF(MappedByteBuffer b,int offset,byte[] data)
+    {
+        b.putShort( offset , (short) data.length );
+        for ( int i = 0 ; i < data.length ; i++ ) {
+            b.put( offset + 2 + i , data[i] );
+        }
+        return offset + 2 + data.length;
+    }
+
+    /**
+     * Invoked by generated byte-code.
+     *
+     * @param index counter index as returned by {@link #register(String, String, String, int, int)}
+     * @param instructionCount number of executed instructions
+     */
+    public static void add(int index,int instructionCount)
+    {
+        final MappedByteBuffer b = buffer;
+        if ( b != null )
+        {
+            final int offset = HEADER_SIZE + 8*index;
+            b.putLong( offset , b.getLong( offset ) + instructionCount );
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code.
+     *
+     * @param index counter index as returned by {@link #register(String, String, String, int, int)}
+     * @param instructionCount number of executed instructions
+     */
+    public static void add(int index,long instructionCount)
+    {
+        final MappedByteBuffer b = buffer;
+        if ( b != null )
+        {
+            final int offset = HEADER_SIZE + 8*index;
+            b.putLong( offset , b.getLong( offset ) + instructionCount );
+        }
+    }
+}
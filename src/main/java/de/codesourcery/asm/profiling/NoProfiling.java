@@ -0,0 +1,35 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.codesourcery.asm.util.CompiledJoinpointFilter;
+
+/**
+ * Classes, methods and constructors annotated with this annotation
+ * are never instrumented by the profiling agent.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see CompiledJoinpointFilter#forClass(byte[])
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.TYPE,ElementType.METHOD,ElementType.CONSTRUCTOR})
+public @interface NoProfiling {
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Global on/off switch for guarded probes.
+ *
+ * <p>When guarded probes are enabled (see {@link ProfilingRewriter#setGuardedProbes(boolean)}), each probe is
+ * preceded by an <code>invokedynamic</code> instruction that is linked to a single, shared {@link MutableCallSite}
+ * whose target always returns a constant. The JIT treats the target as a compile-time constant, so while
+ * profiling is switched off the guarded counter updates are eliminated as dead code. Switching
+ * profiling on or off invalidates the compiled code depending on the call site.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setGuardedProbes(boolean)
+ */
+public class ProfilingSwitch
+{
+    private static final MethodType TYPE = MethodType.methodType( boolean.class );
+
+    private static final MutableCallSite CALL_SITE = new MutableCallSite( MethodHandles.constant( boolean.class , Boolean.TRUE ) );
+
+    private static volatile boolean enabled = true;
+
+    /**
+     * Bootstrap method for the <code>invokedynamic</code> instructions generated by {@link ProfilingRewriter}.
+     *
+     * @param lookup
+     * @param name
+     * @param type
+     * @return
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type)
+    {
+        if ( ! TYPE.equals( type ) ) {
+            throw new IllegalArgumentException("Unexpected call site type "+type+" , expected "+TYPE);
+        }
+        return CALL_SITE;
+    }
+
+    /**
+     * Switch guarded probes on or off.
+     *
+     * @param enabled
+     */
+    public static synchronized void setEnabled(boolean enabled)
+    {
+        if ( ProfilingSwitch.enabled == enabled ) {
+            return;
+        }
+        CALL_SITE.setTarget( MethodHandles.constant( boolean.class , Boolean.valueOf( enabled ) ) );
+        MutableCallSite.syncAll( new MutableCallSite[] { CALL_SITE } );
+        ProfilingSwitch.enabled = enabled;
+    }
+
+    /**
+     * Check whether guarded probes are currently switched on.
+     *
+     * @return
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+}
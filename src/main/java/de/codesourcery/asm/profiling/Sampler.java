@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Global sample countdown used by methods that have been rewritten in sampling mode.
+ *
+ * <p>Generated byte-code decrements {@link #countdown} at method entry and on each
+ * loop back edge and switches over to the instrumented copy of the method body
+ * once it reaches zero. Since only one out of {@link #getInterval()} executions
+ * is actually counted, instruction counts need to be scaled by the sampling interval
+ * (see {@link StatisticsManager#getEstimatedInstructionsCount()}).</p>
+ *
+ * <p>The countdown is intentionally neither volatile nor thread-local, lost updates
+ * only shift the next sample by a few executions. The distance between two samples is 
+ * randomized (with a mean of {@link #getInterval()}) so that periodic behaviour of the profiled
+ * application does not bias the results.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setSamplingInterval(int)
+ */
+public class Sampler
+{
+    private static volatile int interval = 1;
+    
+    private static long seed = System.nanoTime() | 1;
+
+    /**
+     * Number of checks left until the next sample is taken.
+     *
+     * <p>Decremented by generated byte-code, a value less than or equal to zero
+     * triggers a sample.</p>
+     */
+    public static int countdown = 1;
+
+    /**
+     * Sets the sampling interval.
+     *
+     * @param interval take one sample every <code>interval</code> checks, must be &gt; 0
+     */
+    public static void setInterval(int interval)
+    {
+        if ( interval < 1 ) {
+            throw new IllegalArgumentException("Sampling interval must be > 0");
+        }
+        Sampler.interval = interval;
+        countdown = interval;
+    }
+
+    /**
+     * Returns the sampling interval.
+     *
+     * @return sampling interval, <code>1</code> if sampling is not used
+     */
+    public static int getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * Invoked by generated byte-code right before switching
+     * to the instrumented copy of a method body.
+     */
+    public static void reset() 
+    {
+        // xorshift, races between threads are harmless here
+        long x = seed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed = x;
+        
+        // uniformly distributed in [ 1 , 2*interval-1 ]
+        final long range = 2L * interval - 1;
+        countdown = 1 + (int) ( ( x >>> 1 ) % range );
+    }
+}
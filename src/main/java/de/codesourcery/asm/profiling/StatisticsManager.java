@@ -15,6 +15,8 @@
  */
 package de.codesourcery.asm.profiling;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import de.codesourcery.asm.rewrite.ProfilingRewriter;
@@ -22,6 +24,9 @@ import de.codesourcery.asm.rewrite.ProfilingRewriter;
 /**
  * Gathers per-thread execution statistics (currently only the number of executed instructions).
  * 
+ * <p>If {@link CallingContextTree} profiling or {@link TaskAttribution} is enabled , instructions are charged to the 
+ * current calling context or task instead (in this order of precedence) and per-thread counts are not updated.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * @see ProfilingRewriter
  * @see ExecutionStatistics 
@@ -53,6 +58,30 @@ public class StatisticsManager
         Long existing = executionCounts.get( current );        
         return existing == null ? 0 : existing.longValue(); 
     }
+    
+    /**
+     * Returns the number of executed instructions for each thread.
+     * 
+     * @return snapshot of the current counts
+     */
+    public static Map<Thread,Long> getExecutionCounts() {
+        return new HashMap<Thread,Long>( executionCounts );
+    }
+    
+    /**
+     * Returns the number of executed instructions for the current thread,
+     * scaled by the sampling interval.
+     * 
+     * <p>When classes were rewritten in sampling mode, only one out of {@link Sampler#getInterval()}
+     * executions gets counted, this method returns the extrapolated total.</p>
+     * 
+     * @return
+     * @see Sampler
+     */
+    public static long getEstimatedInstructionsCount() {
+        return getExecutedInstructionsCount() * Sampler.getInterval();
+    }
+    
     public static ExecutionStatistics getStatistics() {
         return statistics.get();
     }
@@ -65,6 +94,19 @@ public class StatisticsManager
     public static void account() 
     {
         final ExecutionStatistics stat = getStatistics();
+        if ( CallingContextTree.isEnabled() ) 
+        {
+            CallingContextTree.account( stat.executedInstructionCount+GRANULARITY );
+            stat.executedInstructionCount = -GRANULARITY;
+            return;
+        }
+        if ( TaskAttribution.isEnabled() ) 
+        {
+            TaskAttribution.account( stat.executedInstructionCount+GRANULARITY );
+            stat.executedInstructionCount = -GRANULARITY;
+            return;
+        }
+        
         final Thread current = Thread.currentThread();
         Long existing = executionCounts.get( current );
         if ( existing == null ) {
@@ -79,4 +121,27 @@ public class StatisticsManager
         // counter is >= 0
         stat.executedInstructionCount = -GRANULARITY;
     }
+    
+    /**
+     * Invoked by generated byte-code to account for a large number of instructions
+     * at once (like all iterations of a counted loop).
+     * 
+     * @param instructionCount
+     */
+    public static void account(long instructionCount) 
+    {
+        if ( CallingContextTree.isEnabled() ) 
+        {
+            CallingContextTree.account( instructionCount );
+            return;
+        }
+        if ( TaskAttribution.isEnabled() ) 
+        {
+            TaskAttribution.account( instructionCount );
+            return;
+        }
+        final Thread current = Thread.currentThread();
+        final Long existing = executionCounts.get( current );
+        executionCounts.put( current , Long.valueOf( existing == null ? instructionCount : existing.longValue() + instructionCount ) );
+    }
 }
\ No newline at end of file
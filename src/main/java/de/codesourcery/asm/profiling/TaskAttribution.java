@@ -0,0 +1,254 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Task-scoped attribution of executed instructions.
+ * 
+ * <p>When enabled , {@link StatisticsManager} charges instructions to the logical task the current thread is working on instead of
+ * to the thread itself. Instrumented code wraps each <code>Runnable</code>/<code>Callable</code> right before it gets handed to an executor 
+ * (or used to start a thread) using {@link #wrap(Runnable)} / {@link #wrap(Callable)}. The wrapper captures the submitter's task 
+ * (or starts a new task named after the submitted class if the submitter is not running a task itself) and makes it 
+ * the current task while running.</p>
+ * 
+ * <p>Counts are aggregated by task name in a map that holds at most {@link #getMaxTasks()} entries, instructions
+ * of any further tasks are charged to {@link #OVERFLOW_TASK}. Nothing is stored per thread except for the
+ * current task reference , so storage stays bounded no matter how many threads are used.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setTaskAttribution(boolean)
+ */
+public final class TaskAttribution
+{
+    /**
+     * Name of the task that gets charged once the max. number of tasks has been reached.
+     */
+    public static final String OVERFLOW_TASK = "<other>";
+    
+    private static volatile boolean enabled = false;
+    private static volatile int maxTasks = 10000;
+    
+    private static final ConcurrentHashMap<String,AtomicLong> counts = new ConcurrentHashMap<>();
+    private static final AtomicLong overflow = new AtomicLong();
+    
+    private static final ThreadLocal<Task> currentTask = new ThreadLocal<Task>() 
+    {
+        @Override
+        protected Task initialValue()
+        {
+            final String name = Thread.currentThread().getName();
+            return new Task( name == null || name.length() == 0 ? "thread <unnamed>" : "thread "+name , true );
+        }
+    };
+    
+    /**
+     * A logical task.
+     */
+    private static final class Task 
+    {
+        public final String name;
+        // whether this task just represents a thread that was not started for a submitted task 
+        public final boolean implicit;
+        // looked up lazily , so threads that never execute instrumented code do not take up an entry
+        private volatile AtomicLong counter;
+        
+        public Task(String name,boolean implicit)
+        {
+            this.name = name;
+            this.implicit = implicit;
+        }
+        
+        public AtomicLong getCounter() 
+        {
+            AtomicLong result = counter;
+            if ( result == null ) {
+                result = counter = TaskAttribution.getCounter( name );
+            }
+            return result;
+        }
+    }
+    
+    private static final class TaskRunnable implements Runnable 
+    {
+        private final Runnable delegate;
+        private final Task task;
+        
+        public TaskRunnable(Runnable delegate, Task task)
+        {
+            this.delegate = delegate;
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            final Task previous = currentTask.get();
+            currentTask.set( task );
+            try {
+                delegate.run();
+            } finally {
+                currentTask.set( previous );
+            }
+        }
+    }
+    
+    private static final class TaskCallable<T> implements Callable<T> 
+    {
+        private final Callable<T> delegate;
+        private final Task task;
+        
+        public TaskCallable(Callable<T> delegate, Task task)
+        {
+            this.delegate = delegate;
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception
+        {
+            final Task previous = currentTask.get();
+            currentTask.set( task );
+            try {
+                return delegate.call();
+            } finally {
+                currentTask.set( previous );
+            }
+        }
+    }
+    
+    private TaskAttribution() {
+    }
+    
+    public static void setEnabled(boolean enabled) {
+        TaskAttribution.enabled = enabled;
+    }
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Sets the max. number of distinct task names to keep counts for.
+     * 
+     * @param maxTasks
+     */
+    public static void setMaxTasks(int maxTasks) 
+    {
+        if ( maxTasks < 1 ) {
+            throw new IllegalArgumentException("Max. number of tasks must be > 0");
+        }
+        TaskAttribution.maxTasks = maxTasks;
+    }
+    
+    public static int getMaxTasks() {
+        return maxTasks;
+    }
+    
+    private static AtomicLong getCounter(String name) 
+    {
+        AtomicLong result = counts.get( name );
+        if ( result == null ) 
+        {
+            if ( counts.size() >= maxTasks ) {
+                return overflow;
+            }
+            result = new AtomicLong();
+            final AtomicLong existing = counts.putIfAbsent( name , result );
+            if ( existing != null ) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+    
+    private static Task captureTask(Object submitted) 
+    {
+        final Task current = currentTask.get();
+        if ( ! current.implicit ) {
+            return current;
+        }
+        // lambda classes are named like 'Foo$$Lambda$14/0x0000000800c03000' , strip the address so tasks from the same call site share one entry
+        String name = submitted.getClass().getName();
+        final int idx = name.indexOf('/');
+        if ( idx != -1 ) {
+            name = name.substring( 0 , idx );
+        }
+        return new Task( name , false );
+    }
+    
+    /**
+     * Invoked by generated byte-code before a <code>Runnable</code> gets submitted.
+     * 
+     * @param runnable
+     * @return runnable that runs the given one as part of the submitter's task
+     */
+    public static Runnable wrap(Runnable runnable) 
+    {
+        if ( ! enabled || runnable == null || runnable instanceof TaskRunnable ) {
+            return runnable;
+        }
+        return new TaskRunnable( runnable , captureTask( runnable ) );
+    }
+    
+    /**
+     * Invoked by generated byte-code before a <code>Callable</code> gets submitted.
+     * 
+     * @param callable
+     * @return callable that runs the given one as part of the submitter's task
+     */
+    public static <T> Callable<T> wrap(Callable<T> callable) 
+    {
+        if ( ! enabled || callable == null || callable instanceof TaskCallable ) {
+            return callable;
+        }
+        return new TaskCallable<T>( callable , captureTask( callable ) );
+    }
+    
+    /**
+     * Charges instructions to the current task.
+     * 
+     * @param instructionCount
+     */
+    public static void account(long instructionCount) {
+        currentTask.get().getCounter().addAndGet( instructionCount );
+    }
+    
+    /**
+     * Returns the number of executed instructions by task name.
+     * 
+     * @return snapshot of the current counts
+     */
+    public static Map<String,Long> getTaskCounts() 
+    {
+        final Map<String,Long> result = new HashMap<>();
+        for ( Map.Entry<String,AtomicLong> entry : counts.entrySet() ) {
+            result.put( entry.getKey() , entry.getValue().get() );
+        }
+        final long other = overflow.get();
+        if ( other != 0 ) {
+            result.put( OVERFLOW_TASK , other );
+        }
+        return result;
+    }
+}
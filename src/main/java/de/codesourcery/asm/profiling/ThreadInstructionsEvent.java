@@ -0,0 +1,47 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event that carries the number of instructions a thread executed since the previous event.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see JfrEventEmitter
+ */
+@Name("de.codesourcery.asm.ThreadInstructions")
+@Label("Thread Instructions")
+@Category({"Profiling","Instruction Counts"})
+@Description("Byte-code instructions executed by a thread since the previous event")
+@StackTrace(false)
+public class ThreadInstructionsEvent extends jdk.jfr.Event
+{
+    @Label("Thread")
+    public Thread thread;
+    
+    @Label("Instructions")
+    @Description("Instructions executed since the previous event")
+    public long instructions;
+    
+    @Label("Total Instructions")
+    @Description("Instructions executed since profiling started")
+    public long totalInstructions;
+}
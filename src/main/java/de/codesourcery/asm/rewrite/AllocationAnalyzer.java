@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.profiling.AllocationCounters;
+import de.codesourcery.asm.rewrite.NonLoadingClassWriter.TypeInfo;
+
+/**
+ * Finds the allocation sites in a basic block and estimates the number of bytes each of them allocates.
+ * 
+ * <p>Sizes assume a 64-bit HotSpot JVM with compressed class pointers and references (12 byte object header, 16 byte array header, 
+ * 8 byte alignment) and ignore field padding. Instance sizes are determined by reading the class files of the allocated type
+ * and its super classes (see {@link NonLoadingClassWriter}), array sizes are only known if the length is pushed by a 
+ * constant right before the allocation.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see AllocationCounters
+ */
+public class AllocationAnalyzer implements Opcodes
+{
+    private static final int OBJECT_HEADER_SIZE = 12;
+    private static final int ARRAY_HEADER_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+    
+    private final ClassLoader classLoader;
+    
+    /**
+     * Create instance.
+     * 
+     * @param classLoader class loader used to look up class files of allocated types, <code>null</code> for the bootstrap class loader
+     */
+    public AllocationAnalyzer(ClassLoader classLoader)
+    {
+        this.classLoader = classLoader;
+    }
+    
+    /**
+     * Returns the allocation sites in a block.
+     * 
+     * @param owner internal name of the class the method belongs to
+     * @param method
+     * @param block
+     * @return allocation sites in order of appearance
+     */
+    @SuppressWarnings("unchecked")
+    public List<AllocationCounters.Site> getAllocationSites(String owner,MethodNode method,IBlock block) 
+    {
+        final List<AllocationCounters.Site> result = new ArrayList<>();
+        int index = 0;
+        for ( AbstractInsnNode insn = method.instructions.getFirst() ; insn != null ; insn = insn.getNext() , index++ ) 
+        {
+            if ( ! block.containsInstructionNum( index ) ) {
+                continue;
+            }
+            final AllocationCounters.Site site;
+            switch( insn.getOpcode() ) 
+            {
+                case NEW:
+                    site = getInstanceSite( owner , method , (TypeInsnNode) insn );
+                    break;
+                case NEWARRAY:
+                    site = getArraySite( owner , method , insn , getPrimitiveArrayDescriptor( ( (IntInsnNode) insn ).operand ) );
+                    break;
+                case ANEWARRAY:
+                    site = getArraySite( owner , method , insn , "["+Type.getObjectType( ( (TypeInsnNode) insn ).desc ).getDescriptor() );
+                    break;
+                case MULTIANEWARRAY:
+                    site = getMultiArraySite( owner , method , (MultiANewArrayInsnNode) insn );
+                    break;
+                default:
+                    site = null;
+            }
+            if ( site != null ) {
+                result.add( site );
+            }
+        }
+        return result;
+    }
+    
+    private AllocationCounters.Site getInstanceSite(String owner,MethodNode method,TypeInsnNode insn) 
+    {
+        int size = OBJECT_HEADER_SIZE;
+        boolean sizeKnown = true;
+        try 
+        {
+            for ( String type = insn.desc ; type != null ; ) 
+            {
+                final TypeInfo info = NonLoadingClassWriter.getTypeInfo( classLoader , type );
+                size += info.instanceFieldBytes;
+                type = info.superName;
+            }
+        } 
+        catch(TypeNotPresentException e) {
+            sizeKnown = false;
+        }
+        return createSite( owner , method , insn , Type.getObjectType( insn.desc ).getClassName() , align( size ) , sizeKnown );
+    }
+    
+    private AllocationCounters.Site getArraySite(String owner,MethodNode method,AbstractInsnNode insn,String arrayDesc) 
+    {
+        final Type arrayType = Type.getType( arrayDesc );
+        final Integer length = getConstant( getPrevious( insn ) );
+        if ( length == null || length.intValue() < 0 ) {
+            return createSite( owner , method , insn , arrayType.getClassName() , ARRAY_HEADER_SIZE , false );
+        }
+        final long size = getArraySize( getElementSize( arrayDesc.substring( 1 ) ) , length.intValue() );
+        return createSite( owner , method , insn , arrayType.getClassName() , size , true );
+    }
+    
+    private AllocationCounters.Site getMultiArraySite(String owner,MethodNode method,MultiANewArrayInsnNode insn) 
+    {
+        final Type arrayType = Type.getType( insn.desc );
+        
+        // dimensions are pushed in order , the innermost dimension is on top of the stack
+        final int[] dims = new int[ insn.dims ];
+        AbstractInsnNode current = insn;
+        boolean sizeKnown = true;
+        for ( int i = insn.dims - 1 ; i >= 0 ; i-- ) 
+        {
+            current = getPrevious( current );
+            final Integer value = getConstant( current );
+            if ( value == null || value.intValue() < 0 ) {
+                sizeKnown = false;
+                break;
+            }
+            dims[i] = value.intValue();
+        }
+        if ( ! sizeKnown ) {
+            return createSite( owner , method , insn , arrayType.getClassName() , ARRAY_HEADER_SIZE , false );
+        }
+        
+        // innermost arrays hold the element type if all dimensions are allocated , references otherwise
+        final int innerElementSize = insn.dims == arrayType.getDimensions() ? getElementSize( arrayType.getElementType().getDescriptor() ) : REFERENCE_SIZE;
+        long size = 0;
+        long arrays = 1;
+        for ( int i = 0 ; i < dims.length ; i++ ) 
+        {
+            final int elementSize = i == dims.length - 1 ? innerElementSize : REFERENCE_SIZE;
+            size += arrays * getArraySize( elementSize , dims[i] );
+            arrays *= dims[i];
+        }
+        return createSite( owner , method , insn , arrayType.getClassName() , size , true );
+    }
+    
+    private static AllocationCounters.Site createSite(String owner,MethodNode method,AbstractInsnNode insn,String type,long size,boolean sizeKnown) 
+    {
+        return new AllocationCounters.Site( owner , method.name , method.desc , getLineNumber( insn ) , type , size , sizeKnown );
+    }
+    
+    private static int getLineNumber(AbstractInsnNode insn) 
+    {
+        for ( AbstractInsnNode current = insn ; current != null ; current = current.getPrevious() ) 
+        {
+            if ( current instanceof LineNumberNode ) {
+                return ( (LineNumberNode) current ).line;
+            }
+        }
+        return -1;
+    }
+    
+    // returns the previous instruction , NULL if there is none or a label is in between (value might come from another branch)
+    private static AbstractInsnNode getPrevious(AbstractInsnNode insn) 
+    {
+        for ( AbstractInsnNode current = insn.getPrevious() ; current != null ; current = current.getPrevious() ) 
+        {
+            switch( current.getType() ) 
+            {
+                case AbstractInsnNode.LINE:
+                case AbstractInsnNode.FRAME:
+                    continue;
+                case AbstractInsnNode.LABEL:
+                    return null;
+                default:
+                    return current;
+            }
+        }
+        return null;
+    }
+    
+    private static Integer getConstant(AbstractInsnNode insn) 
+    {
+        if ( insn == null ) {
+            return null;
+        }
+        final int opcode = insn.getOpcode();
+        if ( opcode >= ICONST_M1 && opcode <= ICONST_5 ) {
+            return opcode - ICONST_0;
+        }
+        if ( opcode == BIPUSH || opcode == SIPUSH ) {
+            return ( (IntInsnNode) insn ).operand;
+        }
+        if ( opcode == LDC && ( (LdcInsnNode) insn ).cst instanceof Integer ) {
+            return (Integer) ( (LdcInsnNode) insn ).cst;
+        }
+        return null;
+    }
+    
+    private static String getPrimitiveArrayDescriptor(int operand) 
+    {
+        switch( operand ) 
+        {
+            case T_BOOLEAN: return "[Z";
+            case T_CHAR:    return "[C";
+            case T_FLOAT:   return "[F";
+            case T_DOUBLE:  return "[D";
+            case T_BYTE:    return "[B";
+            case T_SHORT:   return "[S";
+            case T_INT:     return "[I";
+            case T_LONG:    return "[J";
+            default:
+                throw new IllegalArgumentException("Invalid NEWARRAY operand: "+operand);
+        }
+    }
+    
+    private static int getElementSize(String elementDesc) 
+    {
+        switch( elementDesc.charAt( 0 ) ) 
+        {
+            case 'J':
+            case 'D':
+                return 8;
+            case 'I':
+            case 'F':
+                return 4;
+            case 'S':
+            case 'C':
+                return 2;
+            case 'B':
+            case 'Z':
+                return 1;
+            default:
+                return REFERENCE_SIZE;
+        }
+    }
+    
+    private static long getArraySize(int elementSize,int length) {
+        return align( ARRAY_HEADER_SIZE + (long) elementSize * length );
+    }
+    
+    private static long align(long size) {
+        return ( size + 7 ) & ~7L;
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.controlflow.Edge;
+import de.codesourcery.asm.controlflow.IBlock;
+
+/**
+ * A simple counted loop whose per-iteration probes can be replaced by a single
+ * probe at loop exit.
+ *
+ * <p>A loop qualifies if</p>
+ * <ul>
+ *   <li>the loop header ends with a conditional jump that leaves the loop, its condition only depends on an <code>int</code> induction
+ *   variable and values that are constant or not modified inside the loop (local variables , array lengths)</li>
+ *   <li>the induction variable is only modified by a single <code>IINC</code> instruction in the block that jumps back to the header (using <code>GOTO</code>)</li>
+ *   <li>the loop body is straight-line code (no branches, no exits besides the header , no exception handlers) , so each iteration executes
+ *   exactly the same instructions</li>
+ * </ul>
+ *
+ * <p>The number of completed iterations is then <code>(inductionVariable - inductionVariableAtEntry) / step</code>.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CountedLoop implements Opcodes
+{
+    /**
+     * Loop header block.
+     */
+    public final IBlock header;
+    /**
+     * Index of the first byte-code instruction of the loop header.
+     */
+    public final int headerStart;
+    /**
+     * Index of the conditional jump instruction that leaves the loop.
+     */
+    public final int exitJump;
+    /**
+     * Index of the <code>GOTO</code> instruction that jumps back to the loop header.
+     */
+    public final int backEdgeJump;
+    /**
+     * Local variable slot of the induction variable.
+     */
+    public final int inductionVariable;
+    /**
+     * Increment of the induction variable per iteration.
+     */
+    public final int step;
+    /**
+     * Cost of the byte-code instructions executed per iteration (including the loop header).
+     */
+    public final int iterationCost;
+    /**
+     * Cost of the byte-code instructions in the loop header (executed once more when the loop terminates).
+     */
+    public final int headerCost;
+    /**
+     * All blocks of this loop.
+     */
+    public final Set<IBlock> blocks;
+    /**
+     * Local variable slots written to inside the loop.
+     */
+    public final Set<Integer> modifiedSlots;
+
+    private CountedLoop(IBlock header, int headerStart, int exitJump, int backEdgeJump, int inductionVariable, int step, int iterationCost,
+            int headerCost, Set<IBlock> blocks, Set<Integer> modifiedSlots)
+    {
+        this.header = header;
+        this.headerStart = headerStart;
+        this.exitJump = exitJump;
+        this.backEdgeJump = backEdgeJump;
+        this.inductionVariable = inductionVariable;
+        this.step = step;
+        this.iterationCost = iterationCost;
+        this.headerCost = headerCost;
+        this.blocks = Collections.unmodifiableSet( blocks );
+        this.modifiedSlots = Collections.unmodifiableSet( modifiedSlots );
+    }
+
+    /**
+     * Finds all counted loops in a control flow graph.
+     *
+     * <p>In constructors , only loops following the first constructor invocation are considered.</p>
+     *
+     * @param cfg
+     * @param costModel cost model used to determine {@link #iterationCost} and {@link #headerCost} , <code>null</code> to count instructions
+     * @return
+     */
+    public static List<CountedLoop> find(ControlFlowGraph cfg,IInstructionCostModel costModel)
+    {
+        final MethodNode mn = cfg.getMethod();
+        final int minIndex = getFirstInstructionAfterConstructorCall( mn );
+
+        final List<CountedLoop> result = new ArrayList<>();
+        final Set<IBlock> backEdgeTargets = new HashSet<>();
+        final Set<IBlock> ambiguous = new HashSet<>();
+        for ( Edge e : cfg.getBackEdges() )
+        {
+            if ( ! backEdgeTargets.add( e.dst ) ) {
+                ambiguous.add( e.dst );
+            }
+        }
+
+        for ( Edge e : cfg.getBackEdges() )
+        {
+            if ( ambiguous.contains( e.dst ) ) {
+                continue;
+            }
+            final CountedLoop loop = analyze( e.dst , e.src , mn , costModel );
+            if ( loop != null && loop.headerStart >= minIndex ) {
+                result.add( loop );
+            }
+        }
+        return result;
+    }
+
+    private static int getFirstInstructionAfterConstructorCall(MethodNode mn)
+    {
+        if ( ! mn.name.equals("<init>") ) {
+            return 0;
+        }
+        for ( int i = 0 ; i < mn.instructions.size() ; i++ )
+        {
+            final AbstractInsnNode insn = mn.instructions.get( i );
+            if ( insn.getOpcode() == INVOKESPECIAL && ( (MethodInsnNode) insn ).name.equals("<init>") ) {
+                return i+1;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private static CountedLoop analyze(IBlock header,IBlock latch,MethodNode mn,IInstructionCostModel costModel)
+    {
+        if ( header == latch || header.isVirtual( mn ) || latch.isVirtual( mn ) ) {
+            return null;
+        }
+
+        // collect loop blocks by walking backwards from the latch
+        final Set<IBlock> blocks = new HashSet<>();
+        blocks.add( header );
+        final Deque<IBlock> toVisit = new ArrayDeque<>();
+        if ( blocks.add( latch ) ) {
+            toVisit.push( latch );
+        }
+        while ( ! toVisit.isEmpty() )
+        {
+            final IBlock current = toVisit.pop();
+            if ( current.isVirtual( mn ) ) {
+                return null; // jump into the loop from outside
+            }
+            for ( Edge e : current.getEdges() )
+            {
+                if ( e.isPredecessor( current ) && blocks.add( e.src ) ) {
+                    toVisit.push( e.src );
+                }
+            }
+        }
+
+        // loop body must be straight-line code
+        for ( IBlock block : blocks )
+        {
+            int successorsInLoop = 0;
+            int successorsOutside = 0;
+            int predecessorsInLoop = 0;
+            int predecessorsOutside = 0;
+            for ( Edge e : block.getEdges() )
+            {
+                if ( e.isSuccessor( block ) && ! e.hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) )
+                {
+                    if ( blocks.contains( e.dst ) ) {
+                        successorsInLoop++;
+                    } else {
+                        successorsOutside++;
+                    }
+                }
+                if ( e.isPredecessor( block ) )
+                {
+                    if ( e.hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) ) {
+                        return null; // exception handler
+                    }
+                    if ( blocks.contains( e.src ) ) {
+                        predecessorsInLoop++;
+                    } else {
+                        predecessorsOutside++;
+                    }
+                }
+            }
+            if ( successorsInLoop != 1 || predecessorsInLoop != 1 ) {
+                return null;
+            }
+            if ( block == header ? successorsOutside != 1 : ( successorsOutside != 0 || predecessorsOutside != 0 ) ) {
+                return null;
+            }
+        }
+
+        final int headerStart = header.getFirstByteCodeInstructionNum( mn );
+        final int exitJump = getLastByteCodeInstructionNum( header , mn );
+        final int backEdgeJump = getLastByteCodeInstructionNum( latch , mn );
+
+        if ( exitJump > backEdgeJump ) {
+            return null;
+        }
+
+        // latch must end with a GOTO to the loop header
+        final AbstractInsnNode latchEnd = mn.instructions.get( backEdgeJump );
+        if ( latchEnd.getOpcode() != GOTO || ! header.containsInstructionNum( mn.instructions.indexOf( ( (JumpInsnNode) latchEnd ).label ) ) ) {
+            return null;
+        }
+
+        // header must end with a conditional jump that leaves the loop
+        final AbstractInsnNode headerEnd = mn.instructions.get( exitJump );
+        if ( ! ( headerEnd instanceof JumpInsnNode ) || headerEnd.getOpcode() == GOTO || headerEnd.getOpcode() == JSR ) {
+            return null;
+        }
+        final int exitTarget = mn.instructions.indexOf( ( (JumpInsnNode) headerEnd ).label );
+        for ( IBlock block : blocks )
+        {
+            if ( block.containsInstructionNum( exitTarget ) ) {
+                return null;
+            }
+        }
+
+        // collect modified local variables
+        final Set<Integer> modifiedSlots = new HashSet<>();
+        IincInsnNode increment = null;
+        int iincCount = 0;
+        for ( IBlock block : blocks )
+        {
+            for ( int num : block.getInstructionNums() )
+            {
+                final AbstractInsnNode insn = mn.instructions.get( num );
+                if ( insn instanceof IincInsnNode )
+                {
+                    modifiedSlots.add( ( (IincInsnNode) insn ).var );
+                    if ( block == latch ) {
+                        increment = (IincInsnNode) insn;
+                        iincCount++;
+                    }
+                }
+                else if ( insn instanceof VarInsnNode && insn.getOpcode() >= ISTORE && insn.getOpcode() <= ASTORE )
+                {
+                    final int var = ( (VarInsnNode) insn ).var;
+                    modifiedSlots.add( var );
+                    if ( insn.getOpcode() == LSTORE || insn.getOpcode() == DSTORE ) {
+                        modifiedSlots.add( var+1 );
+                    }
+                }
+                else if ( insn.getOpcode() == RET || insn.getOpcode() == JSR ) {
+                    return null;
+                }
+            }
+        }
+        if ( iincCount != 1 || increment.incr == 0 ) {
+            return null;
+        }
+        final int inductionVariable = increment.var;
+        for ( IBlock block : blocks )
+        {
+            for ( int num : block.getInstructionNums() )
+            {
+                final AbstractInsnNode insn = mn.instructions.get( num );
+                if ( insn != increment && ( insn instanceof IincInsnNode && ( (IincInsnNode) insn ).var == inductionVariable ) ) {
+                    return null;
+                }
+                if ( insn instanceof VarInsnNode && insn.getOpcode() >= ISTORE && insn.getOpcode() <= ASTORE && ( (VarInsnNode) insn ).var == inductionVariable ) {
+                    return null;
+                }
+            }
+        }
+
+        if ( ! isSimpleCondition( header , mn , inductionVariable , modifiedSlots ) ) {
+            return null;
+        }
+
+        int iterationCost = 0;
+        for ( IBlock block : blocks ) {
+            iterationCost += OpcodeCostModel.getBlockCost( block , mn , costModel );
+        }
+        return new CountedLoop( header , headerStart , exitJump , backEdgeJump , inductionVariable , increment.incr , iterationCost ,
+                OpcodeCostModel.getBlockCost( header , mn , costModel ) , blocks , modifiedSlots );
+    }
+
+    // header needs to look like: ILOAD <inductionVariable> ; <loop-invariant operand> ; IF_xxx
+    private static boolean isSimpleCondition(IBlock header,MethodNode mn,int inductionVariable,Set<Integer> modifiedSlots)
+    {
+        final List<AbstractInsnNode> insns = new ArrayList<>();
+        for ( int i = header.getFirstByteCodeInstructionNum( mn ) ; i < mn.instructions.size() && header.containsInstructionNum( i ) ; i++ )
+        {
+            final AbstractInsnNode insn = mn.instructions.get( i );
+            if ( insn.getOpcode() != -1 ) {
+                insns.add( insn );
+            }
+        }
+        if ( insns.size() < 2 ) {
+            return false;
+        }
+        final AbstractInsnNode first = insns.get( 0 );
+        if ( first.getOpcode() != ILOAD || ( (VarInsnNode) first ).var != inductionVariable ) {
+            return false;
+        }
+        for ( AbstractInsnNode insn : insns.subList( 1 , insns.size() - 1 ) )
+        {
+            switch( insn.getOpcode() )
+            {
+                case ILOAD:
+                case ALOAD:
+                    if ( modifiedSlots.contains( ( (VarInsnNode) insn ).var ) ) {
+                        return false;
+                    }
+                    break;
+                case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4: case ICONST_5:
+                case BIPUSH:
+                case SIPUSH:
+                case ARRAYLENGTH:
+                    break;
+                case LDC:
+                    if ( ! ( ( (LdcInsnNode) insn ).cst instanceof Integer ) ) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        final int jump = insns.get( insns.size() - 1 ).getOpcode();
+        return ( jump >= IFEQ && jump <= IF_ICMPLE );
+    }
+
+    private static int getLastByteCodeInstructionNum(IBlock block,MethodNode mn)
+    {
+        int last = -1;
+        for ( int num : block.getInstructionNums() )
+        {
+            if ( num > last && mn.instructions.get( num ).getOpcode() != -1 ) {
+                last = num;
+            }
+        }
+        return last;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CountedLoop[ header: "+header+", induction variable: #"+inductionVariable+", step: "+step+", cost per iteration: "+iterationCost+" ]";
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+
+/**
+ * Updates the existing stack map frames of a method while code gets inserted , so that
+ * the {@link org.objectweb.asm.ClassWriter} does not need to compute frames from scratch (which requires
+ * loading classes to determine common super types).
+ *
+ * <p>Since the code inserted by {@link ProfilingRewriter} leaves the operand stack and all existing local variables untouched,
+ * the only changes required are:</p>
+ * <ul>
+ *   <li>adding the <code>$stat</code> local variable (and any other local variable introduced along with it) to all frames following its initialization</li>
+ *   <li>adding frames for branch targets within the inserted code (see {@link #endInsertedCode()}), these are derived from the current
+ *   frame as tracked by {@link AnalyzerAdapter}</li>
+ *   <li>re-targeting uninitialized types (which are identified by the label of the corresponding <code>NEW</code> instruction) when code
+ *   got inserted between a label and a <code>NEW</code> instruction</li>
+ * </ul>
+ *
+ * <p>This visitor requires the class to be read using {@link org.objectweb.asm.ClassReader#EXPAND_FRAMES}. If the current
+ * frame is unknown when a frame needs to be generated (unreachable code), an {@link IllegalStateException} is thrown and frames need to be
+ * computed the regular way.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class FrameUpdatingVisitor extends AnalyzerAdapter implements Opcodes
+{
+    private final int variableSlot;
+    private final Object[] variableTypes;
+
+    private boolean variableInitialized = false;
+
+    // labels visited since the last instruction
+    private final List<Label> currentLabels = new ArrayList<>();
+
+    // labels that got separated from the next instruction by inserted code
+    private final List<Label> displacedLabels = new ArrayList<>();
+    private boolean insertingCode = false;
+
+    private final Map<Label,Label> newInstructionLabels = new HashMap<>();
+
+    private boolean framePending = false;
+
+    /**
+     * Create visitor.
+     *
+     * @param owner internal name of the class the method belongs to
+     * @param access the method's access flags
+     * @param name the method's name
+     * @param desc the method's descriptor
+     * @param mv visitor to forward events to
+     * @param variableSlot slot number of the (first) local variable introduced by inserted code
+     * @param variableTypes frame types of the local variables introduced by inserted code , occupying consecutive slots starting at <code>variableSlot</code>. All of them
+     * need to be initialized before the first variable gets assigned using <code>ASTORE</code>
+     */
+    public FrameUpdatingVisitor(String owner, int access, String name, String desc, MethodVisitor mv,int variableSlot,Object... variableTypes)
+    {
+        super( ASM5 , owner, access, name, desc, mv);
+        this.variableSlot = variableSlot;
+        this.variableTypes = variableTypes;
+    }
+
+    /**
+     * Needs to be invoked right before inserting code.
+     */
+    public void beginInsertedCode()
+    {
+        flushFrame();
+        insertingCode = true;
+        displacedLabels.clear();
+        displacedLabels.addAll( currentLabels );
+    }
+
+    /**
+     * Needs to be invoked right after inserting code, generates a frame
+     * for the current location.
+     *
+     * @throws IllegalStateException if the current frame is unknown
+     */
+    public void endInsertedCode() throws IllegalStateException
+    {
+        endInsertedCode( true );
+    }
+
+    /**
+     * Needs to be invoked right after inserting code.
+     *
+     * @param branchTarget whether the inserted code contains a jump to the current location , only
+     * then a frame is generated
+     * @throws IllegalStateException if a frame is required but the current frame is unknown
+     */
+    public void endInsertedCode(boolean branchTarget) throws IllegalStateException
+    {
+        insertingCode = false;
+        if ( ! branchTarget ) {
+            return;
+        }
+        if ( locals == null ) {
+            throw new IllegalStateException("Frame at inserted code is unknown (unreachable code?)");
+        }
+        // emitting the frame is deferred , there might already be a frame for the next instruction
+        framePending = true;
+    }
+
+    /**
+     * Returns the types of all local variables at the current location.
+     *
+     * @return local variable types (using two elements for long/double values) or <code>null</code> if the current frame is unknown
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> getCurrentLocals()
+    {
+        return locals != null ? new ArrayList<>( (List<Object>) locals ) : null;
+    }
+
+    /**
+     * Returns the types of all values on the operand stack at the current location.
+     *
+     * @return operand stack types (using two elements for long/double values) or <code>null</code> if the current frame is unknown
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> getCurrentStack()
+    {
+        return stack != null ? new ArrayList<>( (List<Object>) stack ) : null;
+    }
+
+    /**
+     * Emits a frame for a location within inserted code that is not reached
+     * by falling through from the preceding instruction.
+     *
+     * @param frameLocals local variable types as returned by {@link #getCurrentLocals()}
+     * @param frameStack operand stack types as returned by {@link #getCurrentStack()}
+     */
+    public void insertFrame(List<Object> frameLocals,List<Object> frameStack)
+    {
+        framePending = false;
+        final List<Object> l = toFrameTypes( frameLocals );
+        final List<Object> s = toFrameTypes( frameStack );
+        super.visitFrame( F_NEW , l.size() , l.toArray() , s.size() , s.toArray() );
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flushFrame()
+    {
+        if ( ! framePending ) {
+            return;
+        }
+        framePending = false;
+
+        final List<Object> frameLocals = toFrameTypes( (List<Object>) locals );
+        final List<Object> frameStack = toFrameTypes( (List<Object>) stack );
+        super.visitFrame( F_NEW , frameLocals.size() , frameLocals.toArray() , frameStack.size() , frameStack.toArray() );
+    }
+
+    // AnalyzerAdapter uses two elements for long/double values , frames use a single one
+    private static List<Object> toFrameTypes(List<Object> types)
+    {
+        final List<Object> result = new ArrayList<>( types.size() );
+        for ( int i = 0 ; i < types.size() ; i++ )
+        {
+            final Object type = types.get(i);
+            result.add( type );
+            if ( type == Opcodes.LONG || type == Opcodes.DOUBLE ) {
+                i++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack)
+    {
+        // original frame at the same location supersedes the generated one
+        framePending = false;
+
+        final List<Object> newLocals = new ArrayList<>( nLocal + 1 );
+        int slots = 0;
+        for ( int i = 0 ; i < nLocal ; i++ )
+        {
+            newLocals.add( mapType( local[i] ) );
+            slots += ( local[i] == Opcodes.LONG || local[i] == Opcodes.DOUBLE ) ? 2 : 1;
+        }
+
+        if ( variableInitialized )
+        {
+            for ( ; slots < variableSlot ; slots++ ) {
+                newLocals.add( Opcodes.TOP );
+            }
+            for ( Object variableType : variableTypes ) {
+                newLocals.add( variableType );
+            }
+        }
+
+        final Object[] newStack = new Object[ nStack ];
+        for ( int i = 0 ; i < nStack ; i++ ) {
+            newStack[i] = mapType( stack[i] );
+        }
+        super.visitFrame(type, newLocals.size() , newLocals.toArray() , nStack , newStack );
+    }
+
+    private Object mapType(Object type)
+    {
+        if ( type instanceof Label )
+        {
+            final Label mapped = newInstructionLabels.get( type );
+            return mapped != null ? mapped : type;
+        }
+        return type;
+    }
+
+    @Override
+    public void visitLabel(Label label)
+    {
+        super.visitLabel(label);
+        if ( ! insertingCode ) {
+            currentLabels.add( label );
+        }
+    }
+
+    private void beforeInstruction()
+    {
+        flushFrame();
+        if ( ! insertingCode )
+        {
+            currentLabels.clear();
+            displacedLabels.clear();
+        }
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type)
+    {
+        if ( opcode == NEW && ! insertingCode && ! displacedLabels.isEmpty() )
+        {
+            // frames refer to the uninitialized object using the label of the NEW instruction,
+            // which now marks the start of the inserted code
+            flushFrame();
+            final Label newLabel = new Label();
+            super.visitLabel( newLabel );
+            for ( Label l : displacedLabels ) {
+                newInstructionLabels.put( l , newLabel );
+            }
+        }
+        beforeInstruction();
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var)
+    {
+        beforeInstruction();
+        super.visitVarInsn(opcode, var);
+        if ( opcode == ASTORE && var == variableSlot ) {
+            variableInitialized = true;
+        }
+    }
+
+    @Override
+    public void visitInsn(int opcode)
+    {
+        beforeInstruction();
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand)
+    {
+        beforeInstruction();
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc)
+    {
+        beforeInstruction();
+        super.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf)
+    {
+        beforeInstruction();
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs)
+    {
+        beforeInstruction();
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label)
+    {
+        beforeInstruction();
+        super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst)
+    {
+        beforeInstruction();
+        super.visitLdcInsn(cst);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment)
+    {
+        beforeInstruction();
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels)
+    {
+        beforeInstruction();
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
+    {
+        beforeInstruction();
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims)
+    {
+        beforeInstruction();
+        super.visitMultiANewArrayInsn(desc, dims);
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+/**
+ * Static cost model used to charge byte-code instructions.
+ * 
+ * <p>Costs are evaluated while rewriting and baked into the generated probes, so a cost model
+ * has no influence on the runtime overhead of instrumented code.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setCostModel(IInstructionCostModel)
+ * @see OpcodeCostModel
+ */
+public interface IInstructionCostModel
+{
+    /**
+     * Returns the cost of executing an instruction.
+     * 
+     * @param insn a byte-code instruction (never a label, line number or frame node)
+     * @return cost , must be &gt;= 0
+     */
+    public int getCost(AbstractInsnNode insn);
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.Iterator;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Byte-code size limits of the HotSpot JIT compiler that instrumentation should not push methods over.
+ *
+ * <p>A method whose original byte-code size is below one of these limits but whose instrumented size would exceed it
+ * gets degraded instrumentation (see {@link Level}) when {@link ProfilingRewriter#setJitBudget(JitBudget)} is used.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class JitBudget
+{
+    /**
+     * Instrumentation levels , ordered by decreasing accuracy and code size.
+     */
+    public static enum Level
+    {
+        /**
+         * A probe at the start of each basic block.
+         */
+        FULL,
+        /**
+         * Probes only at method entry, loop headers and exception handlers. Each probe
+         * accounts for all instructions reachable from it without passing another probe or a loop back edge, so
+         * counts are an upper bound for methods with conditional branches.
+         */
+        FEWER_PROBES,
+        /**
+         * A single probe at method entry that accounts for all instructions reachable
+         * without passing a loop back edge.
+         */
+        METHOD_LEVEL,
+        /**
+         * Method is not instrumented at all.
+         */
+        SKIP;
+    }
+
+    private int maxInlineSize = 35;
+    private int freqInlineSize = 325;
+    private int hugeMethodLimit = 8000;
+
+    public int getMaxInlineSize() {
+        return maxInlineSize;
+    }
+
+    /**
+     * Sets the size limit for methods that are always inlined (HotSpot's <code>-XX:MaxInlineSize</code>).
+     *
+     * @param maxInlineSize size in bytes
+     */
+    public void setMaxInlineSize(int maxInlineSize) {
+        this.maxInlineSize = maxInlineSize;
+    }
+
+    public int getFreqInlineSize() {
+        return freqInlineSize;
+    }
+
+    /**
+     * Sets the size limit for frequently executed methods that get inlined (HotSpot's <code>-XX:FreqInlineSize</code>).
+     *
+     * @param freqInlineSize size in bytes
+     */
+    public void setFreqInlineSize(int freqInlineSize) {
+        this.freqInlineSize = freqInlineSize;
+    }
+
+    public int getHugeMethodLimit() {
+        return hugeMethodLimit;
+    }
+
+    /**
+     * Sets the size limit for methods that get JIT-compiled (HotSpot's <code>HugeMethodLimit</code>).
+     *
+     * @param hugeMethodLimit size in bytes
+     */
+    public void setHugeMethodLimit(int hugeMethodLimit) {
+        this.hugeMethodLimit = hugeMethodLimit;
+    }
+
+    /**
+     * Returns the smallest limit that a method of the given size does not exceed.
+     *
+     * @param codeSize byte-code size of the uninstrumented method
+     * @return limit or <code>Integer.MAX_VALUE</code> if the method already exceeds all limits
+     */
+    public int getLimit(int codeSize)
+    {
+        if ( codeSize <= maxInlineSize ) {
+            return maxInlineSize;
+        }
+        if ( codeSize <= freqInlineSize ) {
+            return freqInlineSize;
+        }
+        if ( codeSize <= hugeMethodLimit ) {
+            return hugeMethodLimit;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Estimates the byte-code size of a method.
+     *
+     * <p>The estimate assumes that no wide jumps are required and that constant pool entries of <code>LDC</code> instructions
+     * have an index below 256 , except for long/double constants.</p>
+     *
+     * @param method
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static int estimateCodeSize(MethodNode method)
+    {
+        int size = 0;
+        for ( Iterator<AbstractInsnNode> it = method.instructions.iterator() ; it.hasNext() ; )
+        {
+            final AbstractInsnNode insn = it.next();
+            if ( insn.getOpcode() != -1 ) {
+                size += estimateSize( insn , size );
+            }
+        }
+        return size;
+    }
+
+    private static int estimateSize(AbstractInsnNode insn,int offset)
+    {
+        switch( insn.getType() )
+        {
+            case AbstractInsnNode.INSN:
+                return 1;
+            case AbstractInsnNode.INT_INSN:
+                return insn.getOpcode() == Opcodes.SIPUSH ? 3 : 2;
+            case AbstractInsnNode.VAR_INSN:
+                return getLoadStoreSize( ( (VarInsnNode) insn ).var , insn.getOpcode() != Opcodes.RET );
+            case AbstractInsnNode.TYPE_INSN:
+            case AbstractInsnNode.FIELD_INSN:
+            case AbstractInsnNode.JUMP_INSN:
+                return 3;
+            case AbstractInsnNode.METHOD_INSN:
+                return insn.getOpcode() == Opcodes.INVOKEINTERFACE ? 5 : 3;
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                return 5;
+            case AbstractInsnNode.LDC_INSN:
+                final Object cst = ( (LdcInsnNode) insn ).cst;
+                return ( cst instanceof Long || cst instanceof Double ) ? 3 : 2;
+            case AbstractInsnNode.IINC_INSN:
+                final IincInsnNode iinc = (IincInsnNode) insn;
+                return ( iinc.var > 255 || iinc.incr > Byte.MAX_VALUE || iinc.incr < Byte.MIN_VALUE ) ? 6 : 3;
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                return 1 + getSwitchPadding( offset ) + 12 + 4 * ( (TableSwitchInsnNode) insn ).labels.size();
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                return 1 + getSwitchPadding( offset ) + 8 + 8 * ( (LookupSwitchInsnNode) insn ).keys.size();
+            case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getSwitchPadding(int offset) {
+        return 3 - ( offset & 3 );
+    }
+
+    /**
+     * Returns the size of a xLOAD/xSTORE instruction.
+     *
+     * @param var local variable slot
+     * @param hasShortForm whether the opcode has a short form (like <code>ALOAD_0</code>) for slots 0-3
+     * @return
+     */
+    public static int getLoadStoreSize(int var,boolean hasShortForm)
+    {
+        if ( hasShortForm && var <= 3 ) {
+            return 1;
+        }
+        return var <= 255 ? 2 : 4;
+    }
+
+    /**
+     * Returns the size of the instruction used to push an <code>int</code> constant.
+     *
+     * @param value
+     * @return
+     */
+    public static int getPushSize(int value)
+    {
+        if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+            return 2;
+        }
+        if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+            return 3;
+        }
+        return 3; // LDC_W, worst case
+    }
+}
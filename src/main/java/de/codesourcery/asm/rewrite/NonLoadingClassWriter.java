@@ -0,0 +1,283 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A {@link ClassWriter} that determines common super classes by reading
+ * class files instead of loading classes.
+ *
+ * <p>The default implementation of {@link ClassWriter#getCommonSuperClass(String, String)} uses <code>Class.forName()</code>, which
+ * is slow and - when invoked from within a <code>ClassFileTransformer</code> - may deadlock, trigger recursive transformations or
+ * load classes through the wrong class loader.</p>
+ *
+ * <p>Class files are looked up using {@link ClassLoader#getResourceAsStream(String)} , the super class and access flags of each type are cached
+ * per class loader.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class NonLoadingClassWriter extends ClassWriter
+{
+    private static final String OBJECT = "java/lang/Object";
+
+    // key NULL is used for the bootstrap class loader
+    private static final Map<ClassLoader,Map<String,TypeInfo>> CACHE = new WeakHashMap<>();
+
+    private final ClassLoader classLoader;
+    private final Map<String,TypeInfo> types;
+    private final ClassReader reader;
+
+    protected static final class TypeInfo
+    {
+        public final String superName;
+        public final boolean isInterface;
+        // size of all non-static fields declared by this type (assuming compressed references) , -1 if unknown
+        public final int instanceFieldBytes;
+
+        public TypeInfo(String superName, boolean isInterface,int instanceFieldBytes)
+        {
+            this.superName = superName;
+            this.isInterface = isInterface;
+            this.instanceFieldBytes = instanceFieldBytes;
+        }
+    }
+
+    /**
+     * Create writer.
+     *
+     * @param reader reader for the class being written , see {@link ClassWriter#ClassWriter(ClassReader, int)}
+     * @param flags see {@link ClassWriter#ClassWriter(int)}
+     * @param classLoader class loader used to look up class files, <code>null</code> for the bootstrap class loader
+     */
+    public NonLoadingClassWriter(ClassReader reader , int flags,ClassLoader classLoader)
+    {
+        super(reader,flags);
+        this.reader = reader;
+        this.classLoader = classLoader;
+        this.types = getCache( classLoader );
+    }
+    
+    private static Map<String,TypeInfo> getCache(ClassLoader classLoader) 
+    {
+        synchronized( CACHE )
+        {
+            Map<String,TypeInfo> existing = CACHE.get( classLoader );
+            if ( existing == null ) {
+                existing = new ConcurrentHashMap<>();
+                CACHE.put( classLoader , existing );
+            }
+            return existing;
+        }
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2)
+    {
+        if ( type1.equals( type2 ) ) {
+            return type1;
+        }
+        if ( isSuperClassOf( type1 , type2 ) ) {
+            return type1;
+        }
+        if ( isSuperClassOf( type2 , type1 ) ) {
+            return type2;
+        }
+        if ( getTypeInfo( type1 ).isInterface || getTypeInfo( type2 ).isInterface ) {
+            return OBJECT;
+        }
+
+        String current = type1;
+        do {
+            current = getTypeInfo( current ).superName;
+        } while ( ! isSuperClassOf( current , type2 ) );
+        return current;
+    }
+
+    private boolean isSuperClassOf(String superClass,String type)
+    {
+        if ( OBJECT.equals( superClass ) ) {
+            return true;
+        }
+        for ( String current = type ; current != null ; current = getTypeInfo( current ).superName )
+        {
+            if ( current.equals( superClass ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeInfo getTypeInfo(String type)
+    {
+        // the class currently being written has not been defined yet and might not be available as a resource
+        if ( type.equals( reader.getClassName() ) ) {
+            return new TypeInfo( reader.getSuperName() , ( reader.getAccess() & Opcodes.ACC_INTERFACE ) != 0 , -1 );
+        }
+        return getTypeInfo( classLoader , type );
+    }
+    
+    /**
+     * Looks up type information by reading a class file.
+     * 
+     * @param classLoader class loader used to look up the class file , <code>null</code> for the bootstrap class loader
+     * @param type internal name of the type
+     * @return
+     * @throws TypeNotPresentException if the class file could not be found or read
+     */
+    protected static TypeInfo getTypeInfo(ClassLoader classLoader,String type) throws TypeNotPresentException
+    {
+        final Map<String,TypeInfo> types = getCache( classLoader );
+        TypeInfo result = types.get( type );
+        if ( result == null )
+        {
+            result = readTypeInfo( classLoader , type );
+            types.put( type , result );
+        }
+        return result;
+    }
+
+    private static TypeInfo readTypeInfo(ClassLoader classLoader,String type)
+    {
+        final String resource = type+".class";
+        final InputStream in = classLoader != null ? classLoader.getResourceAsStream( resource ) : ClassLoader.getSystemResourceAsStream( resource );
+        if ( in == null ) {
+            throw new TypeNotPresentException( type.replace('/','.') , null );
+        }
+        try {
+            return parseTypeInfo( new DataInputStream( new BufferedInputStream( in ) ) );
+        }
+        catch (IOException e) {
+            throw new TypeNotPresentException( type.replace('/','.') , e );
+        }
+        finally
+        {
+            try {
+                in.close();
+            } catch (IOException e) { /* ok */ }
+        }
+    }
+
+    /*
+     * Only reads the class file header and field declarations. Using ClassReader is not an option here
+     * since it rejects class files with a version newer than what the ASM version in use supports.
+     */
+    private static TypeInfo parseTypeInfo(DataInputStream in) throws IOException
+    {
+        if ( in.readInt() != 0xCAFEBABE ) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        final int poolSize = in.readUnsignedShort();
+        final String[] utf8 = new String[ poolSize ];
+        final int[] classNameIndex = new int[ poolSize ];
+        for ( int i = 1 ; i < poolSize ; i++ )
+        {
+            final int tag = in.readUnsignedByte();
+            switch( tag )
+            {
+                case 1: // UTF8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes( 2 );
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes( 3 );
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes( 4 );
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes( 8 );
+                    i++; // takes up two slots
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag "+tag);
+            }
+        }
+
+        final int access = in.readUnsignedShort();
+        in.readUnsignedShort(); // this class
+        final int superClass = in.readUnsignedShort();
+        final String superName = superClass != 0 ? utf8[ classNameIndex[ superClass ] ] : null;
+        
+        in.skipBytes( 2 * in.readUnsignedShort() ); // interfaces
+        
+        int instanceFieldBytes = 0;
+        final int fieldCount = in.readUnsignedShort();
+        for ( int i = 0 ; i < fieldCount ; i++ ) 
+        {
+            final int fieldAccess = in.readUnsignedShort();
+            in.readUnsignedShort(); // name
+            final String desc = utf8[ in.readUnsignedShort() ];
+            final int attributeCount = in.readUnsignedShort();
+            for ( int j = 0 ; j < attributeCount ; j++ ) 
+            {
+                in.readUnsignedShort(); // attribute name
+                in.skipBytes( in.readInt() );
+            }
+            if ( ( fieldAccess & Opcodes.ACC_STATIC ) == 0 ) {
+                instanceFieldBytes += getFieldSize( desc );
+            }
+        }
+        return new TypeInfo( superName , ( access & Opcodes.ACC_INTERFACE ) != 0 , instanceFieldBytes );
+    }
+    
+    private static int getFieldSize(String desc) 
+    {
+        switch( desc.charAt( 0 ) ) 
+        {
+            case 'J':
+            case 'D':
+                return 8;
+            case 'S':
+            case 'C':
+                return 2;
+            case 'B':
+            case 'Z':
+                return 1;
+            default: // int , float and (compressed) references
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Printer;
+
+import de.codesourcery.asm.controlflow.IBlock;
+
+/**
+ * Cost model that assigns a fixed weight to each opcode.
+ * 
+ * <p>Weights are read from a properties file that maps opcode mnemonics (as used by {@link Printer#OPCODES}) to 
+ * integer weights, like <code>INVOKEINTERFACE=8</code>. Opcodes without an entry have a weight of 1. A table 
+ * with rough weights relative to a simple <code>ILOAD</code> is bundled as {@link #DEFAULT_WEIGHTS_RESOURCE}, 
+ * calibrated tables for a specific JVM/CPU may be loaded using {@link #load(File)}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class OpcodeCostModel implements IInstructionCostModel
+{
+    /**
+     * Classpath resource holding the default weights.
+     */
+    public static final String DEFAULT_WEIGHTS_RESOURCE = "/opcode-costs.properties";
+    
+    private final int[] weights = new int[ Printer.OPCODES.length ];
+    
+    /**
+     * Creates a model that assigns a weight of 1 to all opcodes.
+     */
+    public OpcodeCostModel() {
+        Arrays.fill( weights , 1 );
+    }
+    
+    /**
+     * Creates a model using the given weights.
+     * 
+     * @param weights weights by opcode mnemonic , opcodes missing from the map have a weight of 1
+     * @throws IllegalArgumentException if a mnemonic is unknown or a weight is not a non-negative integer
+     */
+    public OpcodeCostModel(Map<?,?> weights) throws IllegalArgumentException
+    {
+        this();
+        for ( Map.Entry<?,?> entry : weights.entrySet() ) 
+        {
+            final String mnemonic = entry.getKey().toString().trim().toUpperCase();
+            final int opcode = Arrays.asList( Printer.OPCODES ).indexOf( mnemonic );
+            if ( opcode == -1 || mnemonic.length() == 0 ) {
+                throw new IllegalArgumentException("Unknown opcode '"+entry.getKey()+"'");
+            }
+            final int weight;
+            try {
+                weight = Integer.parseInt( entry.getValue().toString().trim() );
+            } 
+            catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight for opcode "+mnemonic+": '"+entry.getValue()+"'");
+            }
+            if ( weight < 0 ) {
+                throw new IllegalArgumentException("Invalid weight for opcode "+mnemonic+": "+weight);
+            }
+            this.weights[ opcode ] = weight;
+        }
+    }
+    
+    /**
+     * Loads the bundled default weights.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public static OpcodeCostModel getDefault() throws IOException 
+    {
+        try ( InputStream in = OpcodeCostModel.class.getResourceAsStream( DEFAULT_WEIGHTS_RESOURCE ) ) 
+        {
+            if ( in == null ) {
+                throw new IOException("Classpath resource "+DEFAULT_WEIGHTS_RESOURCE+" not found");
+            }
+            return load( in );
+        }
+    }
+    
+    /**
+     * Loads weights from a properties file.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static OpcodeCostModel load(File file) throws IOException 
+    {
+        try ( InputStream in = new FileInputStream( file ) ) {
+            return load( in );
+        }
+    }
+    
+    private static OpcodeCostModel load(InputStream in) throws IOException 
+    {
+        final Properties props = new Properties();
+        props.load( in );
+        return new OpcodeCostModel( props );
+    }
+    
+    /**
+     * Returns the weight of an opcode.
+     * 
+     * @param opcode
+     * @return
+     */
+    public int getWeight(int opcode) {
+        return weights[ opcode ];
+    }
+    
+    @Override
+    public int getCost(AbstractInsnNode insn) {
+        return weights[ insn.getOpcode() ];
+    }
+    
+    /**
+     * Returns all weights other than 1 , in opcode order.
+     * 
+     * <p>Models with the same weights have the same string representation , the transform cache relies on this
+     * to tell instrumented classes generated with different weights apart.</p>
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder("OpcodeCostModel[");
+        boolean first = true;
+        for ( int opcode = 0 ; opcode < weights.length ; opcode++ ) 
+        {
+            if ( weights[ opcode ] != 1 ) 
+            {
+                if ( ! first ) {
+                    result.append(',');
+                }
+                result.append( Printer.OPCODES[ opcode ] ).append('=').append( weights[ opcode ] );
+                first = false;
+            }
+        }
+        return result.append(']').toString();
+    }
+    
+    /**
+     * Returns the cost of all byte-code instructions of a block.
+     * 
+     * @param block
+     * @param method
+     * @param model cost model or <code>null</code> to charge each instruction with 1
+     * @return
+     * @see IBlock#getByteCodeInstructionCount(MethodNode)
+     */
+    @SuppressWarnings("unchecked")
+    public static int getBlockCost(IBlock block,MethodNode method,IInstructionCostModel model) 
+    {
+        if ( model == null ) {
+            return block.getByteCodeInstructionCount( method );
+        }
+        
+        int cost = 0;
+        int index = 0;
+        for ( Iterator<AbstractInsnNode> it = method.instructions.iterator() ; it.hasNext() ; index++ ) 
+        {
+            final AbstractInsnNode insn = it.next();
+            final int opcode = insn.getOpcode();
+            if ( opcode >= 0 && opcode < Printer.OPCODES.length && block.containsInstructionNum( index ) ) {
+                cost += model.getCost( insn );
+            }
+        }
+        return cost;
+    }
+}
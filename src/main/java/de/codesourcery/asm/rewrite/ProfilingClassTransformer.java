@@ -21,16 +21,34 @@ import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.security.CodeSource;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.objectweb.asm.ClassReader;
 
+import de.codesourcery.asm.profiling.AllocationCounters;
+import de.codesourcery.asm.profiling.CallingContextTree;
+import de.codesourcery.asm.profiling.JfrEventEmitter;
+import de.codesourcery.asm.profiling.LiveCounterReader;
+import de.codesourcery.asm.profiling.LiveCounters;
+import de.codesourcery.asm.profiling.NoProfiling;
+import de.codesourcery.asm.profiling.ProfilingSwitch;
+import de.codesourcery.asm.profiling.Sampler;
+import de.codesourcery.asm.profiling.TaskAttribution;
 import de.codesourcery.asm.util.IClassReaderProvider;
-import de.codesourcery.asm.util.IJoinpointFilter;
+import de.codesourcery.asm.util.CompiledJoinpointFilter;
+import de.codesourcery.asm.util.IMethodSignatureFilter;
 
 /**
  * A Java instrumentation agent that applies the {@link ProfilingRewriter} to
@@ -39,6 +57,16 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * <p>To use this agent, it needs to be part of a JAR file with a 'Pre-mainclass:' attribute in it's manifest
  * file that points to this class.</p>
  * 
+ * <p>The agent may also be attached to an already running JVM ('Agent-Class:' manifest attribute), in which case
+ * already loaded classes are retransformed. Attaching a second time with <code>action=stop</code> retransforms all instrumented 
+ * classes back to their original byte-code, so profiling can be limited to a measurement window:</p>
+ * 
+ * <pre>
+ * jcmd &lt;pid&gt; JVMTI.agent_load target/controlflow.jar "packages=some.package;action=start"
+ * ...
+ * jcmd &lt;pid&gt; JVMTI.agent_load target/controlflow.jar "action=stop"
+ * </pre>
+ * 
  * <p>An example JVM invocation would look like</p>
  * 
  * <pre>
@@ -46,8 +74,11 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * </pre>
  * 
  * <p>
- * The agent supports the following agent options of which only <code>packages</code> is mandatory. Multiple
- * options need to be separated by semicolons (packages=a;debug=true;...)</p>
+ * The agent supports the following agent options of which only <code>packages</code> or <code>include</code> is mandatory (except for <code>action</code>s other than 
+ * <code>start</code>). Multiple options need to be separated by semicolons (packages=a;debug=true;...)</p>
+ * 
+ * <p>Class and method patterns are globs (see {@link CompiledJoinpointFilter}). Since semicolons separate options, method descriptors
+ * in patterns need to use a wildcard instead (<code>parse(Ljava/lang/String*</code>).</p>
  * 
  * <table border="1">
  *   <tr>
@@ -58,11 +89,41 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  *   </tr> 
  *   <tr>
  *     <td>packages</td>
- *     <td>YES</td>
- *     <td>comma-separated list of patterns a fully-qualified classname needs to match in order to be instrumented</td>
+ *     <td>YES (unless <code>include</code> is used)</td>
+ *     <td>comma-separated list of strings a fully-qualified classname needs to contain in order to be instrumented</td>
  *     <td>packages=some.package,some.package.MyClass,ClassInAnyPackage</td>
  *   </tr>
  *   <tr>
+ *     <td>include</td>
+ *     <td>YES (unless <code>packages</code> is used)</td>
+ *     <td>comma-separated list of glob patterns a class needs to match in order to be instrumented</td>
+ *     <td>include=com.acme.**,org.example.*Service</td>
+ *   </tr>
+ *   <tr>
+ *     <td>exclude</td>
+ *     <td>no</td>
+ *     <td>comma-separated list of glob patterns of classes that should not be instrumented</td>
+ *     <td>exclude=com.acme.generated.**</td>
+ *   </tr>
+ *   <tr>
+ *     <td>methods</td>
+ *     <td>no</td>
+ *     <td>comma-separated list of glob patterns a method name (or name and descriptor) needs to match in order to be instrumented</td>
+ *     <td>methods=process*,handle(I)*</td>
+ *   </tr>
+ *   <tr>
+ *     <td>excludeMethods</td>
+ *     <td>no</td>
+ *     <td>comma-separated list of glob patterns of methods that should not be instrumented</td>
+ *     <td>excludeMethods=toString,hashCode,get*</td>
+ *   </tr>
+ *   <tr>
+ *     <td>optOut</td>
+ *     <td>no</td>
+ *     <td>fully-qualified name of an annotation that prevents instrumentation of annotated classes, methods and constructors (default: {@link NoProfiling})</td>
+ *     <td>optOut=com.acme.NotProfiled</td>
+ *   </tr>
+ *   <tr>
  *     <td>debug</td>
  *     <td>no</td>
  *     <td>comma-separated list of patterns a fully-qualified classname needs to match in order to be instrumented</td>
@@ -74,6 +135,150 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  *     <td>name of directory where instrumented classes should be written to</td>
  *     <td>debugDir=/tmp</td>
  *   </tr>  
+ *   <tr>
+ *     <td>sampling</td>
+ *     <td>no</td>
+ *     <td>sampling interval, only one out of N method invocations/loop iterations gets counted (see {@link ProfilingRewriter#setSamplingInterval(int)})</td>
+ *     <td>sampling=1000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>action</td>
+ *     <td>no</td>
+ *     <td>only used when attaching to a running JVM: <code>start</code> (default) instruments all matching classes, <code>stop</code> restores the original byte-code, 
+ *     <code>enable</code>/<code>disable</code> switch guarded probes on/off without retransforming any classes, 
+ *     <code>dump</code> writes the calling-context profile (see <code>callingContext</code>)</td>
+ *     <td>action=stop</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>duration</td>
+ *     <td>no</td>
+ *     <td>automatically restore the original byte-code after this many seconds</td>
+ *     <td>duration=60</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>guarded</td>
+ *     <td>no</td>
+ *     <td>guard probes with <code>invokedynamic</code> so that profiling can be switched off/on at runtime at (almost) zero cost (see {@link ProfilingRewriter#setGuardedProbes(boolean)})</td>
+ *     <td>guarded=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>cacheDir</td>
+ *     <td>no</td>
+ *     <td>directory where instrumented classes are cached across JVM restarts (see {@link TransformCache}), may be shared by several JVMs</td>
+ *     <td>cacheDir=/var/tmp/profiler</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>cacheSize</td>
+ *     <td>no</td>
+ *     <td>size budget of the cache directory in megabytes (default: 100)</td>
+ *     <td>cacheSize=500</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>accumulate</td>
+ *     <td>no</td>
+ *     <td>accumulate instruction counts in a local variable and only update the per-thread statistics at method exits, invocations, exception handlers and loop back edges (see {@link ProfilingRewriter#setLocalAccumulation(boolean)})</td>
+ *     <td>accumulate=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>hoistLoops</td>
+ *     <td>no</td>
+ *     <td>count simple counted loops once on loop exit instead of on every iteration (see {@link ProfilingRewriter#setLoopHoisting(boolean)})</td>
+ *     <td>hoistLoops=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>jitBudget</td>
+ *     <td>no</td>
+ *     <td>degrade instrumentation of methods whose instrumented size would exceed one of the JIT compiler's size limits (see {@link ProfilingRewriter#setJitBudget(JitBudget)})</td>
+ *     <td>jitBudget=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>maxInlineSize</td>
+ *     <td>no</td>
+ *     <td>JIT budget: size limit in bytes for methods that are always inlined (default: 35)</td>
+ *     <td>maxInlineSize=35</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>freqInlineSize</td>
+ *     <td>no</td>
+ *     <td>JIT budget: size limit in bytes for hot methods that are inlined (default: 325)</td>
+ *     <td>freqInlineSize=325</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>hugeMethodLimit</td>
+ *     <td>no</td>
+ *     <td>JIT budget: size limit in bytes for methods that get compiled at all (default: 8000)</td>
+ *     <td>hugeMethodLimit=8000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>liveCounters</td>
+ *     <td>no</td>
+ *     <td>memory-mapped file that per-block instruction counters are written to while the application is running, 
+ *     may be inspected with {@link LiveCounterReader} (disables <code>cacheDir</code>)</td>
+ *     <td>liveCounters=/tmp/counters.dat</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>liveCountersCapacity</td>
+ *     <td>no</td>
+ *     <td>max. number of blocks in the live counter file (default: 262144)</td>
+ *     <td>liveCountersCapacity=1000000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>jfr</td>
+ *     <td>no</td>
+ *     <td>periodically emit JDK Flight Recorder events with per-thread instruction counts (and per-method counts if <code>liveCounters</code> is used), see {@link JfrEventEmitter}</td>
+ *     <td>jfr=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>jfrInterval</td>
+ *     <td>no</td>
+ *     <td>interval in milliseconds between JFR events (default: 1000)</td>
+ *     <td>jfrInterval=500</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>attribution</td>
+ *     <td>no</td>
+ *     <td>'thread' (default) to count instructions per thread or 'task' to charge them to the logical task that submitted a <code>Runnable</code>/<code>Callable</code> 
+ *     to an executor or started a thread (see {@link TaskAttribution})</td>
+ *     <td>attribution=task</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>maxTasks</td>
+ *     <td>no</td>
+ *     <td>task attribution: max. number of distinct tasks to keep counts for (default: 10000)</td>
+ *     <td>maxTasks=1000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>costModel</td>
+ *     <td>no</td>
+ *     <td>charge instructions by opcode weight instead of 1 per instruction: 'default' for the bundled weights or a properties file 
+ *     mapping opcode mnemonics to weights (see {@link OpcodeCostModel})</td>
+ *     <td>costModel=default</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>allocations</td>
+ *     <td>no</td>
+ *     <td>count executed allocation sites and estimated allocated bytes, the top allocating sites and blocks are printed when the JVM exits (see {@link AllocationCounters})</td>
+ *     <td>allocations=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>allocationsTop</td>
+ *     <td>no</td>
+ *     <td>number of allocation sites and blocks to report (default: 20)</td>
+ *     <td>allocationsTop=50</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>callingContext</td>
+ *     <td>no</td>
+ *     <td>charge instructions to call chains instead of threads and write them in collapsed-stack format (flame graph input) to this file when the JVM exits , 
+ *     when profiling is stopped or when attaching with <code>action=dump</code> (see {@link CallingContextTree}). Not supported together with <code>sampling</code> or <code>guarded</code></td>
+ *     <td>callingContext=/tmp/stacks.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>callingContextPerThread</td>
+ *     <td>no</td>
+ *     <td>calling-context profiling: use the thread name as root frame instead of merging the call chains of all threads</td>
+ *     <td>callingContextPerThread=true</td>
+ *   </tr>  
  * </table>
  * </p>
  * 
@@ -85,54 +290,514 @@ public class ProfilingClassTransformer
     private static final String OPTION_DEBUG = "debug";
     private static final String OPTION_DEBUG_WRITE_CLASSFILES = "debugDir";
     private static final String OPTION_PACKAGES = "packages";
+    private static final String OPTION_SAMPLING = "sampling";
+    private static final String OPTION_ACTION = "action";
+    private static final String OPTION_DURATION = "duration";
+    private static final String OPTION_GUARDED = "guarded";
+    private static final String OPTION_INCLUDE = "include";
+    private static final String OPTION_EXCLUDE = "exclude";
+    private static final String OPTION_METHODS = "methods";
+    private static final String OPTION_EXCLUDE_METHODS = "excludeMethods";
+    private static final String OPTION_OPT_OUT = "optOut";
+    private static final String OPTION_CACHE_DIR = "cacheDir";
+    private static final String OPTION_CACHE_SIZE = "cacheSize";
+    private static final String OPTION_ACCUMULATE = "accumulate";
+    private static final String OPTION_HOIST_LOOPS = "hoistLoops";
+    private static final String OPTION_JIT_BUDGET = "jitBudget";
+    private static final String OPTION_MAX_INLINE_SIZE = "maxInlineSize";
+    private static final String OPTION_FREQ_INLINE_SIZE = "freqInlineSize";
+    private static final String OPTION_HUGE_METHOD_LIMIT = "hugeMethodLimit";
+    private static final String OPTION_LIVE_COUNTERS = "liveCounters";
+    private static final String OPTION_LIVE_COUNTERS_CAPACITY = "liveCountersCapacity";
+    private static final String OPTION_JFR = "jfr";
+    private static final String OPTION_JFR_INTERVAL = "jfrInterval";
+    private static final String OPTION_ATTRIBUTION = "attribution";
+    private static final String OPTION_MAX_TASKS = "maxTasks";
+    private static final String OPTION_COST_MODEL = "costModel";
+    private static final String OPTION_ALLOCATIONS = "allocations";
+    private static final String OPTION_ALLOCATIONS_TOP = "allocationsTop";
+    private static final String OPTION_CALLING_CONTEXT = "callingContext";
+    private static final String OPTION_CALLING_CONTEXT_PER_THREAD = "callingContextPerThread";
+    
+    private static final long DEFAULT_CACHE_SIZE_MB = 100;
+    private static final int DEFAULT_LIVE_COUNTERS_CAPACITY = 256*1024;
+    private static final long DEFAULT_JFR_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_ALLOCATIONS_TOP = 20;
+    // average size of a block table entry
+    private static final int LIVE_COUNTERS_BYTES_PER_BLOCK = 128;
+    
+    // options that do not affect the generated byte-code and thus are not part of cache keys
+    private static final Set<String> NON_TRANSFORMING_OPTIONS = new HashSet<>( Arrays.asList( OPTION_DEBUG , OPTION_DEBUG_WRITE_CLASSFILES , 
+            OPTION_ACTION , OPTION_DURATION , OPTION_CACHE_DIR , OPTION_CACHE_SIZE , OPTION_JFR , OPTION_JFR_INTERVAL , OPTION_MAX_TASKS , 
+            OPTION_ALLOCATIONS_TOP , OPTION_CALLING_CONTEXT_PER_THREAD ) );
+    
+    private static final String ACTION_START = "start";
+    private static final String ACTION_STOP = "stop";
+    private static final String ACTION_ENABLE = "enable";
+    private static final String ACTION_DISABLE = "disable";
+    private static final String ACTION_DUMP = "dump";
+    
+    // packages of classes that instrumented code and the rewriter depend on , instrumenting them would cause recursion
+    private static final String[] AGENT_PACKAGES = { "de/codesourcery/asm/profiling/" , "de/codesourcery/asm/rewrite/" , 
+        "de/codesourcery/asm/util/" , "de/codesourcery/asm/controlflow/" , "org/objectweb/asm/" };
+    
+    private static final String ATTRIBUTION_THREAD = "thread";
+    private static final String ATTRIBUTION_TASK = "task";
+    
+    private static final String COST_MODEL_DEFAULT = "default";
 
+    // guarded by ProfilingClassTransformer.class
+    private static MyTransformer activeTransformer;
+    private static Instrumentation instrumentation;
+    // JfrEventEmitter (declared as Thread , JFR might not be available) and timer thread of the 'duration' option , NULL if not running
+    private static Thread jfrEmitter;
+    private static Thread profilingTimer;
+    private static boolean allocationReportHookAdded;
+    private static boolean callingContextHookAdded;
+    private static volatile int allocationReportTop;
+    // calling-context profiling output , NULL if disabled
+    private static volatile File callingContextFile;
+    private static volatile boolean callingContextPerThread;
+    
     public static void premain(String agentArgs, Instrumentation inst) 
     {
-        // parse options
-        final Map<String, String> options = parseArgs( agentArgs);
+        startProfiling( parseArgs( agentArgs ) , inst , false );
+    }
+    
+    public static void agentmain(String agentArgs, Instrumentation inst) 
+    {
+        final Map<String, String> options = parseArgs( agentArgs );
         
-        if ( StringUtils.isBlank( options.get(OPTION_PACKAGES ) ) )
+        final String action = options.containsKey( OPTION_ACTION ) ? options.get( OPTION_ACTION ) : ACTION_START;
+        switch( action ) 
         {
-            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires the 'packages=....' option");
+            case ACTION_START:
+                startProfiling( options , inst , true );
+                break;
+            case ACTION_STOP:
+                stopProfiling();
+                break;
+            case ACTION_ENABLE:
+                ProfilingSwitch.setEnabled( true );
+                break;
+            case ACTION_DISABLE:
+                ProfilingSwitch.setEnabled( false );
+                break;
+            case ACTION_DUMP:
+                final File file = options.containsKey( OPTION_CALLING_CONTEXT ) ? new File( options.get( OPTION_CALLING_CONTEXT ) ) : callingContextFile;
+                if ( file == null ) {
+                    throw new IllegalArgumentException("Action '"+ACTION_DUMP+"' requires option '"+OPTION_CALLING_CONTEXT+"' (calling-context profiling is not enabled)");
+                }
+                writeCollapsedStacks( file );
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown action '"+action+"', expected one of '"+ACTION_START+"', '"+ACTION_STOP+"', '"+
+                        ACTION_ENABLE+"', '"+ACTION_DISABLE+"' or '"+ACTION_DUMP+"'");
+        }
+    }
+    
+    private static synchronized void startProfiling(Map<String, String> options , Instrumentation inst,boolean retransformLoadedClasses) 
+    {
+        if ( activeTransformer != null ) {
+            throw new IllegalStateException("Agent "+ProfilingClassTransformer.class.getName()+" is already active");
         }
-
-        final boolean debug = options.containsKey(OPTION_DEBUG);
         
-        final String[] packages = options.get(OPTION_PACKAGES ).split(",");
+        final List<String> includedClasses = new ArrayList<>();
+        for ( String p : CompiledJoinpointFilter.split( options.get( OPTION_PACKAGES ) ) ) {
+            includedClasses.add( "**"+p+"**" ); // 'packages' uses substring matching
+        }
+        includedClasses.addAll( CompiledJoinpointFilter.split( options.get( OPTION_INCLUDE ) ) );
         
-        if ( ArrayUtils.isEmpty( packages ) ) 
+        if ( includedClasses.isEmpty() ) 
         {
-            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires at least one pattern with the 'packages=....' option");            
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires at least one pattern with the 'packages=....' or 'include=...' option");            
         }
         
+        final boolean debug = options.containsKey(OPTION_DEBUG);
+        
         if ( debug ) {
-            System.out.println("ProfilingClassTransformer activated (packages: "+StringUtils.join(packages," , " )+")");
+            System.out.println("ProfilingClassTransformer activated (classes: "+StringUtils.join(includedClasses," , " )+")");
         }
 
-        final IJoinpointFilter filter = new IJoinpointFilter() {
-            
-            @Override
-            public boolean matches(String clazz, String methodName)
+        final String optOutAnnotation = options.containsKey( OPTION_OPT_OUT ) ? options.get( OPTION_OPT_OUT ) : NoProfiling.class.getName();
+        final CompiledJoinpointFilter filter = new CompiledJoinpointFilter( includedClasses , 
+                CompiledJoinpointFilter.split( options.get( OPTION_EXCLUDE ) ) ,
+                CompiledJoinpointFilter.split( options.get( OPTION_METHODS ) ) ,
+                CompiledJoinpointFilter.split( options.get( OPTION_EXCLUDE_METHODS ) ) ,
+                optOutAnnotation );
+        
+        final File debugOutputDir = options.containsKey( OPTION_DEBUG_WRITE_CLASSFILES ) ? new File(  options.get( OPTION_DEBUG_WRITE_CLASSFILES ) ) : null;
+        final MyTransformer transformer = new MyTransformer(filter,debug,debugOutputDir);
+        
+        if ( options.containsKey( OPTION_SAMPLING ) ) 
+        {
+            final int interval = Integer.parseInt( options.get( OPTION_SAMPLING ) );
+            Sampler.setInterval( interval );
+            transformer.getRewriter().setSamplingInterval( interval );
+            if ( debug ) {
+                System.out.println("Sampling one out of "+interval+" executions");
+            }
+        }
+        
+        if ( "true".equals( options.get( OPTION_GUARDED ) ) ) 
+        {
+            transformer.getRewriter().setGuardedProbes( true );
+            if ( debug ) {
+                System.out.println("Using guarded probes");
+            }
+        }
+        
+        if ( "true".equals( options.get( OPTION_ACCUMULATE ) ) ) 
+        {
+            transformer.getRewriter().setLocalAccumulation( true );
+            if ( debug ) {
+                System.out.println("Accumulating instruction counts in local variables");
+            }
+        }
+        
+        if ( "true".equals( options.get( OPTION_HOIST_LOOPS ) ) ) 
+        {
+            transformer.getRewriter().setLoopHoisting( true );
+            if ( debug ) {
+                System.out.println("Counting simple loops on loop exit");
+            }
+        }
+        
+        if ( "true".equals( options.get( OPTION_JIT_BUDGET ) ) ) 
+        {
+            final JitBudget budget = new JitBudget();
+            if ( options.containsKey( OPTION_MAX_INLINE_SIZE ) ) {
+                budget.setMaxInlineSize( Integer.parseInt( options.get( OPTION_MAX_INLINE_SIZE ) ) );
+            }
+            if ( options.containsKey( OPTION_FREQ_INLINE_SIZE ) ) {
+                budget.setFreqInlineSize( Integer.parseInt( options.get( OPTION_FREQ_INLINE_SIZE ) ) );
+            }
+            if ( options.containsKey( OPTION_HUGE_METHOD_LIMIT ) ) {
+                budget.setHugeMethodLimit( Integer.parseInt( options.get( OPTION_HUGE_METHOD_LIMIT ) ) );
+            }
+            transformer.getRewriter().setJitBudget( budget );
+            if ( debug ) {
+                System.out.println("Using JIT budget (MaxInlineSize: "+budget.getMaxInlineSize()+" , FreqInlineSize: "+
+                        budget.getFreqInlineSize()+" , HugeMethodLimit: "+budget.getHugeMethodLimit()+")");
+            }
+        }
+        
+        if ( options.containsKey( OPTION_COST_MODEL ) ) 
+        {
+            final String model = options.get( OPTION_COST_MODEL );
+            try {
+                transformer.getRewriter().setCostModel( COST_MODEL_DEFAULT.equals( model ) ? OpcodeCostModel.getDefault() : OpcodeCostModel.load( new File( model ) ) );
+            } 
+            catch(IOException e) {
+                throw new RuntimeException("Failed to load cost model '"+model+"'",e);
+            }
+            if ( debug ) {
+                System.out.println("Using cost model: "+model);
+            }
+        }
+        
+        if ( "true".equals( options.get( OPTION_ALLOCATIONS ) ) ) 
+        {
+            final int top = options.containsKey( OPTION_ALLOCATIONS_TOP ) ? Integer.parseInt( options.get( OPTION_ALLOCATIONS_TOP ) ) : DEFAULT_ALLOCATIONS_TOP;
+            transformer.getRewriter().setAllocationCounting( true );
+            allocationReportTop = top;
+            if ( ! allocationReportHookAdded ) 
             {
-                return true;
+                // counters are never reset , so a single report covers all profiling sessions
+                Runtime.getRuntime().addShutdownHook( new Thread("allocation-report") {
+                    @Override
+                    public void run()
+                    {
+                        AllocationCounters.printReport( System.out , allocationReportTop );
+                    }
+                });
+                allocationReportHookAdded = true;
             }
-            
-            @Override
-            public boolean matches(String clazz)
+            if ( debug ) {
+                System.out.println("Counting allocation sites");
+            }
+        }
+        
+        if ( options.containsKey( OPTION_CALLING_CONTEXT ) ) 
+        {
+            if ( options.containsKey( OPTION_SAMPLING ) ) {
+                throw new IllegalArgumentException("Option '"+OPTION_CALLING_CONTEXT+"' cannot be combined with '"+OPTION_SAMPLING+"'");
+            }
+            if ( "true".equals( options.get( OPTION_GUARDED ) ) ) {
+                throw new IllegalArgumentException("Option '"+OPTION_CALLING_CONTEXT+"' cannot be combined with '"+OPTION_GUARDED+"'");
+            }
+            callingContextFile = new File( options.get( OPTION_CALLING_CONTEXT ) );
+            callingContextPerThread = "true".equals( options.get( OPTION_CALLING_CONTEXT_PER_THREAD ) );
+            CallingContextTree.setEnabled( true );
+            transformer.getRewriter().setCallingContextProfiling( true );
+            if ( ! callingContextHookAdded ) 
             {
-                for ( String p : packages ) {
-                    if ( clazz.contains( p ) ) {
-                        return true;
+                // the tree is never reset , so the file written at exit covers all profiling sessions
+                Runtime.getRuntime().addShutdownHook( new Thread("calling-context-report") {
+                    @Override
+                    public void run()
+                    {
+                        final File file = callingContextFile;
+                        if ( file != null ) { // NULL if profiling was stopped before
+                            writeCollapsedStacks( file );
+                        }
                     }
+                });
+                callingContextHookAdded = true;
+            }
+            if ( debug ) {
+                System.out.println("Writing calling-context profile to "+callingContextFile.getAbsolutePath());
+            }
+        }
+        
+        final String attribution = options.containsKey( OPTION_ATTRIBUTION ) ? options.get( OPTION_ATTRIBUTION ) : ATTRIBUTION_THREAD;
+        if ( ATTRIBUTION_TASK.equals( attribution ) ) 
+        {
+            if ( options.containsKey( OPTION_MAX_TASKS ) ) {
+                TaskAttribution.setMaxTasks( Integer.parseInt( options.get( OPTION_MAX_TASKS ) ) );
+            }
+            TaskAttribution.setEnabled( true );
+            transformer.getRewriter().setTaskAttribution( true );
+            if ( debug ) {
+                System.out.println("Charging instructions to tasks (max. "+TaskAttribution.getMaxTasks()+" tasks)");
+            }
+        } 
+        else if ( ! ATTRIBUTION_THREAD.equals( attribution ) ) {
+            throw new IllegalArgumentException("Unknown attribution '"+attribution+"', expected one of '"+ATTRIBUTION_THREAD+"', '"+ATTRIBUTION_TASK+"'");
+        }
+        
+        File liveCounterFile = null;
+        if ( options.containsKey( OPTION_LIVE_COUNTERS ) ) 
+        {
+            final File file = new File( options.get( OPTION_LIVE_COUNTERS ) );
+            final int capacity = options.containsKey( OPTION_LIVE_COUNTERS_CAPACITY ) ? 
+                    Integer.parseInt( options.get( OPTION_LIVE_COUNTERS_CAPACITY ) ) : DEFAULT_LIVE_COUNTERS_CAPACITY;
+            try 
+            {
+                LiveCounters.open( file , capacity , capacity*LIVE_COUNTERS_BYTES_PER_BLOCK );
+                transformer.getRewriter().setLiveCounters( true );
+                liveCounterFile = file;
+                if ( debug ) {
+                    System.out.println("Writing live counters to "+file.getAbsolutePath()+" (max. "+capacity+" blocks)");
                 }
-                return false;
+            } 
+            catch(IOException e) {
+                System.err.println("Failed to create live counter file "+file.getAbsolutePath()+" , live counters disabled ("+e.getMessage()+")");
             }
-        };
+        }
         
-        final File debugOutputDir = options.containsKey( OPTION_DEBUG_WRITE_CLASSFILES ) ? new File(  options.get( OPTION_DEBUG_WRITE_CLASSFILES ) ) : null;
-        inst.addTransformer(new MyTransformer(filter,debug,debugOutputDir) , false ); // no re-transformation support
+        if ( options.containsKey( OPTION_CACHE_DIR ) && ! transformer.getRewriter().isCacheable() ) {
+            // counter indices and method IDs are assigned while rewriting and are part of the generated byte-code
+            System.out.println("Live counters, allocation counting or calling-context profiling enabled, not using transform cache");
+        } 
+        else if ( options.containsKey( OPTION_CACHE_DIR ) ) 
+        {
+            final long sizeInMB = options.containsKey( OPTION_CACHE_SIZE ) ? Long.parseLong( options.get( OPTION_CACHE_SIZE ) ) : DEFAULT_CACHE_SIZE_MB;
+            final File cacheDir = new File( options.get( OPTION_CACHE_DIR ) );
+            try {
+                transformer.setCache( new TransformCache( cacheDir , sizeInMB*1024*1024 , getCacheConfiguration( options , transformer.getRewriter().getCostModel() ) ) );
+            } 
+            catch(IOException e) {
+                System.err.println("Failed to set up transform cache in "+cacheDir.getAbsolutePath()+" , caching disabled ("+e.getMessage()+")");
+            }
+            if ( debug ) {
+                System.out.println("Caching instrumented classes in "+cacheDir.getAbsolutePath()+" (max. "+sizeInMB+" MB)");
+            }
+        }
+        
+        final boolean canRetransform = inst.isRetransformClassesSupported();
+        inst.addTransformer( transformer , canRetransform );
+        activeTransformer = transformer;
+        instrumentation = inst;
+
+        if ( retransformLoadedClasses ) 
+        {
+            if ( ! canRetransform ) {
+                throw new IllegalStateException("JVM does not support retransformation, cannot instrument already loaded classes");
+            }
+            final List<Class<?>> classes = new ArrayList<>();
+            for ( Class<?> clazz : inst.getAllLoadedClasses() ) 
+            {
+                if ( inst.isModifiableClass( clazz ) && filter.matches( clazz.getName() ) ) {
+                    classes.add( clazz );
+                }
+            }
+            retransform( classes , debug );
+        }
+        
+        if ( "true".equals( options.get( OPTION_JFR ) ) ) 
+        {
+            final long interval = options.containsKey( OPTION_JFR_INTERVAL ) ? Long.parseLong( options.get( OPTION_JFR_INTERVAL ) ) : DEFAULT_JFR_INTERVAL_MILLIS;
+            try 
+            {
+                final Thread emitter = new JfrEventEmitter( interval , liveCounterFile );
+                emitter.start();
+                jfrEmitter = emitter;
+                if ( debug ) {
+                    System.out.println("Emitting JFR events every "+interval+" ms"+( liveCounterFile == null ? " (per-thread only, per-method events require live counters)" : "" ) );
+                }
+            } 
+            catch(IOException | LinkageError e) { // LinkageError: JVM without JFR
+                System.err.println("Failed to start JFR event emitter , JFR events disabled ("+e+")");
+            }
+        }
+        
+        if ( options.containsKey( OPTION_DURATION ) ) 
+        {
+            final long seconds = Long.parseLong( options.get( OPTION_DURATION ) );
+            final Thread timer = new Thread("profiling-window") {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep( seconds*1000 );
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized( ProfilingClassTransformer.class ) 
+                    {
+                        // profiling might have been stopped (and started again) in the meantime
+                        if ( profilingTimer == this ) {
+                            stopProfiling();
+                        }
+                    }
+                }
+            };
+            timer.setDaemon( true );
+            timer.start();
+            profilingTimer = timer;
+        }
+    }
+
+    private static void writeCollapsedStacks(File file) 
+    {
+        try {
+            CallingContextTree.writeCollapsedStacks( file , callingContextPerThread );
+            System.out.println("Calling-context profile written to "+file.getAbsolutePath());
+        } 
+        catch(IOException e) {
+            System.err.println("Failed to write calling-context profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+        }
+    }
+    
+    private static boolean isAgentClass(String internalName) 
+    {
+        for ( String pkg : AGENT_PACKAGES ) 
+        {
+            if ( internalName.startsWith( pkg ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Disables the profiling transformer , restores the original byte-code
+     * of all instrumented classes , disables calling-context profiling (writing the profile) and task attribution and 
+     * stops the JFR event emitter and the profiling window timer (if any).
+     */
+    private static synchronized void stopProfiling() 
+    {
+        final MyTransformer transformer = activeTransformer;
+        if ( transformer == null ) {
+            System.err.println("Agent "+ProfilingClassTransformer.class.getName()+" is not active");
+            return;
+        }
+        
+        // a disabled transformer does not modify classes, so retransforming them yields the original byte-code
+        transformer.setEnabled( false );
+        
+        if ( instrumentation.isRetransformClassesSupported() ) 
+        {
+            final Set<String> transformed = transformer.getTransformedClasses();
+            final List<Class<?>> classes = new ArrayList<>();
+            for ( Class<?> clazz : instrumentation.getAllLoadedClasses() ) 
+            {
+                if ( transformed.contains( clazz.getName() ) && instrumentation.isModifiableClass( clazz ) ) {
+                    classes.add( clazz );
+                }
+            }
+            retransform( classes , transformer.debug );
+        }
+        instrumentation.removeTransformer( transformer );
+        activeTransformer = null;
+        
+        // charge instructions to threads again in case the next session uses neither of these
+        CallingContextTree.setEnabled( false );
+        TaskAttribution.setEnabled( false );
+        
+        // write the profile now , the file might no longer be writable when the JVM exits
+        final File file = callingContextFile;
+        if ( file != null ) 
+        {
+            writeCollapsedStacks( file );
+            callingContextFile = null;
+        }
+        
+        if ( jfrEmitter != null ) 
+        {
+            jfrEmitter.interrupt();
+            jfrEmitter = null;
+        }
+        if ( profilingTimer != null ) 
+        {
+            if ( profilingTimer != Thread.currentThread() ) {
+                profilingTimer.interrupt();
+            }
+            profilingTimer = null;
+        }
+    }
+
+    private static void retransform(List<Class<?>> classes,boolean debug) 
+    {
+        if ( debug ) {
+            System.out.println("Retransforming "+classes.size()+" classes");
+        }
+        
+        for ( Class<?> clazz : classes ) 
+        {
+            // retransform one by one so that a single broken class does not affect the others
+            try {
+                instrumentation.retransformClasses( clazz );
+            } 
+            catch(Throwable t) {
+                System.err.println("Failed to retransform "+clazz.getName()+" ("+t.getMessage()+")");
+            }
+        }
     }
 
+    /**
+     * Returns a string describing everything that affects the generated byte-code
+     * (all relevant agent options , the weights of the cost model and the agent JAR itself).
+     */
+    private static String getCacheConfiguration(Map<String,String> options,IInstructionCostModel costModel) 
+    {
+        final StringBuilder result = new StringBuilder();
+        for ( Map.Entry<String,String> entry : new TreeMap<>( options ).entrySet() ) 
+        {
+            if ( ! NON_TRANSFORMING_OPTIONS.contains( entry.getKey() ) ) {
+                result.append( entry.getKey() ).append('=').append( entry.getValue() ).append(';');
+            }
+        }
+        
+        // the 'costModel' option only names the weights file , its contents might have changed since
+        if ( costModel != null ) {
+            result.append( costModel ).append(';');
+        }
+        
+        // a rebuilt agent may generate different byte-code
+        final CodeSource source = ProfilingRewriter.class.getProtectionDomain().getCodeSource();
+        if ( source != null && source.getLocation() != null ) 
+        {
+            result.append( source.getLocation() );
+            if ( "file".equals( source.getLocation().getProtocol() ) ) {
+                final File file = new File( source.getLocation().getPath() );
+                result.append(';').append( file.lastModified() ).append(';').append( file.length() );
+            }
+        }
+        return result.toString();
+    }
+    
     private static Map<String,String> parseArgs(String arguments) 
     {
         final Map<String,String> result = new HashMap<>();
@@ -152,11 +817,14 @@ public class ProfilingClassTransformer
     public static final class MyTransformer implements ClassFileTransformer 
     {
         private final ProfilingRewriter rewriter = new ProfilingRewriter();
-        private final IJoinpointFilter filter;
+        private final CompiledJoinpointFilter filter;
         private final boolean debug;
         private final File debugWriteClassfiles;
+        private final Set<String> transformedClasses = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+        private volatile boolean enabled = true;
+        private volatile TransformCache cache;
         
-        public MyTransformer(IJoinpointFilter filter,boolean debug,File debugWriteClassfiles) 
+        public MyTransformer(CompiledJoinpointFilter filter,boolean debug,File debugWriteClassfiles) 
         {
             this.filter = filter;
             this.debug = debug;
@@ -167,11 +835,80 @@ public class ProfilingClassTransformer
             this.debugWriteClassfiles = debugWriteClassfiles;
         }
         
+        public ProfilingRewriter getRewriter()
+        {
+            return rewriter;
+        }
+        
+        /**
+         * Enable/disable this transformer.
+         * 
+         * <p>A disabled transformer leaves all classes untouched.</p>
+         * 
+         * @param enabled
+         */
+        public void setEnabled(boolean enabled)
+        {
+            this.enabled = enabled;
+        }
+        
+        /**
+         * Sets the cache to use for instrumented classes.
+         * 
+         * <p>The cache is ignored while the rewriter generates byte-code that is only valid in 
+         * the current JVM (see {@link ProfilingRewriter#isCacheable()}).</p>
+         * 
+         * @param cache cache or <code>null</code> to disable caching
+         */
+        public void setCache(TransformCache cache)
+        {
+            this.cache = cache;
+        }
+        
+        /**
+         * Returns the fully-qualified names of all classes this transformer
+         * has instrumented.
+         * 
+         * @return
+         */
+        public Set<String> getTransformedClasses()
+        {
+            return transformedClasses;
+        }
+        
         public byte[] transform(ClassLoader l, String name, Class<?> c,ProtectionDomain d, final byte[] b) throws IllegalClassFormatException 
         {
+            if ( ! enabled || name == null ) {
+                return null;
+            }
+            
+            if ( ! filter.matchesInternalName( name ) || isAgentClass( name ) ) {
+                return null;
+            }
+            
             final String fqName = name.replace("/",".");
-            if ( ! filter.matches( fqName ) ) {
-                return b;
+            final IMethodSignatureFilter classFilter = filter.forClass( b );
+            if ( classFilter == null ) 
+            {
+                if ( debug ) {
+                    System.out.println("Not transforming opted-out class "+fqName);
+                }
+                return null;
+            }
+            
+            // never cache classes that reference counters registered in this JVM
+            final TransformCache cache = rewriter.isCacheable() ? this.cache : null;
+            if ( cache != null ) 
+            {
+                final byte[] cached = cache.get( b );
+                if ( cached != null ) 
+                {
+                    if ( debug ) {
+                        System.out.println("Using cached transformed class "+fqName);
+                    }
+                    transformedClasses.add( fqName );
+                    return cached;
+                }
             }
             
             if ( debug ) {
@@ -194,7 +931,14 @@ public class ProfilingClassTransformer
             };
             
             try {
-                final byte[] result = rewriter.rewrite(provider, filter);
+                final byte[] result = rewriter.rewrite(provider, classFilter, l);
+                if ( result == b ) { // no matching methods
+                    return null;
+                }
+                transformedClasses.add( fqName );
+                if ( cache != null ) {
+                    cache.put( b , result );
+                }
                 if ( debugWriteClassfiles != null ) 
                 {
                     writeDebugClassfile( fqName , result );
@@ -18,10 +18,18 @@ package de.codesourcery.asm.rewrite;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -31,19 +39,36 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 
 import de.codesourcery.asm.controlflow.ControlFlowAnalyzer;
 import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.controlflow.Edge;
 import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.profiling.AllocationCounters;
+import de.codesourcery.asm.profiling.CallingContextTree;
 import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.LiveCounters;
+import de.codesourcery.asm.profiling.TaskAttribution;
+import de.codesourcery.asm.profiling.ProfilingSwitch;
+import de.codesourcery.asm.profiling.Sampler;
 import de.codesourcery.asm.profiling.StatisticsManager;
 import de.codesourcery.asm.util.ASMUtil;
 import de.codesourcery.asm.util.Disassembler;
 import de.codesourcery.asm.util.IClassReaderProvider;
 import de.codesourcery.asm.util.IJoinpointFilter;
+import de.codesourcery.asm.util.IMethodSignatureFilter;
 
 /**
  * Class transformer that adds bytecode instruction accounting to classes.    
@@ -71,6 +96,9 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * }
  * </pre>
  * 
+ * <p>Optionally, methods can be rewritten in <i>sampling mode</i> (see {@link #setSamplingInterval(int)}) where 
+ * only every n-th execution runs through the instrumented code.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * 
  * @see ControlFlowAnalyzer
@@ -82,6 +110,20 @@ public class ProfilingRewriter implements Opcodes
 {
     private boolean debug = false;
     private boolean verbose = false;
+    private int samplingInterval = 0;
+    private boolean guardedProbes = false;
+    private boolean localAccumulation = false;
+    private boolean loopHoisting = false;
+    private boolean liveCounters = false;
+    private boolean taskAttribution = false;
+    private IInstructionCostModel costModel;
+    private boolean allocationCounting = false;
+    private boolean callingContextProfiling = false;
+    private JitBudget jitBudget;
+    private final List<String> degradedMethods = new CopyOnWriteArrayList<>();
+    
+    private static final Handle PROFILING_SWITCH_BOOTSTRAP = new Handle( H_INVOKESTATIC , "de/codesourcery/asm/profiling/ProfilingSwitch" , "bootstrap" , 
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;" );
 
     public ProfilingRewriter() {
     }
@@ -125,6 +167,217 @@ public class ProfilingRewriter implements Opcodes
         this.verbose = verbose;
     }
 
+    /**
+     * Enables or disables sampling mode.
+     * 
+     * <p>In sampling mode each method body is emitted twice: The original, uninstrumented code
+     * and a copy with the regular per-block instrumentation. A cheap countdown check at method entry
+     * and on every loop back edge transfers control to the instrumented copy once every <code>interval</code>
+     * checks. Back edges inside the instrumented copy run through the same check and lead back to the 
+     * original code unless the next sample is due.</p>
+     * 
+     * <p>Constructors are not rewritten in sampling mode.</p>
+     * 
+     * @param interval sampling interval or <code>0</code> to instrument every execution
+     * @see Sampler
+     * @see StatisticsManager#getEstimatedInstructionsCount()
+     */
+    public void setSamplingInterval(int interval)
+    {
+        if ( interval < 0 ) {
+            throw new IllegalArgumentException("Sampling interval must be >= 0");
+        }
+        this.samplingInterval = interval;
+    }
+    
+    /**
+     * Enables or disables guarded probes.
+     * 
+     * <p>When enabled, the generated code is guarded by an <code>invokedynamic</code> instruction
+     * that is bound to {@link ProfilingSwitch}, so profiling can be switched off (and on again) at runtime without
+     * retransforming classes. While switched off, the JIT compiler eliminates the guarded code.</p>
+     * 
+     * <p>Guarded probes require <code>invokedynamic</code> support, classes with a class file version prior to Java 7 always 
+     * get regular probes.</p>
+     * 
+     * <p>Guarded probes cannot be combined with {@link #setCallingContextProfiling(boolean) calling-context profiling}.</p>
+     * 
+     * @param guardedProbes
+     * @see ProfilingSwitch#setEnabled(boolean)
+     */
+    public void setGuardedProbes(boolean guardedProbes)
+    {
+        this.guardedProbes = guardedProbes;
+    }
+    
+    /**
+     * Enables or disables local accumulation mode.
+     * 
+     * <p>In this mode, the instruction count is accumulated in an additional <code>int</code> local variable 
+     * (so most probes become a single <code>IINC</code> instruction) and only added to {@link ExecutionStatistics} right before
+     * method exits (<code>RETURN</code>/<code>ATHROW</code>), method invocations, at exception handler entry and on loop back edges.</p>
+     * 
+     * <p>Instructions counted since the last flush are lost when an exception not thrown by <code>ATHROW</code> 
+     * (like a <code>NullPointerException</code>) propagates out of the method. Methods rewritten in sampling mode always use regular probes.</p>
+     * 
+     * @param localAccumulation
+     */
+    public void setLocalAccumulation(boolean localAccumulation)
+    {
+        this.localAccumulation = localAccumulation;
+    }
+    
+    /**
+     * Enables or disables loop hoisting.
+     * 
+     * <p>When enabled , simple counted loops (see {@link CountedLoop}) get no probes inside the loop. Instead, the number
+     * of completed iterations is derived from the loop's induction variable and accounted for once when the loop terminates.
+     * If the loop is left by an exception, all completed iterations are accounted for while the instructions of the interrupted iteration 
+     * are not counted. Loops that do not qualify (because they contain branches , <code>break</code> statements etc.) are counted on each iteration.</p>
+     * 
+     * <p>Loop hoisting is not used for methods rewritten in sampling mode or with degraded instrumentation (see {@link #setJitBudget(JitBudget)}).</p>
+     * 
+     * @param loopHoisting
+     */
+    public void setLoopHoisting(boolean loopHoisting)
+    {
+        this.loopHoisting = loopHoisting;
+    }
+    
+    /**
+     * Enables or disables counting of executed allocation sites.
+     * 
+     * <p>When enabled , each basic block that contains <code>NEW</code>/<code>NEWARRAY</code>/<code>ANEWARRAY</code>/<code>MULTIANEWARRAY</code> 
+     * instructions gets registered with {@link AllocationCounters} along with the allocation sites it contains and a single
+     * additional probe that increments the block's execution counter. With guarded probes , the counter is only incremented
+     * while {@link ProfilingSwitch} is enabled.</p>
+     * 
+     * <p>Counter indices are assigned while rewriting , so classes rewritten with allocation counting cannot be cached (see {@link #isCacheable()}).</p>
+     * 
+     * @param allocationCounting
+     * @see AllocationAnalyzer
+     */
+    public void setAllocationCounting(boolean allocationCounting)
+    {
+        this.allocationCounting = allocationCounting;
+    }
+    
+    /**
+     * Enables or disables calling-context tree profiling.
+     * 
+     * <p>When enabled , each instrumented method gets registered with {@link CallingContextTree} and additionally
+     * invokes {@link CallingContextTree#enter(int)} in its prologue (storing the returned node in the local variable <code>$cct</code>),
+     * {@link CallingContextTree#exit(int)} right before each <code>xRETURN</code>/<code>ATHROW</code> instruction and {@link CallingContextTree#resume(int)}
+     * at the start of each exception handler. Constructors enter the tree after the super constructor call.</p>
+     * 
+     * <p>Calling-context profiling is not supported in sampling mode , sampled methods are instrumented without it.</p>
+     * 
+     * <p>Calling-context profiling cannot be combined with {@link #setGuardedProbes(boolean) guarded probes} , switching the
+     * probes off and on while a method is running would leave the tree's cursor out of sync with the call stack. Rewriting
+     * a class with both enabled fails with an <code>IllegalStateException</code>.</p>
+     * 
+     * @param callingContextProfiling
+     */
+    public void setCallingContextProfiling(boolean callingContextProfiling)
+    {
+        this.callingContextProfiling = callingContextProfiling;
+    }
+    
+    /**
+     * Sets the cost model used to charge instructions.
+     * 
+     * <p>The cost of each block is evaluated while rewriting and baked into its probe. With a cost model other than 
+     * the default , {@link ExecutionStatistics#executedInstructionCount} and all derived counts are measured in cost units
+     * instead of byte-code instructions.</p>
+     * 
+     * @param costModel cost model or <code>null</code> to charge each instruction with 1 (default)
+     * @see OpcodeCostModel
+     */
+    public void setCostModel(IInstructionCostModel costModel)
+    {
+        this.costModel = costModel;
+    }
+    
+    /**
+     * Returns the cost model used to charge instructions.
+     * 
+     * @return cost model or <code>null</code> if each instruction is charged with 1
+     */
+    public IInstructionCostModel getCostModel()
+    {
+        return costModel;
+    }
+    
+    /**
+     * Enables or disables wrapping of tasks submitted to executors.
+     * 
+     * <p>When enabled , instrumented methods pass each <code>Runnable</code>/<code>Callable</code> through {@link TaskAttribution#wrap(Runnable)} before
+     * submitting it to an executor or starting a thread with it (see {@link TaskSubmissionVisitor}), so that {@link TaskAttribution} can 
+     * charge the instructions to the submitting task.</p>
+     * 
+     * @param taskAttribution
+     */
+    public void setTaskAttribution(boolean taskAttribution)
+    {
+        this.taskAttribution = taskAttribution;
+    }
+    
+    /**
+     * Enables or disables live counters.
+     * 
+     * <p>When enabled , each probe additionally adds the number of executed instructions to a per-block counter
+     * in the memory-mapped file managed by {@link LiveCounters}. Blocks get registered with {@link LiveCounters} while 
+     * rewriting , so the counter file needs to be opened in the JVM that runs the rewritten code before classes get rewritten.
+     * Like all other probes , live counters are only updated while {@link ProfilingSwitch} is enabled when using guarded probes.</p>
+     * 
+     * @param liveCounters
+     * @see LiveCounters#open(File, int, int)
+     */
+    public void setLiveCounters(boolean liveCounters)
+    {
+        this.liveCounters = liveCounters;
+    }
+    
+    /**
+     * Enables or disables JIT budget mode.
+     * 
+     * <p>In budget mode, the instrumented size of each method is estimated and methods that would exceed one of the
+     * JIT compiler's size limits get degraded instrumentation (see {@link JitBudget.Level}). Methods in sampling mode
+     * fall back to non-sampled instrumentation if the sampled version is too large. Degraded methods can be 
+     * queried using {@link #getDegradedMethods()} and are reported on <code>System.out</code> in verbose mode.</p>
+     * 
+     * @param budget budget or <code>null</code> to always instrument all blocks
+     */
+    public void setJitBudget(JitBudget budget)
+    {
+        this.jitBudget = budget;
+    }
+    
+    /**
+     * Returns whether classes rewritten with the current settings can be stored in a {@link TransformCache}.
+     * 
+     * <p>Live counters , allocation counters and calling-context method IDs get registered while rewriting and their indices are
+     * baked into the generated byte-code , so they are only valid in the JVM that rewrote the class.</p>
+     * 
+     * @return
+     */
+    public boolean isCacheable() 
+    {
+        return ! liveCounters && ! allocationCounting && ! callingContextProfiling;
+    }
+    
+    /**
+     * Returns all methods that received degraded instrumentation because
+     * of the JIT budget.
+     * 
+     * @return
+     * @see #setJitBudget(JitBudget)
+     */
+    public List<String> getDegradedMethods()
+    {
+        return degradedMethods;
+    }
+    
     private void logVerbose(String msg) {
         if ( verbose ) {
             System.out.println( msg );
@@ -151,78 +404,761 @@ public class ProfilingRewriter implements Opcodes
         return rewrite( provider , filter );
     }
     
-    @SuppressWarnings("unchecked")
     public byte[] rewrite(IClassReaderProvider provider,IJoinpointFilter filter) throws IOException, AnalyzerException 
     {
-        // first pass: create control flow graphs (CFGs) for all methods and constructors
+        return rewrite( provider , filter , ProfilingRewriter.class.getClassLoader() );
+    }
+    
+    /**
+     * Rewrite a class.
+     * 
+     * @param provider
+     * @param filter
+     * @param classLoader class loader used to look up class files of other types, in case stack map frames
+     * need to be computed from scratch (see {@link NonLoadingClassWriter}). <code>null</code> for the bootstrap class loader
+     * @return the rewritten class or the reader's original byte array (see {@link ClassReader#b}) if no method was rewritten
+     * @throws IOException
+     * @throws AnalyzerException
+     * @throws IllegalStateException if both calling-context profiling and guarded probes are enabled
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] rewrite(IClassReaderProvider provider,final IJoinpointFilter filter,ClassLoader classLoader) throws IOException, AnalyzerException 
+    {
+        if ( callingContextProfiling && guardedProbes ) {
+            throw new IllegalStateException("Calling-context profiling cannot be combined with guarded probes");
+        }
+        
+        // first pass: create control flow graphs (CFGs) for all matching methods and constructors
         final String classToAnalyze = provider.getClassName();
         logVerbose("Analyzing "+classToAnalyze+" ... ");
 
-        final ClassNode cn = new ClassNode();
-        provider.getClassReader().accept( cn , 0 );
-
+        // the class is parsed only once, the ClassWriter copies the constant pool and all methods we do not touch
+        // straight from the reader
+        final ClassReader reader = provider.getClassReader();
+        
+        final List<MethodNode> methods = new ArrayList<>();
+        reader.accept( new ClassVisitor(ASM4) 
+        {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+            {
+                final boolean matches = filter instanceof IMethodSignatureFilter ? ((IMethodSignatureFilter) filter).matches( classToAnalyze , name , desc ) 
+                        : filter.matches( classToAnalyze , name );
+                if ( matches && isInstrumentable( access , name ) ) 
+                {
+                    final MethodNode mn = new MethodNode( access , name , desc , signature , exceptions );
+                    methods.add( mn );
+                    return mn;
+                }
+                logVerbose("Ignoring method "+name);
+                return null; // skip method body
+            }
+        } , 0 );
+        
+        if ( methods.isEmpty() ) {
+            return reader.b;
+        }
+        
         final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
+        final AllocationAnalyzer allocations = allocationCounting ? new AllocationAnalyzer( classLoader ) : null;
 
-        final Map<String,ControlFlowGraph> graphs = new HashMap<>();
-        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        final Map<String,MethodPlan> plans = new HashMap<>();
+        for ( MethodNode mn : methods ) 
         {
-            if ( filter.matches( classToAnalyze , mn.name ) ) {
-                logVerbose("Analyzing method "+mn.name);
-                if ( debug ) {
-                	System.out.println( Disassembler.disassemble( mn , true , true ) );
+            logVerbose("Analyzing method "+mn.name);
+            if ( debug ) {
+                System.out.println( Disassembler.disassemble( mn , true , true ) );
+            }
+            final ControlFlowGraph graph = analyzer.analyze( classToAnalyze , mn );
+            if ( debug ) {
+                System.out.println("Method "+mn.name+"_"+mn.desc+" has the following blocks");
+                for ( IBlock bl : graph.getAllNodes() ) {
+                    if ( bl.isVirtual(mn) ) {
+                        System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (virtual)");                			
+                    } else {
+                        final int first = bl.getFirstByteCodeInstructionNum( mn );
+                        System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (first = "+first+")");                			
+                    }
+                }
+            }
+            final MethodPlan plan = planInstrumentation( classToAnalyze , graph , allocations );
+            if ( plan != null ) {
+                plans.put( methodNodeToKey( mn ), plan );
+            }
+        }
+        
+        if ( plans.isEmpty() ) {
+            return reader.b;
+        }
+
+        // second pass: rewrite methods and constructors by inserting custom code at the start of each basic block in the control flow graph
+        logVerbose("Rewriting "+classToAnalyze+" ... ");
+
+        final ClassWriter writer = writeInstrumentedClass( reader , plans , classLoader );
+        
+        final byte[] result = writer.toByteArray();
+        if ( debug ) {
+        	final ClassNode classNode = new ClassNode();
+        	new ClassReader( result ).accept( classNode , 0 );
+        	
+        	System.out.println("==== Transformed class "+classToAnalyze+" ====");
+        	
+        	final ListIterator<MethodNode> it = classNode.methods.listIterator();
+        	while( it.hasNext() ) {
+        		final MethodNode mn = it.next();
+        		if ( filter.matches( classToAnalyze , mn.name ) ) {
+        			System.out.println("METHOD: "+mn.name+"_"+mn.desc);
+        			System.out.println( Disassembler.disassemble( mn , true , true ) );
+        		}
+        	}
+        }
+        return result;
+    }
+
+    /**
+     * Writes the instrumented class.
+     * 
+     * <p>If possible , the existing stack map frames are updated (see {@link FrameUpdatingVisitor}), otherwise frames are computed
+     * from scratch (sampling mode or when updating frames fails).</p>
+     */
+    private ClassWriter writeInstrumentedClass(ClassReader reader , Map<String,MethodPlan> plans,ClassLoader classLoader) 
+    {
+        final int majorVersion = reader.readUnsignedShort( 6 );
+        if ( majorVersion < V1_6 ) 
+        {
+            // no stack map frames required
+            final ClassWriter writer = new ClassWriter( reader , ClassWriter.COMPUTE_MAXS );
+            reader.accept( new MyClassVisitor( writer , plans , false ) , 0 );
+            return writer;
+        }
+        
+        boolean sampled = false;
+        for ( MethodPlan plan : plans.values() ) {
+            sampled |= plan.sampled;
+        }
+        
+        if ( ! sampled ) 
+        {
+            try {
+                final ClassWriter writer = new ClassWriter( reader , ClassWriter.COMPUTE_MAXS );
+                reader.accept( new MyClassVisitor( writer , plans , true ) , ClassReader.EXPAND_FRAMES );
+                return writer;
+            } 
+            catch(RuntimeException e) 
+            {
+                logVerbose("Failed to update stack map frames of "+reader.getClassName()+", computing them from scratch ("+e+")");
+            }
+        }
+        
+        final ClassWriter writer = new NonLoadingClassWriter( reader , ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS , classLoader );
+        reader.accept( new MyClassVisitor( writer , plans , false ) , 0 );
+        return writer;
+    }
+    
+    /**
+     * Describes how to instrument a method.
+     */
+    protected static final class MethodPlan 
+    {
+        public final ControlFlowGraph cfg;
+        public final boolean sampled;
+        // number of instructions to account for at each probe , NULL if each block gets a probe
+        public final Map<IBlock,Integer> probeCharges;
+        // loops that get counted at loop exit instead of on each iteration
+        public final List<CountedLoop> countedLoops;
+        // AllocationCounters index of each block that contains allocation sites
+        public final Map<IBlock,Integer> allocationCounters;
+        // LiveCounters index of each block that gets a probe , counted loops use the index of their header block
+        public final Map<IBlock,Integer> liveCounters;
+        // LiveCounters index of the final loop header execution of each counted loop , keyed by header block
+        public final Map<IBlock,Integer> loopExitCounters;
+        // CallingContextTree method ID , -1 if the method does not enter the calling-context tree
+        public final int callingContextMethod;
+        
+        public MethodPlan(ControlFlowGraph cfg, boolean sampled, Map<IBlock, Integer> probeCharges,List<CountedLoop> countedLoops,
+                Map<IBlock,Integer> allocationCounters,Map<IBlock,Integer> liveCounters,Map<IBlock,Integer> loopExitCounters,int callingContextMethod)
+        {
+            this.allocationCounters = allocationCounters;
+            this.liveCounters = liveCounters;
+            this.loopExitCounters = loopExitCounters;
+            this.callingContextMethod = callingContextMethod;
+            this.cfg = cfg;
+            this.sampled = sampled;
+            this.probeCharges = probeCharges;
+            this.countedLoops = countedLoops;
+        }
+    }
+    
+    private MethodPlan createPlan(String className,ControlFlowGraph cfg, boolean sampled, Map<IBlock, Integer> probeCharges,AllocationAnalyzer allocations) 
+    {
+        List<CountedLoop> loops = Collections.emptyList();
+        if ( loopHoisting && ! sampled && probeCharges == null ) 
+        {
+            loops = CountedLoop.find( cfg , costModel );
+            if ( debug ) 
+            {
+                for ( CountedLoop loop : loops ) {
+                    System.out.println("DEBUG: Counting loop at loop exit: "+loop);
+                }
+            }
+        }
+        
+        final Map<IBlock,Integer> allocationCounters = new HashMap<>();
+        if ( allocations != null ) 
+        {
+            final MethodNode mn = cfg.getMethod();
+            for ( IBlock block : cfg.getAllNodes() ) 
+            {
+                final List<AllocationCounters.Site> sites = allocations.getAllocationSites( className , mn , block );
+                if ( ! sites.isEmpty() ) {
+                    allocationCounters.put( block , AllocationCounters.register( className , mn.name , mn.desc , block.getFirstByteCodeInstructionNum( mn ) , sites ) );
+                }
+            }
+        }
+        final Map<IBlock,Integer> loopExitCounters = new HashMap<>();
+        final Map<IBlock,Integer> liveCounterIndices = liveCounters ? registerLiveCounters( className , cfg , probeCharges , loops , loopExitCounters ) : Collections.<IBlock,Integer>emptyMap();
+        final int callingContextMethod = callingContextProfiling && ! sampled ? CallingContextTree.registerMethod( className , cfg.getMethod().name , cfg.getMethod().desc ) : -1;
+        return new MethodPlan( cfg , sampled , probeCharges , loops , allocationCounters , liveCounterIndices , loopExitCounters , callingContextMethod );
+    }
+    
+    /**
+     * Registers a live counter for each block that gets a probe and two for each counted loop.
+     * 
+     * <p>A counted loop's iterations and the final execution of its header when the loop terminates are 
+     * charged to separate counters , so that {@link LiveCounterReader#getBlockProfiles()} can derive the exact 
+     * number of header executions from them.</p>
+     * 
+     * <p>Counters are registered exactly once per method , no matter how often the method gets
+     * written (see {@link #writeInstrumentedClass(ClassReader, Map, ClassLoader)}).</p>
+     * 
+     * @param loopExitCounters receives the counter index for the final header execution of each counted loop , keyed by header block
+     * @return counter index by block , counted loops are keyed by their header block
+     */
+    private Map<IBlock,Integer> registerLiveCounters(String className,ControlFlowGraph cfg,Map<IBlock, Integer> probeCharges,List<CountedLoop> loops,
+            Map<IBlock,Integer> loopExitCounters) 
+    {
+        final MethodNode mn = cfg.getMethod();
+        final Map<IBlock,Integer> result = new HashMap<>();
+        final Set<IBlock> hoisted = new HashSet<>();
+        for ( CountedLoop loop : loops ) 
+        {
+            hoisted.addAll( loop.blocks );
+            final int index = LiveCounters.register( className , mn.name , mn.desc , loop.headerStart , loop.iterationCost );
+            if ( index != -1 ) {
+                result.put( loop.header , index );
+            }
+            final int exitIndex = LiveCounters.register( className , mn.name , mn.desc , loop.headerStart , loop.headerCost );
+            if ( exitIndex != -1 ) {
+                loopExitCounters.put( loop.header , exitIndex );
+            }
+        }
+        for ( IBlock block : cfg.getAllNodes() ) 
+        {
+            if ( block.isVirtual( mn ) || hoisted.contains( block ) ) {
+                continue;
+            }
+            final Integer charge = probeCharges != null ? probeCharges.get( block ) : Integer.valueOf( OpcodeCostModel.getBlockCost( block , mn , costModel ) );
+            if ( charge == null ) { // degraded instrumentation, no probe for this block
+                continue;
+            }
+            final int index = LiveCounters.register( className , mn.name , mn.desc , block.getFirstByteCodeInstructionNum( mn ) , charge );
+            if ( index != -1 ) {
+                result.put( block , index );
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Decides how to instrument a method , taking the JIT budget into account (if any).
+     * 
+     * @return plan or <code>null</code> if the method should not be instrumented at all
+     */
+    private MethodPlan planInstrumentation(String className,ControlFlowGraph cfg,AllocationAnalyzer allocations) 
+    {
+        final boolean sampled = samplingInterval > 0;
+        if ( jitBudget == null ) {
+            return createPlan( className , cfg , sampled , null , allocations );
+        }
+        
+        final MethodNode mn = cfg.getMethod();
+        final int originalSize = JitBudget.estimateCodeSize( mn );
+        final int limit = jitBudget.getLimit( originalSize );
+        
+        if ( sampled ) 
+        {
+            // original code + instrumented copy + countdown checks
+            final int size = 2*originalSize + estimateInstrumentationSize( cfg , null , false ) + 16 + 32 * cfg.getBackEdges().size();
+            if ( size <= limit ) {
+                return createPlan( className , cfg , true , null , allocations );
+            }
+        }
+        
+        for ( JitBudget.Level level : JitBudget.Level.values() ) 
+        {
+            if ( level == JitBudget.Level.SKIP ) {
+                break;
+            }
+            final Map<IBlock,Integer> charges = level == JitBudget.Level.FULL ? null : getProbeCharges( cfg , level );
+            final int size = originalSize + estimateInstrumentationSize( cfg , charges , localAccumulation );
+            if ( size <= limit ) 
+            {
+                if ( level != JitBudget.Level.FULL || sampled ) {
+                    reportDegraded( className , mn , level , originalSize , limit );
+                }
+                return createPlan( className , cfg , false , charges , allocations );
+            }
+        }
+        reportDegraded( className , mn , JitBudget.Level.SKIP , originalSize , limit );
+        return null;
+    }
+    
+    private void reportDegraded(String className,MethodNode mn,JitBudget.Level level,int originalSize,int limit) 
+    {
+        final String msg = className+"#"+mn.name+mn.desc+": "+level+" (size "+originalSize+" bytes, limit "+limit+" bytes)";
+        degradedMethods.add( msg );
+        logVerbose("JIT budget exceeded, instrumentation degraded: "+msg);
+    }
+    
+    // estimates the number of bytes added to a method
+    @SuppressWarnings("unchecked")
+    private int estimateInstrumentationSize(ControlFlowGraph cfg,Map<IBlock,Integer> charges,boolean accumulate) 
+    {
+        final MethodNode mn = cfg.getMethod();
+        final int slot = mn.maxLocals;
+        final int load = JitBudget.getLoadStoreSize( slot , true );
+        final int countLoad = JitBudget.getLoadStoreSize( slot+1 , true );
+        
+        // $stat = StatisticsManager.getStatistics()
+        int size = 3 + load;
+        if ( guardedProbes ) { // $stat = null; if ( enabled ) ...
+            size += 1 + load + 5 + 3;
+        }
+        
+        if ( accumulate ) 
+        {
+            // $count = 0
+            size += 1 + countLoad;
+            
+            // ALOAD,DUP,GETFIELD,ILOAD,IADD,PUTFIELD,ICONST_0,ISTORE,ALOAD,GETFIELD,IFLT,INVOKESTATIC
+            int flushSize = load + 1 + 3 + countLoad + 1 + 3 + 1 + countLoad + load + 3 + 3 + 3;
+            if ( guardedProbes ) {
+                flushSize += 5 + 3 + load + 3;
+            }
+            size += flushSize * getFlushPoints( cfg ).size();
+        }
+        
+        if ( callingContextProfiling ) 
+        {
+            // $cct = CallingContextTree.enter( <method ID> ) ; ILOAD,INVOKESTATIC per exit and exception handler
+            final int cctLoad = JitBudget.getLoadStoreSize( slot + ( accumulate ? 2 : 1 ) , true );
+            size += 3 + 3 + cctLoad;
+            for ( Iterator<AbstractInsnNode> it = mn.instructions.iterator() ; it.hasNext() ; ) 
+            {
+                final int opcode = it.next().getOpcode();
+                if ( ( opcode >= IRETURN && opcode <= RETURN ) || opcode == ATHROW ) {
+                    size += cctLoad + 3;
+                }
+            }
+            size += ( cctLoad + 3 ) * mn.tryCatchBlocks.size();
+        }
+        
+        if ( allocationCounting ) 
+        {
+            // PUSH,INVOKESTATIC per block with allocation sites , assume one block per site
+            for ( Iterator<AbstractInsnNode> it = mn.instructions.iterator() ; it.hasNext() ; ) 
+            {
+                final int opcode = it.next().getOpcode();
+                if ( opcode == NEW || opcode == NEWARRAY || opcode == ANEWARRAY || opcode == MULTIANEWARRAY ) {
+                    size += 3 + 3;
+                }
+            }
+        }
+        
+        for ( IBlock block : cfg.getAllNodes() ) 
+        {
+            final int count;
+            if ( charges != null ) 
+            {
+                final Integer charge = charges.get( block );
+                if ( charge == null ) {
+                    continue;
+                }
+                count = charge;
+            } 
+            else 
+            {
+                if ( block.isVirtual( mn ) ) {
+                    continue;
+                }
+                count = OpcodeCostModel.getBlockCost( block , mn , costModel );
+            }
+            if ( liveCounters ) { // PUSH,PUSH,INVOKESTATIC
+                size += 3 + JitBudget.getPushSize( count ) + 3;
+            }
+            if ( accumulate ) { // IINC
+                size += ( slot+1 > 255 || count > Byte.MAX_VALUE ) ? 6 : 3;
+                continue;
+            }
+            // ALOAD,DUP,GETFIELD,PUSH,IADD,PUTFIELD,ALOAD,GETFIELD,IFLT,INVOKESTATIC
+            size += load + 1 + 3 + JitBudget.getPushSize( count ) + 1 + 3 + load + 3 + 3 + 3;
+            if ( guardedProbes ) { // INVOKEDYNAMIC,IFEQ,ALOAD,IFNULL
+                size += 5 + 3 + load + 3;
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Determines the blocks that get a probe with degraded instrumentation , along with
+     * the number of instructions each probe accounts for.
+     * 
+     * <p>Each probe accounts for all instructions of blocks reachable from it without passing another probe, a loop back edge or 
+     * an exception handler edge.</p>
+     */
+    @SuppressWarnings("unchecked")
+    private Map<IBlock,Integer> getProbeCharges(ControlFlowGraph cfg,JitBudget.Level level) 
+    {
+        final MethodNode mn = cfg.getMethod();
+        final Set<Edge> backEdges = cfg.getBackEdges();
+        
+        // the first probe either goes at the start of the method or right after the super constructor call 
+        final Set<IBlock> probes = new HashSet<>();
+        if ( mn.name.equals("<init>" ) ) 
+        {
+            for ( IBlock block : cfg.getAllNodes() ) 
+            {
+                if ( block.getIndexOfSuperConstructorCall( mn ) != -1 ) {
+                    probes.add( block );
+                    break;
+                }
+            }
+        } 
+        else 
+        {
+            int index = 0;
+            for ( Iterator<AbstractInsnNode> it = mn.instructions.iterator() ; it.hasNext() ; index++ ) 
+            {
+                if ( it.next().getOpcode() != -1 ) 
+                {
+                    final IBlock entry = cfg.getBlockForInstruction( index );
+                    if ( entry != null ) {
+                        probes.add( entry );
+                    }
+                    break;
+                }
+            }
+        }
+        
+        if ( level == JitBudget.Level.FEWER_PROBES ) 
+        {
+            for ( IBlock block : cfg.getAllNodes() ) 
+            {
+                for ( Edge e : block.getEdges() ) 
+                {
+                    if ( e.isSuccessor( block ) && ( backEdges.contains( e ) || e.hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) ) && ! e.dst.isVirtual( mn ) ) {
+                        probes.add( e.dst );
+                    }
+                }
+            }
+        }
+        
+        final Map<IBlock,Integer> result = new HashMap<>();
+        for ( IBlock probe : probes ) 
+        {
+            int count = 0;
+            final Set<IBlock> visited = new HashSet<>();
+            final Deque<IBlock> toVisit = new ArrayDeque<>();
+            toVisit.add( probe );
+            visited.add( probe );
+            while ( ! toVisit.isEmpty() ) 
+            {
+                final IBlock current = toVisit.pop();
+                count += OpcodeCostModel.getBlockCost( current , mn , costModel );
+                for ( Edge e : current.getEdges() ) 
+                {
+                    if ( e.isSuccessor( current ) && ! backEdges.contains( e ) && ! e.hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) && 
+                         ! probes.contains( e.dst ) && visited.add( e.dst ) ) 
+                    {
+                        toVisit.push( e.dst );
+                    }
+                }
+            }
+            result.put( probe , count );
+        }
+        return result;
+    }
+    
+    private boolean isInstrumentable(int access,String name) 
+    {
+        if ( ( access & (ACC_ABSTRACT|ACC_NATIVE) ) != 0 ) { // no code
+            return false;
+        }
+        return samplingInterval == 0 || ! "<init>".equals( name );
+    }
+    
+    /**
+     * Creates the sampling version of a method.
+     * 
+     * <p>The resulting method looks like this:</p>
+     * <pre>
+     *   if ( --Sampler.countdown &lt;= 0 ) goto entryStub;
+     *   [original code, back edges jump to backEdgeStub_n]
+     *   
+     * entryStub:
+     *   Sampler.reset();
+     *   $stat = StatisticsManager.getStatistics();
+     *   goto instrumentedCopy;
+     *   
+     * backEdgeStub_n:
+     *   if ( --Sampler.countdown &gt; 0 ) goto originalLoopHeader_n;
+     *   Sampler.reset();
+     *   $stat = StatisticsManager.getStatistics();
+     *   goto instrumentedLoopHeader_n;
+     * 
+     * instrumentedCopy:
+     *   [original code with per-block instrumentation, back edges jump to backEdgeStub_n]
+     * </pre>
+     * 
+     * <p>Note that this method modifies the method node the control flow graph refers to.</p>
+     * 
+     * @param plan
+     * @param variableSlot slot of the <code>$stat</code> local variable
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private MethodNode createSampledMethod(MethodPlan plan,int variableSlot,boolean guarded) 
+    {
+        final ControlFlowGraph cfg = plan.cfg;
+        final MethodNode original = cfg.getMethod();
+        final Map<JumpInsnNode,LabelNode> backEdges = getBackEdgeJumps( cfg );
+
+        // clone method body, back edges inside the copy get marker labels that we can look up after instrumentation
+        final Map<LabelNode,LabelNode> clonedLabels = new HashMap<>();
+        for ( Iterator<AbstractInsnNode> it = original.instructions.iterator() ; it.hasNext() ; ) 
+        {
+            final AbstractInsnNode insn = it.next();
+            if ( insn instanceof LabelNode ) {
+                clonedLabels.put( (LabelNode) insn , new LabelNode() );
+            }
+        }
+
+        final MethodNode copy = new MethodNode( original.access , original.name , original.desc , original.signature , null );
+        final Map<LabelNode,JumpInsnNode> markers = new HashMap<>(); // marker label -> original back edge
+        for ( Iterator<AbstractInsnNode> it = original.instructions.iterator() ; it.hasNext() ; ) 
+        {
+            final AbstractInsnNode insn = it.next();
+            final AbstractInsnNode clone = insn.clone( clonedLabels );
+            if ( backEdges.containsKey( insn ) ) 
+            {
+                final LabelNode marker = new LabelNode();
+                ( (JumpInsnNode) clone ).label = marker;
+                markers.put( marker , (JumpInsnNode) insn );
+            }
+            copy.instructions.add( clone );
+        }
+        for ( TryCatchBlockNode block : (List<TryCatchBlockNode>) original.tryCatchBlocks ) {
+            copy.tryCatchBlocks.add( new TryCatchBlockNode( clonedLabels.get( block.start ) , clonedLabels.get( block.end ) , clonedLabels.get( block.handler ) , block.type ) ); 
+        }
+        copy.maxLocals = original.maxLocals;
+        copy.maxStack = original.maxStack;
+
+        // instrument copy , recording which label of the instrumented method each label of the copy became
+        final Map<Label,LabelNode> instrumentedLabels = new HashMap<>();
+        final MethodNode instrumented = new MethodNode( ASM5 , original.access , original.name , original.desc , original.signature , null ) 
+        {
+            @Override
+            protected LabelNode getLabelNode(Label label)
+            {
+                LabelNode result = instrumentedLabels.get( label );
+                if ( result == null ) {
+                    result = new LabelNode();
+                    instrumentedLabels.put( label , result );
+                }
+                return result;
+            }
+        };
+        final InstructionCountingVisitor counter = new InstructionCountingVisitor();
+        counter.setDelegate( new BasicBlockVisitor( instrumented , counter , plan , variableSlot , false , guarded , false , null ) );
+        copy.accept( counter );
+        
+        final Map<LabelNode,LabelNode> copyToInstrumented = new HashMap<>();
+        for ( LabelNode label : clonedLabels.values() ) {
+            copyToInstrumented.put( label , instrumentedLabels.get( label.getLabel() ) );
+        }
+        for ( LabelNode marker : markers.keySet() ) {
+            copyToInstrumented.put( marker , instrumentedLabels.get( marker.getLabel() ) );
+        }
+
+        // countdown check at method entry
+        final LabelNode entryStub = new LabelNode();
+        final LabelNode instrumentedStart = new LabelNode();
+        
+        final InsnList entryCheck = new InsnList();
+        addCountdown( entryCheck );
+        entryCheck.add( new JumpInsnNode( IFLE , entryStub ) );
+        original.instructions.insert( entryCheck );
+
+        final InsnList stubs = new InsnList();
+        stubs.add( entryStub );
+        addSwitchToInstrumented( stubs , variableSlot , instrumentedStart );
+
+        // countdown check on each back edge
+        final Map<JumpInsnNode,LabelNode> backEdgeStubs = new HashMap<>();
+        for ( Map.Entry<JumpInsnNode,LabelNode> entry : backEdges.entrySet() ) 
+        {
+            final JumpInsnNode jump = entry.getKey();
+            final LabelNode header = entry.getValue();
+            final LabelNode backEdgeStub = new LabelNode();
+            jump.label = backEdgeStub;
+            backEdgeStubs.put( jump , backEdgeStub );
+
+            stubs.add( backEdgeStub );
+            addCountdown( stubs );
+            stubs.add( new JumpInsnNode( IFGT , header ) );
+            addSwitchToInstrumented( stubs , variableSlot , copyToInstrumented.get( clonedLabels.get( header ) ) );
+        }
+
+        // back edges inside the instrumented copy run through the same checks
+        final Map<LabelNode,LabelNode> markerToStub = new HashMap<>();
+        for ( Map.Entry<LabelNode,JumpInsnNode> entry : markers.entrySet() ) {
+            markerToStub.put( copyToInstrumented.get( entry.getKey() ) , backEdgeStubs.get( entry.getValue() ) );
+        }
+        for ( Iterator<AbstractInsnNode> it = instrumented.instructions.iterator() ; it.hasNext() ; ) 
+        {
+            final AbstractInsnNode insn = it.next();
+            if ( insn instanceof JumpInsnNode ) 
+            {
+                final LabelNode stub = markerToStub.get( ( (JumpInsnNode) insn ).label );
+                if ( stub != null ) {
+                    ( (JumpInsnNode) insn ).label = stub;
+                }
+            }
+        }
+
+        original.instructions.add( stubs );
+        original.instructions.add( instrumentedStart );
+        original.instructions.add( instrumented.instructions );
+        original.tryCatchBlocks.addAll( instrumented.tryCatchBlocks );
+        original.maxLocals = Math.max( original.maxLocals , variableSlot+1 );
+        return original;
+    }
+
+    // decrements the sample countdown and leaves the new value on the stack
+    private static void addCountdown(InsnList list) 
+    {
+        list.add( new FieldInsnNode( GETSTATIC , "de/codesourcery/asm/profiling/Sampler" , "countdown" , "I" ) );
+        list.add( new InsnNode( ICONST_1 ) );
+        list.add( new InsnNode( ISUB ) );
+        list.add( new InsnNode( DUP ) );
+        list.add( new FieldInsnNode( PUTSTATIC , "de/codesourcery/asm/profiling/Sampler" , "countdown" , "I" ) );
+    }
+
+    private static void addSwitchToInstrumented(InsnList list,int variableSlot,LabelNode target) 
+    {
+        list.add( new MethodInsnNode( INVOKESTATIC , "de/codesourcery/asm/profiling/Sampler" , "reset" , "()V" , false ) );
+        list.add( new MethodInsnNode( INVOKESTATIC , "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;" , false ) );
+        list.add( new VarInsnNode( ASTORE , variableSlot ) );
+        list.add( new JumpInsnNode( GOTO , target ) );
+    }
+
+    // returns all jump instructions that implement a loop back edge along with their target label
+    private static Map<JumpInsnNode,LabelNode> getBackEdgeJumps(ControlFlowGraph cfg) 
+    {
+        final InsnList instructions = cfg.getMethod().instructions;
+        final Map<JumpInsnNode,LabelNode> result = new HashMap<>();
+        for ( Edge edge : cfg.getBackEdges() ) 
+        {
+            int last = -1;
+            for ( int num : edge.src.getInstructionNums() ) {
+                last = Math.max( last , num );
+            }
+            if ( last == -1 ) {
+                continue;
+            }
+            final AbstractInsnNode insn = instructions.get( last );
+            if ( insn instanceof JumpInsnNode && insn.getOpcode() != JSR ) 
+            {
+                final JumpInsnNode jump = (JumpInsnNode) insn;
+                if ( edge.dst.containsInstructionNum( instructions.indexOf( jump.label ) ) ) {
+                    result.put( jump , jump.label );
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the indices of all instructions that need to be preceded by code that
+     * adds the locally accumulated instruction count to {@link ExecutionStatistics} (see {@link #setLocalAccumulation(boolean)}).
+     * 
+     * @param cfg
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<Integer> getFlushPoints(ControlFlowGraph cfg) 
+    {
+        final MethodNode mn = cfg.getMethod();
+        final Set<Integer> result = new HashSet<>();
+        
+        // method exits
+        for ( Edge e : cfg.getEnd().getEdges() ) 
+        {
+            if ( e.isPredecessor( cfg.getEnd() ) ) 
+            {
+                final int last = getLastByteCodeInstructionNum( e.src , mn );
+                if ( last != -1 ) {
+                    result.add( last );
                 }
-                final ControlFlowGraph graph = analyzer.analyze( classToAnalyze , mn );
-                if ( debug ) {
-                	System.out.println("Method "+mn.name+"_"+mn.desc+" has the following blocks");
-                	for ( IBlock bl : graph.getAllNodes() ) {
-                		if ( bl.isVirtual(mn) ) {
-                    		System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (virtual)");                			
-                		} else {
-                    		final int first = bl.getFirstByteCodeInstructionNum( mn );
-                    		System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (first = "+first+")");                			
-                		}
-                	}
-                }
-				graphs.put( methodNodeToKey( mn ), graph );
-            } else {
-                logVerbose("Ignoring method "+mn.name);
             }
         }
-
-        // second pass: rewrite methods and constructors by inserting custom code at the start of each basic block in the control flow graph
-        logVerbose("Rewriting "+classToAnalyze+" ... ");
-
-        final ClassWriter writer;
-        if ( graphs.isEmpty() ) 
+        
+        // ATHROW and method invocations
+        int index = 0;
+        for ( Iterator<AbstractInsnNode> it = mn.instructions.iterator() ; it.hasNext() ; index++ ) 
         {
-            writer = new ClassWriter(0);
-            provider.getClassReader().accept( writer , 0 );
-        } else {
-            writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
-            provider.getClassReader().accept( new MyClassVisitor( writer,graphs ) , 0 );
+            final AbstractInsnNode insn = it.next();
+            if ( insn.getOpcode() == ATHROW || insn.getType() == AbstractInsnNode.METHOD_INSN || insn.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN ) {
+                result.add( index );
+            }
         }
         
-        final byte[] result = writer.toByteArray();
-        if ( debug ) {
-        	final ClassReader reader = new ClassReader( result );
-        	
-        	final ClassNode classNode = new ClassNode();
-        	reader.accept( classNode , 0 );
-        	
-        	System.out.println("==== Transformed class "+classToAnalyze+" ====");
-        	
-        	final ListIterator<MethodNode> it = classNode.methods.listIterator();
-        	while( it.hasNext() ) {
-        		final MethodNode mn = it.next();
-        		if ( filter.matches( classToAnalyze , mn.name ) ) {
-        			System.out.println("METHOD: "+mn.name+"_"+mn.desc);
-        			System.out.println( Disassembler.disassemble( mn , true , true ) );
-        		}
-        	}
+        // exception handlers and loop back edges
+        final Set<Edge> backEdges = cfg.getBackEdges();
+        for ( IBlock block : cfg.getAllNodes() ) 
+        {
+            for ( Edge e : block.getEdges() ) 
+            {
+                if ( ! e.isSuccessor( block ) ) {
+                    continue;
+                }
+                if ( e.hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) && ! e.dst.isVirtual( mn ) ) {
+                    result.add( e.dst.getFirstByteCodeInstructionNum( mn ) );
+                } 
+                else if ( backEdges.contains( e ) ) 
+                {
+                    final int last = getLastByteCodeInstructionNum( e.src , mn );
+                    if ( last != -1 ) {
+                        result.add( last );
+                    }
+                }
+            }
         }
         return result;
     }
-
+    
+    private static int getLastByteCodeInstructionNum(IBlock block,MethodNode mn) 
+    {
+        int last = -1;
+        for ( int num : block.getInstructionNums() ) 
+        {
+            if ( num > last && mn.instructions.get( num ).getOpcode() != -1 ) {
+                last = num;
+            }
+        }
+        return last;
+    }
+    
     private static String methodNodeToKey(MethodNode mn) {
         return methodNodeToKey( mn.name , mn.desc );
     }
@@ -233,28 +1169,52 @@ public class ProfilingRewriter implements Opcodes
 
     protected final class MyClassVisitor extends ClassVisitor 
     {
-        private final Map<String,ControlFlowGraph> graphs;
+        private final Map<String,MethodPlan> plans;
+        private final boolean updateFrames;
+        private boolean guarded;
+        private String className;
 
-        protected MyClassVisitor(ClassVisitor cv,Map<String,ControlFlowGraph> graphs)
+        /**
+         * 
+         * @param cv
+         * @param plans
+         * @param updateFrames whether to update stack map frames of rewritten methods, requires the class
+         * to be read using {@link ClassReader#EXPAND_FRAMES}
+         */
+        protected MyClassVisitor(ClassVisitor cv,Map<String,MethodPlan> plans,boolean updateFrames)
         {
             super(ASM4, cv);
-            this.graphs = graphs;
+            this.plans = plans;
+            this.updateFrames = updateFrames;
+        }
+        
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+        {
+            super.visit(version, access, name, signature, superName, interfaces);
+            className = name;
+            // invokedynamic requires class file version 51+ , minor version is stored in the upper 16 bits
+            guarded = guardedProbes && ( version & 0xffff ) >= V1_7;
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
         {
-            final MethodVisitor result = super.visitMethod(access, name, desc, signature, exceptions);
+            final MethodVisitor writer = super.visitMethod(access, name, desc, signature, exceptions);
 
-            final ControlFlowGraph cfg = graphs.get( methodNodeToKey( name , desc )  );
+            final MethodPlan plan = plans.get( methodNodeToKey( name , desc )  );
 
-            if ( cfg == null ) // no CFG , write method unaltered
+            if ( plan == null ) // no CFG , write method unaltered
             {
                 if ( debug ) {
                     System.out.println("DEBUG: Found no CFG for method "+methodNodeToKey( name , desc ) );
                 }
-                return result;
+                return writer;
             }
+            
+            final MethodVisitor result = taskAttribution ? new TaskSubmissionVisitor( writer ) : writer;
+            
+            final ControlFlowGraph cfg = plan.cfg;
 
             // determine number of slot where we'll store our newly introduced local variable (see below)
             // Since we already scanned the class file while creating the CFG , we can make use of this knowledge
@@ -265,17 +1225,41 @@ public class ProfilingRewriter implements Opcodes
                 System.out.println("DEBUG: *** Rewriting method "+methodNodeToKey( name , desc )+" with "+slotNr+" local vars ***");
             }            
 
+            if ( plan.sampled ) 
+            {
+                // we're emitting the method ourselves, returning NULL makes the ClassReader skip the original one
+                createSampledMethod( plan , slotNr , guarded ).accept( result );
+                return null;
+            }
+
             /* Setup visitor stack:
              * 
              * 1. InstructionCountingVisitor - keeps track of the index of the current byte-code instruction within the method
-             * 2. LoadVarVisitor - introduces a new local variable at the start of each method/constructor:  ExecutionStatistics $stat = StatisticsManager#getStatistics()
-             * 3. BasicBlockVisitor - at the start of each control flow graph node , introduces byte-code that increments  $stat by the number of instructions in this block
+             * 2. BasicBlockVisitor - at the start of each control flow graph node , introduces byte-code that increments  $stat by the number of instructions in this block
              *                        and invokes StatisticsManager#account() if necessary 
+             * 3. LoadVarVisitor - introduces a new local variable at the start of each method/constructor:  ExecutionStatistics $stat = StatisticsManager#getStatistics()
+             *                     (plus int $count = 0 in local accumulation mode)
+             *                     (comes after the BasicBlockVisitor so that its code is not mistaken for the start of a control block)
+             * 4. FrameUpdatingVisitor (optional) - adds the new local variable to existing stack map frames and generates frames for the inserted code
+             * 5. TaskSubmissionVisitor (optional) - wraps tasks submitted to executors
              */
             final InstructionCountingVisitor visitor1 = new InstructionCountingVisitor();
 
+            final List<Object> newLocals = new ArrayList<>();
+            newLocals.add( Type.getInternalName( ExecutionStatistics.class ) );
+            if ( localAccumulation ) {
+                newLocals.add( INTEGER );
+            }
+            if ( plan.callingContextMethod != -1 ) {
+                newLocals.add( INTEGER );
+            }
+            final FrameUpdatingVisitor frames = updateFrames ? new FrameUpdatingVisitor( className , access , name , desc , result , slotNr , newLocals.toArray() ) : null;
+            final MethodVisitor out = frames != null ? frames : result;
+            
             final boolean isConstructor = name.equals("<init>");
-            final LoadVarVisitor visitor2 = new  LoadVarVisitor(new BasicBlockVisitor( result , visitor1 , cfg , slotNr , isConstructor ) , slotNr , isConstructor );
+            final LoadVarVisitor loadVar = new LoadVarVisitor( out , slotNr , isConstructor , guarded , localAccumulation , plan.callingContextMethod , frames );
+            final BasicBlockVisitor visitor2 = new BasicBlockVisitor( loadVar , 
+                    visitor1 , plan , slotNr , isConstructor , guarded , localAccumulation , frames );
 
             visitor1.setDelegate( visitor2 );
             return visitor1;
@@ -292,25 +1276,35 @@ public class ProfilingRewriter implements Opcodes
      *   final ExecutionStatistics $stat = StatisticsManager#getStatistics();
      * </pre>
      * </p>
+     * <p>In local accumulation mode , the variable <code>$count</code> (located in the slot right after <code>$stat</code>) is initialized with zero as well.
+     * With calling-context profiling , the node returned by {@link CallingContextTree#enter(int)} is stored in <code>$cct</code> (located in the slot after <code>$count</code>
+     * or <code>$stat</code>).</p>
      * @author tobias.gierke@code-sourcery.de
      */
     protected final class LoadVarVisitor extends DeferredMethodVisitor {
 
         private boolean superConstructorInvoked = false;        
-        private boolean atFirstLabel = true;
 
         private final boolean visitingConstructor;
+        private final boolean guarded;
+        private final boolean accumulate;
+        private final int callingContextMethod;
+        private final FrameUpdatingVisitor frames;
         public final int variableSlot;
 
         // scope for our newly introduced variable , required for visitLocalVariable() call later
         private Label scopeStart;
         private Label scopeEnd;           
 
-        protected LoadVarVisitor(MethodVisitor mv,int variableSlot,boolean visitingConstructor)
+        protected LoadVarVisitor(MethodVisitor mv,int variableSlot,boolean visitingConstructor,boolean guarded,boolean accumulate,int callingContextMethod,FrameUpdatingVisitor frames)
         {
             super(mv);
             this.variableSlot = variableSlot;
             this.visitingConstructor = visitingConstructor;
+            this.guarded = guarded;
+            this.accumulate = accumulate;
+            this.callingContextMethod = callingContextMethod;
+            this.frames = frames;
         }
 
         @Override
@@ -319,6 +1313,13 @@ public class ProfilingRewriter implements Opcodes
             super.visitCode();
             scopeStart = null;
             scopeEnd = null;            
+            
+            // regular methods get our code before the first label, otherwise the variable would 
+            // be unassigned in exception handlers whose range starts at that label 
+            // constructors get special treatment in visitMethodInsn()
+            if ( ! visitingConstructor ) {
+                insertCode();
+            }
         }        
 
         @Override
@@ -337,8 +1338,44 @@ public class ProfilingRewriter implements Opcodes
             }           
             scopeStart = new Label();
             super.visitLabel( scopeStart );
+            
+            if ( accumulate ) 
+            {
+                // needs to be initialized before $stat , see FrameUpdatingVisitor
+                super.visitInsn(ICONST_0);
+                super.visitVarInsn(ISTORE, variableSlot+1);
+            }
+            
+            if ( callingContextMethod != -1 ) 
+            {
+                // $cct = CallingContextTree.enter( <method ID> ) , needs to be initialized before $stat as well
+                pushInt( callingContextMethod );
+                super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/CallingContextTree", "enter", "(I)I");
+                super.visitVarInsn(ISTORE, getCallingContextSlot( variableSlot , accumulate ) );
+            }
+            
+            Label skip = null;
+            if ( guarded ) 
+            {
+                if ( frames != null ) {
+                    frames.beginInsertedCode();
+                }
+                // $stat = null; if ( ProfilingSwitch.enabled ) { $stat = StatisticsManager#getStatistics(); } 
+                super.visitInsn(ACONST_NULL);
+                super.visitVarInsn(ASTORE, variableSlot);
+                skip = new Label();
+                super.visitInvokeDynamicInsn("profilingEnabled", "()Z", PROFILING_SWITCH_BOOTSTRAP );
+                super.visitJumpInsn(IFEQ, skip);
+            }
             super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;");
             super.visitVarInsn(ASTORE, variableSlot);                 
+            if ( guarded ) 
+            {
+                super.visitLabel( skip );
+                if ( frames != null ) {
+                    frames.endInsertedCode();
+                }
+            }
         }
 
         @Override
@@ -350,13 +1387,6 @@ public class ProfilingRewriter implements Opcodes
             scopeEnd = label;
 
             super.visitLabel(label);
-
-            // if visiting a regular method, we'll insert our code right after the first label
-            // constructors get special treatment in visitMethodInsn()
-            if ( ! visitingConstructor && atFirstLabel ) {
-                atFirstLabel = false;
-                insertCode();
-            }
         }
 
         @Override
@@ -372,29 +1402,79 @@ public class ProfilingRewriter implements Opcodes
                 // signature may be NULL if variable does not use generics
                 String descriptor = Type.getDescriptor( ExecutionStatistics.class );
                 super.visitLocalVariable("$stat", desc, descriptor , scopeStart, scopeEnd , variableSlot); 
+                if ( accumulate ) {
+                    super.visitLocalVariable("$count", "I", null , scopeStart, scopeEnd , variableSlot+1);
+                }
+                if ( callingContextMethod != -1 ) {
+                    super.visitLocalVariable("$cct", "I", null , scopeStart, scopeEnd , getCallingContextSlot( variableSlot , accumulate ) );
+                }
             }
         }        
     }
 
     // for each basic control block, inserts code that increments ExecutionStatistics#executedInstructionCount for the current thread
     // and invokes StatisticsManager#account() once the instruction count is >= 0
+    // (or , in local accumulation mode, increments $count and flushes it to ExecutionStatistics#executedInstructionCount at exits,invocations, exception handlers and back edges) 
     protected final class BasicBlockVisitor extends DeferredMethodVisitor 
     {
         private final boolean visitingConstructor;
+        private final boolean guarded;
+        private final boolean accumulate;
+        private final Set<Integer> flushPoints;
+        private final Map<Integer,HoistedLoop> loopsByHeader = new HashMap<>();
+        private final Map<Integer,HoistedLoop> loopsByExitJump = new HashMap<>();
+        private final Map<Integer,HoistedLoop> loopsByBackEdgeJump = new HashMap<>();
+        private final Set<IBlock> hoistedBlocks = new HashSet<>();
+        // slot of local variable that holds the induction variable's value on loop entry
+        private final int loopStartSlot;
+        private final FrameUpdatingVisitor frames;
+        private final Map<IBlock,Integer> probeCharges;
+        private final Map<IBlock,Integer> allocationCounters;
+        private final Map<IBlock,Integer> liveCounterIndices;
+        private final Map<IBlock,Integer> loopExitCounterIndices;
+        private final int callingContextMethod;
+        // start labels of exception handlers , these need to resume the method's calling-context tree node
+        private final Set<Label> handlers = new HashSet<>();
+        private boolean resumePending;
         private final ControlFlowGraph cfg;
         private final InstructionCountingVisitor counter;
         private final int variableSlot;
 
         private boolean superConstructorCallSeen = false;
+        // whether $stat has been initialized , constructors initialize it after the super constructor call
+        private boolean prologueDone;
 
         protected BasicBlockVisitor(MethodVisitor mv,InstructionCountingVisitor instructionCounter,
-                ControlFlowGraph cfg,int variableSlot,boolean visitingConstructor)
+                MethodPlan plan,int variableSlot,boolean visitingConstructor,boolean guarded,boolean accumulate,FrameUpdatingVisitor frames)
         {
             super(mv);
+            final ControlFlowGraph cfg = plan.cfg;
+            this.probeCharges = plan.probeCharges;
+            this.allocationCounters = plan.allocationCounters;
+            this.liveCounterIndices = plan.liveCounters;
+            this.loopExitCounterIndices = plan.loopExitCounters;
+            this.callingContextMethod = plan.callingContextMethod;
+            this.accumulate = accumulate;
+            this.flushPoints = accumulate ? getFlushPoints( cfg ) : null;
+            this.prologueDone = ! visitingConstructor;
+            this.loopStartSlot = getCallingContextSlot( variableSlot , accumulate ) + ( callingContextMethod != -1 ? 1 : 0 );
+            for ( CountedLoop loop : plan.countedLoops ) 
+            {
+                final HoistedLoop hoisted = new HoistedLoop( loop );
+                loopsByHeader.put( loop.headerStart , hoisted );
+                loopsByExitJump.put( loop.exitJump , hoisted );
+                loopsByBackEdgeJump.put( loop.backEdgeJump , hoisted );
+                hoistedBlocks.addAll( loop.blocks );
+                if ( flushPoints != null ) {
+                    flushPoints.remove( loop.backEdgeJump );
+                }
+            }
             this.counter = instructionCounter;
             this.cfg = cfg;
             this.variableSlot = variableSlot;
             this.visitingConstructor = visitingConstructor;
+            this.guarded = guarded;
+            this.frames = frames;
         }
 
         protected int currentInstructionNum() {
@@ -403,7 +1483,27 @@ public class ProfilingRewriter implements Opcodes
 
         private void maybeInsertCode() 
         {
+            if ( resumePending ) 
+            {
+                // exception handlers resume the calling-context tree node before charging any instructions
+                resumePending = false;
+                if ( prologueDone ) {
+                    insertCallingContextCall( "resume" );
+                }
+            }
             final int insnNum = currentInstructionNum();
+            insertBlockCode( insnNum );
+            final HoistedLoop loop = loopsByHeader.get( insnNum );
+            if ( loop != null ) {
+                insertLoopEntryCode( loop );
+            }
+            if ( accumulate && prologueDone && flushPoints.contains( insnNum ) ) {
+                flush();
+            }
+        }
+        
+        private void insertBlockCode(int insnNum) 
+        {
             final IBlock block = cfg.getBlockForInstruction( insnNum );
 
             if ( block == null ) {
@@ -415,7 +1515,8 @@ public class ProfilingRewriter implements Opcodes
             	return;
             }
 
-            if ( visitingConstructor && ! superConstructorCallSeen && block.getIndexOfSuperConstructorCall( cfg.getMethod() )+1 == insnNum ) 
+            final int superConstructorCall = visitingConstructor && ! superConstructorCallSeen ? block.getIndexOfSuperConstructorCall( cfg.getMethod() ) : -1;
+            if ( superConstructorCall != -1 && superConstructorCall+1 == insnNum ) 
             {
                 superConstructorCallSeen = true;
                 // we're inside a constructor and the current block contains the INVOKESPECIAL init()
@@ -454,16 +1555,79 @@ public class ProfilingRewriter implements Opcodes
          * </pre>
          * 
          * </p>
+         * <p>With guarded probes, the code is only executed if <code>ProfilingSwitch</code> is enabled and $stat is not <code>null</code>
+         * (profiling might have been switched on after the method was entered).</p>
          * @param block block that will begin on the next instruction
          */
         private void insertCode(IBlock block) 
         {
+            final Integer allocationCounter = allocationCounters.get( block );
+            
+            // number of instructions to account for , -1 if the block gets no probe
+            int insCount = -1;
+            if ( ! hoistedBlocks.contains( block ) ) // otherwise accounted for on loop exit
+            {
+                if ( probeCharges != null ) 
+                {
+                    final Integer charge = probeCharges.get( block );
+                    if ( charge != null ) { // degraded instrumentation otherwise , no probe for this block
+                        insCount = charge;
+                    }
+                } else {
+                    insCount = OpcodeCostModel.getBlockCost( block , cfg.getMethod() , costModel );
+                }
+            }
+            
+            if ( insCount == -1 ) 
+            {
+                if ( allocationCounter != null ) {
+                    insertGuardedCounters( allocationCounter , null , 0 );
+                }
+                return;
+            }
+            
+            final Integer liveCounter = liveCounterIndices.get( block );
+            if ( accumulate ) 
+            {
+                if ( allocationCounter != null || liveCounter != null ) {
+                    insertGuardedCounters( allocationCounter , liveCounter , insCount );
+                }
+                
+                // $count += <number of instructions in upcoming block> 
+                if ( frames != null ) {
+                    frames.beginInsertedCode();
+                }
+                if ( insCount <= Short.MAX_VALUE ) {
+                    super.visitIincInsn( variableSlot+1 , insCount );
+                } 
+                else 
+                {
+                    super.visitVarInsn(ILOAD, variableSlot+1);
+                    super.visitLdcInsn( insCount );
+                    super.visitInsn(IADD);
+                    super.visitVarInsn(ISTORE, variableSlot+1);
+                }
+                if ( frames != null ) {
+                    frames.endInsertedCode( false );
+                }
+                return;
+            }
+            
         	// note: local variable @ #variableSlot is already initialized with reference to the
         	// current thread's ExecutionStatistics instance here
 
             //            mv.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;");
             //            mv.visitVarInsn(ASTORE, variableSlot);              
 
+            final Label rest = new Label(); // label used to jump to the actual start of the current control block
+            
+            if ( frames != null ) {
+                frames.beginInsertedCode();
+            }
+            
+            insertGuard( rest );
+            insertCounters( allocationCounter , liveCounter , insCount );
+            
             // push reference to ExecutionStatistics on stack & duplicate it   
             super.visitVarInsn(ALOAD, variableSlot);
             super.visitInsn(DUP);
@@ -477,7 +1641,6 @@ public class ProfilingRewriter implements Opcodes
             super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
 
             // push the number of instructions in this block onto the stack
-            final int insCount = block.getByteCodeInstructionCount(cfg.getMethod() );
             if ( insCount <= Byte.MAX_VALUE ) {
             	super.visitIntInsn(BIPUSH , insCount );
             } else if ( insCount <= Short.MAX_VALUE ) {
@@ -523,8 +1686,6 @@ public class ProfilingRewriter implements Opcodes
              * ExecutionStatistics#executedInstructionCount 
              */
 
-            final Label rest = new Label(); // label used to jump to the actual start of the current control block
-            
             // conditional branch , do NOT invoke StatisticsManager#account() if value on stack is less than zero ( < 0 )
             super.visitJumpInsn(IFLT, rest);
 
@@ -535,12 +1696,125 @@ public class ProfilingRewriter implements Opcodes
 
             // assign location to label
             super.visitLabel(rest);
+            
+            if ( frames != null ) {
+                frames.endInsertedCode();
+            }
+        }
+
+        /**
+         * With guarded probes , inserts a jump to the given label that is taken if
+         * profiling is switched off or was switched off when the method was entered.
+         */
+        private void insertGuard(Label skip) 
+        {
+            if ( guarded ) 
+            {
+                super.visitInvokeDynamicInsn("profilingEnabled", "()Z", PROFILING_SWITCH_BOOTSTRAP );
+                super.visitJumpInsn(IFEQ, skip);
+                super.visitVarInsn(ALOAD, variableSlot);
+                super.visitJumpInsn(IFNULL, skip);
+            }
+        }
+        
+        /**
+         * Insert bytecode that updates a block's allocation and live counters.
+         * 
+         * <pre>
+         *   AllocationCounters.add( &lt;counter index&gt; );
+         *   LiveCounters.add( &lt;counter index&gt; , &lt;number of instructions in upcoming block&gt; );
+         * </pre>
+         * 
+         * @param allocationCounter allocation counter index or <code>null</code>
+         * @param liveCounter live counter index or <code>null</code>
+         * @param insCount number of instructions in the upcoming block
+         */
+        private void insertCounters(Integer allocationCounter,Integer liveCounter,int insCount) 
+        {
+            if ( allocationCounter != null ) 
+            {
+                pushInt( allocationCounter );
+                super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/AllocationCounters", "add", "(I)V");
+            }
+            if ( liveCounter != null ) 
+            {
+                pushInt( liveCounter );
+                pushInt( insCount );
+                super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/LiveCounters", "add", "(II)V");
+            }
+        }
+        
+        /**
+         * Insert {@link #insertCounters(Integer, Integer, int)} code for blocks that do not
+         * update {@link ExecutionStatistics} directly , guarded the same way as regular probes.
+         */
+        private void insertGuardedCounters(Integer allocationCounter,Integer liveCounter,int insCount) 
+        {
+            final Label rest = new Label();
+            if ( frames != null ) {
+                frames.beginInsertedCode();
+            }
+            insertGuard( rest );
+            insertCounters( allocationCounter , liveCounter , insCount );
+            if ( guarded ) {
+                super.visitLabel( rest );
+            }
+            if ( frames != null ) {
+                frames.endInsertedCode( guarded );
+            }
+        }
+
+        /**
+         * Insert bytecode that adds the locally accumulated instruction count to {@link ExecutionStatistics}.
+         * 
+         * <pre>
+         *   $stat.executedInstructionCount += $count;
+         *   $count = 0;
+         *   if ( $stat.executedInstructionCount >= 0 ) {
+         *       StatisticsManager.account();
+         *   }         
+         * </pre>
+         */
+        private void flush() 
+        {
+            final Label rest = new Label();
+            
+            if ( frames != null ) {
+                frames.beginInsertedCode();
+            }
+            
+            insertGuard( rest );
+            
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitInsn(DUP);
+            super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
+            super.visitVarInsn(ILOAD, variableSlot+1);
+            super.visitInsn(IADD);
+            super.visitFieldInsn(PUTFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
+            
+            super.visitInsn(ICONST_0);
+            super.visitVarInsn(ISTORE, variableSlot+1);
+            
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
+            super.visitJumpInsn(IFLT, rest);
+            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "account", "()V");
+            
+            super.visitLabel(rest);
+            
+            if ( frames != null ) {
+                frames.endInsertedCode();
+            }
         }
 
         @Override
         public void visitInsn(int opcode)
         {
             maybeInsertCode();
+            if ( callingContextMethod != -1 && prologueDone && ( ( opcode >= IRETURN && opcode <= RETURN ) || opcode == ATHROW ) ) {
+                // if the exception is caught within this method , the handler resumes our node again
+                insertCallingContextCall( "exit" );
+            }
             super.visitInsn(opcode);
         }
 
@@ -577,6 +1851,10 @@ public class ProfilingRewriter implements Opcodes
         {
             maybeInsertCode();
             super.visitMethodInsn(opcode, owner, name, desc);
+            // LoadVarVisitor inserts its code right after the first constructor invocation
+            if ( ! prologueDone && opcode == INVOKESPECIAL && name.equals("<init>") ) {
+                prologueDone = true;
+            }
         }
 
         @Override
@@ -590,14 +1868,202 @@ public class ProfilingRewriter implements Opcodes
         public void visitJumpInsn(int opcode, Label label)
         {
             maybeInsertCode();
+            
+            final int insnNum = currentInstructionNum();
+            HoistedLoop loop = loopsByExitJump.get( insnNum );
+            if ( loop != null ) 
+            {
+                // leave the loop through our exit code
+                loop.exit = label;
+                super.visitJumpInsn(opcode, loop.exitCode );
+                if ( frames != null ) 
+                {
+                    loop.exitLocals = frames.getCurrentLocals();
+                    loop.exitStack = frames.getCurrentStack();
+                }
+                return;
+            }
+            
+            loop = loopsByBackEdgeJump.get( insnNum );
+            if ( loop != null ) 
+            {
+                // skip the code that records the induction variable's start value
+                super.visitJumpInsn(opcode, loop.bodyStart );
+                insertLoopExitCode( loop );
+                return;
+            }
             super.visitJumpInsn(opcode, label);
         }
+        
+        /**
+         * Insert bytecode at the start of the loop header that records the induction variable's
+         * value on loop entry. 
+         */
+        private void insertLoopEntryCode(HoistedLoop loop) 
+        {
+            if ( frames != null ) {
+                frames.beginInsertedCode();
+            }
+            super.visitVarInsn(ILOAD, loop.loop.inductionVariable );
+            super.visitVarInsn(ISTORE, loopStartSlot );
+            super.visitLabel( loop.bodyStart );
+            
+            if ( frames != null ) 
+            {
+                frames.endInsertedCode();
+                
+                // local variables assigned inside the loop have unknown types in the exception handler 
+                final List<Object> locals = frames.getCurrentLocals();
+                for ( int slot : loop.loop.modifiedSlots ) 
+                {
+                    if ( slot == loop.loop.inductionVariable || slot >= locals.size() ) {
+                        continue;
+                    }
+                    locals.set( slot , TOP );
+                    if ( slot > 0 && ( locals.get( slot-1 ) == LONG || locals.get( slot-1 ) == DOUBLE ) ) {
+                        locals.set( slot-1 , TOP );
+                    }
+                }
+                loop.handlerLocals = locals;
+            }
+        }
+        
+        /**
+         * Insert bytecode right after the loop's back edge jump that 
+         * accounts for all loop iterations when the loop terminates or is left by an exception.
+         * 
+         * <pre>
+         *   exitCode:
+         *     StatisticsManager.account( (long) ( ( i - $start ) / step ) * iterationCost + headerCost );
+         *     goto exit;
+         *   handler: // catches all exceptions thrown inside the loop
+         *     StatisticsManager.account( (long) ( ( i - $start ) / step ) * iterationCost );
+         *     throw exception; 
+         * </pre>
+         */
+        private void insertLoopExitCode(HoistedLoop loop) 
+        {
+            if ( frames != null ) {
+                frames.beginInsertedCode();
+            }
+            super.visitLabel( loop.bodyEnd );
+            
+            super.visitLabel( loop.exitCode );
+            if ( frames != null ) {
+                frames.insertFrame( loop.exitLocals , loop.exitStack );
+            }
+            insertLoopAccounting( loop , true , loop.exitLocals , loop.exitStack );
+            super.visitJumpInsn(GOTO, loop.exit );
+            
+            super.visitLabel( loop.handler );
+            if ( frames != null ) 
+            {
+                final List<Object> stack = new ArrayList<>();
+                stack.add( "java/lang/Throwable" );
+                frames.insertFrame( loop.handlerLocals , stack );
+                insertLoopAccounting( loop , false , loop.handlerLocals , stack );
+            } else {
+                insertLoopAccounting( loop , false , null , null );
+            }
+            super.visitInsn(ATHROW);
+            
+            if ( frames != null ) {
+                frames.endInsertedCode( false );
+            }
+        }
+        
+        private void insertLoopAccounting(HoistedLoop loop,boolean includeHeader,List<Object> frameLocals,List<Object> frameStack) 
+        {
+            final Label skip = new Label();
+            insertGuard( skip );
+            
+            final Integer liveCounter = liveCounterIndices.get( loop.loop.header );
+            if ( liveCounter != null ) {
+                pushInt( liveCounter );
+            }
+            
+            // number of completed iterations
+            super.visitVarInsn(ILOAD, loop.loop.inductionVariable );
+            super.visitVarInsn(ILOAD, loopStartSlot );
+            super.visitInsn(ISUB);
+            if ( loop.loop.step != 1 ) 
+            {
+                super.visitLdcInsn( loop.loop.step );
+                super.visitInsn(IDIV);
+            }
+            super.visitInsn(I2L);
+            super.visitLdcInsn( Long.valueOf( loop.loop.iterationCost ) );
+            super.visitInsn(LMUL);
+            if ( liveCounter != null ) 
+            {
+                // LiveCounters.add( <counter index> , <number of instructions> )
+                super.visitInsn(DUP2_X1);
+                super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/LiveCounters", "add", "(IJ)V");
+            }
+            if ( includeHeader ) 
+            {
+                super.visitLdcInsn( Long.valueOf( loop.loop.headerCost ) );
+                super.visitInsn(LADD);
+                
+                final Integer exitCounter = loopExitCounterIndices.get( loop.loop.header );
+                if ( exitCounter != null ) 
+                {
+                    // LiveCounters.add( <counter index> , headerCost )
+                    pushInt( exitCounter );
+                    super.visitLdcInsn( Long.valueOf( loop.loop.headerCost ) );
+                    super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/LiveCounters", "add", "(IJ)V");
+                }
+            }
+            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "account", "(J)V");
+            
+            if ( guarded ) 
+            {
+                super.visitLabel( skip );
+                if ( frames != null ) {
+                    frames.insertFrame( frameLocals , frameStack );
+                }
+            }
+        }
+        
+        // CallingContextTree.<method>( $cct )
+        private void insertCallingContextCall(String method) 
+        {
+            if ( frames != null ) {
+                frames.beginInsertedCode();
+            }
+            super.visitVarInsn(ILOAD, getCallingContextSlot( variableSlot , accumulate ) );
+            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/CallingContextTree", method , "(I)V");
+            if ( frames != null ) {
+                frames.endInsertedCode( false );
+            }
+        }
+        
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type)
+        {
+            if ( callingContextMethod != -1 ) {
+                handlers.add( handler );
+            }
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+        
+        @Override
+        public void visitCode()
+        {
+            super.visitCode();
+            for ( HoistedLoop loop : loopsByHeader.values() ) {
+                super.visitTryCatchBlock( loop.bodyStart , loop.bodyEnd , loop.handler , null );
+            }
+        }
 
         @Override
         public void visitLabel(Label label)
         {
             maybeInsertCode();
             super.visitLabel(label);
+            if ( handlers.contains( label ) ) {
+                resumePending = true;
+            }
         }
 
         @Override
@@ -636,6 +2102,26 @@ public class ProfilingRewriter implements Opcodes
         }       
     }
 
+    // code locations generated for a loop that is accounted for on loop exit
+    protected static final class HoistedLoop 
+    {
+        public final CountedLoop loop;
+        public final Label bodyStart = new Label();
+        public final Label bodyEnd = new Label();
+        public final Label exitCode = new Label();
+        public final Label handler = new Label();
+        public Label exit;
+        // frames at exitCode/handler
+        public List<Object> exitLocals;
+        public List<Object> exitStack;
+        public List<Object> handlerLocals;
+        
+        public HoistedLoop(CountedLoop loop)
+        {
+            this.loop = loop;
+        }
+    }
+    
     // subclass that exposes the protected "mv" field of MethodVisitor so
     // we can set the delegate after object construction
     protected class DeferredMethodVisitor extends MethodVisitor {
@@ -653,6 +2139,25 @@ public class ProfilingRewriter implements Opcodes
         public void setDelegate(MethodVisitor mv) {
             this.mv = mv;
         }
+        
+        // pushes an int constant using the shortest instruction
+        protected final void pushInt(int value) 
+        {
+            if ( value >= -1 && value <= 5 ) {
+                mv.visitInsn( ICONST_0 + value );
+            } else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+                mv.visitIntInsn(BIPUSH , value );
+            } else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+                mv.visitIntInsn(SIPUSH , value );
+            } else {
+                mv.visitLdcInsn( value );
+            }
+        }
+    }
+    
+    // slot of the $cct variable , right after $stat/$count
+    private static int getCallingContextSlot(int variableSlot,boolean accumulate) {
+        return variableSlot + ( accumulate ? 2 : 1 );
     }
 
     // keeps track of the current byte-code instruction's index within a method
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import de.codesourcery.asm.profiling.TaskAttribution;
+
+/**
+ * Wraps <code>Runnable</code>s and <code>Callable</code>s using {@link TaskAttribution#wrap(Runnable)} / {@link TaskAttribution#wrap(java.util.concurrent.Callable)} 
+ * right before they get submitted to an executor or used to start a thread.
+ * 
+ * <p>Submissions are recognized by the owner and name of the invoked method , the task needs to be 
+ * the first argument and may be followed by at most one other reference argument (like <code>ExecutorService#submit(Runnable,Object)</code>).</p>
+ * 
+ * <p>Virtual threads (<code>Thread.Builder</code> , <code>Thread#startVirtualThread(Runnable)</code>) are not covered: Code using them
+ * is compiled to Java 21 class files , but the ASM version used here only reads class files up to Java 8.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setTaskAttribution(boolean)
+ */
+public class TaskSubmissionVisitor extends MethodVisitor implements Opcodes
+{
+    private static final String RUNNABLE = "java/lang/Runnable";
+    private static final String CALLABLE = "java/util/concurrent/Callable";
+    private static final String TASK_ATTRIBUTION = Type.getInternalName( TaskAttribution.class );
+    
+    private static final Set<String> EXECUTORS = new HashSet<>( Arrays.asList( 
+            "java/util/concurrent/Executor",
+            "java/util/concurrent/ExecutorService",
+            "java/util/concurrent/ScheduledExecutorService",
+            "java/util/concurrent/AbstractExecutorService",
+            "java/util/concurrent/ThreadPoolExecutor",
+            "java/util/concurrent/ScheduledThreadPoolExecutor",
+            "java/util/concurrent/ForkJoinPool",
+            "java/util/concurrent/CompletionService",
+            "java/util/concurrent/ExecutorCompletionService") );
+    
+    public TaskSubmissionVisitor(MethodVisitor mv)
+    {
+        super(Opcodes.ASM5, mv);
+    }
+    
+    private static boolean isSubmission(String owner, String name)
+    {
+        if ( EXECUTORS.contains( owner ) ) {
+            return name.equals("execute") || name.equals("submit");
+        }
+        if ( owner.equals("java/lang/Thread") ) {
+            return name.equals("<init>");
+        }
+        if ( owner.equals("java/util/concurrent/CompletableFuture") ) {
+            return name.equals("runAsync");
+        }
+        return false;
+    }
+    
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf)
+    {
+        if ( isSubmission( owner , name ) ) 
+        {
+            final Type[] args = Type.getArgumentTypes( desc );
+            if ( args.length >= 1 && args.length <= 2 ) 
+            {
+                final String taskType = args[0].getSort() == Type.OBJECT ? args[0].getInternalName() : null;
+                final boolean isTask = RUNNABLE.equals( taskType ) || CALLABLE.equals( taskType );
+                if ( isTask && args.length == 1 ) 
+                {
+                    wrap( taskType );
+                } 
+                else if ( isTask && ( args[1].getSort() == Type.OBJECT || args[1].getSort() == Type.ARRAY ) ) 
+                {
+                    super.visitInsn(SWAP);
+                    wrap( taskType );
+                    super.visitInsn(SWAP);
+                }
+            }
+        }
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+    
+    private void wrap(String taskType) {
+        super.visitMethodInsn(INVOKESTATIC, TASK_ATTRIBUTION, "wrap", "(L"+taskType+";)L"+taskType+";", false);
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache for instrumented class files.
+ *
+ * <p>Entries are keyed by a SHA-1 hash of the original class bytes plus a string describing the
+ * agent configuration, so changing either the class or the configuration leads to a cache miss. Cached
+ * entries are read using memory-mapped I/O.</p>
+ *
+ * <p>The cache directory may be shared by several JVMs on the same host: Entries are written to a temporary file
+ * first and then atomically renamed, so readers never see partially written entries. Eviction (least-recently used first ,
+ * based on file modification times that get updated on each hit) runs whenever the total size of all entries exceeds the size budget
+ * and is serialized across JVMs using a file lock.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class TransformCache
+{
+    private static final String SUFFIX = ".class";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = ".lock";
+
+    // stale temporary files (left behind by crashed JVMs) are deleted after this many milliseconds
+    private static final long STALE_TMP_FILE_MILLIS = 60*60*1000;
+
+    private static final FileFilter ENTRIES = new FileFilter() {
+        @Override
+        public boolean accept(File file)
+        {
+            return file.getName().endsWith( SUFFIX );
+        }
+    };
+
+    private final File directory;
+    private final long maxSize;
+    private final byte[] configuration;
+
+    // approximate size of all entries, only used to decide when to run the eviction
+    private final AtomicLong currentSize = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create cache.
+     *
+     * @param directory cache directory , gets created if it doesn't exist
+     * @param maxSize maximum size of all cache entries in bytes
+     * @param configuration string describing the agent configuration (becomes part of each entry's key)
+     * @throws IOException if the cache directory could not be created
+     */
+    public TransformCache(File directory,long maxSize,String configuration) throws IOException
+    {
+        if ( maxSize <= 0 ) {
+            throw new IllegalArgumentException("Cache size must be > 0");
+        }
+        if ( ! directory.exists() && ! directory.mkdirs() && ! directory.isDirectory() ) {
+            throw new IOException("Failed to create cache directory "+directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.configuration = configuration.getBytes( Charset.forName("UTF-8") );
+        this.currentSize.set( totalSize( listEntries() ) );
+    }
+
+    /**
+     * Look up the instrumented version of a class.
+     *
+     * @param original the original class bytes
+     * @return the instrumented class bytes or <code>null</code> if the cache has no entry for this class
+     */
+    public byte[] get(byte[] original)
+    {
+        final File file = getFile( original );
+        try
+        {
+            final byte[] result = read( file );
+            if ( result != null )
+            {
+                hits.incrementAndGet();
+                // keep recently used entries from being evicted
+                file.setLastModified( System.currentTimeMillis() );
+                return result;
+            }
+        }
+        catch(IOException e) {
+            // entry might just have been evicted by another JVM
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store the instrumented version of a class.
+     *
+     * <p>Failures are reported on <code>System.err</code> but otherwise ignored.</p>
+     *
+     * @param original the original class bytes
+     * @param transformed the instrumented class bytes
+     */
+    public void put(byte[] original,byte[] transformed)
+    {
+        final File file = getFile( original );
+        File tmpFile = null;
+        try
+        {
+            tmpFile = File.createTempFile( file.getName() , TMP_SUFFIX , directory );
+            final FileOutputStream out = new FileOutputStream( tmpFile );
+            try {
+                out.write( transformed );
+            } finally {
+                out.close();
+            }
+
+            try {
+                Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch(AtomicMoveNotSupportedException e) {
+                Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING );
+            }
+            tmpFile = null;
+        }
+        catch(IOException e) {
+            System.err.println("Failed to write cache entry "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+            return;
+        }
+        finally
+        {
+            if ( tmpFile != null ) {
+                tmpFile.delete();
+            }
+        }
+
+        if ( currentSize.addAndGet( transformed.length ) > maxSize ) {
+            evict();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private File getFile(byte[] original)
+    {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException( e ); // every JRE is required to support SHA-1
+        }
+        digest.update( configuration );
+        final byte[] hash = digest.digest( original );
+
+        final StringBuilder name = new StringBuilder( hash.length*2 + SUFFIX.length() );
+        for ( byte b : hash ) {
+            name.append( Character.forDigit( ( b >> 4 ) & 0x0f , 16 ) ).append( Character.forDigit( b & 0x0f , 16 ) );
+        }
+        return new File( directory , name.append( SUFFIX ).toString() );
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        if ( ! file.isFile() ) {
+            return null;
+        }
+
+        final RandomAccessFile in = new RandomAccessFile( file , "r" );
+        try
+        {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if ( size < 4 || size > Integer.MAX_VALUE ) {
+                return null;
+            }
+            final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY , 0 , size );
+            if ( buffer.getInt( 0 ) != 0xCAFEBABE ) { // not a class file
+                return null;
+            }
+            final byte[] result = new byte[ (int) size ];
+            buffer.get( result );
+            return result;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes least-recently used entries until the total size of all
+     * entries is below 75% of the size budget.
+     */
+    private void evict()
+    {
+        try
+        {
+            final RandomAccessFile lockFile = new RandomAccessFile( new File( directory , LOCK_FILE ) , "rw" );
+            try
+            {
+                final FileLock lock = lockFile.getChannel().tryLock();
+                if ( lock == null ) { // another JVM is already evicting entries
+                    return;
+                }
+                try {
+                    deleteStaleTemporaryFiles();
+
+                    final File[] entries = listEntries();
+                    Arrays.sort( entries , new Comparator<File>() {
+                        @Override
+                        public int compare(File o1, File o2)
+                        {
+                            return Long.compare( o1.lastModified() , o2.lastModified() );
+                        }
+                    } );
+
+                    long size = totalSize( entries );
+                    final long target = maxSize / 4 * 3;
+                    for ( int i = 0 ; i < entries.length && size > target ; i++ )
+                    {
+                        final long len = entries[i].length();
+                        if ( entries[i].delete() ) {
+                            size -= len;
+                        }
+                    }
+                    currentSize.set( size );
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            finally {
+                lockFile.close();
+            }
+        }
+        catch(IOException e) {
+            System.err.println("Failed to evict cache entries from "+directory.getAbsolutePath()+" ("+e.getMessage()+")");
+        }
+    }
+
+    private void deleteStaleTemporaryFiles()
+    {
+        final long threshold = System.currentTimeMillis() - STALE_TMP_FILE_MILLIS;
+        final File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files ) {
+                if ( f.getName().endsWith( TMP_SUFFIX ) && f.lastModified() < threshold ) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private File[] listEntries()
+    {
+        final File[] result = directory.listFiles( ENTRIES );
+        return result != null ? result : new File[0];
+    }
+
+    private static long totalSize(File[] files)
+    {
+        long result = 0;
+        for ( File f : files ) {
+            result += f.length();
+        }
+        return result;
+    }
+}
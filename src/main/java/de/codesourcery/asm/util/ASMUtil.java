@@ -131,7 +131,7 @@ public class ASMUtil
                 else if ( parent.isFile() ) // path entry is a (ZIP/JAR) file 
                 { 
                     final Path archive = Paths.get( parent.getAbsolutePath() );
-                    final FileSystem fs = FileSystems.newFileSystem(archive , null);
+                    final FileSystem fs = FileSystems.newFileSystem(archive , (ClassLoader) null);
                     final Path classFilePath = fs.getPath( relPath );
 
                     if ( Files.exists( classFilePath ) ) 
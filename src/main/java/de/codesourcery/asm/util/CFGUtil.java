@@ -147,6 +147,10 @@ public class CFGUtil {
 
     /**
      * check whether the given two graphs CFG are isomorphic
+     *
+     * only regular edges of blocks with at most two successors are followed, use
+     * {@link #isStructurallyEqual(ControlFlowGraph, ControlFlowGraph)} or {@link CanonicalCFG} to
+     * compare switch and exception edges as well
      * @param bb1 first
      * @param bb2 second
      * @return true if the graphs are isomorphic, false otherwise
@@ -187,4 +191,15 @@ public class CFGUtil {
 
         return false;
     }
+
+    /**
+     * check whether two CFGs have the same structure (all edge kinds and the opcodes of each block)
+     * @param g1 first
+     * @param g2 second
+     * @return true if the graphs are isomorphic, false otherwise
+     * @see CanonicalCFG
+     */
+    public static boolean isStructurallyEqual(ControlFlowGraph g1, ControlFlowGraph g2) {
+        return new CanonicalCFG(g1).isIsomorphic(new CanonicalCFG(g2));
+    }
 }
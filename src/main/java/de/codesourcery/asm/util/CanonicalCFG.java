@@ -0,0 +1,560 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.controlflow.Edge;
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.controlflow.MethodEntry;
+import de.codesourcery.asm.controlflow.MethodExit;
+
+/**
+ * Structural fingerprint of a control-flow graph that supports fast hashing and exact isomorphism checks.
+ * 
+ * <p>Two graphs are considered structurally equal if there is a bijection between their blocks that preserves
+ * the entry block , all edges including their kind (regular, <code>true</code>/<code>false</code> branch, switch case with its key, caught
+ * exception with its type) and each block's opcode sequence. Instruction operands, block IDs and instruction indices are ignored.</p>
+ * 
+ * <p>{@link #getHash()} is computed by Weisfeiler-Lehman style colour refinement: each block starts with a label derived from 
+ * its opcodes and is repeatedly relabeled with the multiset of (edge kind , neighbour label) pairs of its incoming and outgoing edges
+ * until the partition of blocks stops changing. The hash is invariant under block renumbering, so graphs with different
+ * hashes are never isomorphic. Since different graphs may still share a hash, {@link #isIsomorphic(CanonicalCFG)} performs an exact comparison
+ * , matching blocks in breadth-first order from the entry and only considering candidates with the same refined label (which in practice
+ * leaves a single candidate per block).</p>
+ * 
+ * <p>Instances are immutable and do not retain the graph, so they can be kept around for deduplicating large numbers of methods.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see CFGUtil#isIsomorphic(IBlock, IBlock)
+ */
+public final class CanonicalCFG
+{
+    private static final int[] ENTRY_SIGNATURE = { -1 };
+    private static final int[] EXIT_SIGNATURE = { -2 };
+    private static final int[] NO_SIGNATURE = {};
+    
+    private final int entry;
+    // opcode sequence of each block
+    private final int[][] signatures;
+    // successor and predecessor lists , edge kinds are stored in parallel arrays
+    private final int[][] successors;
+    private final String[][] successorKinds;
+    private final int[][] predecessors;
+    private final String[][] predecessorKinds;
+    private final int edgeCount;
+    // refined labels
+    private final long[] labels;
+    private final long hash;
+    
+    /**
+     * Creates the fingerprint of a control-flow graph , including the opcodes of each block.
+     * 
+     * @param graph
+     */
+    public CanonicalCFG(ControlFlowGraph graph) 
+    {
+        this( graph.getAllNodes() , graph.getStart() , graph.getMethod() );
+    }
+    
+    /**
+     * Creates the fingerprint of the graph reachable from a start block , ignoring
+     * instructions (only the graph's shape is compared).
+     * 
+     * @param start
+     */
+    public CanonicalCFG(IBlock start) 
+    {
+        this( getReachableBlocks( start ) , start , null );
+    }
+    
+    private CanonicalCFG(Collection<IBlock> blocks,IBlock start,MethodNode method)
+    {
+        final List<IBlock> nodes = new ArrayList<>( blocks );
+        final Map<IBlock,Integer> indices = new HashMap<>();
+        for ( IBlock block : nodes ) {
+            indices.put( block , indices.size() );
+        }
+        if ( ! indices.containsKey( start ) ) {
+            throw new IllegalArgumentException("Start block is not part of the graph");
+        }
+        
+        final int size = nodes.size();
+        this.entry = indices.get( start );
+        this.signatures = new int[ size ][];
+        
+        // predecessor and successor of an edge do not necessarily store equal Edge instances , so only successor edges are used
+        final List<List<Integer>> succ = new ArrayList<>();
+        final List<List<String>> succKinds = new ArrayList<>();
+        final List<List<Integer>> pred = new ArrayList<>();
+        final List<List<String>> predKinds = new ArrayList<>();
+        for ( int i = 0 ; i < size ; i++ ) 
+        {
+            succ.add( new ArrayList<Integer>() );
+            succKinds.add( new ArrayList<String>() );
+            pred.add( new ArrayList<Integer>() );
+            predKinds.add( new ArrayList<String>() );
+        }
+        
+        int edges = 0;
+        for ( int i = 0 ; i < size ; i++ ) 
+        {
+            final IBlock block = nodes.get( i );
+            signatures[i] = getSignature( block , method );
+            for ( Edge edge : block.getEdges() ) 
+            {
+                final Integer dst = indices.get( edge.dst );
+                if ( edge.isSuccessor( block ) && dst != null ) 
+                {
+                    final String kind = getKind( edge );
+                    succ.get( i ).add( dst );
+                    succKinds.get( i ).add( kind );
+                    pred.get( dst ).add( i );
+                    predKinds.get( dst ).add( kind );
+                    edges++;
+                }
+            }
+        }
+        this.edgeCount = edges;
+        this.successors = toArray( succ );
+        this.successorKinds = toStringArray( succKinds );
+        this.predecessors = toArray( pred );
+        this.predecessorKinds = toStringArray( predKinds );
+        
+        this.labels = refine();
+        
+        final long[] sorted = labels.clone();
+        Arrays.sort( sorted );
+        long h = mix( size * 31L + edgeCount );
+        for ( long label : sorted ) {
+            h = mix( h * 31 + label );
+        }
+        this.hash = mix( h * 31 + labels[ entry ] );
+    }
+    
+    private static Set<IBlock> getReachableBlocks(IBlock start) 
+    {
+        final Set<IBlock> result = new HashSet<>();
+        final Deque<IBlock> queue = new ArrayDeque<>();
+        queue.add( start );
+        result.add( start );
+        while ( ! queue.isEmpty() ) 
+        {
+            final IBlock block = queue.removeFirst();
+            for ( Edge edge : block.getEdges() ) 
+            {
+                if ( edge.isSuccessor( block ) && result.add( edge.dst ) ) {
+                    queue.add( edge.dst );
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static int[] getSignature(IBlock block,MethodNode method) 
+    {
+        if ( block instanceof MethodEntry ) {
+            return ENTRY_SIGNATURE;
+        }
+        if ( block instanceof MethodExit ) {
+            return EXIT_SIGNATURE;
+        }
+        if ( method == null ) {
+            return NO_SIGNATURE;
+        }
+        final List<Integer> nums = new ArrayList<>( block.getInstructionNums() );
+        Collections.sort( nums );
+        final int[] opcodes = new int[ nums.size() ];
+        int count = 0;
+        for ( int num : nums ) 
+        {
+            final AbstractInsnNode insn = method.instructions.get( num );
+            if ( insn.getOpcode() != -1 ) { // skip labels, line numbers and frames
+                opcodes[ count++ ] = insn.getOpcode();
+            }
+        }
+        return Arrays.copyOf( opcodes , count );
+    }
+    
+    private static String getKind(Edge edge) 
+    {
+        final String type;
+        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+            type = "E";
+        } else if ( edge.hasType( EdgeType.TABLE_SWITCH ) ) {
+            type = "T";
+        } else if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
+            type = "L";
+        } else {
+            type = "R";
+        }
+        return edge.metaData == null ? type : type+":"+edge.metaData;
+    }
+    
+    private static int[][] toArray(List<List<Integer>> lists) 
+    {
+        final int[][] result = new int[ lists.size() ][];
+        for ( int i = 0 ; i < result.length ; i++ ) 
+        {
+            final List<Integer> list = lists.get( i );
+            result[i] = new int[ list.size() ];
+            for ( int j = 0 ; j < result[i].length ; j++ ) {
+                result[i][j] = list.get( j );
+            }
+        }
+        return result;
+    }
+    
+    private static String[][] toStringArray(List<List<String>> lists) 
+    {
+        final String[][] result = new String[ lists.size() ][];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = lists.get( i ).toArray( new String[0] );
+        }
+        return result;
+    }
+    
+    // 64-bit finalizer of SplitMix64
+    private static long mix(long z) 
+    {
+        z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+        return z ^ ( z >>> 31 );
+    }
+    
+    // Weisfeiler-Lehman colour refinement
+    private long[] refine() 
+    {
+        final int size = signatures.length;
+        long[] current = new long[ size ];
+        for ( int i = 0 ; i < size ; i++ ) 
+        {
+            long h = i == entry ? 1 : 2;
+            for ( int opcode : signatures[i] ) {
+                h = mix( h * 31 + opcode );
+            }
+            current[i] = mix( h * 31 + signatures[i].length );
+        }
+        
+        int classes = countDistinct( current );
+        for ( int round = 0 ; round < size ; round++ ) 
+        {
+            final long[] next = new long[ size ];
+            for ( int i = 0 ; i < size ; i++ ) 
+            {
+                long h = current[i];
+                h = mix( h * 31 + neighbourhoodHash( successors[i] , successorKinds[i] , current ) );
+                h = mix( h * 37 + neighbourhoodHash( predecessors[i] , predecessorKinds[i] , current ) );
+                next[i] = h;
+            }
+            final int nextClasses = countDistinct( next );
+            current = next;
+            if ( nextClasses == classes ) { // stable partition
+                break;
+            }
+            classes = nextClasses;
+        }
+        return current;
+    }
+    
+    private static long neighbourhoodHash(int[] neighbours,String[] kinds,long[] labels) 
+    {
+        final long[] values = new long[ neighbours.length ];
+        for ( int i = 0 ; i < values.length ; i++ ) {
+            values[i] = mix( kinds[i].hashCode() * 31L + labels[ neighbours[i] ] );
+        }
+        Arrays.sort( values );
+        long h = values.length;
+        for ( long value : values ) {
+            h = mix( h * 31 + value );
+        }
+        return h;
+    }
+    
+    private static int countDistinct(long[] values) 
+    {
+        final long[] sorted = values.clone();
+        Arrays.sort( sorted );
+        int result = 0;
+        for ( int i = 0 ; i < sorted.length ; i++ ) 
+        {
+            if ( i == 0 || sorted[i] != sorted[i-1] ) {
+                result++;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the structural hash of this graph.
+     * 
+     * @return hash , equal for isomorphic graphs
+     */
+    public long getHash() {
+        return hash;
+    }
+    
+    public int getBlockCount() {
+        return signatures.length;
+    }
+    
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+    
+    /**
+     * Checks whether this graph is structurally equal to another one.
+     * 
+     * @param other
+     * @return
+     */
+    public boolean isIsomorphic(CanonicalCFG other) 
+    {
+        if ( other == this ) {
+            return true;
+        }
+        if ( other.hash != this.hash || other.signatures.length != this.signatures.length || other.edgeCount != this.edgeCount ) {
+            return false;
+        }
+        return new Matcher( this , other ).match();
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int) ( hash ^ ( hash >>> 32 ) );
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CanonicalCFG && isIsomorphic( (CanonicalCFG) obj );
+    }
+    
+    @Override
+    public String toString() {
+        return "CanonicalCFG[ hash="+Long.toHexString( hash )+", blocks="+signatures.length+", edges="+edgeCount+" ]";
+    }
+    
+    // backtracking search for a label-preserving bijection
+    private static final class Matcher 
+    {
+        private final CanonicalCFG a;
+        private final CanonicalCFG b;
+        
+        // blocks of graph A in the order they are matched
+        private final int[] order;
+        // block of A and index of the successor edge via which a block of A was discovered, -1 for roots
+        private final int[] parent;
+        private final int[] parentEdge;
+        
+        private final int[] map; // A -> B
+        private final int[] inverse; // B -> A
+        
+        // blocks of B by label
+        private final Map<Long,int[]> blocksByLabel = new HashMap<>();
+        
+        public Matcher(CanonicalCFG a,CanonicalCFG b)
+        {
+            this.a = a;
+            this.b = b;
+            final int size = a.signatures.length;
+            order = new int[ size ];
+            parent = new int[ size ];
+            parentEdge = new int[ size ];
+            map = new int[ size ];
+            inverse = new int[ size ];
+            Arrays.fill( map , -1 );
+            Arrays.fill( inverse , -1 );
+            Arrays.fill( parent , -1 );
+            
+            // breadth-first order , so that most blocks have an already matched parent and thus at most a few candidates
+            final boolean[] visited = new boolean[ size ];
+            int count = 0;
+            for ( int root = -1 ; root < size ; root++ ) 
+            {
+                final int start = root == -1 ? a.entry : root;
+                if ( visited[ start ] ) {
+                    continue;
+                }
+                visited[ start ] = true;
+                int head = count;
+                order[ count++ ] = start;
+                while ( head < count ) 
+                {
+                    final int node = order[ head++ ];
+                    final int[] succ = a.successors[ node ];
+                    for ( int e = 0 ; e < succ.length ; e++ ) 
+                    {
+                        if ( ! visited[ succ[e] ] ) 
+                        {
+                            visited[ succ[e] ] = true;
+                            parent[ succ[e] ] = node;
+                            parentEdge[ succ[e] ] = e;
+                            order[ count++ ] = succ[e];
+                        }
+                    }
+                }
+            }
+            
+            final Map<Long,List<Integer>> byLabel = new HashMap<>();
+            for ( int i = 0 ; i < size ; i++ ) 
+            {
+                List<Integer> list = byLabel.get( b.labels[i] );
+                if ( list == null ) {
+                    list = new ArrayList<>();
+                    byLabel.put( b.labels[i] , list );
+                }
+                list.add( i );
+            }
+            for ( Map.Entry<Long,List<Integer>> entry : byLabel.entrySet() ) 
+            {
+                final int[] blocks = new int[ entry.getValue().size() ];
+                for ( int i = 0 ; i < blocks.length ; i++ ) {
+                    blocks[i] = entry.getValue().get( i );
+                }
+                blocksByLabel.put( entry.getKey() , blocks );
+            }
+        }
+        
+        public boolean match() 
+        {
+            final int size = order.length;
+            // candidates[k] / next[k]: candidate list and position of the next candidate to try for order[k]
+            final int[][] candidates = new int[ size ][];
+            final int[] next = new int[ size ];
+            
+            int k = 0;
+            candidates[0] = getCandidates( order[0] );
+            while ( k >= 0 ) 
+            {
+                final int node = order[k];
+                if ( map[ node ] != -1 ) // undo previous attempt
+                {
+                    inverse[ map[ node ] ] = -1;
+                    map[ node ] = -1;
+                }
+                
+                boolean assigned = false;
+                while ( next[k] < candidates[k].length ) 
+                {
+                    final int candidate = candidates[k][ next[k]++ ];
+                    if ( inverse[ candidate ] == -1 && isCompatible( node , candidate ) ) 
+                    {
+                        map[ node ] = candidate;
+                        inverse[ candidate ] = node;
+                        assigned = true;
+                        break;
+                    }
+                }
+                
+                if ( ! assigned ) // backtrack
+                {
+                    next[k] = 0;
+                    k--;
+                    continue;
+                }
+                if ( ++k == size ) {
+                    return true;
+                }
+                candidates[k] = getCandidates( order[k] );
+                next[k] = 0;
+            }
+            return false;
+        }
+        
+        private int[] getCandidates(int node) 
+        {
+            if ( node == a.entry ) {
+                return new int[] { b.entry };
+            }
+            final int p = parent[ node ];
+            if ( p == -1 ) 
+            {
+                final int[] result = blocksByLabel.get( a.labels[ node ] );
+                return result != null ? result : new int[0];
+            }
+            // successors of the parent's image that are reached via an edge of the same kind
+            final String kind = a.successorKinds[ p ][ parentEdge[ node ] ];
+            final int[] succ = b.successors[ map[ p ] ];
+            final String[] kinds = b.successorKinds[ map[ p ] ];
+            final int[] result = new int[ succ.length ];
+            int count = 0;
+            for ( int e = 0 ; e < succ.length ; e++ ) 
+            {
+                if ( kinds[e].equals( kind ) ) {
+                    result[ count++ ] = succ[e];
+                }
+            }
+            return Arrays.copyOf( result , count );
+        }
+        
+        private boolean isCompatible(int node,int candidate) 
+        {
+            if ( a.labels[ node ] != b.labels[ candidate ] || ( node == a.entry ) != ( candidate == b.entry ) ) {
+                return false;
+            }
+            if ( ! Arrays.equals( a.signatures[ node ] , b.signatures[ candidate ] ) ) {
+                return false;
+            }
+            if ( a.successors[ node ].length != b.successors[ candidate ].length || a.predecessors[ node ].length != b.predecessors[ candidate ].length ) {
+                return false;
+            }
+            // edges to already matched blocks (including self-loops) need to exist in both graphs
+            return sameMatchedEdges( a.successors[ node ] , a.successorKinds[ node ] , b.successors[ candidate ] , b.successorKinds[ candidate ] , node , candidate ) &&
+                   sameMatchedEdges( a.predecessors[ node ] , a.predecessorKinds[ node ] , b.predecessors[ candidate ] , b.predecessorKinds[ candidate ] , node , candidate );
+        }
+        
+        private boolean sameMatchedEdges(int[] edgesA,String[] kindsA,int[] edgesB,String[] kindsB,int node,int candidate) 
+        {
+            final List<String> fromA = new ArrayList<>();
+            for ( int e = 0 ; e < edgesA.length ; e++ ) 
+            {
+                final int other = edgesA[e] == node ? candidate : map[ edgesA[e] ];
+                if ( other != -1 ) {
+                    fromA.add( kindsA[e]+"@"+other );
+                }
+            }
+            final List<String> fromB = new ArrayList<>();
+            for ( int e = 0 ; e < edgesB.length ; e++ ) 
+            {
+                final boolean matched = edgesB[e] == candidate || inverse[ edgesB[e] ] != -1;
+                if ( matched ) {
+                    fromB.add( kindsB[e]+"@"+edgesB[e] );
+                }
+            }
+            if ( fromA.size() != fromB.size() ) {
+                return false;
+            }
+            Collections.sort( fromA );
+            Collections.sort( fromB );
+            return fromA.equals( fromB );
+        }
+    }
+}
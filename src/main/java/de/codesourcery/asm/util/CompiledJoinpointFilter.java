@@ -0,0 +1,402 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A {@link IJoinpointFilter} that matches classes and methods against include/exclude glob patterns.
+ *
+ * <p>Class patterns may use either '.' or '/' as package separator and support the following wildcards:</p>
+ * <ul>
+ *   <li><code>?</code> matches a single character except the package separator</li>
+ *   <li><code>*</code> matches any number of characters except the package separator</li>
+ *   <li><code>**</code> matches any number of characters</li>
+ * </ul>
+ * <p>Method patterns are matched against the method name or - if the pattern contains a '(' - against the method name followed by the method
+ * descriptor (for example <code>get*</code> or <code>parse(Ljava/lang/String;)*</code>), here <code>*</code> also matches '/'.</p>
+ *
+ * <p>Class patterns are compiled into a prefix trie that operates on internal class names (see {@link #matchesInternalName(String)}), so classes
+ * that do not share a prefix with any include pattern are rejected after looking at a few characters. Patterns that start with a wildcard
+ * need to be checked against every class though.</p>
+ *
+ * <p>Optionally , classes and methods annotated with an opt-out annotation are excluded (see {@link #forClass(byte[])}).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class CompiledJoinpointFilter implements IMethodSignatureFilter
+{
+    private final TrieNode includedClasses;
+    private final TrieNode excludedClasses;
+
+    private final char[][] includedMethods;
+    private final char[][] excludedMethods;
+
+    private final String optOutDescriptor;
+    private final byte[] optOutDescriptorBytes;
+
+    /**
+     * Create filter.
+     *
+     * @param includedClasses class patterns a class needs to match, an empty list matches all classes
+     * @param excludedClasses class patterns a class must not match
+     * @param includedMethods method patterns a method needs to match, an empty list matches all methods
+     * @param excludedMethods method patterns a method must not match
+     * @param optOutAnnotation fully-qualified name of an annotation that excludes a class or method when present , may be <code>null</code>
+     */
+    public CompiledJoinpointFilter(List<String> includedClasses,List<String> excludedClasses,List<String> includedMethods,List<String> excludedMethods,String optOutAnnotation)
+    {
+        this.includedClasses = compileClassPatterns( includedClasses.isEmpty() ? Arrays.asList("**") : includedClasses );
+        this.excludedClasses = compileClassPatterns( excludedClasses );
+        this.includedMethods = compileMethodPatterns( includedMethods.isEmpty() ? Arrays.asList("*") : includedMethods );
+        this.excludedMethods = compileMethodPatterns( excludedMethods );
+        if ( optOutAnnotation != null ) {
+            this.optOutDescriptor = "L"+optOutAnnotation.replace('.','/')+";";
+            this.optOutDescriptorBytes = optOutDescriptor.getBytes( Charset.forName("UTF-8") );
+        } else {
+            this.optOutDescriptor = null;
+            this.optOutDescriptorBytes = null;
+        }
+    }
+
+    /**
+     * Turns a comma-separated list of patterns into a list.
+     *
+     * @param patterns patterns, may be <code>null</code> or blank
+     * @return
+     */
+    public static List<String> split(String patterns)
+    {
+        final List<String> result = new ArrayList<>();
+        if ( patterns != null )
+        {
+            for ( String p : patterns.split(",") ) {
+                if ( ! p.trim().isEmpty() ) {
+                    result.add( p.trim() );
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean matches(String clazz)
+    {
+        return matchesInternalName( clazz.replace('.','/') );
+    }
+
+    /**
+     * Check whether a given class matches.
+     *
+     * @param internalName internal class name (as used in class files, for example <code>java/lang/String</code>)
+     * @return
+     */
+    public boolean matchesInternalName(String internalName)
+    {
+        return includedClasses.matches( internalName ) && ! excludedClasses.matches( internalName );
+    }
+
+    @Override
+    public boolean matches(String clazz, String methodName)
+    {
+        return matches( clazz , methodName , null );
+    }
+
+    @Override
+    public boolean matches(String clazz, String methodName, String methodDesc)
+    {
+        return matchesMethod( includedMethods , methodName , methodDesc ) && ! matchesMethod( excludedMethods , methodName , methodDesc );
+    }
+
+    private static boolean matchesMethod(char[][] patterns,String methodName,String methodDesc)
+    {
+        for ( char[] pattern : patterns )
+        {
+            final boolean withDescriptor = indexOf( pattern , '(' ) != -1;
+            if ( withDescriptor && methodDesc == null ) {
+                continue;
+            }
+            final String toMatch = withDescriptor ? methodName+methodDesc : methodName;
+            if ( Glob.matches( pattern , 0 , toMatch , 0 , false ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a filter for a specific class that additionally excludes
+     * all methods annotated with the opt-out annotation.
+     *
+     * <p>To keep costs low , the class is only parsed if the annotation's type descriptor
+     * is present in the raw class bytes.</p>
+     *
+     * @param classBytes
+     * @return filter to use for this class or <code>null</code> if the class itself is annotated with the opt-out annotation
+     */
+    public IMethodSignatureFilter forClass(byte[] classBytes)
+    {
+        if ( optOutDescriptorBytes == null || indexOf( classBytes , optOutDescriptorBytes ) == -1 ) {
+            return this;
+        }
+
+        final boolean[] classOptedOut = { false };
+        final Set<String> optedOutMethods = new HashSet<>();
+        new ClassReader( classBytes ).accept( new ClassVisitor(Opcodes.ASM4)
+        {
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+            {
+                if ( optOutDescriptor.equals( desc ) ) {
+                    classOptedOut[0] = true;
+                }
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, final String name, final String methodDesc, String signature, String[] exceptions)
+            {
+                return new MethodVisitor(Opcodes.ASM4)
+                {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+                    {
+                        if ( optOutDescriptor.equals( desc ) ) {
+                            optedOutMethods.add( name+methodDesc );
+                        }
+                        return null;
+                    }
+                };
+            }
+        } , ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES );
+
+        if ( classOptedOut[0] ) {
+            return null;
+        }
+        if ( optedOutMethods.isEmpty() ) {
+            return this;
+        }
+
+        return new IMethodSignatureFilter() {
+
+            @Override
+            public boolean matches(String clazz, String methodName)
+            {
+                return CompiledJoinpointFilter.this.matches( clazz , methodName );
+            }
+
+            @Override
+            public boolean matches(String clazz)
+            {
+                return CompiledJoinpointFilter.this.matches( clazz );
+            }
+
+            @Override
+            public boolean matches(String clazz, String methodName, String methodDesc)
+            {
+                if ( methodDesc != null && optedOutMethods.contains( methodName+methodDesc ) ) {
+                    return false;
+                }
+                return CompiledJoinpointFilter.this.matches( clazz , methodName , methodDesc );
+            }
+        };
+    }
+
+    private static int indexOf(byte[] data,byte[] toFind)
+    {
+        final int last = data.length - toFind.length;
+        final byte first = toFind[0];
+outer:
+        for ( int i = 0 ; i <= last ; i++ )
+        {
+            if ( data[i] != first ) {
+                continue;
+            }
+            for ( int j = 1 ; j < toFind.length ; j++ )
+            {
+                if ( data[i+j] != toFind[j] ) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(char[] data,char c)
+    {
+        for ( int i = 0 ; i < data.length ; i++ ) {
+            if ( data[i] == c ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static TrieNode compileClassPatterns(List<String> patterns)
+    {
+        final TrieNode root = new TrieNode();
+        for ( String pattern : patterns ) {
+            root.add( pattern.replace('.','/').toCharArray() );
+        }
+        return root;
+    }
+
+    private static char[][] compileMethodPatterns(List<String> patterns)
+    {
+        final char[][] result = new char[ patterns.size() ][];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = patterns.get(i).toCharArray();
+        }
+        return result;
+    }
+
+    /**
+     * Trie node, each pattern is stored at the node that corresponds to its
+     * literal prefix (all characters up to the first wildcard) along with the remaining part of the pattern.
+     */
+    private static final class TrieNode
+    {
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+
+        // remaining parts of patterns whose literal prefix ends at this node
+        private char[][] patterns = new char[0][];
+
+        public void add(char[] pattern)
+        {
+            TrieNode current = this;
+            int i = 0;
+            for ( ; i < pattern.length && pattern[i] != '*' && pattern[i] != '?' ; i++ ) {
+                current = current.getOrCreateChild( pattern[i] );
+            }
+            current.patterns = Arrays.copyOf( current.patterns , current.patterns.length+1 );
+            current.patterns[ current.patterns.length - 1 ] = Arrays.copyOfRange( pattern , i , pattern.length );
+        }
+
+        private TrieNode getOrCreateChild(char c)
+        {
+            TrieNode result = getChild( c );
+            if ( result == null )
+            {
+                result = new TrieNode();
+                keys = Arrays.copyOf( keys , keys.length+1 );
+                keys[ keys.length-1 ] = c;
+                children = Arrays.copyOf( children , children.length+1 );
+                children[ children.length-1 ] = result;
+            }
+            return result;
+        }
+
+        private TrieNode getChild(char c)
+        {
+            final char[] keys = this.keys;
+            for ( int i = 0 ; i < keys.length ; i++ ) {
+                if ( keys[i] == c ) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        public boolean matches(String name)
+        {
+            TrieNode current = this;
+            for ( int i = 0 ; ; i++ )
+            {
+                for ( char[] pattern : current.patterns )
+                {
+                    if ( Glob.matches( pattern , 0 , name , i , true ) ) {
+                        return true;
+                    }
+                }
+                if ( i == name.length() ) {
+                    return false;
+                }
+                current = current.getChild( name.charAt( i ) );
+                if ( current == null ) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static final class Glob
+    {
+        /**
+         * Matches (part of) a glob pattern against (part of) a string.
+         *
+         * @param pattern
+         * @param p index of first pattern character to match
+         * @param s string to match
+         * @param i index of first string character to match
+         * @param separatorAware whether '*' and '?' should not match '/'
+         * @return
+         */
+        public static boolean matches(char[] pattern,int p,String s,int i,boolean separatorAware)
+        {
+            while ( p < pattern.length )
+            {
+                final char c = pattern[p];
+                if ( c == '*' )
+                {
+                    final boolean crossesSeparators = ! separatorAware || ( p+1 < pattern.length && pattern[p+1] == '*' );
+                    p += crossesSeparators && separatorAware ? 2 : 1;
+                    if ( p == pattern.length && crossesSeparators ) {
+                        return true;
+                    }
+                    // try all possible lengths of the wildcard match
+                    for ( int j = i ; j <= s.length() ; j++ )
+                    {
+                        if ( matches( pattern , p , s , j , separatorAware ) ) {
+                            return true;
+                        }
+                        if ( j < s.length() && ! crossesSeparators && s.charAt(j) == '/' ) {
+                            return false;
+                        }
+                    }
+                    return false;
+                }
+                if ( i == s.length() ) {
+                    return false;
+                }
+                if ( c == '?' )
+                {
+                    if ( separatorAware && s.charAt(i) == '/' ) {
+                        return false;
+                    }
+                }
+                else if ( c != s.charAt(i) ) {
+                    return false;
+                }
+                p++;
+                i++;
+            }
+            return i == s.length();
+        }
+    }
+}
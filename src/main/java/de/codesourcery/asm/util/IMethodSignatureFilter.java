@@ -0,0 +1,34 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+/**
+ * A {@link IJoinpointFilter} that is also able to distinguish overloaded methods.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface IMethodSignatureFilter extends IJoinpointFilter
+{
+    /**
+     * Check whether a given method matches.
+     *
+     * @param clazz fully-qualified class name
+     * @param methodName method name as read from a classfile. Constructor methods are always named '&lt;init&gt;'
+     * @param methodDesc method descriptor as read from a classfile
+     * @return
+     */
+    public boolean matches(String clazz,String methodName,String methodDesc);
+}
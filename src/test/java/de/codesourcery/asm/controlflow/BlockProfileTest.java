@@ -0,0 +1,144 @@
+package de.codesourcery.asm.controlflow;
+
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BlockProfileTest {
+
+    static final String OWNER = "de/codesourcery/asmtest/ProfilingFixture";
+
+    static ControlFlowGraph analyze(String methodName) throws Exception {
+        final ClassNode cn = new ClassNode();
+        try (InputStream in = ProfilingFixture.class.getResourceAsStream("/" + OWNER + ".class")) {
+            new ClassReader(in).accept(cn, 0);
+        }
+        for (Object o : cn.methods) {
+            final MethodNode mn = (MethodNode) o;
+            if (mn.name.equals(methodName)) {
+                return new ControlFlowAnalyzer().analyze(OWNER, mn);
+            }
+        }
+        throw new NoSuchMethodException(methodName);
+    }
+
+    /**
+     * Returns the non-virtual blocks of a method , ordered by their first instruction.
+     */
+    static List<IBlock> getBlocks(ControlFlowGraph graph) {
+        final MethodNode mn = graph.getMethod();
+        final List<IBlock> result = new ArrayList<>();
+        for (IBlock block : graph.getAllNodes()) {
+            if (!(block instanceof MethodEntry) && !(block instanceof MethodExit) && !block.isVirtual(mn)) {
+                result.add(block);
+            }
+        }
+        Collections.sort(result, new Comparator<IBlock>() {
+            @Override
+            public int compare(IBlock o1, IBlock o2) {
+                return Integer.compare(o1.getFirstByteCodeInstructionNum(mn), o2.getFirstByteCodeInstructionNum(mn));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Profile of <code>countedLoop(10)</code> as recorded for a loop that is counted at loop exit:
+     * only the method entry block and the loop header have counts.
+     */
+    static BlockProfile createLoopProfile(ControlFlowGraph graph) {
+        final List<IBlock> blocks = getBlocks(graph);
+        assertEquals(4, blocks.size()); // method entry , loop header , loop body , exit
+
+        final BlockProfile profile = new BlockProfile();
+        profile.addCount(blocks.get(0).getFirstByteCodeInstructionNum(graph.getMethod()), 1);
+        profile.addCount(blocks.get(1).getFirstByteCodeInstructionNum(graph.getMethod()), 11);
+        return profile;
+    }
+
+    private static Edge findEdge(IBlock src, IBlock dst) {
+        for (Edge edge : src.getEdges()) {
+            if (edge.isSuccessor(src) && edge.dst == dst) {
+                return edge;
+            }
+        }
+        fail("No edge " + src + " -> " + dst);
+        return null;
+    }
+
+    @Test
+    public void testGetKey() {
+        assertEquals("a.b.C#foo(I)V", BlockProfile.getKey("a/b/C", "foo", "(I)V"));
+        assertEquals(BlockProfile.getKey("a/b/C", "foo", "(I)V"), BlockProfile.getKey("a.b.C", "foo", "(I)V"));
+    }
+
+    @Test
+    public void testAddCount() {
+        final BlockProfile profile = new BlockProfile();
+        assertTrue(profile.isEmpty());
+        assertNull(profile.getCount(3));
+        profile.addCount(3, 10);
+        profile.addCount(3, 1);
+        assertFalse(profile.isEmpty());
+        assertEquals(Long.valueOf(11), profile.getCount(3));
+    }
+
+    @Test
+    public void testInferBlockCounts() throws Exception {
+        final ControlFlowGraph graph = analyze("countedLoop");
+        final Map<IBlock, Long> counts = createLoopProfile(graph).getBlockCounts(graph);
+
+        final List<IBlock> blocks = getBlocks(graph);
+        assertEquals(Long.valueOf(1), counts.get(blocks.get(0)));
+        assertEquals(Long.valueOf(11), counts.get(blocks.get(1)));
+        // inferred
+        assertEquals(Long.valueOf(10), counts.get(blocks.get(2)));
+        assertEquals(Long.valueOf(1), counts.get(blocks.get(3)));
+        assertEquals(Long.valueOf(1), counts.get(graph.getStart()));
+        assertEquals(Long.valueOf(1), counts.get(graph.getEnd()));
+    }
+
+    @Test
+    public void testInferEdgeCounts() throws Exception {
+        final ControlFlowGraph graph = analyze("countedLoop");
+        final Map<Edge, Long> counts = createLoopProfile(graph).getEdgeCounts(graph);
+
+        final List<IBlock> blocks = getBlocks(graph);
+        final IBlock entry = blocks.get(0);
+        final IBlock header = blocks.get(1);
+        final IBlock body = blocks.get(2);
+        final IBlock exit = blocks.get(3);
+        assertEquals(Long.valueOf(1), counts.get(findEdge(entry, header)));
+        assertEquals(Long.valueOf(10), counts.get(findEdge(header, body)));
+        assertEquals(Long.valueOf(10), counts.get(findEdge(body, header)));
+        assertEquals(Long.valueOf(1), counts.get(findEdge(header, exit)));
+    }
+
+    @Test
+    public void testCountsThatCannotBeInferred() throws Exception {
+        final ControlFlowGraph graph = analyze("countedLoop");
+        final BlockProfile profile = new BlockProfile();
+        // entry count alone does not tell how often the loop ran
+        profile.addCount(getBlocks(graph).get(0).getFirstByteCodeInstructionNum(graph.getMethod()), 1);
+
+        final Map<IBlock, Long> counts = profile.getBlockCounts(graph);
+        final List<IBlock> blocks = getBlocks(graph);
+        assertEquals(Long.valueOf(1), counts.get(blocks.get(0)));
+        assertNull(counts.get(blocks.get(1)));
+        assertNull(counts.get(blocks.get(2)));
+
+        assertTrue(new BlockProfile().getBlockCounts(graph).isEmpty());
+        assertTrue(new BlockProfile().getEdgeCounts(graph).isEmpty());
+    }
+}
@@ -1,11 +1,24 @@
 package de.codesourcery.asm.controlflow;
 
 import de.codesourcery.asm.util.CFGBuilder;
+import de.codesourcery.asm.util.CanonicalCFG;
 import de.codesourcery.asm.util.CFGUtil;
 import org.junit.Test;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.junit.Assert.*;
 
 public class ControlFlowAnalyzerTest extends AbstractTest {
@@ -333,4 +346,303 @@ public class ControlFlowAnalyzerTest extends AbstractTest {
 
         expectedNonIsomorphic("IfTest", "f", builder.getStart());
     }
+
+    @Test
+    public void testCanonicalHashIgnoresBlockIds() {
+        CFGBuilder builder = new CFGBuilder();
+        CFGBuilder builder_ = new CFGBuilder();
+        IBlock a = builder.makeBlock("a"),
+               b = builder.makeBlock("b"),
+               c = builder.makeBlock("c"),
+               a_ = builder_.makeBlock("x"),
+               b_ = builder_.makeBlock("y"),
+               c_ = builder_.makeBlock("z");
+
+        builder.addEdge(builder.getStart(), a);
+        builder.addTrueEdge(a, b);
+        builder.addFalseEdge(a, c);
+        builder.addEdge(b, c);
+        builder.addEdge(c, builder.getEnd());
+
+        builder_.addEdge(builder_.getStart(), a_);
+        builder_.addFalseEdge(a_, c_);
+        builder_.addTrueEdge(a_, b_);
+        builder_.addEdge(b_, c_);
+        builder_.addEdge(c_, builder_.getEnd());
+
+        CanonicalCFG g = new CanonicalCFG(builder.getStart());
+        CanonicalCFG g_ = new CanonicalCFG(builder_.getStart());
+        assertEquals(g.getHash(), g_.getHash());
+        assertTrue(g.isIsomorphic(g_));
+    }
+
+    @Test
+    public void testCanonicalHashDistinguishesBranches() {
+        CFGBuilder builder = new CFGBuilder();
+        CFGBuilder builder_ = new CFGBuilder();
+        IBlock a = builder.makeBlock("a"),
+               b = builder.makeBlock("b"),
+               c = builder.makeBlock("c"),
+               a_ = builder_.makeBlock("a_"),
+               b_ = builder_.makeBlock("b_"),
+               c_ = builder_.makeBlock("c_");
+
+        // G: true branch skips b
+        builder.addEdge(builder.getStart(), a);
+        builder.addTrueEdge(a, c);
+        builder.addFalseEdge(a, b);
+        builder.addEdge(b, c);
+        builder.addEdge(c, builder.getEnd());
+
+        // G_: false branch skips b_
+        builder_.addEdge(builder_.getStart(), a_);
+        builder_.addTrueEdge(a_, b_);
+        builder_.addFalseEdge(a_, c_);
+        builder_.addEdge(b_, c_);
+        builder_.addEdge(c_, builder_.getEnd());
+
+        assertFalse(new CanonicalCFG(builder.getStart()).isIsomorphic(new CanonicalCFG(builder_.getStart())));
+    }
+
+    @Test
+    public void testCanonicalHashSwitchEdges() {
+        CanonicalCFG g1 = new CanonicalCFG(makeSwitch(1, 2));
+        CanonicalCFG g2 = new CanonicalCFG(makeSwitch(1, 2));
+        CanonicalCFG g3 = new CanonicalCFG(makeSwitch(1, 3));
+
+        assertTrue(g1.isIsomorphic(g2));
+        assertFalse(g1.isIsomorphic(g3));
+        assertFalse(g1.getHash() == g3.getHash());
+    }
+
+    private IBlock makeSwitch(int key1, int key2) {
+        CFGBuilder builder = new CFGBuilder();
+        IBlock a = builder.makeBlock("a"),
+               b = builder.makeBlock("b"),
+               c = builder.makeBlock("c");
+
+        builder.addEdge(builder.getStart(), a);
+        a.addSuccessor(b, Edge.EdgeType.TABLE_SWITCH, key1);
+        b.addPredecessor(a, Edge.EdgeType.TABLE_SWITCH, key1);
+        a.addSuccessor(c, Edge.EdgeType.TABLE_SWITCH, key2);
+        c.addPredecessor(a, Edge.EdgeType.TABLE_SWITCH, key2);
+        builder.addEdge(b, builder.getEnd());
+        builder.addEdge(c, builder.getEnd());
+        return builder.getStart();
+    }
+
+    @Test
+    public void testStructurallyEqual() throws Exception {
+        ControlFlowGraph g1 = getMethodInClass("Tests", "tripleAnd");
+        ControlFlowGraph g2 = getMethodInClass("Tests", "tripleAnd");
+        ControlFlowGraph g3 = getMethodInClass("Tests", "emptyBlock");
+
+        assertTrue(CFGUtil.isStructurallyEqual(g1, g2));
+        assertFalse(CFGUtil.isStructurallyEqual(g1, g3));
+    }
+
+    @Test
+    public void testLayeredLayout() throws Exception {
+        ControlFlowGraph g = getMethodInClass("Tests", "tripleAnd");
+        LayeredLayout.Layout layout = new LayeredLayout().layout(g);
+
+        assertNotNull(layout.getNode(g.getStart()));
+        assertNotNull(layout.getNode(g.getEnd()));
+        for (LayeredLayout.Node n1 : layout.nodes) {
+            assertTrue(n1.x - n1.width / 2 >= 0 && n1.x + n1.width / 2 <= layout.width);
+            assertTrue(n1.y - n1.height / 2 >= 0 && n1.y + n1.height / 2 <= layout.height);
+            for (LayeredLayout.Node n2 : layout.nodes) {
+                boolean overlap = n1 != n2
+                        && Math.abs(n1.x - n2.x) < (n1.width + n2.width) / 2
+                        && Math.abs(n1.y - n2.y) < (n1.height + n2.height) / 2;
+                assertFalse(overlap);
+            }
+        }
+        // no loops , so all edges point downwards from the bottom of their source to the top of their destination
+        assertFalse(layout.routes.isEmpty());
+        for (LayeredLayout.Route route : layout.routes) {
+            LayeredLayout.Node src = layout.getNode(route.edge.src);
+            LayeredLayout.Node dst = layout.getNode(route.edge.dst);
+            double[] p = route.points;
+            assertEquals(src.y + src.height / 2, p[1], 0.001);
+            assertEquals(dst.y - dst.height / 2, p[p.length - 1], 0.001);
+        }
+        assertTrue(new SVGRenderer().render(g).contains("method_entry"));
+    }
+
+    @Test
+    public void testGraphSummary() throws Exception {
+        ControlFlowGraph g = getMethodInClass("Tests", "tripleAnd");
+        GraphSummary summary = new GraphSummary(g);
+        int blocks = summary.getAllBlocks().size();
+        assertEquals(blocks, summary.collapse(blocks));
+
+        for (int budget = 3; budget < blocks; budget++) {
+            int visible = summary.collapse(budget);
+            assertTrue(visible <= budget);
+            // every block is either visible or part of exactly one outermost collapsed cluster
+            int count = 0;
+            Set<GraphSummary.Cluster> collapsed = new HashSet<>();
+            for (IBlock block : summary.getAllBlocks()) {
+                GraphSummary.Cluster cluster = summary.getCollapsedCluster(block);
+                if (cluster == null) {
+                    count++;
+                } else {
+                    collapsed.add(cluster);
+                }
+            }
+            assertEquals(visible, count + collapsed.size());
+            assertNull(summary.getCollapsedCluster(g.getStart()));
+            assertNull(summary.getCollapsedCluster(g.getEnd()));
+            assertTrue(new SummaryDOTRenderer(budget).render(g).contains("method_exit"));
+        }
+    }
+
+    private static final BlockAttribute<Integer> DEPTH = BlockAttribute.create("depth", Integer.class);
+    private static final BlockAttribute<String> NAME = BlockAttribute.create("name", String.class);
+
+    @Test
+    public void testBlockAttributes() throws Exception {
+        ControlFlowGraph g = getMethodInClass("Tests", "tripleAnd");
+        BlockAttributes attributes = g.getAttributes();
+        assertEquals(g.getAllNodes().size(), g.getBlockCount());
+
+        Set<Integer> indices = new HashSet<>();
+        for (IBlock block : g.getAllNodes()) {
+            assertTrue(block.getIndex() >= 0 && block.getIndex() < g.getBlockCount());
+            assertTrue(indices.add(block.getIndex()));
+            assertEquals(0, attributes.getInt(DEPTH, block));
+            assertNull(attributes.get(NAME, block));
+        }
+        assertFalse(attributes.isSet(DEPTH));
+
+        for (IBlock block : g.getAllNodes()) {
+            attributes.setInt(DEPTH, block, block.getIndex() * 2);
+            attributes.set(NAME, block, block.getId());
+        }
+        for (IBlock block : g.getAllNodes()) {
+            assertEquals(block.getIndex() * 2, attributes.getInt(DEPTH, block));
+            assertEquals(Integer.valueOf(block.getIndex() * 2), attributes.get(DEPTH, block));
+            assertEquals(block.getId(), attributes.get(NAME, block));
+        }
+        assertEquals(g.getBlockCount(), attributes.getInts(DEPTH).length);
+
+        attributes.clear(DEPTH);
+        assertEquals(0, attributes.getInt(DEPTH, g.getStart()));
+        try {
+            attributes.getLongs(DEPTH);
+            fail("Should have failed");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testFreezeAlwaysThrowing() throws Exception {
+        final ControlFlowGraph g = BlockProfileTest.analyze("alwaysThrows");
+        // the exit block is only connected to the virtual block of the trailing label , which is not reachable from the method entry
+        assertFalse(g.getAllNodes().contains(g.getEnd()));
+
+        final ControlFlowGraph frozen = g.freeze();
+        assertTrue(frozen.isFrozen());
+        assertEquals("END", frozen.getEnd().getId());
+        assertEquals(g.getBlockCount(), frozen.getBlockCount());
+        assertEquals(g.getBlockCount(), frozen.getAllNodes().size());
+        assertTrue(frozen.getAllNodes().contains(frozen.getEnd()));
+
+        final Map<String, Integer> indices = new HashMap<>();
+        for (IBlock block : g.getAllNodes()) {
+            indices.put(block.getId(), block.getIndex());
+        }
+        indices.put(g.getEnd().getId(), g.getEnd().getIndex());
+        final Set<Integer> frozenIndices = new HashSet<>();
+        for (IBlock block : frozen.getAllNodes()) {
+            assertTrue(frozenIndices.add(block.getIndex()));
+            if (indices.containsKey(block.getId())) {
+                assertEquals(block.getId(), indices.get(block.getId()), Integer.valueOf(block.getIndex()));
+            }
+        }
+        assertEquals(g.getBlockCount() - 1, (int) Collections.max(frozenIndices));
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        final ControlFlowGraph g = getMethodInClass("Tests", "tripleAnd");
+        final ControlFlowGraph frozen = g.freeze();
+        assertFalse(g.isFrozen());
+        assertTrue(frozen.isFrozen());
+        assertSame(frozen, frozen.freeze());
+        assertTrue(CFGUtil.isStructurallyEqual(g, frozen));
+        assertEquals(g.getBackEdges().size(), frozen.getBackEdges().size());
+        for (IBlock block : g.getAllNodes()) {
+            assertFalse(frozen.getAllNodes().contains(block));
+            for (int num : block.getInstructionNums()) {
+                assertEquals(block.getId(), frozen.getBlockForInstruction(num).getId());
+            }
+        }
+
+        IBlock block = frozen.getStart();
+        try {
+            block.addRegularSuccessor(frozen.getEnd());
+            fail("Should have failed");
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+        try {
+            block.setId("foo");
+            fail("Should have failed");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        try {
+            frozen.getAttributes();
+            fail("Should have failed");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+
+        // concurrent analyses of the same snapshot
+        final String expected = new SVGRenderer().render(frozen);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        new GraphSummary(frozen).collapse(3);
+                        return new SVGRenderer().render(frozen);
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReusedAnalysisContext() throws Exception {
+        final ClassNode cn = CFGUtil.readClass("Tests", classPath);
+        final List<MethodNode> methods = new ArrayList<>();
+        for (Object m : cn.methods) {
+            if (!CFGUtil.isConstructor((MethodNode) m)) {
+                methods.add((MethodNode) m);
+            }
+        }
+        assertTrue(methods.size() > 1);
+
+        final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
+        final AnalysisContext context = new AnalysisContext();
+        for (int round = 0; round < 2; round++) {
+            for (MethodNode mn : methods) {
+                final ControlFlowGraph reused = analyzer.analyze("Tests", mn, context);
+                final ControlFlowGraph fresh = analyzer.analyze("Tests", mn, new AnalysisContext());
+                assertTrue(mn.name, CFGUtil.isStructurallyEqual(fresh, reused));
+                assertTrue(mn.name, CFGUtil.isStructurallyEqual(fresh, analyzer.analyze("Tests", mn)));
+            }
+        }
+    }
 }
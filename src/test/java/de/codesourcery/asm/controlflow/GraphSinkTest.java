@@ -0,0 +1,105 @@
+package de.codesourcery.asm.controlflow;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.*;
+
+public class GraphSinkTest {
+
+    private static final String FOO = BlockProfile.getKey("org/foo/Bar", "foo", "()V");
+    private static final String BAR = BlockProfile.getKey("org/foo/Bar", "bar", "(I)I");
+    // deduplicated , shares the graph of FOO
+    private static final String COPY = BlockProfile.getKey("com/acme/shaded/org/foo/Bar", "foo", "()V");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void writeGraphs(IGraphSink sink) throws IOException {
+        sink.write("org/foo/Bar/foo.dot", "digraph foo {}");
+        sink.write("org/foo/Bar/bar.dot", "digraph bar { \u00e4 }");
+        sink.write(ControlFlowGrapher.TOC_FILE, FOO + "\torg/foo/Bar/foo.dot\n" + BAR + "\torg/foo/Bar/bar.dot\n" + COPY + "\torg/foo/Bar/foo.dot\n");
+    }
+
+    private void assertRoundTrip(boolean compress) throws Exception {
+        final File file = new File(folder.getRoot(), "graphs/graphs.zip");
+        final ZipGraphSink sink = new ZipGraphSink(file, compress);
+        writeGraphs(sink);
+        sink.close();
+        sink.close(); // no-op
+
+        try (GraphArchive archive = new GraphArchive(file)) {
+            assertEquals(Arrays.asList(FOO, BAR, COPY), new ArrayList<>(archive.getMethods()));
+            assertEquals("digraph foo {}", archive.getGraph("org/foo/Bar", "foo", "()V"));
+            assertEquals("digraph foo {}", archive.getGraph("org.foo.Bar", "foo", "()V"));
+            assertEquals("digraph bar { \u00e4 }", archive.getGraph(BAR));
+            assertEquals("digraph foo {}", archive.getGraph(COPY));
+            assertNull(archive.getGraph("org/foo/Bar", "doesNotExist", "()V"));
+        }
+    }
+
+    @Test
+    public void testZipRoundTrip() throws Exception {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    public void testZipRoundTripUncompressed() throws Exception {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void testWriterErrorSurfacesFromClose() throws Exception {
+        final ZipGraphSink sink = new ZipGraphSink(folder.newFile("graphs.zip"), true);
+        sink.write("org/foo/Bar/foo.dot", "digraph foo {}");
+        sink.write("org/foo/Bar/foo.dot", "digraph foo {}"); // duplicate entry , fails on the writer thread
+        try {
+            sink.close();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof ZipException);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWriteAfterClose() throws Exception {
+        final ZipGraphSink sink = new ZipGraphSink(folder.newFile("graphs.zip"), true);
+        sink.close();
+        sink.write("foo.dot", "digraph foo {}");
+    }
+
+    @Test
+    public void testArchiveWithoutTableOfContents() throws Exception {
+        final File file = folder.newFile("graphs.zip");
+        final ZipGraphSink sink = new ZipGraphSink(file, true);
+        sink.write("org/foo/Bar/foo.dot", "digraph foo {}");
+        sink.close();
+        try {
+            new GraphArchive(file).close();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("table of contents"));
+        }
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        final File dir = new File(folder.getRoot(), "graphs");
+        final DirectoryGraphSink sink = new DirectoryGraphSink(dir);
+        writeGraphs(sink);
+        sink.close();
+
+        assertEquals("digraph foo {}", new String(Files.readAllBytes(new File(dir, "org/foo/Bar/foo.dot").toPath()), StandardCharsets.UTF_8));
+        assertTrue(new File(dir, "org/foo/Bar/bar.dot").isFile());
+        assertTrue(new File(dir, ControlFlowGrapher.TOC_FILE).isFile());
+    }
+}
@@ -0,0 +1,36 @@
+package de.codesourcery.asm.controlflow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeatmapDOTRendererTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProfileRequired() {
+        new HeatmapDOTRenderer(null);
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        final ControlFlowGraph graph = BlockProfileTest.analyze("countedLoop");
+        final String dot = new HeatmapDOTRenderer(BlockProfileTest.createLoopProfile(graph)).render(graph);
+
+        assertTrue(dot, dot.contains("executed: 11x"));
+        assertTrue(dot, dot.contains("executed: 10x"));
+        // loop header is the hottest block , blocks executed once are pale
+        assertTrue(dot, dot.contains("fillcolor=\"0.000 1.000 1.000\""));
+        assertTrue(dot, dot.contains(String.format(java.util.Locale.ROOT, "fillcolor=\"0.000 %.3f 1.000\"", Math.log(2) / Math.log(12))));
+        // loop edges are the widest
+        assertTrue(dot, dot.contains("penwidth=8.0"));
+        assertTrue(dot, dot.contains("10x\""));
+    }
+
+    @Test
+    public void testRenderWithoutCounts() throws Exception {
+        final ControlFlowGraph graph = BlockProfileTest.analyze("countedLoop");
+        final String dot = new HeatmapDOTRenderer(new BlockProfile()).render(graph);
+
+        assertEquals(new DOTRenderer().render(graph), dot);
+    }
+}
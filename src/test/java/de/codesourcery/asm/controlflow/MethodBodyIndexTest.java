@@ -0,0 +1,94 @@
+package de.codesourcery.asm.controlflow;
+
+import org.junit.Test;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.junit.Assert.*;
+
+public class MethodBodyIndexTest implements Opcodes {
+
+    /**
+     * <pre>
+     * void run(Helper helper) {
+     *   helper.process( this , new &lt;dateClass&gt;() );
+     * }
+     * </pre>
+     */
+    private static MethodNode createMethod(String owner, String helperClass, String dateClass, int line) {
+        final MethodNode mn = new MethodNode(ACC_PUBLIC, "run", "(L" + helperClass + ";)V", null, null);
+        final Label start = new Label();
+        mn.visitCode();
+        mn.visitLabel(start);
+        mn.visitLineNumber(line, start);
+        mn.visitVarInsn(ALOAD, 1);
+        mn.visitVarInsn(ALOAD, 0);
+        mn.visitTypeInsn(NEW, dateClass);
+        mn.visitInsn(DUP);
+        mn.visitMethodInsn(INVOKESPECIAL, dateClass, "<init>", "()V", false);
+        mn.visitMethodInsn(INVOKEVIRTUAL, helperClass, "process", "(L" + owner + ";L" + dateClass + ";)V", false);
+        mn.visitInsn(RETURN);
+        mn.visitMaxs(4, 2);
+        mn.visitEnd();
+        return mn;
+    }
+
+    private static String getKey(String owner, String helperClass, String dateClass) {
+        return MethodBodyIndex.getKey(owner, createMethod(owner, helperClass, dateClass, 10));
+    }
+
+    @Test
+    public void testDebugInformationIsIgnored() {
+        final String owner = "org/foo/Bar";
+        assertEquals(MethodBodyIndex.getKey(owner, createMethod(owner, "org/foo/util/Helper", "java/util/Date", 10)),
+                MethodBodyIndex.getKey(owner, createMethod(owner, "org/foo/util/Helper", "java/util/Date", 42)));
+    }
+
+    @Test
+    public void testShadedCopy() {
+        final String original = getKey("org/foo/Bar", "org/foo/util/Helper", "java/util/Date");
+        final String shaded = getKey("com/acme/shaded/org/foo/Bar", "com/acme/shaded/org/foo/util/Helper", "java/util/Date");
+        assertEquals(original, shaded);
+    }
+
+    @Test
+    public void testDefaultPackage() {
+        assertEquals(getKey("Bar", "Helper", "java/util/Date"), getKey("org/foo/Bar", "org/foo/Helper", "java/util/Date"));
+    }
+
+    @Test
+    public void testClassesWithSameSimpleName() {
+        final String utilDate = getKey("org/foo/Bar", "org/foo/util/Helper", "java/util/Date");
+        final String sqlDate = getKey("org/foo/Bar", "org/foo/util/Helper", "java/sql/Date");
+        assertFalse(utilDate.equals(sqlDate));
+
+        // same simple name inside and outside of the owner's package
+        final String local = getKey("org/foo/Bar", "org/foo/util/Helper", "org/foo/Date");
+        assertFalse(local.equals(utilDate));
+    }
+
+    @Test
+    public void testDifferentOwnerPackageLayout() {
+        // helper moved to a different sub-package
+        assertFalse(getKey("org/foo/Bar", "org/foo/util/Helper", "java/util/Date").equals(
+                getKey("org/foo/Bar", "org/foo/other/Helper", "java/util/Date")));
+        // helper outside of the owner's package
+        assertFalse(getKey("org/foo/Bar", "org/foo/util/Helper", "java/util/Date").equals(
+                getKey("com/acme/shaded/org/foo/Bar", "org/foo/util/Helper", "java/util/Date")));
+    }
+
+    @Test
+    public void testIndex() {
+        final MethodBodyIndex<String> index = new MethodBodyIndex<>();
+        final String key = getKey("org/foo/Bar", "org/foo/util/Helper", "java/util/Date");
+        assertNull(index.get(key));
+        index.put(key, "original");
+
+        assertEquals("original", index.get(getKey("com/acme/shaded/org/foo/Bar", "com/acme/shaded/org/foo/util/Helper", "java/util/Date")));
+        assertNull(index.get(getKey("org/foo/Bar", "org/foo/util/Helper", "java/sql/Date")));
+        assertEquals(1, index.size());
+        assertEquals(3, index.getLookupCount());
+        assertEquals(1, index.getDuplicateCount());
+    }
+}
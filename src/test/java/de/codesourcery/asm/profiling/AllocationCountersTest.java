@@ -0,0 +1,121 @@
+package de.codesourcery.asm.profiling;
+
+import de.codesourcery.asm.rewrite.AbstractRewriterTest;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AllocationCountersTest extends AbstractRewriterTest {
+
+    private static final String METHOD = "ProfilingFixture#allocations(I)I";
+
+    @After
+    public void tearDown() {
+        ProfilingSwitch.setEnabled(true);
+    }
+
+    /**
+     * Parses the allocation site section of the report , returning
+     * <code>{ bytes , count , sizeKnown ? 1 : 0 }</code> by site description.
+     */
+    private static Map<String, long[]> getSites() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AllocationCounters.printReport(new PrintStream(out), Integer.MAX_VALUE);
+
+        final Map<String, long[]> result = new HashMap<>();
+        boolean inSites = false;
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("===")) {
+                inSites = line.contains("sites");
+                continue;
+            }
+            final String[] parts = line.split("\t");
+            if (!inSites || parts.length != 3 || parts[0].equals("bytes")) {
+                continue;
+            }
+            final boolean sizeKnown = !parts[0].startsWith(">=");
+            final long bytes = Long.parseLong(sizeKnown ? parts[0] : parts[0].substring(2));
+            final long[] existing = result.get(parts[2]);
+            final long[] value = {bytes, Long.parseLong(parts[1]), sizeKnown ? 1 : 0};
+            if (existing != null) {
+                // same site registered by an earlier rewrite
+                value[0] += existing[0];
+                value[1] += existing[1];
+            }
+            result.put(parts[2], value);
+        }
+        return result;
+    }
+
+    private static long[] getDelta(Map<String, long[]> before, Map<String, long[]> after, String type) {
+        for (Map.Entry<String, long[]> entry : after.entrySet()) {
+            if (entry.getKey().startsWith("new " + type + " in ") && entry.getKey().contains(METHOD)) {
+                final long[] previous = before.get(entry.getKey());
+                final long[] result = entry.getValue().clone();
+                if (previous != null) {
+                    result[0] -= previous[0];
+                    result[1] -= previous[1];
+                }
+                return result;
+            }
+        }
+        return new long[]{0, 0, 1};
+    }
+
+    private static Class<?> load(boolean guarded) throws Exception {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setAllocationCounting(true);
+        rewriter.setGuardedProbes(guarded);
+        return load(rewriter, ProfilingFixture.class);
+    }
+
+    @Test
+    public void testRegisterAndAdd() {
+        final AllocationCounters.Site site = new AllocationCounters.Site("test/Direct", "run", "()V", 42, "java.lang.Object", 16, true);
+        final int index = AllocationCounters.register("test/Direct", "run", "()V", 0, Arrays.asList(site));
+        for (int i = 0; i < 3; i++) {
+            AllocationCounters.add(index);
+        }
+        assertTrue(Arrays.equals(new long[]{48, 3, 1}, getSites().get(site.toString())));
+    }
+
+    @Test
+    public void testInstrumentedCounts() throws Exception {
+        final Class<?> clazz = load(false);
+
+        final Map<String, long[]> before = getSites();
+        assertEquals(ProfilingFixture.allocations(10), invoke(clazz, "allocations", 10));
+        final Map<String, long[]> after = getSites();
+
+        assertTrue(Arrays.equals(new long[]{160, 10, 1}, getDelta(before, after, "java.lang.Object")));
+        assertTrue(Arrays.equals(new long[]{80, 1, 1}, getDelta(before, after, "int[]")));
+        assertTrue(Arrays.equals(new long[]{104, 1, 1}, getDelta(before, after, "long[][]")));
+        // array length is not known at rewrite time , size is a lower bound
+        assertTrue(Arrays.equals(new long[]{16, 1, 0}, getDelta(before, after, "java.lang.String[]")));
+        assertEquals(1, getDelta(before, after, "java.util.ArrayList")[1]);
+    }
+
+    @Test
+    public void testGuardedProbes() throws Exception {
+        final Class<?> clazz = load(true);
+
+        ProfilingSwitch.setEnabled(false);
+        Map<String, long[]> before = getSites();
+        assertEquals(ProfilingFixture.allocations(10), invoke(clazz, "allocations", 10));
+        assertEquals(0, getDelta(before, getSites(), "java.lang.Object")[1]);
+
+        ProfilingSwitch.setEnabled(true);
+        before = getSites();
+        invoke(clazz, "allocations", 10);
+        assertEquals(10, getDelta(before, getSites(), "java.lang.Object")[1]);
+    }
+}
@@ -0,0 +1,135 @@
+package de.codesourcery.asm.profiling;
+
+import de.codesourcery.asm.rewrite.AbstractRewriterTest;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class CallingContextTreeTest extends AbstractRewriterTest {
+
+    private static final String F = ProfilingFixture.class.getName() + ".";
+
+    private static int threadCount;
+
+    @After
+    public void tearDown() {
+        CallingContextTree.setEnabled(false);
+    }
+
+    private static Class<?> load() throws Exception {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setCallingContextProfiling(true);
+        return load(rewriter, ProfilingFixture.class);
+    }
+
+    /**
+     * Invokes a method on a new thread and returns the collapsed stacks
+     * of that thread (without the thread's root frame).
+     */
+    private static Map<String, Long> run(final Class<?> clazz, final String methodName, final Object... args) throws Exception {
+        final String threadName = "cct-test-" + (threadCount++);
+        final Exception[] error = new Exception[1];
+        final Thread thread = new Thread(threadName) {
+            @Override
+            public void run() {
+                try {
+                    invoke(clazz, methodName, args);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        final StringWriter out = new StringWriter();
+        CallingContextTree.writeCollapsedStacks(new PrintWriter(out), true);
+
+        final Map<String, Long> result = new TreeMap<>();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith(threadName + ";")) {
+                final int idx = line.lastIndexOf(' ');
+                result.put(line.substring(threadName.length() + 1, idx), Long.parseLong(line.substring(idx + 1).trim()));
+            }
+        }
+        return result;
+    }
+
+    private static long sum(Map<String, Long> stacks) {
+        long result = 0;
+        for (long count : stacks.values()) {
+            result += count;
+        }
+        return result;
+    }
+
+    @Test
+    public void testNestedCalls() throws Exception {
+        final long expected = count(load(), "callOverloads", 5);
+
+        CallingContextTree.setEnabled(true);
+        final Map<String, Long> stacks = run(load(), "callOverloads", 5);
+
+        final String caller = F + "callOverloads(int)";
+        // overloads are separate frames
+        assertEquals(new HashSet<>(Arrays.asList(caller, caller + ";" + F + "overloaded(int)", caller + ";" + F + "overloaded(long)")), stacks.keySet());
+        assertEquals(expected, sum(stacks));
+    }
+
+    @Test
+    public void testRecursion() throws Exception {
+        final long expected = count(load(), "recurse", 3);
+
+        CallingContextTree.setEnabled(true);
+        final Map<String, Long> stacks = run(load(), "recurse", 3);
+
+        String path = F + "recurse(int)";
+        for (int depth = 3; depth >= 0; depth--) {
+            assertTrue(path + " not in " + stacks.keySet(), stacks.get(path) > 0);
+            path += ";" + F + "recurse(int)";
+        }
+        assertEquals(4, stacks.size());
+        assertEquals(expected, sum(stacks));
+    }
+
+    @Test
+    public void testThrowingCall() throws Exception {
+        final long expected = count(load(), "callAndCatch");
+
+        CallingContextTree.setEnabled(true);
+        final Map<String, Long> stacks = run(load(), "callAndCatch");
+
+        // the handler resumes in the caller's node , so identity() is not charged to thrower()
+        final String caller = F + "callAndCatch()";
+        assertEquals(new HashSet<>(Arrays.asList(caller, caller + ";" + F + "thrower()", caller + ";" + F + "identity(int)")), stacks.keySet());
+        assertEquals(expected, sum(stacks));
+    }
+
+    @Test
+    public void testRegisterMethod() {
+        final int first = CallingContextTree.registerMethod("test/Registered", "run", "(I[Ljava/lang/String;[[J)V");
+        assertEquals(first, CallingContextTree.registerMethod("test.Registered", "run", "(I[Ljava/lang/String;[[J)V"));
+        assertFalse(first == CallingContextTree.registerMethod("test/Registered", "run", "(J)V"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGuardedProbesNotSupported() throws Exception {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setCallingContextProfiling(true);
+        rewriter.setGuardedProbes(true);
+        rewrite(rewriter, ProfilingFixture.class);
+    }
+}
@@ -0,0 +1,182 @@
+package de.codesourcery.asm.profiling;
+
+import de.codesourcery.asm.controlflow.BlockProfile;
+import de.codesourcery.asm.rewrite.AbstractRewriterTest;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LiveCountersTest extends AbstractRewriterTest {
+
+    private static final String OWNER = "de/codesourcery/asmtest/ProfilingFixture";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "counters");
+        LiveCounters.open(file, 4096, 256 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        ProfilingSwitch.setEnabled(true);
+    }
+
+    private static Class<?> load(boolean guarded, boolean loopHoisting) throws Exception {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setLiveCounters(true);
+        rewriter.setGuardedProbes(guarded);
+        rewriter.setLoopHoisting(loopHoisting);
+        return load(rewriter, ProfilingFixture.class);
+    }
+
+    private static LiveCounterReader.MethodCounter find(List<LiveCounterReader.MethodCounter> counters, String methodName) {
+        for (LiveCounterReader.MethodCounter counter : counters) {
+            if (counter.methodName.equals(methodName)) {
+                assertEquals(OWNER.replace('/', '.'), counter.className.replace('/', '.'));
+                return counter;
+            }
+        }
+        fail("No counter for " + methodName);
+        return null;
+    }
+
+    // counts of all blocks , ordered by instruction index
+    private static List<Long> getCounts(BlockProfile profile) {
+        final List<Long> result = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            if (profile.getCount(i) != null) {
+                result.add(profile.getCount(i));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        final int first = LiveCounters.register(OWNER, "foo", "()V", 0, 3);
+        final int second = LiveCounters.register(OWNER, "foo", "()V", 5, 2);
+        assertEquals(0, first);
+        assertEquals(1, second);
+
+        LiveCounters.add(first, 3);
+        LiveCounters.add(first, 3);
+        LiveCounters.add(second, 4L);
+
+        final LiveCounterReader reader = new LiveCounterReader(file);
+        final LiveCounterReader.MethodCounter counter = find(reader.sample(), "foo");
+        assertEquals(10, counter.instructions);
+        assertEquals(10, counter.delta);
+
+        final BlockProfile profile = reader.getBlockProfiles().get(BlockProfile.getKey(OWNER, "foo", "()V"));
+        assertEquals(Long.valueOf(2), profile.getCount(0));
+        assertEquals(Long.valueOf(2), profile.getCount(5));
+    }
+
+    @Test
+    public void testFullFile() throws Exception {
+        LiveCounters.open(file, 1, 1024);
+        assertEquals(0, LiveCounters.register(OWNER, "foo", "()V", 0, 3));
+        assertEquals(-1, LiveCounters.register(OWNER, "foo", "()V", 5, 3));
+    }
+
+    @Test
+    public void testInstrumentedRoundTrip() throws Exception {
+        final Class<?> clazz = load(false, false);
+        final LiveCounterReader reader = new LiveCounterReader(file);
+
+        final long expected = count(clazz, "countedLoop", 10);
+        List<LiveCounterReader.MethodCounter> counters = reader.sample();
+        assertEquals(expected, find(counters, "countedLoop").instructions);
+        assertEquals(0, find(counters, "branches").instructions);
+
+        count(clazz, "countedLoop", 10);
+        counters = reader.sample();
+        assertEquals(2 * expected, find(counters, "countedLoop").instructions);
+        assertEquals(expected, find(counters, "countedLoop").delta);
+        assertEquals("countedLoop", counters.get(0).methodName);
+
+        // method entry block
+        final BlockProfile profile = reader.getBlockProfiles().get(BlockProfile.getKey(OWNER, "countedLoop", "(I)I"));
+        assertEquals(Long.valueOf(2), getCounts(profile).get(0));
+    }
+
+    @Test
+    public void testBlockProfiles() throws Exception {
+        final Class<?> clazz = load(false, false);
+        invoke(clazz, "countedLoop", 10);
+
+        final BlockProfile profile = new LiveCounterReader(file).getBlockProfiles().get(BlockProfile.getKey(OWNER, "countedLoop", "(I)I"));
+        // method entry , loop header , loop body , exit
+        assertEquals(Arrays.asList(1L, 11L, 10L, 1L), getCounts(profile));
+    }
+
+    @Test
+    public void testHoistedLoopBlockProfiles() throws Exception {
+        final Class<?> clazz = load(false, true);
+        invoke(clazz, "countedLoop", 10);
+        invoke(clazz, "countedLoop", 5);
+
+        final BlockProfile profile = new LiveCounterReader(file).getBlockProfiles().get(BlockProfile.getKey(OWNER, "countedLoop", "(I)I"));
+        // method entry , loop header (15 iterations plus one exit per call) , exit ; the loop body has no counter
+        assertEquals(Arrays.asList(2L, 17L, 2L), getCounts(profile));
+    }
+
+    @Test
+    public void testGuardedProbes() throws Exception {
+        final Class<?> clazz = load(true, true);
+        final LiveCounterReader reader = new LiveCounterReader(file);
+
+        ProfilingSwitch.setEnabled(false);
+        invoke(clazz, "work", 20);
+        for (LiveCounterReader.MethodCounter counter : reader.sample()) {
+            assertEquals(counter.toString(), 0, counter.instructions);
+        }
+
+        ProfilingSwitch.setEnabled(true);
+        final long expected = count(clazz, "countedLoop", 10);
+        assertTrue(expected > 0);
+        assertEquals(expected, find(reader.sample(), "countedLoop").instructions);
+    }
+
+    @Test
+    public void testBlocksAreRegisteredOnce() throws Exception {
+        load(false, true);
+
+        // block table starts right after the counters , see LiveCounters
+        final Set<String> blocks = new HashSet<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipBytes(LiveCounters.OFFSET_BLOCK_COUNT);
+            final int blockCount = in.readInt();
+            in.skipBytes(LiveCounters.HEADER_SIZE - LiveCounters.OFFSET_BLOCK_COUNT - 4 + 8 * 4096);
+            assertTrue(blockCount > 0);
+            for (int i = 0; i < blockCount; i++) {
+                assertEquals(i, in.readInt());
+                final int instructionNum = in.readInt();
+                // counted loop headers have two counters with different costs (iterations and loop exit)
+                final int cost = in.readInt();
+                final String key = in.readUTF() + "#" + in.readUTF() + in.readUTF() + "@" + instructionNum + "x" + cost;
+                assertTrue("Registered twice: " + key, blocks.add(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.codesourcery.asm.profiling;
+
+import de.codesourcery.asm.rewrite.AbstractRewriterTest;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+import de.codesourcery.asmtest.TaskFixture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TaskAttributionTest extends AbstractRewriterTest {
+
+    private static final String TASK = TaskFixture.class.getName();
+
+    @After
+    public void tearDown() {
+        TaskAttribution.setEnabled(false);
+    }
+
+    private static long getTaskCount(String task) {
+        final Long result = TaskAttribution.getTaskCounts().get(task);
+        return result == null ? 0 : result;
+    }
+
+    @Test
+    public void testWrapWhileDisabled() {
+        final Runnable r = new TaskFixture(1);
+        assertSame(r, TaskAttribution.wrap(r));
+    }
+
+    @Test
+    public void testWrappedRunnableIsChargedToTask() {
+        TaskAttribution.setEnabled(true);
+        final Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+                TaskAttribution.account(42);
+            }
+        };
+        final Runnable wrapped = TaskAttribution.wrap(runnable);
+        assertSame(wrapped, TaskAttribution.wrap(wrapped));
+
+        final String task = runnable.getClass().getName();
+        final long before = getTaskCount(task);
+        wrapped.run();
+        assertEquals(before + 42, getTaskCount(task));
+    }
+
+    @Test
+    public void testInstrumentedSubmission() throws Exception {
+        // instructions of TaskFixture#run() , counted on the current thread
+        final Class<?> plain = load(new ProfilingRewriter(), TaskFixture.class);
+        final Runnable task = (Runnable) plain.getConstructor(int.class).newInstance(100);
+        final long before = StatisticsManager.getExecutedInstructionsCount();
+        task.run();
+        final long expected = StatisticsManager.getExecutedInstructionsCount() - before;
+        assertTrue(expected > 0);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setTaskAttribution(true);
+        final Class<?> clazz = load(rewriter, TaskFixture.class);
+
+        TaskAttribution.setEnabled(true);
+        final long taskBefore = getTaskCount(TASK);
+        final long threadBefore = StatisticsManager.getExecutedInstructionsCount();
+        assertEquals(4950, invoke(clazz, "runInExecutor", 100));
+
+        assertEquals(expected, getTaskCount(TASK) - taskBefore);
+        // charged to the task instead of the thread
+        assertEquals(threadBefore, StatisticsManager.getExecutedInstructionsCount());
+        final Map<String, Long> counts = TaskAttribution.getTaskCounts();
+        assertTrue(counts.toString(), counts.containsKey("thread " + Thread.currentThread().getName()));
+    }
+}
@@ -0,0 +1,134 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.util.IClassReaderProvider;
+import de.codesourcery.asm.util.IJoinpointFilter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public abstract class AbstractRewriterTest {
+
+    /**
+     * Loads instrumented classes , all other classes are loaded by the parent class loader
+     * (so instrumented code and the test share the profiling runtime classes).
+     */
+    protected static final class InstrumentedClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes = new HashMap<>();
+
+        public InstrumentedClassLoader() {
+            super(AbstractRewriterTest.class.getClassLoader());
+        }
+
+        public void add(String className, byte[] data) {
+            classes.put(className, data);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            final byte[] data = classes.get(name);
+            if (data == null) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> result = findLoadedClass(name);
+            if (result == null) {
+                result = defineClass(name, data, 0, data.length);
+            }
+            if (resolve) {
+                resolveClass(result);
+            }
+            return result;
+        }
+    }
+
+    protected static byte[] readClass(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int len = in.read(buffer); len > 0; len = in.read(buffer)) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    protected static byte[] rewrite(ProfilingRewriter rewriter, Class<?> clazz) throws Exception {
+        return rewrite(rewriter, clazz, IJoinpointFilter.ALL);
+    }
+
+    protected static byte[] rewrite(ProfilingRewriter rewriter, final Class<?> clazz, IJoinpointFilter filter) throws Exception {
+        final byte[] data = readClass(clazz);
+        final IClassReaderProvider provider = new IClassReaderProvider() {
+
+            @Override
+            public ClassReader getClassReader() throws IOException {
+                return new ClassReader(data);
+            }
+
+            @Override
+            public String getClassName() {
+                return clazz.getName();
+            }
+        };
+        return rewriter.rewrite(provider, filter, AbstractRewriterTest.class.getClassLoader());
+    }
+
+    /**
+     * Rewrites a class , verifies the result and loads it.
+     */
+    protected static Class<?> load(ProfilingRewriter rewriter, Class<?> clazz) throws Exception {
+        return load(clazz.getName(), rewrite(rewriter, clazz));
+    }
+
+    /**
+     * Verifies a class using ASM's byte-code verifier and loads it (which makes the JVM
+     * verify the stack map frames as well).
+     */
+    protected static Class<?> load(String className, byte[] data) throws Exception {
+        final InstrumentedClassLoader loader = new InstrumentedClassLoader();
+        loader.add(className, data);
+
+        final StringWriter problems = new StringWriter();
+        CheckClassAdapter.verify(new ClassReader(data), loader, false, new PrintWriter(problems));
+        assertEquals("Verification failed", "", problems.toString());
+        return loader.loadClass(className);
+    }
+
+    protected static Object invoke(Class<?> clazz, String methodName, Object... args) throws Exception {
+        for (Method m : clazz.getMethods()) {
+            if (m.getName().equals(methodName) && m.getParameterTypes().length == args.length) {
+                try {
+                    return m.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+        throw new NoSuchMethodException(clazz.getName() + "#" + methodName);
+    }
+
+    /**
+     * Invokes a static method and returns the number of instructions accounted for
+     * on the current thread.
+     */
+    protected static long count(Class<?> clazz, String methodName, Object... args) throws Exception {
+        final long before = StatisticsManager.getExecutedInstructionsCount();
+        invoke(clazz, methodName, args);
+        return StatisticsManager.getExecutedInstructionsCount() - before;
+    }
+}
@@ -0,0 +1,75 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asm.controlflow.ControlFlowAnalyzer;
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.profiling.AllocationCounters;
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AllocationAnalyzerTest extends AbstractRewriterTest {
+
+    private static final String OWNER = "de/codesourcery/asmtest/ProfilingFixture";
+
+    private static Map<String, AllocationCounters.Site> getSites(String methodName) throws Exception {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(readClass(ProfilingFixture.class)).accept(cn, 0);
+        for (Object o : cn.methods) {
+            final MethodNode mn = (MethodNode) o;
+            if (mn.name.equals(methodName)) {
+                final ControlFlowGraph graph = new ControlFlowAnalyzer().analyze(OWNER, mn);
+                final AllocationAnalyzer analyzer = new AllocationAnalyzer(AllocationAnalyzerTest.class.getClassLoader());
+                final Map<String, AllocationCounters.Site> result = new HashMap<>();
+                for (IBlock block : graph.getAllNodes()) {
+                    for (AllocationCounters.Site site : analyzer.getAllocationSites(OWNER, mn, block)) {
+                        assertNull("Duplicate site " + site, result.put(site.type, site));
+                        assertEquals(methodName, site.methodName);
+                        assertTrue(site.lineNumber > 0);
+                    }
+                }
+                return result;
+            }
+        }
+        throw new NoSuchMethodException(methodName);
+    }
+
+    private static void assertSite(Map<String, AllocationCounters.Site> sites, String type, long size, boolean sizeKnown) {
+        final AllocationCounters.Site site = sites.get(type);
+        assertNotNull("No site for " + type + " in " + sites.keySet(), site);
+        assertEquals(type, size, site.size);
+        assertEquals(type, sizeKnown, site.sizeKnown);
+    }
+
+    @Test
+    public void testSizeEstimation() throws Exception {
+        final Map<String, AllocationCounters.Site> sites = getSites("allocations");
+        assertEquals(sites.keySet().toString(), 5, sites.size());
+
+        // header only
+        assertSite(sites, "java.lang.Object", 16, true);
+        // 16 byte header + 16 ints
+        assertSite(sites, "int[]", 80, true);
+        // length not known at rewrite time
+        assertSite(sites, "java.lang.String[]", 16, false);
+        // outer array with 2 references (24 bytes) + 2 arrays with 3 longs (40 bytes each)
+        assertSite(sites, "long[][]", 104, true);
+
+        final AllocationCounters.Site list = sites.get("java.util.ArrayList");
+        assertTrue(list.sizeKnown);
+        assertTrue(list.size > 16);
+        assertEquals(0, list.size % 8);
+    }
+
+    @Test
+    public void testNoAllocations() throws Exception {
+        assertTrue(getSites("countedLoop").isEmpty());
+    }
+}
@@ -0,0 +1,107 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.junit.Assert.*;
+
+public class JitBudgetTest extends AbstractRewriterTest {
+
+    private static int getCodeSize(String methodName) throws Exception {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(readClass(ProfilingFixture.class)).accept(cn, 0);
+        for (Object o : cn.methods) {
+            final MethodNode mn = (MethodNode) o;
+            if (mn.name.equals(methodName)) {
+                return JitBudget.estimateCodeSize(mn);
+            }
+        }
+        throw new NoSuchMethodException(methodName);
+    }
+
+    private static JitBudget budget(int limit) {
+        final JitBudget result = new JitBudget();
+        result.setMaxInlineSize(0);
+        result.setFreqInlineSize(0);
+        result.setHugeMethodLimit(limit);
+        return result;
+    }
+
+    private static String getDegradation(ProfilingRewriter rewriter, String methodName) {
+        for (String msg : rewriter.getDegradedMethods()) {
+            if (msg.contains("#" + methodName + "(")) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testEstimateCodeSize() throws Exception {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(readClass(ProfilingFixture.class)).accept(cn, 0);
+        for (Object o : cn.methods) {
+            final MethodNode mn = (MethodNode) o;
+            if (mn.name.equals("identity")) {
+                // ILOAD_0 , IRETURN
+                assertEquals(2, JitBudget.estimateCodeSize(mn));
+            }
+        }
+    }
+
+    @Test
+    public void testGetLimit() {
+        final JitBudget budget = new JitBudget();
+        assertEquals(35, budget.getLimit(35));
+        assertEquals(325, budget.getLimit(36));
+        assertEquals(8000, budget.getLimit(326));
+        assertEquals(Integer.MAX_VALUE, budget.getLimit(8001));
+    }
+
+    @Test
+    public void testWithinBudget() throws Exception {
+        final Class<?> plain = load(new ProfilingRewriter(), ProfilingFixture.class);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setJitBudget(budget(100000));
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        assertTrue(rewriter.getDegradedMethods().isEmpty());
+        assertEquals(count(plain, "branches", 50), count(clazz, "branches", 50));
+    }
+
+    @Test
+    public void testFewerProbes() throws Exception {
+        final Class<?> plain = load(new ProfilingRewriter(), ProfilingFixture.class);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setJitBudget(budget(getCodeSize("branches") + 150));
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        final String msg = getDegradation(rewriter, "branches");
+        assertNotNull(msg);
+        assertTrue(msg, msg.contains(JitBudget.Level.FEWER_PROBES.name()));
+
+        // each probe accounts for the most expensive path
+        final long expected = count(plain, "branches", 50);
+        final long actual = count(clazz, "branches", 50);
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertEquals(ProfilingFixture.branches(50), invoke(clazz, "branches", 50));
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setJitBudget(budget(getCodeSize("countedLoop")));
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        final String msg = getDegradation(rewriter, "countedLoop");
+        assertNotNull(msg);
+        assertTrue(msg, msg.contains(JitBudget.Level.SKIP.name()));
+        assertEquals(0, count(clazz, "countedLoop", 50));
+        assertEquals(ProfilingFixture.countedLoop(50), invoke(clazz, "countedLoop", 50));
+    }
+}
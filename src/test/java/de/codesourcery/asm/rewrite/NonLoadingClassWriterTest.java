@@ -0,0 +1,72 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NonLoadingClassWriterTest extends AbstractRewriterTest {
+
+    /**
+     * Provides class files but records each attempt to load a class.
+     */
+    private static final class RecordingClassLoader extends ClassLoader {
+
+        private final List<String> loaded = new ArrayList<>();
+
+        public RecordingClassLoader() {
+            super(NonLoadingClassWriterTest.class.getClassLoader());
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            loaded.add(name);
+            return super.loadClass(name, resolve);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            return getParent().getResourceAsStream(name);
+        }
+    }
+
+    private static NonLoadingClassWriter createWriter(ClassLoader classLoader) throws Exception {
+        return new NonLoadingClassWriter(new ClassReader(readClass(ProfilingFixture.class)), ClassWriter.COMPUTE_FRAMES, classLoader);
+    }
+
+    @Test
+    public void testCommonSuperClass() throws Exception {
+        final RecordingClassLoader loader = new RecordingClassLoader();
+        final NonLoadingClassWriter writer = createWriter(loader);
+
+        assertEquals("java/util/AbstractList", writer.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+        assertEquals("java/util/AbstractList", writer.getCommonSuperClass("java/util/AbstractList", "java/util/ArrayList"));
+        assertEquals("java/lang/RuntimeException", writer.getCommonSuperClass("java/lang/IllegalStateException", "java/lang/ArithmeticException"));
+        assertEquals("java/lang/Object", writer.getCommonSuperClass("java/util/ArrayList", "java/util/List"));
+        // the class being written
+        assertEquals("java/lang/Object", writer.getCommonSuperClass("de/codesourcery/asmtest/ProfilingFixture", "java/lang/String"));
+
+        assertTrue("Classes were loaded: " + loader.loaded, loader.loaded.isEmpty());
+    }
+
+    @Test(expected = TypeNotPresentException.class)
+    public void testUnknownType() throws Exception {
+        createWriter(new RecordingClassLoader()).getCommonSuperClass("java/lang/String", "does/not/Exist");
+    }
+
+    @Test
+    public void testComputedFramesVerify() throws Exception {
+        final ClassReader reader = new ClassReader(readClass(ProfilingFixture.class));
+        final NonLoadingClassWriter writer = new NonLoadingClassWriter(reader, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, new RecordingClassLoader());
+        reader.accept(writer, ClassReader.SKIP_FRAMES);
+
+        final Class<?> clazz = load(ProfilingFixture.class.getName(), writer.toByteArray());
+        assertEquals(ProfilingFixture.work(20), invoke(clazz, "work", 20));
+    }
+}
@@ -0,0 +1,85 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OpcodeCostModelTest extends AbstractRewriterTest {
+
+    private static Class<?> load(OpcodeCostModel model) throws Exception {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setCostModel(model);
+        return load(rewriter, ProfilingFixture.class);
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        final OpcodeCostModel model = new OpcodeCostModel(Collections.singletonMap("imul", " 11 "));
+        assertEquals(11, model.getWeight(Opcodes.IMUL));
+        assertEquals(1, model.getWeight(Opcodes.IADD));
+        assertEquals(1, new OpcodeCostModel().getWeight(Opcodes.IMUL));
+
+        final OpcodeCostModel defaults = OpcodeCostModel.getDefault();
+        assertEquals(2, defaults.getWeight(Opcodes.IALOAD));
+        assertEquals(4, defaults.getWeight(Opcodes.AASTORE));
+    }
+
+    @Test
+    public void testToString() {
+        final Map<String, String> weights = new HashMap<>();
+        weights.put("IMUL", "11");
+        weights.put("IADD", "1");
+        weights.put("ALOAD", "2");
+        assertEquals("OpcodeCostModel[ALOAD=2,IMUL=11]", new OpcodeCostModel(weights).toString());
+        assertEquals("OpcodeCostModel[]", new OpcodeCostModel().toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOpcode() {
+        new OpcodeCostModel(Collections.singletonMap("FOO", "1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeWeight() {
+        new OpcodeCostModel(Collections.singletonMap("IADD", "-1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWeight() {
+        new OpcodeCostModel(Collections.singletonMap("IADD", "x"));
+    }
+
+    @Test
+    public void testUnitWeightsMatchPlainMode() throws Exception {
+        final Class<?> plain = load(new ProfilingRewriter(), ProfilingFixture.class);
+        final Class<?> clazz = load(new OpcodeCostModel());
+        for (String method : new String[]{"countedLoop", "branches", "exceptions"}) {
+            assertEquals(method, count(plain, method, 50), count(clazz, method, 50));
+        }
+    }
+
+    @Test
+    public void testWeightedCount() throws Exception {
+        final Class<?> plain = load(new OpcodeCostModel());
+        final Class<?> clazz = load(new OpcodeCostModel(Collections.singletonMap("IMUL", "11")));
+
+        // the loop body contains a single IMUL instruction
+        assertEquals(count(plain, "countedLoop", 20) + 10 * 20, count(clazz, "countedLoop", 20));
+        assertEquals(ProfilingFixture.countedLoop(20), invoke(clazz, "countedLoop", 20));
+    }
+
+    @Test
+    public void testDefaultModel() throws Exception {
+        final Class<?> plain = load(new ProfilingRewriter(), ProfilingFixture.class);
+        final Class<?> clazz = load(OpcodeCostModel.getDefault());
+        // exceptions() performs an IDIV in each iteration
+        assertTrue(count(clazz, "exceptions", 50) > count(plain, "exceptions", 50));
+        assertTrue(count(clazz, "countedLoop", 50) >= count(plain, "countedLoop", 50));
+    }
+}
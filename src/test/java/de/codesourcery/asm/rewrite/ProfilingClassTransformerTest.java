@@ -0,0 +1,297 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asm.profiling.CallingContextTree;
+import de.codesourcery.asm.profiling.TaskAttribution;
+import de.codesourcery.asm.util.CompiledJoinpointFilter;
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProfilingClassTransformerTest extends AbstractRewriterTest {
+
+    private static final String INCLUDE = "include=de.codesourcery.asmtest.**";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Instrumentation stub. Retransforming a class runs all registered transformers
+     * over its original byte-code (like the JVM does) and records the result.
+     */
+    private static final class TestInstrumentation implements InvocationHandler {
+
+        private final boolean canRetransform;
+        private final List<Class<?>> loadedClasses;
+        private final List<ClassFileTransformer> transformers = new ArrayList<>();
+        private final Map<String, byte[]> classFiles = new HashMap<>();
+
+        public TestInstrumentation(boolean canRetransform, Class<?>... loadedClasses) {
+            this.canRetransform = canRetransform;
+            this.loadedClasses = Arrays.asList(loadedClasses);
+        }
+
+        public Instrumentation create() {
+            return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[]{Instrumentation.class}, this);
+        }
+
+        /**
+         * Returns the current byte-code of a class (<code>null</code> if the class was never retransformed).
+         */
+        public byte[] getClassFile(Class<?> clazz) {
+            return classFiles.get(clazz.getName());
+        }
+
+        public List<ClassFileTransformer> getTransformers() {
+            return transformers;
+        }
+
+        private void retransform(Class<?> clazz) throws Exception {
+            byte[] data = readClass(clazz);
+            for (ClassFileTransformer transformer : transformers) {
+                final byte[] result = transformer.transform(clazz.getClassLoader(), clazz.getName().replace('.', '/'), clazz, null, data);
+                if (result != null) {
+                    data = result;
+                }
+            }
+            classFiles.put(clazz.getName(), data);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            switch (method.getName()) {
+                case "addTransformer":
+                    transformers.add((ClassFileTransformer) args[0]);
+                    return null;
+                case "removeTransformer":
+                    return transformers.remove(args[0]);
+                case "isRetransformClassesSupported":
+                    return canRetransform;
+                case "isModifiableClass":
+                    return loadedClasses.contains(args[0]);
+                case "getAllLoadedClasses":
+                    return loadedClasses.toArray(new Class<?>[0]);
+                case "retransformClasses":
+                    for (Class<?> clazz : (Class<?>[]) args[0]) {
+                        retransform(clazz);
+                    }
+                    return null;
+            }
+            final Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type == Class[].class) {
+                return new Class<?>[0];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Instrumentation that supports neither retransformation nor redefinition and
+     * has no loaded classes.
+     */
+    private static Instrumentation createInstrumentation() {
+        return new TestInstrumentation(false).create();
+    }
+
+    private static List<Thread> getThreads(String name) {
+        final List<Thread> result = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private static void start(String options) {
+        ProfilingClassTransformer.premain(INCLUDE + ";" + options, createInstrumentation());
+    }
+
+    private static void stop() {
+        ProfilingClassTransformer.agentmain("action=stop", createInstrumentation());
+    }
+
+    @After
+    public void tearDown() {
+        stop(); // no-op if already stopped
+    }
+
+    @Test
+    public void testAttachAndDetach() throws Exception {
+        final TestInstrumentation inst = new TestInstrumentation(true, ProfilingFixture.class);
+        ProfilingClassTransformer.agentmain(INCLUDE + ";action=start", inst.create());
+        final byte[] instrumented = inst.getClassFile(ProfilingFixture.class);
+        assertNotNull(instrumented);
+        assertFalse(Arrays.equals(readClass(ProfilingFixture.class), instrumented));
+        assertTrue(count(load(ProfilingFixture.class.getName(), instrumented), "countedLoop", 10) > 0);
+
+        ProfilingClassTransformer.agentmain("action=stop", inst.create());
+        final byte[] restored = inst.getClassFile(ProfilingFixture.class);
+        assertTrue(Arrays.equals(readClass(ProfilingFixture.class), restored));
+        assertTrue(inst.getTransformers().isEmpty());
+        assertEquals(0, count(load(ProfilingFixture.class.getName(), restored), "countedLoop", 10));
+    }
+
+    @Test
+    public void testDurationEndsProfiling() throws Exception {
+        final TestInstrumentation inst = new TestInstrumentation(true, ProfilingFixture.class);
+        ProfilingClassTransformer.agentmain(INCLUDE + ";action=start;duration=1", inst.create());
+        final List<Thread> timers = getThreads("profiling-window");
+        assertEquals(1, timers.size());
+        timers.get(0).join(10000);
+        assertTrue(Arrays.equals(readClass(ProfilingFixture.class), inst.getClassFile(ProfilingFixture.class)));
+        assertTrue(inst.getTransformers().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAttachWithoutRetransformationSupport() throws Exception {
+        ProfilingClassTransformer.agentmain(INCLUDE + ";action=start", createInstrumentation());
+    }
+
+    @Test
+    public void testStopTerminatesBackgroundThreads() throws Exception {
+        start("jfr=true;jfrInterval=10;duration=3600");
+        final List<Thread> threads = new ArrayList<>();
+        threads.addAll(getThreads("jfr-instruction-counts"));
+        threads.addAll(getThreads("profiling-window"));
+        assertEquals(2, threads.size());
+
+        stop();
+        for (Thread t : threads) {
+            t.join(5000);
+            assertFalse(t.getName() + " still running", t.isAlive());
+        }
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            start("jfr=true;jfrInterval=10");
+            assertEquals(1, getThreads("jfr-instruction-counts").size());
+            stop();
+            for (Thread t : getThreads("jfr-instruction-counts")) {
+                t.join(5000);
+            }
+        }
+        assertTrue(getThreads("jfr-instruction-counts").isEmpty());
+    }
+
+    @Test
+    public void testStopDisablesAttribution() throws Exception {
+        final File file = new File(folder.getRoot(), "stacks.txt");
+        for (int i = 0; i < 2; i++) {
+            start("callingContext=" + file.getAbsolutePath() + ";attribution=task");
+            assertTrue(CallingContextTree.isEnabled());
+            assertTrue(TaskAttribution.isEnabled());
+            stop();
+            assertFalse(CallingContextTree.isEnabled());
+            assertFalse(TaskAttribution.isEnabled());
+
+            // the profile is written on stop , not when the JVM exits (the folder is gone by then)
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCallingContextWithGuardedProbes() throws Exception {
+        start("guarded=true;callingContext=" + new File(folder.getRoot(), "stacks.txt").getAbsolutePath());
+    }
+
+    /**
+     * Transforms {@link ProfilingFixture} with a fresh transformer (as a new JVM would) that
+     * uses a cache in the given directory.
+     */
+    private static byte[] transform(File cacheDir, boolean allocations, TransformCache[] cacheOut) throws Exception {
+        final List<String> none = Collections.emptyList();
+        final ProfilingClassTransformer.MyTransformer transformer = new ProfilingClassTransformer.MyTransformer(
+                new CompiledJoinpointFilter(Arrays.asList("de.codesourcery.asmtest.**"), none, none, none, null), false, null);
+        transformer.getRewriter().setAllocationCounting(allocations);
+        final TransformCache cache = new TransformCache(cacheDir, 1024 * 1024, "config");
+        transformer.setCache(cache);
+        cacheOut[0] = cache;
+        return transformer.transform(ProfilingClassTransformerTest.class.getClassLoader(),
+                ProfilingFixture.class.getName().replace('.', '/'), null, null, readClass(ProfilingFixture.class));
+    }
+
+    @Test
+    public void testCacheUsed() throws Exception {
+        final TransformCache[] cache = new TransformCache[1];
+        final byte[] first = transform(folder.getRoot(), false, cache);
+        final byte[] second = transform(folder.getRoot(), false, cache);
+        assertNotNull(first);
+        assertEquals(1, cache[0].getHitCount());
+        assertTrue(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void testCacheBypassedForAllocationCounting() throws Exception {
+        final TransformCache[] cache = new TransformCache[1];
+        transform(folder.getRoot(), true, cache);
+        final byte[] data = transform(folder.getRoot(), true, cache);
+        assertNotNull(data);
+        assertEquals(0, cache[0].getHitCount());
+
+        // counter indices baked into the byte-code must have been registered in this JVM
+        final Class<?> clazz = load(ProfilingFixture.class.getName(), data);
+        assertEquals(ProfilingFixture.allocations(10), invoke(clazz, "allocations", 10));
+    }
+
+    @Test
+    public void testCostModelChangeInvalidatesCache() throws Exception {
+        final File weights = folder.newFile("costs.properties");
+        final File cacheDir = folder.newFolder("cache");
+        final String options = INCLUDE + ";action=start;cacheDir=" + cacheDir.getAbsolutePath() + ";costModel=" + weights.getAbsolutePath();
+
+        // same file name , but the last session uses a different weight
+        final String[] imulWeights = {"11", "11", "12"};
+        final byte[][] classFiles = new byte[imulWeights.length][];
+        for (int i = 0; i < imulWeights.length; i++) {
+            try (FileWriter writer = new FileWriter(weights)) {
+                writer.write("IMUL=" + imulWeights[i] + "\n");
+            }
+            final TestInstrumentation inst = new TestInstrumentation(true, ProfilingFixture.class);
+            ProfilingClassTransformer.agentmain(options, inst.create());
+            classFiles[i] = inst.getClassFile(ProfilingFixture.class);
+            stop();
+        }
+
+        assertTrue(Arrays.equals(classFiles[0], classFiles[1]));
+        assertFalse(Arrays.equals(classFiles[1], classFiles[2]));
+        assertEquals(2, cacheDir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".class");
+            }
+        }).length);
+
+        final Class<?> clazz = load(ProfilingFixture.class.getName(), classFiles[2]);
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setCostModel(new OpcodeCostModel(Collections.singletonMap("IMUL", "12")));
+        assertEquals(count(load(rewriter, ProfilingFixture.class), "countedLoop", 10), count(clazz, "countedLoop", 10));
+    }
+}
@@ -0,0 +1,202 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asm.profiling.ProfilingSwitch;
+import de.codesourcery.asm.profiling.Sampler;
+import de.codesourcery.asm.util.IJoinpointFilter;
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProfilingRewriterTest extends AbstractRewriterTest {
+
+    private static final String[] METHODS = { "countedLoop", "branches", "exceptions", "recurse" };
+
+    @After
+    public void tearDown() {
+        Sampler.setInterval(1);
+        ProfilingSwitch.setEnabled(true);
+    }
+
+    private static long countAll(Class<?> clazz, int n) throws Exception {
+        long result = 0;
+        for (String method : METHODS) {
+            result += count(clazz, method, n);
+        }
+        return result;
+    }
+
+    private static IJoinpointFilter methodFilter(final String methodName) {
+        return new IJoinpointFilter() {
+
+            @Override
+            public boolean matches(String clazz) {
+                return true;
+            }
+
+            @Override
+            public boolean matches(String clazz, String method) {
+                return method.equals(methodName);
+            }
+        };
+    }
+
+    private static Map<String, String> disassemble(byte[] data) {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(data).accept(cn, 0);
+
+        final Map<String, String> result = new HashMap<>();
+        for (Object o : cn.methods) {
+            final MethodNode mn = (MethodNode) o;
+            final Textifier text = new Textifier();
+            mn.accept(new TraceMethodVisitor(text));
+            final StringWriter out = new StringWriter();
+            text.print(new PrintWriter(out));
+            result.put(mn.name + mn.desc, out.toString());
+        }
+        return result;
+    }
+
+    private static Class<?> plain() throws Exception {
+        return load(new ProfilingRewriter(), ProfilingFixture.class);
+    }
+
+    @Test
+    public void testPlainModeCountsInstructions() throws Exception {
+        final Class<?> clazz = plain();
+        final long small = count(clazz, "countedLoop", 10);
+        final long large = count(clazz, "countedLoop", 20);
+        assertTrue(small > 0);
+        assertTrue(large > small);
+        assertEquals(ProfilingFixture.work(25), invoke(clazz, "work", 25));
+    }
+
+    @Test
+    public void testSamplingWithIntervalOneCountsEverything() throws Exception {
+        final long expected = countAll(plain(), 50);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setSamplingInterval(1);
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        Sampler.setInterval(1);
+        assertEquals(expected, countAll(clazz, 50));
+        assertEquals(ProfilingFixture.work(50), invoke(clazz, "work", 50));
+    }
+
+    @Test
+    public void testSamplingCountsFraction() throws Exception {
+        final long expected = countAll(plain(), 500);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setSamplingInterval(16);
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        Sampler.setInterval(16);
+        final long sampled = countAll(clazz, 500);
+        assertTrue("sampled: " + sampled + ", expected less than " + expected, sampled < expected);
+        assertEquals(ProfilingFixture.work(500), invoke(clazz, "work", 500));
+    }
+
+    @Test
+    public void testGuardedProbes() throws Exception {
+        final long expected = countAll(plain(), 50);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setGuardedProbes(true);
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        ProfilingSwitch.setEnabled(true);
+        assertEquals(expected, countAll(clazz, 50));
+
+        ProfilingSwitch.setEnabled(false);
+        assertEquals(0, countAll(clazz, 50));
+        assertEquals(ProfilingFixture.work(50), invoke(clazz, "work", 50));
+
+        ProfilingSwitch.setEnabled(true);
+        assertEquals(expected, countAll(clazz, 50));
+    }
+
+    @Test
+    public void testUntouchedMethodsAreCopied() throws Exception {
+        final byte[] data = rewrite(new ProfilingRewriter(), ProfilingFixture.class, methodFilter("identity"));
+
+        final Map<String, String> original = disassemble(readClass(ProfilingFixture.class));
+        final Map<String, String> rewritten = disassemble(data);
+        assertEquals(original.keySet(), rewritten.keySet());
+        for (Map.Entry<String, String> entry : original.entrySet()) {
+            if (entry.getKey().startsWith("identity")) {
+                assertFalse(entry.getValue().equals(rewritten.get(entry.getKey())));
+            } else {
+                assertEquals(entry.getKey(), entry.getValue(), rewritten.get(entry.getKey()));
+            }
+        }
+
+        final Class<?> clazz = load(ProfilingFixture.class.getName(), data);
+        assertEquals(0, count(clazz, "countedLoop", 10));
+        assertTrue(count(clazz, "identity", 10) > 0);
+    }
+
+    @Test
+    public void testNothingToRewriteReturnsOriginal() throws Exception {
+        final byte[] original = readClass(ProfilingFixture.class);
+        final byte[] rewritten = rewrite(new ProfilingRewriter(), ProfilingFixture.class, methodFilter("doesNotExist"));
+        assertTrue(Arrays.equals(original, rewritten));
+    }
+
+    @Test
+    public void testLocalAccumulation() throws Exception {
+        final Class<?> plain = plain();
+        final long expected = countAll(plain, 50) + count(plain, "callAndCatch");
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setLocalAccumulation(true);
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        assertEquals(expected, countAll(clazz, 50) + count(clazz, "callAndCatch"));
+        assertEquals(ProfilingFixture.work(50), invoke(clazz, "work", 50));
+    }
+
+    @Test
+    public void testLocalAccumulationWithGuardedProbes() throws Exception {
+        final long expected = countAll(plain(), 50);
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setLocalAccumulation(true);
+        rewriter.setGuardedProbes(true);
+        final Class<?> clazz = load(rewriter, ProfilingFixture.class);
+
+        assertEquals(expected, countAll(clazz, 50));
+        ProfilingSwitch.setEnabled(false);
+        assertEquals(0, countAll(clazz, 50));
+    }
+
+    @Test
+    public void testLoopHoisting() throws Exception {
+        final Class<?> plain = plain();
+
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setLoopHoisting(true);
+        final byte[] data = rewrite(rewriter, ProfilingFixture.class);
+        assertTrue(disassemble(data).get("countedLoop(I)I").contains("StatisticsManager.account (J)V"));
+        final Class<?> clazz = load(ProfilingFixture.class.getName(), data);
+
+        for (int n : new int[]{0, 1, 7, 100}) {
+            assertEquals(count(plain, "countedLoop", n), count(clazz, "countedLoop", n));
+            assertEquals(ProfilingFixture.countedLoop(n), invoke(clazz, "countedLoop", n));
+        }
+        assertEquals(countAll(plain, 50), countAll(clazz, 50));
+    }
+}
@@ -0,0 +1,76 @@
+package de.codesourcery.asm.rewrite;
+
+import de.codesourcery.asmtest.ProfilingFixture;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransformCacheTest extends AbstractRewriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final File dir = new File(folder.getRoot(), "cache");
+        final TransformCache cache = new TransformCache(dir, 1024 * 1024, "config");
+
+        final byte[] original = readClass(ProfilingFixture.class);
+        assertNull(cache.get(original));
+        assertEquals(1, cache.getMissCount());
+
+        final byte[] transformed = rewrite(new ProfilingRewriter(), ProfilingFixture.class);
+        cache.put(original, transformed);
+
+        assertTrue(Arrays.equals(transformed, cache.get(original)));
+        assertEquals(1, cache.getHitCount());
+
+        // entries survive across cache instances (and JVMs)
+        final TransformCache other = new TransformCache(dir, 1024 * 1024, "config");
+        final byte[] cached = other.get(original);
+        assertTrue(Arrays.equals(transformed, cached));
+
+        final Class<?> clazz = load(ProfilingFixture.class.getName(), cached);
+        assertTrue(count(clazz, "countedLoop", 10) > 0);
+    }
+
+    @Test
+    public void testConfigurationIsPartOfKey() throws Exception {
+        final File dir = folder.getRoot();
+        final byte[] original = readClass(ProfilingFixture.class);
+        final byte[] transformed = rewrite(new ProfilingRewriter(), ProfilingFixture.class);
+
+        new TransformCache(dir, 1024 * 1024, "config").put(original, transformed);
+
+        final TransformCache other = new TransformCache(dir, 1024 * 1024, "other config");
+        assertNull(other.get(original));
+        assertEquals(1, other.getMissCount());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final byte[] original = readClass(ProfilingFixture.class);
+        final byte[] transformed = rewrite(new ProfilingRewriter(), ProfilingFixture.class);
+
+        // room for a single entry only
+        final TransformCache cache = new TransformCache(folder.getRoot(), transformed.length + transformed.length / 2, "config");
+        final byte[] otherOriginal = original.clone();
+        otherOriginal[otherOriginal.length - 1] ^= 1;
+
+        cache.put(original, transformed);
+        cache.put(otherOriginal, transformed);
+
+        int entries = 0;
+        for (File f : folder.getRoot().listFiles()) {
+            if (f.getName().endsWith(".class")) {
+                entries++;
+            }
+        }
+        assertEquals(1, entries);
+    }
+}
@@ -0,0 +1,63 @@
+package de.codesourcery.asm.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompiledJoinpointFilterTest {
+
+    private static final List<String> NONE = Collections.emptyList();
+
+    private static CompiledJoinpointFilter classFilter(List<String> includes, List<String> excludes) {
+        return new CompiledJoinpointFilter(includes, excludes, NONE, NONE, null);
+    }
+
+    @Test
+    public void testClassGlobs() {
+        CompiledJoinpointFilter filter = classFilter(Arrays.asList("com.acme.*", "org/example/**/*Service", "de.foo.Bar"), NONE);
+
+        assertTrue(filter.matchesInternalName("com/acme/Foo"));
+        assertFalse(filter.matchesInternalName("com/acme/sub/Foo"));
+        assertTrue(filter.matchesInternalName("org/example/a/b/UserService"));
+        assertFalse(filter.matchesInternalName("org/example/a/b/UserServiceImpl"));
+        assertTrue(filter.matchesInternalName("de/foo/Bar"));
+        assertFalse(filter.matchesInternalName("de/foo/Bar$1"));
+        assertFalse(filter.matchesInternalName("java/lang/String"));
+        assertTrue(filter.matches("com.acme.Foo"));
+    }
+
+    @Test
+    public void testLeadingWildcardAndExcludes() {
+        CompiledJoinpointFilter filter = classFilter(Arrays.asList("**Test?lass**"), Arrays.asList("**$*"));
+
+        assertTrue(filter.matchesInternalName("TestClass"));
+        assertTrue(filter.matchesInternalName("a/b/TestClassHelper"));
+        assertFalse(filter.matchesInternalName("a/b/TestClass$Inner"));
+        assertFalse(filter.matchesInternalName("a/b/Test/lass"));
+    }
+
+    @Test
+    public void testMethodGlobs() {
+        CompiledJoinpointFilter filter = new CompiledJoinpointFilter(NONE, NONE,
+                Arrays.asList("get*", "parse(Ljava/lang/String;)*"), Arrays.asList("getClass"), null);
+
+        assertTrue(filter.matches("Foo", "getName", "()Ljava/lang/String;"));
+        assertFalse(filter.matches("Foo", "getClass", "()Ljava/lang/Class;"));
+        assertTrue(filter.matches("Foo", "parse", "(Ljava/lang/String;)I"));
+        assertFalse(filter.matches("Foo", "parse", "(I)I"));
+        assertFalse(filter.matches("Foo", "run", "()V"));
+    }
+
+    @Test
+    public void testEmptyIncludesMatchEverything() {
+        CompiledJoinpointFilter filter = classFilter(NONE, Arrays.asList("java.**"));
+
+        assertTrue(filter.matchesInternalName("com/acme/Foo"));
+        assertFalse(filter.matchesInternalName("java/lang/String"));
+        assertTrue(filter.matches("com.acme.Foo", "<init>", "()V"));
+    }
+}
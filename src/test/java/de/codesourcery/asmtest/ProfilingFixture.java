@@ -0,0 +1,117 @@
+package de.codesourcery.asmtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Methods that get instrumented by the profiling tests.
+ *
+ * <p>Lives outside of the agent's own packages so that the profiling agent does not skip it.</p>
+ */
+public class ProfilingFixture {
+
+    private final int value;
+
+    public ProfilingFixture(int value) {
+        super();
+        this.value = value > 0 ? value : -value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public static int countedLoop(int n) {
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += i * 3;
+        }
+        return sum;
+    }
+
+    public static int branches(int n) {
+        int result = 0;
+        for (int i = 0; i < n; i++) {
+            switch (i % 4) {
+                case 0:
+                    result += 1;
+                    break;
+                case 1:
+                    result += i;
+                    break;
+                default:
+                    result -= 1;
+            }
+            if ((i & 1) == 0) {
+                result *= 2;
+            } else {
+                result = identity(result);
+            }
+        }
+        return result;
+    }
+
+    public static int identity(int value) {
+        return value;
+    }
+
+    public static int exceptions(int n) {
+        int result = 0;
+        for (int i = 0; i < n; i++) {
+            try {
+                result += 12 / (i % 3);
+            } catch (ArithmeticException e) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    public static int allocations(int n) {
+        final List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < n; i++) {
+            list.add(new Object());
+        }
+        final int[] ints = new int[16];
+        final String[] strings = new String[n];
+        final long[][] matrix = new long[2][3];
+        return list.size() + ints.length + strings.length + matrix.length;
+    }
+
+    public static int recurse(int depth) {
+        return depth <= 0 ? 0 : 1 + recurse(depth - 1);
+    }
+
+    public static int callAndCatch() {
+        try {
+            thrower();
+        } catch (IllegalStateException e) {
+            return identity(1);
+        }
+        return 0;
+    }
+
+    public static void thrower() {
+        throw new IllegalStateException("expected");
+    }
+
+    public static int alwaysThrows(int value) {
+        throw new IllegalArgumentException("value: " + value);
+    }
+
+    public static int overloaded(int value) {
+        return value + 1;
+    }
+
+    public static long overloaded(long value) {
+        return value + 2;
+    }
+
+    public static long callOverloads(int value) {
+        return overloaded(value) + overloaded((long) value);
+    }
+
+    public static int work(int n) {
+        return countedLoop(n) + branches(n) + exceptions(n) + new ProfilingFixture(-n).getValue() + recurse(3) + callAndCatch();
+    }
+}
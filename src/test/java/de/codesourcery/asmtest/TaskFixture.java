@@ -0,0 +1,41 @@
+package de.codesourcery.asmtest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Task that gets submitted to an executor by instrumented code.
+ */
+public class TaskFixture implements Runnable {
+
+    private final int n;
+    private int result;
+
+    public TaskFixture(int n) {
+        this.n = n;
+    }
+
+    @Override
+    public void run() {
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += i;
+        }
+        result = sum;
+    }
+
+    public int getResult() {
+        return result;
+    }
+
+    public static int runInExecutor(int n) throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final TaskFixture task = new TaskFixture(n);
+            executor.submit(task).get();
+            return task.getResult();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}